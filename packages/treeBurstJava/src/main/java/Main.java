@@ -62,6 +62,13 @@ public class Main {
 							continue;
 						}
 
+						if (line.startsWith(".opt")) {
+							realm.optimizeBytecode = !realm.optimizeBytecode;
+							terminal.writer().println("Optimize bytecode: " + realm.optimizeBytecode);
+							line = line.substring(4);
+							continue;
+						}
+
 						if (line.equals(".ast")) {
 							dumpAST = !dumpAST;
 							terminal.writer().println("Dump AST: " + dumpAST);
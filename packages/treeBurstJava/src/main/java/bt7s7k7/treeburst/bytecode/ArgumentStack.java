@@ -11,6 +11,13 @@ public class ArgumentStack {
 		this.elements = new int[16];
 	}
 
+	private static final ThreadLocal<ArgumentStack> THREAD_STACK = ThreadLocal.withInitial(ArgumentStack::new);
+
+	/** Returns the stack shared by all fragments evaluated on the current thread, see {@link ValueStack#forCurrentThread()}. */
+	public static ArgumentStack forCurrentThread() {
+		return THREAD_STACK.get();
+	}
+
 	public int size() {
 		return this.length;
 	}
@@ -23,6 +30,11 @@ public class ArgumentStack {
 		this.elements[this.length++] = value;
 	}
 
+	/** Removes values until the stack has the provided size. */
+	public void truncate(int size) {
+		if (size < this.length) this.length = size;
+	}
+
 	public int pop() {
 		return this.elements[--this.length];
 	}
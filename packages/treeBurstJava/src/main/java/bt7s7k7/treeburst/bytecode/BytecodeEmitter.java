@@ -7,10 +7,13 @@ import java.util.Map;
 import java.util.function.Consumer;
 
 import bt7s7k7.treeburst.parsing.Expression;
+import bt7s7k7.treeburst.parsing.ExpressionVisitor;
 import bt7s7k7.treeburst.runtime.ExpressionResult;
 import bt7s7k7.treeburst.runtime.ManagedFunction;
 import bt7s7k7.treeburst.runtime.NativeHandle;
+import bt7s7k7.treeburst.runtime.Realm;
 import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.runtime.ScopeLayout;
 import bt7s7k7.treeburst.support.Diagnostic;
 import bt7s7k7.treeburst.support.ManagedValue;
 import bt7s7k7.treeburst.support.Parameter;
@@ -19,10 +22,20 @@ import bt7s7k7.treeburst.support.Primitive;
 
 public class BytecodeEmitter {
 	public final Scope scope;
+	public final ScopeLayout layout;
 	public Position nextPosition;
+	/** Original expressions of literals produced by {@link ConstantFolder}, see {@link ConstantFolder#originals}. */
+	public Map<Expression, Expression> foldedExpressions = null;
+	/**
+	 * Set if the emitted instructions may depend on the state of the scope, not only on the macros
+	 * declared by the realm, see {@link Realm#getCompilationKey()}. This is the case if a macro
+	 * declared by a script or the host was executed, or a macro evaluated code during compilation.
+	 */
+	public boolean scopeDependent = false;
 
 	public BytecodeEmitter(Scope scope) {
 		this.scope = scope;
+		this.layout = scope.layout;
 	}
 
 	protected int nextId = 0;
@@ -34,9 +47,50 @@ public class BytecodeEmitter {
 	}
 
 	public void emit(BytecodeInstruction instruction) {
+		if (instruction instanceof BytecodeInstruction.Declare declare) {
+			this.declareLocal(declare.name);
+		} else if (instruction instanceof BytecodeInstruction.Destructure destructure) {
+			for (var parameter : destructure.parameters) {
+				if (parameter.isDeclaration) this.declareLocal(parameter.name);
+			}
+		}
+
 		this.instructions.add(instruction);
 	}
 
+	/**
+	 * Reserves a slot for a variable that will be declared in the scope this code executes in.
+	 * Macros that declare variables at runtime should call this, so the variable can be found by
+	 * code that accesses it through a slot.
+	 */
+	public void declareLocal(String name) {
+		if (this.layout == null) return;
+		this.layout.declare(name);
+	}
+
+	/**
+	 * Reserves slots for all variables declared directly in the expression. This is done before
+	 * compilation so code compiled in nested fragments, such as inlined loop bodies, can resolve
+	 * variables declared later in the containing code.
+	 */
+	public void declareLocals(Expression expression) {
+		if (this.layout == null) return;
+
+		new ExpressionVisitor() {
+			@Override
+			public Expression visit(Expression expression) {
+				// Child functions have their own scope
+				if (expression instanceof Expression.FunctionDeclaration) return expression;
+
+				if (expression instanceof Expression.VariableDeclaration declaration && declaration.declaration() instanceof Expression.Identifier identifier) {
+					BytecodeEmitter.this.declareLocal(identifier.name());
+				}
+
+				return super.visit(expression);
+			}
+		}.visit(expression);
+	}
+
 	public void label(String label) {
 		this.labels.put(label, this.instructions.size());
 	}
@@ -100,6 +154,21 @@ public class BytecodeEmitter {
 		String method = null;
 		String name = null;
 
+		if (invocation.target() instanceof Expression.MemberAccess memberAccess && invocation.args().size() == 1 && !(invocation.args().get(0) instanceof Expression.Spread)) {
+			var operator = Realm.getNumberOperator(memberAccess.member());
+
+			if (operator != null) {
+				this.compile(memberAccess.receiver(), result);
+				if (result.label != null) return;
+				this.emit(new BytecodeInstruction.PrepareNumberOperator(memberAccess.member(), invocation.position()));
+				this.compile(invocation.args().get(0), result);
+				if (result.label != null) return;
+
+				this.emit(new BytecodeInstruction.NumberOperator(memberAccess.member(), operator, invocation.position()));
+				return;
+			}
+		}
+
 		if (invocation.target() instanceof Expression.MemberAccess memberAccess) {
 			this.compile(memberAccess.receiver(), result);
 			if (result.label != null) return;
@@ -136,7 +205,8 @@ public class BytecodeEmitter {
 
 	public void compile(Expression expression, ExpressionResult result) {
 		if (expression instanceof Expression.Literal literal) {
-			this.emit(literal.value());
+			var original = this.foldedExpressions == null ? null : this.foldedExpressions.get(literal);
+			this.emit(original == null ? literal.value() : new BytecodeInstruction.FoldedConstant(literal.value(), original));
 			return;
 		}
 
@@ -311,7 +381,9 @@ public class BytecodeEmitter {
 		}
 
 		if (expression instanceof Expression.FunctionDeclaration functionDeclaration) {
-			this.emit(new BytecodeInstruction.DeclareFunction(new ProgramFragment(functionDeclaration.body()), functionDeclaration.parameters()));
+			var parameters = functionDeclaration.parameters();
+			var layout = new ScopeLayout(this.layout, parameters.stream().map(v -> v.name).toList());
+			this.emit(new BytecodeInstruction.DeclareFunction(new ProgramFragment(functionDeclaration.body(), layout), parameters));
 			return;
 		}
 
@@ -365,17 +437,68 @@ public class BytecodeEmitter {
 	public static record BuildResult(List<BytecodeInstruction> instructions, Map<String, Integer> labels) {}
 
 	public BuildResult build() {
-		for (var instruction : this.instructions) {
-			if (instruction instanceof BytecodeInstruction.Jump goto_1) {
+		// Jumps are replaced by resolved copies, so emitted instructions are never modified
+		for (int i = 0; i < this.instructions.size(); i++) {
+			if (this.instructions.get(i) instanceof BytecodeInstruction.Jump goto_1) {
 				var index = this.labels.get(goto_1.label);
-				if (index != null) goto_1.index = (int) index;
-				continue;
+				if (index != null && index != goto_1.index) this.instructions.set(i, goto_1.retarget(goto_1.label, index));
 			}
 		}
 
+		if (this.layout != null) {
+			this.resolveVariables();
+		}
+
+		if (this.scope.realm.optimizeBytecode) {
+			return new BytecodeOptimizer(this.instructions, this.labels).optimize();
+		}
+
 		return new BuildResult(this.instructions, this.labels);
 	}
 
+	/**
+	 * Replaces name based variable instructions with instructions that access a slot in a frame.
+	 * Variables that cannot be found in the layout of any enclosing function are left to be found
+	 * by name during execution, which is the case for global variables.
+	 */
+	protected void resolveVariables() {
+		for (int i = 0; i < this.instructions.size(); i++) {
+			var instruction = this.instructions.get(i);
+
+			if (instruction instanceof BytecodeInstruction.Declare declare) {
+				var slot = this.layout.indexOf(declare.name);
+				this.instructions.set(i, new BytecodeInstruction.DeclareLocal(declare.name, slot, this.layout, declare.position));
+				continue;
+			}
+
+			String name;
+			if (instruction instanceof BytecodeInstruction.Load load) {
+				name = load.name;
+			} else if (instruction instanceof BytecodeInstruction.Store store) {
+				name = store.name;
+			} else {
+				continue;
+			}
+
+			var depth = 0;
+			var layout = this.layout;
+			var slot = -1;
+
+			for (; layout != null; layout = layout.parent, depth++) {
+				slot = layout.indexOf(name);
+				if (slot != -1) break;
+			}
+
+			if (layout == null) continue;
+
+			if (instruction instanceof BytecodeInstruction.Load load) {
+				this.instructions.set(i, new BytecodeInstruction.LoadLocal(name, depth, slot, layout, load.position));
+			} else {
+				this.instructions.set(i, new BytecodeInstruction.StoreLocal(name, depth, slot, layout, ((BytecodeInstruction.Store) instruction).position));
+			}
+		}
+	}
+
 	public boolean tryCompilationStageMacroExecution(Expression.Invocation invocation, ExpressionResult result) {
 		Expression receiver = null;
 		ManagedFunction function = null;
@@ -386,6 +509,8 @@ public class BytecodeEmitter {
 				var functionVariable = this.scope.findVariable(staticName);
 				if (functionVariable != null && functionVariable.value instanceof ManagedFunction function_1) {
 					function = function_1;
+					// Macros declared in local scopes are not part of the compilation key
+					if (functionVariable != this.scope.realm.globalScope.findVariable(staticName)) this.scopeDependent = true;
 				}
 			}
 		}
@@ -402,6 +527,8 @@ public class BytecodeEmitter {
 		}
 
 		if (function != null) {
+			if (!this.scope.realm.isStandardMacro(function)) this.scopeDependent = true;
+
 			// Execute compilation stage of macro function
 			var arguments = this.prepareArgumentsForCompilationStageMacroExecution(receiver, invocation.args());
 			this.nextPosition = invocation.position();
@@ -1,10 +1,11 @@
 package bt7s7k7.treeburst.bytecode;
 
-import static bt7s7k7.treeburst.runtime.EvaluationUtil.findProperty;
+import static bt7s7k7.treeburst.runtime.EvaluationUtil.getPrototype;
 import static bt7s7k7.treeburst.runtime.EvaluationUtil.getValueName;
 import static bt7s7k7.treeburst.runtime.EvaluationUtil.setProperty;
 import static bt7s7k7.treeburst.runtime.ExpressionResult.LABEL_RETURN;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,8 +18,12 @@ import bt7s7k7.treeburst.runtime.ManagedFunction;
 import bt7s7k7.treeburst.runtime.ManagedMap;
 import bt7s7k7.treeburst.runtime.ManagedObject;
 import bt7s7k7.treeburst.runtime.ManagedTable;
+import bt7s7k7.treeburst.runtime.PropertyCache;
+import bt7s7k7.treeburst.runtime.Realm;
 import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.runtime.ScopeLayout;
 import bt7s7k7.treeburst.runtime.ScriptFunction;
+import bt7s7k7.treeburst.runtime.Shape;
 import bt7s7k7.treeburst.support.Diagnostic;
 import bt7s7k7.treeburst.support.ManagedValue;
 import bt7s7k7.treeburst.support.ManagedValueUtils;
@@ -29,9 +34,33 @@ import bt7s7k7.treeburst.support.Primitive;
 public interface BytecodeInstruction {
 	public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result);
 
+	/**
+	 * Returns an instruction with the same behaviour, but without the state collected during
+	 * execution, like caches and type feedback. Used to create the copy of a fragment executed by
+	 * another realm, see {@link ProgramFragment#getInstance}. Instructions without such state return
+	 * themselves.
+	 */
+	public default BytecodeInstruction copy() {
+		return this;
+	}
+
 	public static final int STATUS_NORMAL = -1;
 	public static final int STATUS_BREAK = -2;
 	public static final int STATUS_YIELD = -3;
+	/**
+	 * Returned by a {@link Rewritable} instruction before it had any effect, when it should be
+	 * replaced. The engine replaces the instruction and executes the replacement instead.
+	 */
+	public static final int STATUS_REWRITE = -4;
+
+	/**
+	 * Instruction that can be replaced in its fragment, for example by a form specialized for the
+	 * types observed by its {@link TypeFeedback}, see {@link ProgramFragment#rewrite(int)}.
+	 */
+	public interface Rewritable extends BytecodeInstruction {
+		/** Returns the instruction that should replace this one or {@code null} if it should be kept. */
+		public BytecodeInstruction getReplacement();
+	}
 
 	public static String format(List<BytecodeInstruction> instructions, Map<String, Integer> labels) {
 		var result = new StringBuilder();
@@ -63,28 +92,38 @@ public interface BytecodeInstruction {
 		return result.toString();
 	}
 
-	public static class PrepareInvoke implements BytecodeInstruction {
+	public static class PrepareInvoke implements Rewritable {
 		public final int argumentCount;
 		public final String method;
 		public final Position position;
+		protected final PropertyCache cache;
+		protected final TypeFeedback feedback = new TypeFeedback();
+		protected PrepareInvoke replacement = null;
 
 		public PrepareInvoke(int argumentCount, String method, Position position) {
 			this.argumentCount = argumentCount;
 			this.method = method;
 			this.position = position;
+			this.cache = method == null ? null : new PropertyCache(method);
+			if (method == null) this.feedback.disable();
 		}
 
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (this.replacement != null) return STATUS_REWRITE;
+			return this.prepare(values.pop(), values, arguments, scope, result);
+		}
+
+		/** Prepares the invocation of the value, used directly by {@link LoadPrepareInvoke}. */
+		protected int prepare(ManagedValue value, ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
 			arguments.push(this.argumentCount);
 
-			var value = values.pop();
 			var receiver = Primitive.VOID;
 
 			if (this.method != null) {
 				receiver = value;
 
-				if (!findProperty(receiver, receiver, this.method, scope, result)) {
+				if (!this.cache.find(receiver, scope, result)) {
 					result.setException(new Diagnostic("Cannot find method \"" + getValueName(receiver) + "." + this.method + "\"", this.position));
 					return STATUS_BREAK;
 				}
@@ -104,15 +143,123 @@ public interface BytecodeInstruction {
 				values.push(receiver);
 			}
 
+			if (!this.feedback.isDisabled()) this.profile(receiver, function, scope);
+
 			return STATUS_NORMAL;
 		}
 
+		private void profile(ManagedValue receiver, ManagedFunction function, Scope scope) {
+			Object kind;
+			if (receiver instanceof ManagedTable table) {
+				kind = table.getShape();
+			} else if (receiver instanceof ManagedObject) {
+				kind = null;
+			} else {
+				kind = getPrototype(receiver, scope);
+			}
+
+			if (!this.feedback.record(kind, scope.realm)) return;
+
+			Shape shape = null;
+			ManagedObject prototype;
+
+			if (kind instanceof Shape tableShape) {
+				// The method must not be overridden by an own property of the receiver
+				if (tableShape.indexOf(this.method) != -1 || tableShape.indexOf("get_" + this.method) != -1) return;
+				shape = tableShape;
+				prototype = ((ManagedTable) receiver).prototype;
+			} else {
+				prototype = (ManagedObject) kind;
+			}
+
+			if (PropertyCache.findStableProperty(prototype, this.method) != function) return;
+			this.replacement = new MonomorphicPrepareInvoke(this, shape, prototype, function);
+		}
+
+		@Override
+		public BytecodeInstruction getReplacement() {
+			return this.replacement;
+		}
+
+		@Override
+		public PrepareInvoke copy() {
+			return new PrepareInvoke(this.argumentCount, this.method, this.position);
+		}
+
 		@Override
 		public String toString() {
 			return this.position.format("PrepareInvoke args = " + this.argumentCount + ", method = " + this.method, "");
 		}
 	}
 
+	/**
+	 * Specialized form of {@link PrepareInvoke} for a method call site, which only observed
+	 * receivers with the same prototype, and the same shape in case of tables. The method found in
+	 * the prototype is used directly, as long as the receiver matches and the prototypes were not
+	 * modified.
+	 */
+	public static class MonomorphicPrepareInvoke extends PrepareInvoke {
+		protected final Shape shape;
+		protected final ManagedObject prototype;
+		protected final ManagedFunction function;
+		protected final boolean hasThisArgument;
+		protected long version;
+
+		public MonomorphicPrepareInvoke(PrepareInvoke generic, Shape shape, ManagedObject prototype, ManagedFunction function) {
+			super(generic.argumentCount, generic.method, generic.position);
+			this.feedback.disable();
+			this.shape = shape;
+			this.prototype = prototype;
+			this.function = function;
+			this.hasThisArgument = function.hasThisArgument();
+			this.version = ManagedTable.getChainVersion(prototype);
+		}
+
+		@Override
+		protected int prepare(ManagedValue value, ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (!this.matches(value, scope)) {
+				if (this.feedback.recordGuardFailure()) {
+					this.replacement = new PrepareInvoke(this.argumentCount, this.method, this.position);
+					this.replacement.feedback.disable();
+				}
+
+				return super.prepare(value, values, arguments, scope, result);
+			}
+
+			arguments.push(this.argumentCount);
+			values.push(this.function);
+
+			if (this.hasThisArgument) {
+				arguments.increment(1);
+				values.push(value);
+			}
+
+			return STATUS_NORMAL;
+		}
+
+		private boolean matches(ManagedValue receiver, Scope scope) {
+			if (this.shape != null) {
+				if (!(receiver instanceof ManagedTable table) || table.getShape() != this.shape || table.prototype != this.prototype) return false;
+			} else {
+				if (receiver instanceof ManagedObject || getPrototype(receiver, scope) != this.prototype) return false;
+			}
+
+			var version = ManagedTable.getChainVersion(this.prototype);
+			if (version != this.version) {
+				// The prototype chain was modified, check if the method is still the same
+				if (PropertyCache.findStableProperty(this.prototype, this.method) != this.function) return false;
+				this.version = version;
+			}
+
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return this.position.format("MonomorphicPrepareInvoke args = " + this.argumentCount + ", method = " + this.method, "");
+		}
+	}
+
 	public static class SpreadArgument implements BytecodeInstruction {
 		public final Position position;
 
@@ -152,15 +299,154 @@ public interface BytecodeInstruction {
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
 			var argumentCount = arguments.pop();
-			var callArguments = values.popArguments(argumentCount);
-			var function = (ManagedFunction) values.pop();
+			// Arguments stay on the stack during the invocation, so values of the invoked function
+			// are pushed above them
+			var callArguments = values.peekArguments(argumentCount);
+			var function = (ManagedFunction) values.peek(argumentCount);
 
 			function.invoke(callArguments, scope, result);
 
-			for (int i = 0; i < callArguments.size(); i++) {
-				callArguments.set(i, null);
+			values.truncate(values.size() - argumentCount - 1);
+			values.push(result.value);
+
+			if (result.label != null) {
+				if (result.getExceptionIfPresent() != null) {
+					result.setException(new Diagnostic("While invoking " + function.toString(), this.position));
+				}
+
+				return STATUS_BREAK;
+			}
+
+			return STATUS_NORMAL;
+		}
+
+		@Override
+		public String toString() {
+			return this.position.format("Invoke", "");
+		}
+	}
+
+	/**
+	 * Finds the method of a binary number operator on the left operand before the right operand is
+	 * evaluated, in the same order as {@link PrepareInvoke}. If the left operand is a number and
+	 * the operator was not overridden, the method is not needed, so the operand is kept on the
+	 * stack and {@link NumberOperator} calculates the result directly.
+	 */
+	public static class PrepareNumberOperator implements BytecodeInstruction {
+		/** Pushed to the argument stack instead of the argument count, when the method is not needed. */
+		public static final int BUILTIN = -1;
+
+		public final String method;
+		public final Position position;
+		protected final PrepareInvoke prepare;
+
+		// Result of checking if the operator was overridden, valid for the realm and version of the number prototype chain
+		protected Realm checkedRealm = null;
+		protected long checkedVersion = -1;
+		protected boolean builtin = false;
+
+		public PrepareNumberOperator(String method, Position position) {
+			this.method = method;
+			this.position = position;
+			this.prepare = new PrepareInvoke(1, method, position);
+			this.prepare.feedback.disable();
+		}
+
+		protected boolean isBuiltin(Realm realm) {
+			var version = ManagedTable.getChainVersion(realm.NumberPrototype);
+
+			if (realm != this.checkedRealm || version != this.checkedVersion) {
+				this.builtin = realm.isBuiltinNumberOperator(this.method);
+				this.checkedRealm = realm;
+				this.checkedVersion = version;
+			}
+
+			return this.builtin;
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (values.isNumber(0) && this.isBuiltin(scope.realm)) {
+				arguments.push(BUILTIN);
+				return STATUS_NORMAL;
+			}
+
+			return this.prepare.prepare(values.pop(), values, arguments, scope, result);
+		}
+
+		@Override
+		public BytecodeInstruction copy() {
+			return new PrepareNumberOperator(this.method, this.position);
+		}
+
+		@Override
+		public String toString() {
+			return this.position.format("PrepareNumberOperator " + this.method, "");
+		}
+	}
+
+	/**
+	 * Invokes a binary number operator method prepared by {@link PrepareNumberOperator}. If both
+	 * operands are numbers and the operator was not overridden, the result is calculated directly
+	 * instead of invoking the method. Otherwise the method is invoked in the same way as {@link
+	 * Invoke}.
+	 */
+	public static class NumberOperator implements BytecodeInstruction {
+		public final String method;
+		public final Position position;
+		protected final Realm.NumberOperatorImpl operator;
+		// Set if the operator produces a number, so the result can stay unboxed
+		protected final Realm.NumberArithmeticImpl arithmetic;
+		protected final PropertyCache cache;
+		protected final Invoke invoke;
+
+		public NumberOperator(String method, Realm.NumberOperatorImpl operator, Position position) {
+			this.method = method;
+			this.operator = operator;
+			this.arithmetic = operator instanceof Realm.NumberArithmeticImpl arithmetic ? arithmetic : null;
+			this.position = position;
+			this.cache = new PropertyCache(method);
+			this.invoke = new Invoke(position);
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (arguments.peek() != PrepareNumberOperator.BUILTIN) {
+				return this.invoke.executeInstruction(values, arguments, scope, result);
+			}
+
+			arguments.pop();
+
+			if (values.isNumber(0)) {
+				var b = values.popNumber();
+				var a = values.popNumber();
+
+				if (this.arithmetic != null) {
+					values.pushNumber(this.arithmetic.evaluateNumber(a, b));
+				} else {
+					values.push(this.operator.evaluate(a, b));
+				}
+
+				return STATUS_NORMAL;
+			}
+
+			// The built-in method of the left operand handles other types of the right operand
+			var right = values.pop();
+			var left = values.pop();
+
+			if (!this.cache.find(left, scope, result)) {
+				result.setException(new Diagnostic("Cannot find method \"" + getValueName(left) + "." + this.method + "\"", this.position));
+				return STATUS_BREAK;
+			}
+
+			if (!(result.value instanceof ManagedFunction function)) {
+				result.setException(new Diagnostic("Target \"" + getValueName(result.value) + "\" is not callable", this.position));
+				return STATUS_BREAK;
 			}
 
+			var callArguments = function.hasThisArgument() ? Arrays.asList(left, right) : Arrays.asList(right);
+			function.invoke(callArguments, scope, result);
+
 			values.push(result.value);
 
 			if (result.label != null) {
@@ -174,9 +460,74 @@ public interface BytecodeInstruction {
 			return STATUS_NORMAL;
 		}
 
+		@Override
+		public BytecodeInstruction copy() {
+			return new NumberOperator(this.method, this.operator, this.position);
+		}
+
 		@Override
 		public String toString() {
-			return this.position.format("Invoke", "");
+			return this.position.format("NumberOperator " + this.method, "");
+		}
+	}
+
+	/**
+	 * Result of operators applied to constants, computed during compilation by {@link
+	 * ConstantFolder}. The prototypes of numbers, strings and booleans may be modified after the
+	 * compilation, then the operators are checked again and if they were overridden, the original
+	 * expression is evaluated instead.
+	 */
+	public static class FoldedConstant implements BytecodeInstruction {
+		public final ManagedValue value;
+		public final Expression expression;
+
+		// Result of checking if the operators were overridden, valid for the realm and version of the prototypes
+		protected Realm checkedRealm = null;
+		protected long checkedVersion = -1;
+		protected boolean valid = false;
+		protected ProgramFragment fallback = null;
+
+		public FoldedConstant(ManagedValue value, Expression expression) {
+			this.value = value;
+			this.expression = expression;
+		}
+
+		protected boolean isValid(Scope scope) {
+			var realm = scope.realm;
+			var version = realm.getPrimitiveOperatorVersion();
+
+			if (realm != this.checkedRealm || version != this.checkedVersion) {
+				this.valid = ConstantFolder.canFold(this.expression, scope);
+				this.checkedRealm = realm;
+				this.checkedVersion = version;
+			}
+
+			return this.valid;
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (this.isValid(scope)) {
+				values.push(this.value);
+				return STATUS_NORMAL;
+			}
+
+			if (this.fallback == null) this.fallback = new ProgramFragment(this.expression);
+			this.fallback.evaluate(0, values, arguments, scope, result);
+			if (result.label != null) return STATUS_BREAK;
+
+			values.push(result.value);
+			return STATUS_NORMAL;
+		}
+
+		@Override
+		public BytecodeInstruction copy() {
+			return new FoldedConstant(this.value, this.expression);
+		}
+
+		@Override
+		public String toString() {
+			return this.expression.position().format("FoldedConstant " + this.value, "");
 		}
 	}
 
@@ -241,6 +592,12 @@ public interface BytecodeInstruction {
 			return fragment;
 		}
 
+		@Override
+		public BytecodeInstruction copy() {
+			// The macro is executed again by the realm of the copy
+			return new InvokeMacroFallback(this.position, this.expressionArguments);
+		}
+
 		@Override
 		public String toString() {
 			return this.position.format("InvokeMacroFallback", "");
@@ -268,9 +625,18 @@ public interface BytecodeInstruction {
 		}
 	}
 
+	/**
+	 * Suspends the execution of a {@link Coroutine}, the value on the top of the stack is yielded.
+	 * When the coroutine is resumed, the provided value is pushed instead.
+	 */
 	public static class Yield implements BytecodeInstruction {
 		private Yield() {}
 
+		/** Raises an exception for a yield executed outside of a coroutine, or in a nested evaluation of a native function, which cannot be suspended. */
+		public static void reportInvalid(ExpressionResult result) {
+			result.setException(new Diagnostic("Cannot yield outside of a generator", Position.INTRINSIC));
+		}
+
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
 			return STATUS_YIELD;
@@ -286,14 +652,25 @@ public interface BytecodeInstruction {
 
 	public static class Jump implements BytecodeInstruction {
 		public final String label;
-		public int index = -1;
+		/** Index of the target instruction, or -1 if the label is outside of the fragment and the jump breaks out of it. */
+		public final int index;
 
 		public Jump(String label) {
+			this(label, -1);
+		}
+
+		public Jump(String label, int index) {
 			this.label = label;
+			this.index = index;
 		}
 
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			return this.jump(result);
+		}
+
+		/** Returns the status performing the jump. */
+		protected final int jump(ExpressionResult result) {
 			if (this.index != -1) {
 				return this.index;
 			}
@@ -302,26 +679,47 @@ public interface BytecodeInstruction {
 			return STATUS_BREAK;
 		}
 
+		/** Creates a copy of this instruction jumping to a different label, resolved to the provided index. */
+		public Jump retarget(String label, int index) {
+			return new Jump(label, index);
+		}
+
 		@Override
 		public String toString() {
 			return "Jump " + this.label;
 		}
 	}
 
-	public static class Conditional extends Jump {
+	public static class Conditional extends Jump implements Rewritable {
 		public final boolean expect;
 		public final Position position;
+		protected final TypeFeedback feedback = new TypeFeedback();
+		protected Conditional replacement = null;
 
 		public Conditional(String label, boolean expect, Position position) {
-			super(label);
+			this(label, expect, position, -1);
+		}
+
+		public Conditional(String label, boolean expect, Position position, int index) {
+			super(label, index);
 			this.expect = expect;
 			this.position = position;
 		}
 
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (this.replacement != null) return STATUS_REWRITE;
+
 			var predicateResult = values.pop();
 
+			if (!this.feedback.isDisabled() && this.feedback.record(predicateResult instanceof Primitive.Boolean ? Primitive.Boolean.class : null, scope.realm)) {
+				this.replacement = new BooleanConditional(this);
+			}
+
+			return this.test(predicateResult, scope, result);
+		}
+
+		protected final int test(ManagedValue predicateResult, Scope scope, ExpressionResult result) {
 			var predicateValue = ManagedValueUtils.ensureBoolean(predicateResult, scope, result).value;
 			if (result.label != null) {
 				result.setException(new Diagnostic("While executing conditional", this.position));
@@ -332,12 +730,22 @@ public interface BytecodeInstruction {
 				return STATUS_NORMAL;
 			}
 
-			if (this.index != -1) {
-				return this.index;
-			}
+			return this.jump(result);
+		}
 
-			result.label = this.label;
-			return STATUS_BREAK;
+		@Override
+		public BytecodeInstruction getReplacement() {
+			return this.replacement;
+		}
+
+		@Override
+		public Jump retarget(String label, int index) {
+			return new Conditional(label, this.expect, this.position, index);
+		}
+
+		@Override
+		public BytecodeInstruction copy() {
+			return new Conditional(this.label, this.expect, this.position, this.index);
 		}
 
 		@Override
@@ -346,6 +754,140 @@ public interface BytecodeInstruction {
 		}
 	}
 
+	/** Specialized form of {@link Conditional}, which only observed boolean predicates and so does not need to convert them. */
+	public static class BooleanConditional extends Conditional {
+		public BooleanConditional(Conditional generic) {
+			super(generic.label, generic.expect, generic.position, generic.index);
+			this.feedback.disable();
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (this.replacement != null) return STATUS_REWRITE;
+
+			var predicateResult = values.pop();
+			if (predicateResult instanceof Primitive.Boolean predicate) {
+				if (predicate.value != this.expect) return STATUS_NORMAL;
+				return this.jump(result);
+			}
+
+			if (this.feedback.recordGuardFailure()) {
+				this.replacement = new Conditional(this.label, this.expect, this.position, this.index);
+				this.replacement.feedback.disable();
+			}
+
+			return this.test(predicateResult, scope, result);
+		}
+
+		@Override
+		public String toString() {
+			return "BooleanConditional[" + this.expect + "] " + this.label;
+		}
+	}
+
+	/**
+	 * Replaces the sequence of {@link Duplicate}, {@link Conditional} and {@link Discard} used by
+	 * short-circuiting operators. If the value on the stack matches the expectation, jumps to the
+	 * label and keeps the value, otherwise the value is removed.
+	 */
+	public static class ShortCircuit extends Jump implements Rewritable {
+		public final boolean expect;
+		public final Position position;
+		protected final TypeFeedback feedback = new TypeFeedback();
+		protected ShortCircuit replacement = null;
+
+		public ShortCircuit(String label, boolean expect, Position position) {
+			this(label, expect, position, -1);
+		}
+
+		public ShortCircuit(String label, boolean expect, Position position, int index) {
+			super(label, index);
+			this.expect = expect;
+			this.position = position;
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (this.replacement != null) return STATUS_REWRITE;
+
+			if (!this.feedback.isDisabled() && this.feedback.record(values.peek() instanceof Primitive.Boolean ? Primitive.Boolean.class : null, scope.realm)) {
+				this.replacement = new BooleanShortCircuit(this);
+			}
+
+			return this.test(values, scope, result);
+		}
+
+		protected final int test(ValueStack values, Scope scope, ExpressionResult result) {
+			var predicateValue = ManagedValueUtils.ensureBoolean(values.peek(), scope, result).value;
+			if (result.label != null) {
+				values.pop();
+				result.setException(new Diagnostic("While executing conditional", this.position));
+				return STATUS_BREAK;
+			}
+
+			if (predicateValue != this.expect) {
+				values.pop();
+				return STATUS_NORMAL;
+			}
+
+			return this.jump(result);
+		}
+
+		@Override
+		public BytecodeInstruction getReplacement() {
+			return this.replacement;
+		}
+
+		@Override
+		public Jump retarget(String label, int index) {
+			return new ShortCircuit(label, this.expect, this.position, index);
+		}
+
+		@Override
+		public BytecodeInstruction copy() {
+			return new ShortCircuit(this.label, this.expect, this.position, this.index);
+		}
+
+		@Override
+		public String toString() {
+			return "ShortCircuit[" + this.expect + "] " + this.label;
+		}
+	}
+
+	/** Specialized form of {@link ShortCircuit}, which only observed boolean values and so does not need to convert them. */
+	public static class BooleanShortCircuit extends ShortCircuit {
+		public BooleanShortCircuit(ShortCircuit generic) {
+			super(generic.label, generic.expect, generic.position, generic.index);
+			this.feedback.disable();
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (this.replacement != null) return STATUS_REWRITE;
+
+			if (values.peek() instanceof Primitive.Boolean predicate) {
+				if (predicate.value != this.expect) {
+					values.pop();
+					return STATUS_NORMAL;
+				}
+
+				return this.jump(result);
+			}
+
+			if (this.feedback.recordGuardFailure()) {
+				this.replacement = new ShortCircuit(this.label, this.expect, this.position, this.index);
+				this.replacement.feedback.disable();
+			}
+
+			return this.test(values, scope, result);
+		}
+
+		@Override
+		public String toString() {
+			return "BooleanShortCircuit[" + this.expect + "] " + this.label;
+		}
+	}
+
 	public static class Return implements BytecodeInstruction {
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
@@ -377,6 +919,44 @@ public interface BytecodeInstruction {
 		public static final Discard VALUE = new Discard();
 	}
 
+	/** Pushes whether the value on the top of the stack is {@code null} or {@code void}, used by the coalesce operator. */
+	public static class Coalesce implements BytecodeInstruction {
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			var value = values.peek();
+			values.push(value == Primitive.NULL || value == Primitive.VOID ? Primitive.TRUE : Primitive.FALSE);
+			return STATUS_NORMAL;
+		}
+
+		@Override
+		public String toString() {
+			return "Coalesce";
+		}
+
+		private Coalesce() {}
+
+		public static final Coalesce VALUE = new Coalesce();
+	}
+
+	/** Pushes whether the value on the top of the stack is {@code void}, used by the else operator. */
+	public static class Else implements BytecodeInstruction {
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			var value = values.peek();
+			values.push(value == Primitive.VOID ? Primitive.TRUE : Primitive.FALSE);
+			return STATUS_NORMAL;
+		}
+
+		@Override
+		public String toString() {
+			return "Else";
+		}
+
+		private Else() {}
+
+		public static final Else VALUE = new Else();
+	}
+
 	public static class Reflect implements BytecodeInstruction {
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
@@ -436,40 +1016,185 @@ public interface BytecodeInstruction {
 		}
 	}
 
-	public static class Get implements BytecodeInstruction {
+	public static class Get implements Rewritable {
 		public final String name;
 		public final Position position;
+		protected final PropertyCache cache;
+		protected final TypeFeedback feedback = new TypeFeedback();
+		protected Get replacement = null;
 
 		public Get(String name, Position position) {
 			this.name = name;
 			this.position = position;
+			this.cache = new PropertyCache(name);
 		}
 
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
-			var receiver = values.pop();
-			if (!findProperty(receiver, receiver, this.name, scope, result)) {
+			if (this.replacement != null) return STATUS_REWRITE;
+			return this.lookup(values.pop(), values, scope, result);
+		}
+
+		/** Performs the lookup on the receiver, used directly by {@link LoadGet}. */
+		protected int lookup(ManagedValue receiver, ValueStack values, Scope scope, ExpressionResult result) {
+			if (!this.cache.find(receiver, scope, result)) {
 				result.setException(new Diagnostic("Cannot find property \"" + getValueName(receiver) + "." + this.name + "\"", this.position));
 				return STATUS_BREAK;
 			}
 
 			values.push(result.value);
+
+			if (!this.feedback.isDisabled()) this.profile(receiver, scope);
+
 			return STATUS_NORMAL;
 		}
 
+		private void profile(ManagedValue receiver, Scope scope) {
+			Shape shape = null;
+			var index = -1;
+
+			if (receiver instanceof ManagedTable table && (shape = table.getShape()) != null) {
+				index = shape.indexOf(this.name);
+			}
+
+			if (this.feedback.record(index != -1 ? shape : null, scope.realm)) {
+				this.replacement = new ShapeGet(this, shape, index);
+			}
+		}
+
+		@Override
+		public BytecodeInstruction getReplacement() {
+			return this.replacement;
+		}
+
+		@Override
+		public Get copy() {
+			return new Get(this.name, this.position);
+		}
+
 		@Override
 		public String toString() {
 			return this.position.format("Get " + this.name, "");
 		}
 	}
 
+	/**
+	 * Specialized form of {@link Get}, which only observed tables with the same shape having an own
+	 * property with the name, so the property is read by its index.
+	 */
+	public static class ShapeGet extends Get {
+		protected final Shape shape;
+		protected final int index;
+
+		public ShapeGet(Get generic, Shape shape, int index) {
+			super(generic.name, generic.position);
+			this.feedback.disable();
+			this.shape = shape;
+			this.index = index;
+		}
+
+		@Override
+		protected int lookup(ManagedValue receiver, ValueStack values, Scope scope, ExpressionResult result) {
+			if (receiver instanceof ManagedTable table && table.getShape() == this.shape) {
+				values.push(table.getPropertyAt(this.index));
+				return STATUS_NORMAL;
+			}
+
+			if (this.feedback.recordGuardFailure()) {
+				this.replacement = new Get(this.name, this.position);
+				this.replacement.feedback.disable();
+			}
+
+			return super.lookup(receiver, values, scope, result);
+		}
+
+		@Override
+		public String toString() {
+			return this.position.format("ShapeGet " + this.name, "");
+		}
+	}
+
+	/** Superinstruction combining a {@link Load} or {@link LoadLocal} with a following {@link Get}. */
+	public static class LoadGet implements Rewritable {
+		public final BytecodeInstruction load;
+		public final Get get;
+
+		public LoadGet(BytecodeInstruction load, Get get) {
+			this.load = load;
+			this.get = get;
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (this.get.replacement != null) return STATUS_REWRITE;
+
+			var status = this.load.executeInstruction(values, arguments, scope, result);
+			if (status != STATUS_NORMAL) return status;
+			return this.get.lookup(values.pop(), values, scope, result);
+		}
+
+		@Override
+		public BytecodeInstruction getReplacement() {
+			if (this.get.replacement == null) return null;
+			return new LoadGet(this.load, this.get.replacement);
+		}
+
+		@Override
+		public BytecodeInstruction copy() {
+			return new LoadGet(this.load, this.get.copy());
+		}
+
+		@Override
+		public String toString() {
+			return this.load.toString() + "\n+ " + this.get.toString();
+		}
+	}
+
+	/** Superinstruction combining a {@link Load} or {@link LoadLocal} with a following {@link PrepareInvoke}. */
+	public static class LoadPrepareInvoke implements Rewritable {
+		public final BytecodeInstruction load;
+		public final PrepareInvoke prepareInvoke;
+
+		public LoadPrepareInvoke(BytecodeInstruction load, PrepareInvoke prepareInvoke) {
+			this.load = load;
+			this.prepareInvoke = prepareInvoke;
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			if (this.prepareInvoke.replacement != null) return STATUS_REWRITE;
+
+			var status = this.load.executeInstruction(values, arguments, scope, result);
+			if (status != STATUS_NORMAL) return status;
+			return this.prepareInvoke.prepare(values.pop(), values, arguments, scope, result);
+		}
+
+		@Override
+		public BytecodeInstruction getReplacement() {
+			if (this.prepareInvoke.replacement == null) return null;
+			return new LoadPrepareInvoke(this.load, this.prepareInvoke.replacement);
+		}
+
+		@Override
+		public BytecodeInstruction copy() {
+			return new LoadPrepareInvoke(this.load, this.prepareInvoke.copy());
+		}
+
+		@Override
+		public String toString() {
+			return this.load.toString() + "\n+ " + this.prepareInvoke.toString();
+		}
+	}
+
 	public static class Set implements BytecodeInstruction {
 		public final String name;
 		public final Position position;
+		protected final PropertyCache setterCache;
 
 		public Set(String name, Position position) {
 			this.name = name;
 			this.position = position;
+			this.setterCache = new PropertyCache("set_" + name);
 		}
 
 		@Override
@@ -488,7 +1213,12 @@ public interface BytecodeInstruction {
 				return STATUS_BREAK;
 			}
 
-			if (!setProperty(container, this.name, value, scope, result)) {
+			if (!setProperty(container, this.name, value, this.setterCache, scope, result)) {
+				if (container instanceof ManagedTable table && table.isFrozen()) {
+					result.setException(new Diagnostic("Cannot modify frozen table \"" + getValueName(receiver) + "\"", this.position));
+					return STATUS_BREAK;
+				}
+
 				result.setException(new Diagnostic("Property \"" + this.name + "\" is not defined on \"" + getValueName(receiver) + "\"", this.position));
 				return STATUS_BREAK;
 			}
@@ -497,6 +1227,11 @@ public interface BytecodeInstruction {
 			return STATUS_NORMAL;
 		}
 
+		@Override
+		public BytecodeInstruction copy() {
+			return new Set(this.name, this.position);
+		}
+
 		@Override
 		public String toString() {
 			return this.position.format("Set " + this.name, "");
@@ -528,6 +1263,11 @@ public interface BytecodeInstruction {
 				return STATUS_BREAK;
 			}
 
+			if (container.isFrozen()) {
+				result.setException(new Diagnostic("Cannot modify frozen table \"" + getValueName(receiver) + "\"", this.position));
+				return STATUS_BREAK;
+			}
+
 			if (!container.declareProperty(this.name, value)) {
 				result.setException(new Diagnostic("Property \"" + this.name + "\" is already defined", this.position));
 				return STATUS_BREAK;
@@ -574,38 +1314,52 @@ public interface BytecodeInstruction {
 	public static class Store implements BytecodeInstruction {
 		public final String name;
 		public final Position position;
+		/** If set, the value is removed from the stack, equivalent to a following {@link Discard}. */
+		public final boolean discard;
 
 		public Store(String name, Position position) {
+			this(name, position, false);
+		}
+
+		public Store(String name, Position position, boolean discard) {
 			this.name = name;
 			this.position = position;
+			this.discard = discard;
 		}
 
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
-			var variable = scope.findVariable(this.name);
+			var variable = scope.findMutableVariable(this.name);
 
 			if (variable == null) {
 				result.setException(new Diagnostic("Cannot find variable \"" + this.name + "\"", this.position));
 				return STATUS_BREAK;
 			}
 
-			variable.value = values.peek();
+			variable.value = this.discard ? values.pop() : values.peek();
 			return STATUS_NORMAL;
 		}
 
 		@Override
 		public String toString() {
-			return this.position.format("Store " + this.name, "");
+			return this.position.format("Store " + this.name + (this.discard ? " + Discard" : ""), "");
 		}
 	}
 
 	public static class Declare implements BytecodeInstruction {
 		public final String name;
 		public final Position position;
+		/** If set, the value is removed from the stack, equivalent to a following {@link Discard}. */
+		public final boolean discard;
 
 		public Declare(String name, Position position) {
+			this(name, position, false);
+		}
+
+		public Declare(String name, Position position, boolean discard) {
 			this.name = name;
 			this.position = position;
+			this.discard = discard;
 		}
 
 		@Override
@@ -617,13 +1371,131 @@ public interface BytecodeInstruction {
 				return STATUS_BREAK;
 			}
 
-			variable.value = values.peek();
+			variable.value = this.discard ? values.pop() : values.peek();
+			return STATUS_NORMAL;
+		}
+
+		@Override
+		public String toString() {
+			return this.position.format("Declare " + this.name + (this.discard ? " + Discard" : ""), "");
+		}
+	}
+
+	public static class LoadLocal implements BytecodeInstruction {
+		public final String name;
+		public final int depth;
+		public final int slot;
+		public final ScopeLayout layout;
+		public final Position position;
+
+		public LoadLocal(String name, int depth, int slot, ScopeLayout layout, Position position) {
+			this.name = name;
+			this.depth = depth;
+			this.slot = slot;
+			this.layout = layout;
+			this.position = position;
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			var variable = scope.getSlot(this.depth, this.slot, this.layout);
+
+			// If the variable was not declared yet, it may be shadowing a variable in a parent scope
+			if (variable == null) variable = scope.findVariable(this.name);
+
+			if (variable == null) {
+				result.setException(new Diagnostic("Cannot find variable \"" + this.name + "\"", this.position));
+				return STATUS_BREAK;
+			}
+
+			values.push(variable.value);
+			return STATUS_NORMAL;
+		}
+
+		@Override
+		public String toString() {
+			return this.position.format("LoadLocal " + this.name + " [" + this.depth + ":" + this.slot + "]", "");
+		}
+	}
+
+	public static class StoreLocal implements BytecodeInstruction {
+		public final String name;
+		public final int depth;
+		public final int slot;
+		public final ScopeLayout layout;
+		public final Position position;
+
+		public final boolean discard;
+
+		public StoreLocal(String name, int depth, int slot, ScopeLayout layout, Position position) {
+			this(name, depth, slot, layout, position, false);
+		}
+
+		public StoreLocal(String name, int depth, int slot, ScopeLayout layout, Position position, boolean discard) {
+			this.name = name;
+			this.depth = depth;
+			this.slot = slot;
+			this.layout = layout;
+			this.position = position;
+			this.discard = discard;
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			var variable = scope.getSlot(this.depth, this.slot, this.layout);
+			if (variable == null) variable = scope.findMutableVariable(this.name);
+
+			if (variable == null) {
+				result.setException(new Diagnostic("Cannot find variable \"" + this.name + "\"", this.position));
+				return STATUS_BREAK;
+			}
+
+			variable.value = this.discard ? values.pop() : values.peek();
+			return STATUS_NORMAL;
+		}
+
+		@Override
+		public String toString() {
+			return this.position.format("StoreLocal " + this.name + " [" + this.depth + ":" + this.slot + "]" + (this.discard ? " + Discard" : ""), "");
+		}
+	}
+
+	public static class DeclareLocal implements BytecodeInstruction {
+		public final String name;
+		public final int slot;
+		public final ScopeLayout layout;
+		public final Position position;
+
+		public final boolean discard;
+
+		public DeclareLocal(String name, int slot, ScopeLayout layout, Position position) {
+			this(name, slot, layout, position, false);
+		}
+
+		public DeclareLocal(String name, int slot, ScopeLayout layout, Position position, boolean discard) {
+			this.name = name;
+			this.slot = slot;
+			this.layout = layout;
+			this.position = position;
+			this.discard = discard;
+		}
+
+		@Override
+		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+			var variable = scope.layout == this.layout ? scope.declareSlotVariable(this.slot) : scope.declareVariable(this.name);
+
+			if (variable == null) {
+				result.setException(new Diagnostic("Duplicate declaration of variable \"" + this.name + "\"", this.position));
+				return STATUS_BREAK;
+			}
+
+			variable.value = this.discard ? values.pop() : values.peek();
 			return STATUS_NORMAL;
 		}
 
 		@Override
 		public String toString() {
-			return this.position.format("Declare " + this.name, "");
+			return this.position.format("DeclareLocal " + this.name + " [" + this.slot + "]" + (this.discard ? " + Discard" : ""), "");
 		}
 	}
 
@@ -681,6 +1553,11 @@ public interface BytecodeInstruction {
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
 			var elements = values.popArguments(arguments.pop());
+			if (!scope.realm.allocateArray(elements.size(), result)) {
+				values.push(result.value);
+				return STATUS_BREAK;
+			}
+
 			var array = ManagedArray.withCapacity(scope.realm.ArrayPrototype, elements.size());
 
 			var arrayElements = array.getElementsMutable();
@@ -710,6 +1587,11 @@ public interface BytecodeInstruction {
 		@Override
 		public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
 			var kvs = values.popArguments(this.entryCount * 2);
+			if (!scope.realm.allocate(Realm.OBJECT_SIZE, result) || !scope.realm.allocateEntries(this.entryCount, result)) {
+				values.push(result.value);
+				return STATUS_BREAK;
+			}
+
 			var entries = new LinkedHashMap<ManagedValue, ManagedValue>();
 
 			for (int i = 0; i < this.entryCount * 2; i += 2) {
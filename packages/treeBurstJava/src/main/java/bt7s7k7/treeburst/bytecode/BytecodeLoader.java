@@ -0,0 +1,316 @@
+package bt7s7k7.treeburst.bytecode;
+
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.FORMAT_VERSION;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.FRAGMENT_EXPRESSION;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.FRAGMENT_INSTRUCTIONS;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.HASH_SIZE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.HEADER_SIZE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.LAYOUT_NEW;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.LAYOUT_NULL;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.MAGIC;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_BUILD_ARRAY;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_BUILD_MAP;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_COALESCE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_CONDITIONAL;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_CONSTANT;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_DECLARE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_DECLARE_FUNCTION;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_DECLARE_LOCAL;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_DECLARE_PROPERTY;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_DESTRUCTURE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_DISCARD;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_DUPLICATE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_DUPLICATE_ARGUMENTS;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_ELSE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_FOLDED_CONSTANT;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_GET;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_INVOKE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_INVOKE_MACRO_FALLBACK;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_JUMP;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_LOAD;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_LOAD_GET;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_LOAD_LOCAL;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_LOAD_PREPARE_INVOKE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_NUMBER_OPERATOR;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_PREPARE_COLLECTION_LITERAL;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_PREPARE_INVOKE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_PREPARE_NUMBER_OPERATOR;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_REFLECT;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_RETURN;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_SET;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_SHORT_CIRCUIT;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_SPREAD_ARGUMENT;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_STORE;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_STORE_LOCAL;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.TAG_YIELD;
+import static bt7s7k7.treeburst.bytecode.BytecodeWriter.hashSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import bt7s7k7.treeburst.parsing.ExpressionCodec;
+import bt7s7k7.treeburst.parsing.TreeBurstParser;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.runtime.ScopeLayout;
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.InputDocument;
+import bt7s7k7.treeburst.support.ManagedValue;
+
+/**
+ * Reads fragments written by {@link BytecodeWriter}. Files are memory-mapped and decoded directly
+ * from the mapping. A file is only used if it was written for the same source content and by a
+ * realm with the same {@link Realm#getCompilationKey() compilation key}, so the instructions are
+ * the same as if they were compiled by the loading realm, otherwise it is considered stale and
+ * {@code null} is returned.
+ */
+public final class BytecodeLoader {
+	private final BufferInput input;
+	private final ExpressionCodec.Decoder decoder;
+	private final List<ScopeLayout> layouts = new ArrayList<>();
+	private final long compilationKey;
+
+	private BytecodeLoader(ByteBuffer buffer, InputDocument source, long compilationKey) {
+		this.input = new BufferInput(buffer);
+		this.decoder = new ExpressionCodec.Decoder(this.input, source);
+		this.compilationKey = compilationKey;
+	}
+
+	/**
+	 * Loads the fragment for the source document from a file. Returns {@code null} if the file does
+	 * not exist, is stale or is not valid.
+	 */
+	public static ProgramFragment load(Path file, InputDocument source, Realm realm) {
+		ByteBuffer buffer;
+		try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			var size = channel.size();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE) return null;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (IOException exception) {
+			return null;
+		}
+
+		return decode(buffer, source, realm);
+	}
+
+	/** Decodes the fragment for the source document. Returns {@code null} if the data is stale or is not valid. */
+	public static ProgramFragment decode(ByteBuffer buffer, InputDocument source, Realm realm) {
+		buffer = buffer.duplicate();
+		if (buffer.remaining() < HEADER_SIZE) return null;
+
+		if (buffer.getInt() != MAGIC) return null;
+		if (buffer.getShort() != FORMAT_VERSION) return null;
+		if (buffer.getInt() != ExpressionCodec.VERSION) return null;
+
+		var compilationKey = buffer.getLong();
+		if (compilationKey != realm.getCompilationKey()) return null;
+
+		var hash = new byte[HASH_SIZE];
+		buffer.get(hash);
+		if (!MessageDigest.isEqual(hash, hashSource(source))) return null;
+
+		var length = buffer.getInt();
+		var expectedChecksum = buffer.getInt();
+		if (length < 0 || length != buffer.remaining()) return null;
+
+		var checksum = new CRC32();
+		checksum.update(buffer.slice());
+		if ((int) checksum.getValue() != expectedChecksum) return null;
+
+		try {
+			return new BytecodeLoader(buffer, source, compilationKey).readFragment();
+		} catch (IOException | RuntimeException exception) {
+			// Data that cannot be decoded is handled the same as a stale file
+			return null;
+		}
+	}
+
+	/**
+	 * Loads the fragment for the source document from the cache file. If the cache file is missing
+	 * or stale, the source is parsed and compiled in the provided scope and the cache file is
+	 * written again. Returns {@code null} if the source contains syntax errors, which are added to
+	 * {@code diagnostics}.
+	 */
+	public static ProgramFragment loadOrCompile(InputDocument source, Path cacheFile, Scope scope, List<Diagnostic> diagnostics) {
+		if (Files.exists(cacheFile)) {
+			var cached = load(cacheFile, source, scope.realm);
+			if (cached != null) return cached;
+		}
+
+		var parser = new TreeBurstParser(source);
+		var fragment = parser.parse();
+
+		if (!parser.diagnostics.isEmpty()) {
+			diagnostics.addAll(parser.diagnostics);
+			return null;
+		}
+
+		var result = new ExpressionResult();
+		fragment.compile(scope, result);
+		// Compilation errors are reported again when the fragment is evaluated
+		if (result.label != null) return fragment;
+
+		try {
+			BytecodeWriter.write(fragment, source, scope.realm, cacheFile);
+		} catch (IOException | IllegalArgumentException exception) {
+			// The cache is optional, the fragment can be used even if it cannot be saved
+		}
+
+		return fragment;
+	}
+
+	private ScopeLayout readLayout() throws IOException {
+		var index = this.input.readInt();
+		if (index == LAYOUT_NULL) return null;
+		if (index != LAYOUT_NEW) return this.layouts.get(index);
+
+		var parent = this.readLayout();
+		var size = this.input.readInt();
+		var names = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			names.add(this.decoder.readString());
+		}
+
+		var layout = new ScopeLayout(parent, names);
+		this.layouts.add(layout);
+		return layout;
+	}
+
+	private ProgramFragment readFragment() throws IOException {
+		var kind = this.input.readByte();
+		var layout = this.readLayout();
+
+		if (kind == FRAGMENT_EXPRESSION) {
+			return new ProgramFragment(this.decoder.readExpression(), layout);
+		}
+
+		if (kind != FRAGMENT_INSTRUCTIONS) throw new IllegalArgumentException("Invalid fragment kind " + kind);
+
+		var count = this.input.readInt();
+		var instructions = new ArrayList<BytecodeInstruction>(count);
+		for (int i = 0; i < count; i++) {
+			instructions.add(this.readInstruction());
+		}
+
+		var labelCount = this.input.readInt();
+		var labels = new HashMap<String, Integer>(labelCount);
+		for (int i = 0; i < labelCount; i++) {
+			labels.put(this.decoder.readString(), this.input.readInt());
+		}
+
+		return new ProgramFragment(instructions, labels, layout, this.compilationKey);
+	}
+
+	private BytecodeInstruction readInstruction() throws IOException {
+		var input = this.input;
+		var decoder = this.decoder;
+		var opcode = input.readByte();
+
+		return switch (opcode) {
+			case TAG_CONSTANT -> decoder.readValue();
+			case TAG_PREPARE_INVOKE -> {
+				var argumentCount = input.readInt();
+				var method = input.readBoolean() ? decoder.readString() : null;
+				yield new BytecodeInstruction.PrepareInvoke(argumentCount, method, decoder.readPosition());
+			}
+			case TAG_SPREAD_ARGUMENT -> new BytecodeInstruction.SpreadArgument(decoder.readPosition());
+			case TAG_INVOKE -> new BytecodeInstruction.Invoke(decoder.readPosition());
+			case TAG_NUMBER_OPERATOR -> {
+				var method = decoder.readString();
+				var operator = Realm.getNumberOperator(method);
+				if (operator == null) throw new IllegalArgumentException("Invalid number operator " + method);
+				yield new BytecodeInstruction.NumberOperator(method, operator, decoder.readPosition());
+			}
+			case TAG_PREPARE_NUMBER_OPERATOR -> new BytecodeInstruction.PrepareNumberOperator(decoder.readString(), decoder.readPosition());
+			case TAG_INVOKE_MACRO_FALLBACK -> new BytecodeInstruction.InvokeMacroFallback(decoder.readPosition(), decoder.readList());
+			case TAG_DECLARE_FUNCTION -> {
+				var parameters = decoder.readParameters();
+				yield new BytecodeInstruction.DeclareFunction(this.readFragment(), parameters);
+			}
+			case TAG_YIELD -> BytecodeInstruction.Yield.VALUE;
+			case TAG_JUMP -> new BytecodeInstruction.Jump(decoder.readString(), input.readInt());
+			case TAG_CONDITIONAL -> {
+				var label = decoder.readString();
+				var index = input.readInt();
+				yield new BytecodeInstruction.Conditional(label, input.readBoolean(), decoder.readPosition(), index);
+			}
+			case TAG_SHORT_CIRCUIT -> {
+				var label = decoder.readString();
+				var index = input.readInt();
+				yield new BytecodeInstruction.ShortCircuit(label, input.readBoolean(), decoder.readPosition(), index);
+			}
+			case TAG_RETURN -> new BytecodeInstruction.Return();
+			case TAG_DISCARD -> BytecodeInstruction.Discard.VALUE;
+			case TAG_REFLECT -> BytecodeInstruction.Reflect.VALUE;
+			case TAG_DUPLICATE -> BytecodeInstruction.Duplicate.VALUE;
+			case TAG_DUPLICATE_ARGUMENTS -> new BytecodeInstruction.DuplicateArguments(input.readInt());
+			case TAG_GET -> new BytecodeInstruction.Get(decoder.readString(), decoder.readPosition());
+			case TAG_LOAD_GET -> new BytecodeInstruction.LoadGet(this.readInstruction(), (BytecodeInstruction.Get) this.readInstruction());
+			case TAG_LOAD_PREPARE_INVOKE -> new BytecodeInstruction.LoadPrepareInvoke(this.readInstruction(), (BytecodeInstruction.PrepareInvoke) this.readInstruction());
+			case TAG_SET -> new BytecodeInstruction.Set(decoder.readString(), decoder.readPosition());
+			case TAG_DECLARE_PROPERTY -> new BytecodeInstruction.DeclareProperty(decoder.readString(), decoder.readPosition());
+			case TAG_LOAD -> new BytecodeInstruction.Load(decoder.readString(), decoder.readPosition());
+			case TAG_STORE -> new BytecodeInstruction.Store(decoder.readString(), decoder.readPosition(), input.readBoolean());
+			case TAG_DECLARE -> new BytecodeInstruction.Declare(decoder.readString(), decoder.readPosition(), input.readBoolean());
+			case TAG_LOAD_LOCAL -> new BytecodeInstruction.LoadLocal(decoder.readString(), input.readInt(), input.readInt(), this.readLayout(), decoder.readPosition());
+			case TAG_STORE_LOCAL -> new BytecodeInstruction.StoreLocal(decoder.readString(), input.readInt(), input.readInt(), this.readLayout(), decoder.readPosition(), input.readBoolean());
+			case TAG_DECLARE_LOCAL -> new BytecodeInstruction.DeclareLocal(decoder.readString(), input.readInt(), this.readLayout(), decoder.readPosition(), input.readBoolean());
+			case TAG_DESTRUCTURE -> new BytecodeInstruction.Destructure(decoder.readParameters(), decoder.readPosition());
+			case TAG_PREPARE_COLLECTION_LITERAL -> new BytecodeInstruction.PrepareCollectionLiteral(input.readInt());
+			case TAG_BUILD_ARRAY -> BytecodeInstruction.BuildArray.VALUE;
+			case TAG_BUILD_MAP -> new BytecodeInstruction.BuildMap(input.readInt());
+			case TAG_COALESCE -> BytecodeInstruction.Coalesce.VALUE;
+			case TAG_ELSE -> BytecodeInstruction.Else.VALUE;
+			case TAG_FOLDED_CONSTANT -> new BytecodeInstruction.FoldedConstant(decoder.readValue(), decoder.readExpression());
+			default -> throw new IllegalArgumentException("Invalid opcode " + opcode);
+		};
+	}
+
+	/**
+	 * Reads directly from a buffer, so values are decoded from the mapped file without copying it
+	 * or going through a stream. Reading past the end throws {@link
+	 * java.nio.BufferUnderflowException}, which is handled the same as invalid data.
+	 */
+	private static final class BufferInput implements ExpressionCodec.Input {
+		private final ByteBuffer buffer;
+
+		public BufferInput(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public byte readByte() {
+			return this.buffer.get();
+		}
+
+		@Override
+		public boolean readBoolean() {
+			return this.buffer.get() != 0;
+		}
+
+		@Override
+		public int readInt() {
+			return this.buffer.getInt();
+		}
+
+		@Override
+		public double readDouble() {
+			return this.buffer.getDouble();
+		}
+
+		@Override
+		public void readFully(byte[] target) {
+			this.buffer.get(target);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package bt7s7k7.treeburst.bytecode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import bt7s7k7.treeburst.support.ManagedValue;
+
+/**
+ * Optimization pass over the instructions produced by {@link BytecodeEmitter}, executed by {@link
+ * BytecodeEmitter#build()} if {@link bt7s7k7.treeburst.runtime.Realm#optimizeBytecode} is enabled.
+ * Performs jump threading, removes unreachable code and replaces common instruction sequences with
+ * a single instruction.
+ *
+ * Any instruction may break to any label of the fragment, so all labels are considered entry
+ * points. Sequences are only combined if no label points inside of them.
+ */
+public class BytecodeOptimizer {
+	protected List<BytecodeInstruction> instructions;
+	protected Map<String, Integer> labels;
+
+	public BytecodeOptimizer(List<BytecodeInstruction> instructions, Map<String, Integer> labels) {
+		this.instructions = instructions;
+		this.labels = labels;
+	}
+
+	public BytecodeEmitter.BuildResult optimize() {
+		this.threadJumps();
+		this.removeUnreachable();
+		this.combineSequences();
+		this.resolveJumps();
+
+		return new BytecodeEmitter.BuildResult(this.instructions, this.labels);
+	}
+
+	protected boolean isKnownJump(BytecodeInstruction instruction) {
+		var type = instruction.getClass();
+		return type == BytecodeInstruction.Jump.class || type == BytecodeInstruction.Conditional.class || type == BytecodeInstruction.ShortCircuit.class;
+	}
+
+	protected BytecodeInstruction getLabelTarget(String label) {
+		var index = this.labels.get(label);
+		if (index == null || index >= this.instructions.size()) return null;
+		return this.instructions.get(index);
+	}
+
+	/**
+	 * Jumps targeting an unconditional jump are changed to target its destination instead. Jumps
+	 * to the directly following instruction are removed.
+	 */
+	protected void threadJumps() {
+		for (int i = 0; i < this.instructions.size(); i++) {
+			var instruction = this.instructions.get(i);
+			if (!this.isKnownJump(instruction)) continue;
+
+			var jump = (BytecodeInstruction.Jump) instruction;
+			var label = jump.label;
+
+			// Limit the number of steps, so jumps in a cycle do not cause an infinite loop
+			for (int steps = 0; steps < this.instructions.size(); steps++) {
+				if (!(this.getLabelTarget(label) instanceof BytecodeInstruction.Jump next) || next.getClass() != BytecodeInstruction.Jump.class) break;
+				if (!this.labels.containsKey(next.label)) break;
+				label = next.label;
+			}
+
+			if (!label.equals(jump.label)) {
+				this.instructions.set(i, jump.retarget(label, -1));
+			}
+		}
+
+		var removed = new boolean[this.instructions.size()];
+		var anyRemoved = false;
+
+		for (int i = 0; i < this.instructions.size(); i++) {
+			var instruction = this.instructions.get(i);
+			if (instruction.getClass() != BytecodeInstruction.Jump.class) continue;
+
+			var target = this.labels.get(((BytecodeInstruction.Jump) instruction).label);
+			if (target != null && target == i + 1) {
+				removed[i] = true;
+				anyRemoved = true;
+			}
+		}
+
+		if (anyRemoved) this.remove(removed);
+	}
+
+	/** Removes instructions that cannot be reached from the start of the fragment or any label. */
+	protected void removeUnreachable() {
+		var size = this.instructions.size();
+		var reachable = new boolean[size];
+		var queue = new ArrayDeque<Integer>();
+
+		queue.add(0);
+		queue.addAll(this.labels.values());
+
+		while (!queue.isEmpty()) {
+			int index = queue.poll();
+			if (index >= size || reachable[index]) continue;
+			reachable[index] = true;
+
+			var instruction = this.instructions.get(index);
+
+			if (instruction instanceof BytecodeInstruction.Jump jump) {
+				var target = this.labels.get(jump.label);
+				if (target != null) queue.add(target);
+
+				// Unconditional jumps do not continue to the next instruction
+				if (jump.getClass() == BytecodeInstruction.Jump.class) continue;
+			}
+
+			if (instruction instanceof BytecodeInstruction.Return) continue;
+
+			queue.add(index + 1);
+		}
+
+		var removed = new boolean[size];
+		var anyRemoved = false;
+		for (int i = 0; i < size; i++) {
+			if (!reachable[i]) {
+				removed[i] = true;
+				anyRemoved = true;
+			}
+		}
+
+		if (anyRemoved) this.remove(removed);
+	}
+
+	protected static boolean isLoad(BytecodeInstruction instruction) {
+		var type = instruction.getClass();
+		return type == BytecodeInstruction.Load.class || type == BytecodeInstruction.LoadLocal.class;
+	}
+
+	protected static boolean isPurePush(BytecodeInstruction instruction) {
+		return instruction instanceof ManagedValue || instruction == BytecodeInstruction.Duplicate.VALUE;
+	}
+
+	protected static BytecodeInstruction withDiscard(BytecodeInstruction instruction) {
+		var type = instruction.getClass();
+
+		if (type == BytecodeInstruction.Store.class) {
+			var store = (BytecodeInstruction.Store) instruction;
+			if (store.discard) return null;
+			return new BytecodeInstruction.Store(store.name, store.position, true);
+		}
+
+		if (type == BytecodeInstruction.Declare.class) {
+			var declare = (BytecodeInstruction.Declare) instruction;
+			if (declare.discard) return null;
+			return new BytecodeInstruction.Declare(declare.name, declare.position, true);
+		}
+
+		if (type == BytecodeInstruction.StoreLocal.class) {
+			var store = (BytecodeInstruction.StoreLocal) instruction;
+			if (store.discard) return null;
+			return new BytecodeInstruction.StoreLocal(store.name, store.depth, store.slot, store.layout, store.position, true);
+		}
+
+		if (type == BytecodeInstruction.DeclareLocal.class) {
+			var declare = (BytecodeInstruction.DeclareLocal) instruction;
+			if (declare.discard) return null;
+			return new BytecodeInstruction.DeclareLocal(declare.name, declare.slot, declare.layout, declare.position, true);
+		}
+
+		return null;
+	}
+
+	/** Replaces common instruction sequences with equivalent shorter ones. */
+	protected void combineSequences() {
+		var targets = new HashSet<>(this.labels.values());
+		var size = this.instructions.size();
+		var removed = new boolean[size];
+		var anyRemoved = false;
+
+		for (int i = 0; i + 1 < size; i++) {
+			var instruction = this.instructions.get(i);
+			var next = this.instructions.get(i + 1);
+
+			// Instructions following the first one must not be jumped to
+			if (targets.contains(i + 1)) continue;
+
+			// Duplicate, Conditional, Discard -> ShortCircuit
+			if (instruction == BytecodeInstruction.Duplicate.VALUE && next.getClass() == BytecodeInstruction.Conditional.class
+					&& i + 2 < size && this.instructions.get(i + 2) == BytecodeInstruction.Discard.VALUE && !targets.contains(i + 2)) {
+				var conditional = (BytecodeInstruction.Conditional) next;
+				this.instructions.set(i, new BytecodeInstruction.ShortCircuit(conditional.label, conditional.expect, conditional.position));
+				removed[i + 1] = true;
+				removed[i + 2] = true;
+				anyRemoved = true;
+				i += 2;
+				continue;
+			}
+
+			if (next == BytecodeInstruction.Discard.VALUE) {
+				// Values pushed only to be discarded
+				if (isPurePush(instruction)) {
+					removed[i] = true;
+					removed[i + 1] = true;
+					anyRemoved = true;
+					i++;
+					continue;
+				}
+
+				// Store, Discard -> Store + Discard
+				var replacement = withDiscard(instruction);
+				if (replacement != null) {
+					this.instructions.set(i, replacement);
+					removed[i + 1] = true;
+					anyRemoved = true;
+					i++;
+					continue;
+				}
+			}
+
+			if (isLoad(instruction)) {
+				if (next.getClass() == BytecodeInstruction.Get.class) {
+					this.instructions.set(i, new BytecodeInstruction.LoadGet(instruction, (BytecodeInstruction.Get) next));
+					removed[i + 1] = true;
+					anyRemoved = true;
+					i++;
+					continue;
+				}
+
+				if (next.getClass() == BytecodeInstruction.PrepareInvoke.class) {
+					this.instructions.set(i, new BytecodeInstruction.LoadPrepareInvoke(instruction, (BytecodeInstruction.PrepareInvoke) next));
+					removed[i + 1] = true;
+					anyRemoved = true;
+					i++;
+					continue;
+				}
+			}
+		}
+
+		if (anyRemoved) this.remove(removed);
+	}
+
+	/**
+	 * Removes the marked instructions. Labels pointing at a removed instruction are moved to the
+	 * next instruction that was not removed.
+	 */
+	protected void remove(boolean[] removed) {
+		var size = this.instructions.size();
+		var newIndices = new int[size + 1];
+		var newInstructions = new ArrayList<BytecodeInstruction>(size);
+
+		for (int i = 0; i < size; i++) {
+			newIndices[i] = newInstructions.size();
+			if (!removed[i]) newInstructions.add(this.instructions.get(i));
+		}
+
+		newIndices[size] = newInstructions.size();
+
+		var newLabels = new HashMap<String, Integer>();
+		for (var kv : this.labels.entrySet()) {
+			newLabels.put(kv.getKey(), newIndices[kv.getValue()]);
+		}
+
+		this.instructions = newInstructions;
+		this.labels = newLabels;
+	}
+
+	/** Updates the indices of jumps, because instructions may have been removed. */
+	protected void resolveJumps() {
+		for (int i = 0; i < this.instructions.size(); i++) {
+			var instruction = this.instructions.get(i);
+			if (!(instruction instanceof BytecodeInstruction.Jump jump)) continue;
+
+			var index = this.labels.get(jump.label);
+			if (index == null) continue;
+			if (jump.index == index) continue;
+
+			if (!this.isKnownJump(jump)) continue;
+			this.instructions.set(i, jump.retarget(jump.label, index));
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package bt7s7k7.treeburst.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import bt7s7k7.treeburst.parsing.ExpressionCodec;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.runtime.ScopeLayout;
+import bt7s7k7.treeburst.support.InputDocument;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Writes compiled fragments into the binary {@code .tbc} format, which is read by {@link
+ * BytecodeLoader}. The file starts with a header containing the format version, the {@link
+ * Realm#getCompilationKey() compilation key} of the realm the fragment was compiled in, a hash of
+ * the source document and a checksum of the payload. The payload contains the root fragment, function bodies are written inside their
+ * {@link BytecodeInstruction.DeclareFunction} instructions. Positions are written as offsets into
+ * the source document, which is provided again when loading.
+ *
+ * Fragments which were not compiled yet, such as the bodies of functions that were never called,
+ * which contain instructions that cannot be serialized, such as instructions created by macros,
+ * or whose instructions depend on more than the compilation key, see {@link
+ * BytecodeEmitter#scopeDependent}, are written as their expression tree and are compiled after
+ * loading.
+ */
+public final class BytecodeWriter {
+	public static final String EXTENSION = ".tbc";
+
+	static final int MAGIC = 0x54424300;
+	static final int FORMAT_VERSION = 4;
+	static final int HASH_SIZE = 32;
+	/** Magic, format version, expression encoding version, compilation key, source hash, payload length and checksum. */
+	static final int HEADER_SIZE = 4 + 2 + 4 + 8 + HASH_SIZE + 4 + 4;
+
+	static final int FRAGMENT_EXPRESSION = 0;
+	static final int FRAGMENT_INSTRUCTIONS = 1;
+
+	static final int LAYOUT_NULL = -1;
+	static final int LAYOUT_NEW = -2;
+
+	static final int TAG_CONSTANT = 0;
+	static final int TAG_PREPARE_INVOKE = 1;
+	static final int TAG_SPREAD_ARGUMENT = 2;
+	static final int TAG_INVOKE = 3;
+	static final int TAG_NUMBER_OPERATOR = 4;
+	static final int TAG_INVOKE_MACRO_FALLBACK = 5;
+	static final int TAG_DECLARE_FUNCTION = 6;
+	static final int TAG_YIELD = 7;
+	static final int TAG_JUMP = 8;
+	static final int TAG_CONDITIONAL = 9;
+	static final int TAG_SHORT_CIRCUIT = 10;
+	static final int TAG_RETURN = 11;
+	static final int TAG_DISCARD = 12;
+	static final int TAG_REFLECT = 13;
+	static final int TAG_DUPLICATE = 14;
+	static final int TAG_DUPLICATE_ARGUMENTS = 15;
+	static final int TAG_GET = 16;
+	static final int TAG_LOAD_GET = 17;
+	static final int TAG_LOAD_PREPARE_INVOKE = 18;
+	static final int TAG_SET = 19;
+	static final int TAG_DECLARE_PROPERTY = 20;
+	static final int TAG_LOAD = 21;
+	static final int TAG_STORE = 22;
+	static final int TAG_DECLARE = 23;
+	static final int TAG_LOAD_LOCAL = 24;
+	static final int TAG_STORE_LOCAL = 25;
+	static final int TAG_DECLARE_LOCAL = 26;
+	static final int TAG_DESTRUCTURE = 27;
+	static final int TAG_PREPARE_COLLECTION_LITERAL = 28;
+	static final int TAG_BUILD_ARRAY = 29;
+	static final int TAG_BUILD_MAP = 30;
+	static final int TAG_COALESCE = 31;
+	static final int TAG_ELSE = 32;
+	static final int TAG_FOLDED_CONSTANT = 33;
+	static final int TAG_PREPARE_NUMBER_OPERATOR = 34;
+
+	private final DataOutputStream output;
+	private final ExpressionCodec.Encoder encoder;
+	private final IdentityHashMap<ScopeLayout, Integer> layouts = new IdentityHashMap<>();
+	private final long compilationKey;
+
+	private BytecodeWriter(DataOutputStream output, long compilationKey) {
+		this.output = output;
+		this.encoder = new ExpressionCodec.Encoder(output);
+		this.compilationKey = compilationKey;
+	}
+
+	/** Returns the hash of the document content, which is used to detect stale files. */
+	static byte[] hashSource(InputDocument source) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(source.content.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException exception) {
+			throw new IllegalStateException(exception);
+		}
+	}
+
+	/**
+	 * Encodes a fragment parsed from the source document. Throws {@link IllegalArgumentException}
+	 * if the fragment contains values that cannot be serialized.
+	 */
+	public static byte[] encode(ProgramFragment fragment, InputDocument source, Realm realm) {
+		var payload = new ByteArrayOutputStream();
+		var buffer = new ByteArrayOutputStream();
+
+		var compilationKey = realm.getCompilationKey();
+
+		try {
+			var writer = new BytecodeWriter(new DataOutputStream(payload), compilationKey);
+			writer.writeFragment(fragment);
+			writer.output.flush();
+
+			var checksum = new CRC32();
+			checksum.update(payload.toByteArray());
+
+			var output = new DataOutputStream(buffer);
+			output.writeInt(MAGIC);
+			output.writeShort(FORMAT_VERSION);
+			output.writeInt(ExpressionCodec.VERSION);
+			output.writeLong(compilationKey);
+			output.write(hashSource(source));
+			output.writeInt(payload.size());
+			output.writeInt((int) checksum.getValue());
+			payload.writeTo(output);
+			output.flush();
+		} catch (IOException exception) {
+			throw new IllegalStateException(exception);
+		}
+
+		return buffer.toByteArray();
+	}
+
+	/** Writes the encoded fragment into a file, replacing it atomically if possible. */
+	public static void write(ProgramFragment fragment, InputDocument source, Realm realm, Path file) throws IOException {
+		var data = encode(fragment, source, realm);
+
+		var directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		var temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+		try {
+			Files.write(temporary, data);
+			try {
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException __) {
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static boolean canEncode(ManagedValue value) {
+		return value == Primitive.VOID || value == Primitive.NULL || value instanceof Primitive.Number || value instanceof Primitive.String || value instanceof Primitive.Boolean;
+	}
+
+	private static boolean canEncode(BytecodeInstruction instruction) {
+		if (instruction instanceof ManagedValue value) return canEncode(value);
+		if (instruction instanceof BytecodeInstruction.FoldedConstant foldedConstant) return canEncode(foldedConstant.value);
+		if (instruction instanceof BytecodeInstruction.LoadGet loadGet) return canEncode(loadGet.load);
+		if (instruction instanceof BytecodeInstruction.LoadPrepareInvoke loadPrepareInvoke) return canEncode(loadPrepareInvoke.load);
+
+		var type = instruction.getClass();
+
+		// Specialized instructions are written in their generic form, they are specialized again after loading
+		if (type == BytecodeInstruction.BooleanConditional.class || type == BytecodeInstruction.BooleanShortCircuit.class
+				|| type == BytecodeInstruction.ShapeGet.class || type == BytecodeInstruction.MonomorphicPrepareInvoke.class) return true;
+
+		return type == BytecodeInstruction.PrepareInvoke.class || type == BytecodeInstruction.SpreadArgument.class
+				|| type == BytecodeInstruction.Invoke.class || type == BytecodeInstruction.NumberOperator.class
+				|| type == BytecodeInstruction.PrepareNumberOperator.class
+				|| type == BytecodeInstruction.InvokeMacroFallback.class || type == BytecodeInstruction.DeclareFunction.class
+				|| type == BytecodeInstruction.Yield.class || type == BytecodeInstruction.Jump.class
+				|| type == BytecodeInstruction.Conditional.class || type == BytecodeInstruction.ShortCircuit.class
+				|| type == BytecodeInstruction.Return.class || type == BytecodeInstruction.Discard.class
+				|| type == BytecodeInstruction.Reflect.class || type == BytecodeInstruction.Duplicate.class
+				|| type == BytecodeInstruction.DuplicateArguments.class || type == BytecodeInstruction.Get.class
+				|| type == BytecodeInstruction.Set.class || type == BytecodeInstruction.DeclareProperty.class
+				|| type == BytecodeInstruction.Load.class || type == BytecodeInstruction.Store.class
+				|| type == BytecodeInstruction.Declare.class || type == BytecodeInstruction.LoadLocal.class
+				|| type == BytecodeInstruction.StoreLocal.class || type == BytecodeInstruction.DeclareLocal.class
+				|| type == BytecodeInstruction.Destructure.class || type == BytecodeInstruction.PrepareCollectionLiteral.class
+				|| type == BytecodeInstruction.BuildArray.class || type == BytecodeInstruction.BuildMap.class
+				|| type == BytecodeInstruction.Coalesce.class || type == BytecodeInstruction.Else.class;
+	}
+
+	private static boolean canEncode(List<BytecodeInstruction> instructions) {
+		for (var instruction : instructions) {
+			if (!canEncode(instruction)) return false;
+		}
+		return true;
+	}
+
+	private void writeLayout(ScopeLayout layout) throws IOException {
+		if (layout == null) {
+			this.output.writeInt(LAYOUT_NULL);
+			return;
+		}
+
+		var index = this.layouts.get(layout);
+		if (index != null) {
+			this.output.writeInt(index);
+			return;
+		}
+
+		this.output.writeInt(LAYOUT_NEW);
+		this.writeLayout(layout.parent);
+		this.output.writeInt(layout.size());
+		for (int i = 0; i < layout.size(); i++) {
+			this.encoder.writeString(layout.getName(i));
+		}
+
+		this.layouts.put(layout, this.layouts.size());
+	}
+
+	/** Returns {@code true} if the instructions of the fragment are the same for every realm with the compilation key of this file. */
+	private boolean isPortable(ProgramFragment fragment) {
+		if (fragment.scopeDependent) return false;
+		return fragment.compilationKey == 0 || fragment.compilationKey == this.compilationKey;
+	}
+
+	private void writeFragment(ProgramFragment fragment) throws IOException {
+		var instructions = fragment.instructions;
+
+		if (instructions == null || !this.isPortable(fragment) || !canEncode(instructions)) {
+			if (fragment.expression == null) throw new IllegalArgumentException("Fragment cannot be serialized");
+
+			this.output.writeByte(FRAGMENT_EXPRESSION);
+			this.writeLayout(fragment.layout);
+			this.encoder.writeExpression(fragment.expression);
+			return;
+		}
+
+		this.output.writeByte(FRAGMENT_INSTRUCTIONS);
+		this.writeLayout(fragment.layout);
+
+		this.output.writeInt(instructions.size());
+		for (var instruction : instructions) {
+			this.writeInstruction(instruction);
+		}
+
+		this.output.writeInt(fragment.labels.size());
+		for (var label : fragment.labels.entrySet()) {
+			this.encoder.writeString(label.getKey());
+			this.output.writeInt(label.getValue());
+		}
+	}
+
+	private void writeJump(BytecodeInstruction.Jump jump) throws IOException {
+		this.encoder.writeString(jump.label);
+		this.output.writeInt(jump.index);
+	}
+
+	private void writeInstruction(BytecodeInstruction instruction) throws IOException {
+		var output = this.output;
+		var encoder = this.encoder;
+
+		switch (instruction) {
+			case ManagedValue value -> {
+				output.writeByte(TAG_CONSTANT);
+				encoder.writeValue(value);
+			}
+			case BytecodeInstruction.PrepareInvoke prepareInvoke -> {
+				output.writeByte(TAG_PREPARE_INVOKE);
+				output.writeInt(prepareInvoke.argumentCount);
+				output.writeBoolean(prepareInvoke.method != null);
+				if (prepareInvoke.method != null) encoder.writeString(prepareInvoke.method);
+				encoder.writePosition(prepareInvoke.position);
+			}
+			case BytecodeInstruction.SpreadArgument spreadArgument -> {
+				output.writeByte(TAG_SPREAD_ARGUMENT);
+				encoder.writePosition(spreadArgument.position);
+			}
+			case BytecodeInstruction.Invoke invoke -> {
+				output.writeByte(TAG_INVOKE);
+				encoder.writePosition(invoke.position);
+			}
+			case BytecodeInstruction.PrepareNumberOperator prepareNumberOperator -> {
+				output.writeByte(TAG_PREPARE_NUMBER_OPERATOR);
+				encoder.writeString(prepareNumberOperator.method);
+				encoder.writePosition(prepareNumberOperator.position);
+			}
+			case BytecodeInstruction.NumberOperator numberOperator -> {
+				output.writeByte(TAG_NUMBER_OPERATOR);
+				encoder.writeString(numberOperator.method);
+				encoder.writePosition(numberOperator.position);
+			}
+			case BytecodeInstruction.InvokeMacroFallback invokeMacroFallback -> {
+				output.writeByte(TAG_INVOKE_MACRO_FALLBACK);
+				encoder.writePosition(invokeMacroFallback.position);
+				encoder.writeList(invokeMacroFallback.expressionArguments);
+			}
+			case BytecodeInstruction.DeclareFunction declareFunction -> {
+				output.writeByte(TAG_DECLARE_FUNCTION);
+				encoder.writeParameters(declareFunction.parameters);
+				this.writeFragment(declareFunction.body);
+			}
+			case BytecodeInstruction.Yield __ -> output.writeByte(TAG_YIELD);
+			case BytecodeInstruction.Conditional conditional -> {
+				output.writeByte(TAG_CONDITIONAL);
+				this.writeJump(conditional);
+				output.writeBoolean(conditional.expect);
+				encoder.writePosition(conditional.position);
+			}
+			case BytecodeInstruction.ShortCircuit shortCircuit -> {
+				output.writeByte(TAG_SHORT_CIRCUIT);
+				this.writeJump(shortCircuit);
+				output.writeBoolean(shortCircuit.expect);
+				encoder.writePosition(shortCircuit.position);
+			}
+			case BytecodeInstruction.Jump jump -> {
+				output.writeByte(TAG_JUMP);
+				this.writeJump(jump);
+			}
+			case BytecodeInstruction.Return __ -> output.writeByte(TAG_RETURN);
+			case BytecodeInstruction.Discard __ -> output.writeByte(TAG_DISCARD);
+			case BytecodeInstruction.Reflect __ -> output.writeByte(TAG_REFLECT);
+			case BytecodeInstruction.Duplicate __ -> output.writeByte(TAG_DUPLICATE);
+			case BytecodeInstruction.DuplicateArguments duplicateArguments -> {
+				output.writeByte(TAG_DUPLICATE_ARGUMENTS);
+				output.writeInt(duplicateArguments.offset);
+			}
+			case BytecodeInstruction.Get get -> {
+				output.writeByte(TAG_GET);
+				encoder.writeString(get.name);
+				encoder.writePosition(get.position);
+			}
+			case BytecodeInstruction.LoadGet loadGet -> {
+				output.writeByte(TAG_LOAD_GET);
+				this.writeInstruction(loadGet.load);
+				this.writeInstruction(loadGet.get);
+			}
+			case BytecodeInstruction.LoadPrepareInvoke loadPrepareInvoke -> {
+				output.writeByte(TAG_LOAD_PREPARE_INVOKE);
+				this.writeInstruction(loadPrepareInvoke.load);
+				this.writeInstruction(loadPrepareInvoke.prepareInvoke);
+			}
+			case BytecodeInstruction.Set set -> {
+				output.writeByte(TAG_SET);
+				encoder.writeString(set.name);
+				encoder.writePosition(set.position);
+			}
+			case BytecodeInstruction.DeclareProperty declareProperty -> {
+				output.writeByte(TAG_DECLARE_PROPERTY);
+				encoder.writeString(declareProperty.name);
+				encoder.writePosition(declareProperty.position);
+			}
+			case BytecodeInstruction.Load load -> {
+				output.writeByte(TAG_LOAD);
+				encoder.writeString(load.name);
+				encoder.writePosition(load.position);
+			}
+			case BytecodeInstruction.Store store -> {
+				output.writeByte(TAG_STORE);
+				encoder.writeString(store.name);
+				encoder.writePosition(store.position);
+				output.writeBoolean(store.discard);
+			}
+			case BytecodeInstruction.Declare declare -> {
+				output.writeByte(TAG_DECLARE);
+				encoder.writeString(declare.name);
+				encoder.writePosition(declare.position);
+				output.writeBoolean(declare.discard);
+			}
+			case BytecodeInstruction.LoadLocal loadLocal -> {
+				output.writeByte(TAG_LOAD_LOCAL);
+				encoder.writeString(loadLocal.name);
+				output.writeInt(loadLocal.depth);
+				output.writeInt(loadLocal.slot);
+				this.writeLayout(loadLocal.layout);
+				encoder.writePosition(loadLocal.position);
+			}
+			case BytecodeInstruction.StoreLocal storeLocal -> {
+				output.writeByte(TAG_STORE_LOCAL);
+				encoder.writeString(storeLocal.name);
+				output.writeInt(storeLocal.depth);
+				output.writeInt(storeLocal.slot);
+				this.writeLayout(storeLocal.layout);
+				encoder.writePosition(storeLocal.position);
+				output.writeBoolean(storeLocal.discard);
+			}
+			case BytecodeInstruction.DeclareLocal declareLocal -> {
+				output.writeByte(TAG_DECLARE_LOCAL);
+				encoder.writeString(declareLocal.name);
+				output.writeInt(declareLocal.slot);
+				this.writeLayout(declareLocal.layout);
+				encoder.writePosition(declareLocal.position);
+				output.writeBoolean(declareLocal.discard);
+			}
+			case BytecodeInstruction.Destructure destructure -> {
+				output.writeByte(TAG_DESTRUCTURE);
+				encoder.writeParameters(destructure.parameters);
+				encoder.writePosition(destructure.position);
+			}
+			case BytecodeInstruction.PrepareCollectionLiteral prepareCollectionLiteral -> {
+				output.writeByte(TAG_PREPARE_COLLECTION_LITERAL);
+				output.writeInt(prepareCollectionLiteral.elementCount);
+			}
+			case BytecodeInstruction.BuildArray __ -> output.writeByte(TAG_BUILD_ARRAY);
+			case BytecodeInstruction.BuildMap buildMap -> {
+				output.writeByte(TAG_BUILD_MAP);
+				output.writeInt(buildMap.entryCount);
+			}
+			case BytecodeInstruction.Coalesce __ -> output.writeByte(TAG_COALESCE);
+			case BytecodeInstruction.Else __ -> output.writeByte(TAG_ELSE);
+			case BytecodeInstruction.FoldedConstant foldedConstant -> {
+				output.writeByte(TAG_FOLDED_CONSTANT);
+				encoder.writeValue(foldedConstant.value);
+				encoder.writeExpression(foldedConstant.expression);
+			}
+			default -> throw new IllegalArgumentException("Cannot serialize instruction " + instruction);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package bt7s7k7.treeburst.bytecode;
+
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_BREAK;
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_REWRITE;
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_YIELD;
+
+import java.util.List;
+
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.Scope;
+
+/**
+ * Form of a {@link ProgramFragment} compiled into a JVM class, see {@link FragmentCompiler}. Used
+ * instead of the {@link OpcodeProgram} once the fragment was executed often enough, as set by
+ * {@link bt7s7k7.treeburst.runtime.Realm#compilationThreshold}. The compiled code uses the same
+ * stacks and instruction indices as the interpreter, so execution can switch to it at any jump.
+ */
+public abstract class CompiledFragment {
+	/** Instructions and values referenced by the compiled code. */
+	protected final Object[] constants;
+
+	protected CompiledFragment(Object[] constants) {
+		this.constants = constants;
+	}
+
+	/**
+	 * Has the same behaviour as {@link ProgramFragment#evaluate(int, ValueStack, ArgumentStack, Scope, ExpressionResult)},
+	 * but does not count individual instructions, so it must not be used unless {@link
+	 * ExpressionResult#meterAtSafepoints} is enabled or there is no execution limit.
+	 */
+	public abstract void evaluate(ProgramFragment fragment, int pc, ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result);
+
+	/**
+	 * Handles an instruction status other than {@link BytecodeInstruction#STATUS_NORMAL}. Returns
+	 * the index of the next instruction or {@code -1} if the evaluation should return.
+	 *
+	 * When an instruction is rewritten, this compiled form is no longer valid, so the rest of the
+	 * evaluation is performed by the {@link OpcodeProgram}.
+	 */
+	protected final int resume(int status, int pc, ProgramFragment fragment, ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result, boolean safepoints) {
+		if (status >= 0) {
+			if (safepoints && status <= pc) result.safepoint(fragment.getSafepointCost(pc, status));
+			return status;
+		}
+
+		if (status == STATUS_REWRITE) {
+			fragment.rewrite(pc);
+			fragment.getProgram().evaluate(fragment, pc, values, arguments, scope, result);
+			return -1;
+		}
+
+		if (status == STATUS_YIELD) {
+			BytecodeInstruction.Yield.reportInvalid(result);
+			status = STATUS_BREAK;
+		}
+
+		if (status != STATUS_BREAK) throw new IllegalStateException("Status " + status + " is not valid");
+
+		var target = fragment.labels.get(result.label);
+		// If the label is not part of this fragment, move higher the execution stack
+		if (target == null) return -1;
+
+		result.label = null;
+		if (safepoints && target <= pc) result.safepoint(fragment.getSafepointCost(pc, target));
+		return target;
+	}
+
+	/** Compiles the instructions, returns {@code null} if they cannot be compiled. */
+	public static CompiledFragment compile(List<BytecodeInstruction> instructions) {
+		return new FragmentCompiler(instructions).compile();
+	}
+
+	/** Returns the number of fragments whose compiled class could not be created, so they stay interpreted. */
+	public static int getFailedCompilations() {
+		return FragmentCompiler.getFailedCompilations();
+	}
+}
@@ -0,0 +1,98 @@
+package bt7s7k7.treeburst.bytecode;
+
+import static bt7s7k7.treeburst.runtime.EvaluationUtil.evaluateInvocation;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import bt7s7k7.treeburst.parsing.Expression;
+import bt7s7k7.treeburst.parsing.ExpressionVisitor;
+import bt7s7k7.treeburst.parsing.OperatorConstants;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Replaces operators applied to number, string and boolean literals with their result, executed
+ * by {@link ProgramFragment#compile} if {@link bt7s7k7.treeburst.runtime.Realm#optimizeBytecode} is
+ * enabled. Only operators without side effects are evaluated, if all operands are of the same type.
+ * String concatenation is only evaluated if the result is not longer than {@link
+ * #MAX_STRING_LENGTH}, so compilation does not allocate large strings. Operators must be the ones
+ * defined by the realm at the time of compilation, see {@link
+ * bt7s7k7.treeburst.runtime.Realm#getBuiltinOperator}. Operators that fail are left to report their
+ * error during execution.
+ *
+ * Operators can be overridden by code executed after the compilation, so the results are emitted
+ * as {@link BytecodeInstruction.FoldedConstant} instructions, which evaluate the original
+ * expression if the operators were changed.
+ */
+public class ConstantFolder extends ExpressionVisitor {
+	public static final int MAX_STRING_LENGTH = 256;
+
+	private static final Set<String> PURE_OPERATORS = Set.of(
+			OperatorConstants.OPERATOR_NEG, OperatorConstants.OPERATOR_BIT_NEG, OperatorConstants.OPERATOR_NOT,
+			OperatorConstants.OPERATOR_STRING, OperatorConstants.OPERATOR_NUMBER, OperatorConstants.OPERATOR_BOOLEAN,
+			OperatorConstants.OPERATOR_LT, OperatorConstants.OPERATOR_LTE, OperatorConstants.OPERATOR_GT, OperatorConstants.OPERATOR_GTE,
+			OperatorConstants.OPERATOR_EQ, OperatorConstants.OPERATOR_IS, OperatorConstants.OPERATOR_NEQ,
+			OperatorConstants.OPERATOR_BIT_XOR, OperatorConstants.OPERATOR_BIT_AND, OperatorConstants.OPERATOR_BIT_OR,
+			OperatorConstants.OPERATOR_BIT_SHL, OperatorConstants.OPERATOR_BIT_SHR, OperatorConstants.OPERATOR_BIT_SHR_UNSIGNED,
+			OperatorConstants.OPERATOR_ADD, OperatorConstants.OPERATOR_SUB, OperatorConstants.OPERATOR_MUL,
+			OperatorConstants.OPERATOR_DIV, OperatorConstants.OPERATOR_MOD, OperatorConstants.OPERATOR_POW);
+
+	public final Scope scope;
+	/** Original expressions of the literals created by this folder, used to emit {@link BytecodeInstruction.FoldedConstant}. */
+	public final IdentityHashMap<Expression, Expression> originals = new IdentityHashMap<>();
+
+	public ConstantFolder(Scope scope) {
+		this.scope = scope;
+	}
+
+	protected static boolean isFoldable(ManagedValue value) {
+		return value instanceof Primitive.Number || value instanceof Primitive.String || value instanceof Primitive.Boolean;
+	}
+
+	/** Returns {@code true} if the expression can still be folded to a constant in the scope. */
+	public static boolean canFold(Expression expression, Scope scope) {
+		return new ConstantFolder(scope).visit(expression) instanceof Expression.Literal;
+	}
+
+	@Override
+	public Expression visit(Expression expression) {
+		// Function bodies are folded when they are compiled
+		if (expression instanceof Expression.FunctionDeclaration) return expression;
+
+		var original = expression;
+		expression = super.visit(expression);
+
+		if (!(expression instanceof Expression.Invocation invocation)) return expression;
+		if (!(invocation.target() instanceof Expression.MemberAccess memberAccess)) return expression;
+		if (!PURE_OPERATORS.contains(memberAccess.member())) return expression;
+		if (!(memberAccess.receiver() instanceof Expression.Literal receiverLiteral) || !isFoldable(receiverLiteral.value())) return expression;
+
+		var receiver = receiverLiteral.value();
+		var length = receiver instanceof Primitive.String string ? string.value.length() : 0;
+
+		var args = new ArrayList<ManagedValue>(invocation.args().size());
+		for (var argument : invocation.args()) {
+			// Operators of different types may convert their operands, e.g. repeat a string
+			if (!(argument instanceof Expression.Literal literal) || literal.value().getClass() != receiver.getClass()) return expression;
+			if (literal.value() instanceof Primitive.String string) length += string.value.length();
+			args.add(literal.value());
+		}
+
+		if (length > MAX_STRING_LENGTH) return expression;
+
+		var operator = this.scope.realm.getBuiltinOperator(receiver, memberAccess.member());
+		if (operator == null) return expression;
+
+		var result = new ExpressionResult();
+		evaluateInvocation(receiver, receiver, operator, invocation.position(), args, this.scope, result);
+		if (result.label != null || !isFoldable(result.value)) return expression;
+
+		var literal = new Expression.Literal(invocation.position(), result.value);
+		this.originals.put(literal, original);
+		return literal;
+	}
+}
@@ -0,0 +1,188 @@
+package bt7s7k7.treeburst.bytecode;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import bt7s7k7.treeburst.runtime.AsyncNativeFunction;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.ManagedFunction;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Position;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Invocation of a function that can be suspended by a {@link BytecodeInstruction.Yield} and
+ * resumed later, possibly on a different thread. The coroutine has its own {@link ValueStack} and
+ * {@link ArgumentStack} and is executed by a {@link StacklessInterpreter}, so the suspended state
+ * is stored on the heap and does not occupy a thread. Yields are possible in the function and in
+ * script functions invoked by it, but not in functions invoked by native functions, since their
+ * state is on the JVM stack. Invoking an {@link AsyncNativeFunction} also suspends the coroutine,
+ * see {@link #getPending}.
+ *
+ * If the {@link #timeSlice} is set, the coroutine is also preempted after executing that many
+ * instructions, so long running scripts can be interleaved with other work. A preempted coroutine
+ * continues with the next instruction when resumed.
+ *
+ * A coroutine must not be resumed by multiple threads at the same time.
+ */
+public final class Coroutine {
+	/** Invokes the function and arguments pushed on the stacks. */
+	private static final ProgramFragment ENTRY = new ProgramFragment(List.of(new BytecodeInstruction.Invoke(Position.INTRINSIC)), Collections.emptyMap());
+
+	private final ValueStack values = new ValueStack();
+	private final ArgumentStack arguments = new ArgumentStack();
+	private final StacklessInterpreter interpreter;
+	/** Fragment evaluated by this coroutine, it is compiled when the coroutine is started. */
+	private final ProgramFragment fragment;
+	private final Scope scope;
+	private final Realm realm;
+
+	/** Maximum number of instructions executed by a single resume, non-positive values disable preemption. */
+	public int timeSlice = 0;
+
+	private boolean started = false;
+	private boolean running = false;
+	private boolean done = false;
+
+	public Coroutine(ManagedFunction function, List<ManagedValue> arguments, Realm realm) {
+		this.values.push(function);
+		this.values.pushAll(arguments);
+		this.arguments.push(arguments.size());
+		this.interpreter = new StacklessInterpreter(ENTRY, 0, this.values, this.arguments, realm.globalScope, true);
+		this.fragment = null;
+		this.scope = null;
+		this.realm = realm;
+	}
+
+	/** Creates a coroutine evaluating the fragment in the scope, in the same way as {@link ProgramFragment#evaluate(Scope, ExpressionResult)}. */
+	public Coroutine(ProgramFragment fragment, Scope scope) {
+		this.interpreter = new StacklessInterpreter(fragment, 0, this.values, this.arguments, scope, true);
+		this.fragment = fragment;
+		this.scope = scope;
+		this.realm = scope.realm;
+	}
+
+	public boolean isDone() {
+		return this.done;
+	}
+
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	/** Returns {@code true} if the coroutine was suspended because its {@link #timeSlice} ran out. */
+	public boolean isPreempted() {
+		return this.interpreter.isPreempted();
+	}
+
+	/**
+	 * Returns the operation of the {@link AsyncNativeFunction} that suspended the coroutine, or
+	 * {@code null} if it was suspended by a yield. The coroutine should be resumed with the result
+	 * of the operation.
+	 */
+	public CompletableFuture<ManagedValue> getPending() {
+		return this.interpreter.getPending();
+	}
+
+	/**
+	 * Continues the execution of the function until it yields or returns. The {@code value} is the
+	 * result of the yield expression or {@link AsyncNativeFunction} that suspended the coroutine,
+	 * it is ignored when the coroutine is started or was preempted. Returns {@code true} if the coroutine was
+	 * suspended, then {@code result.value} is the yielded value. Otherwise the coroutine is
+	 * finished and {@code result} contains the return value or the exception of the function.
+	 */
+	public boolean resume(ManagedValue value, ExpressionResult result) {
+		if (!this.prepareResume(result)) return false;
+
+		if (!this.started) {
+			if (!this.start(result)) return false;
+		} else if (!this.interpreter.isPreempted()) {
+			this.values.push(value);
+		}
+
+		return this.execute(result);
+	}
+
+	/**
+	 * Continues the execution in the same way as {@link #resume}, but operations of {@link
+	 * AsyncNativeFunction} are awaited by blocking the current thread, so the coroutine is only
+	 * suspended by yields, see {@link bt7s7k7.treeburst.runtime.Scheduler#await}.
+	 */
+	public boolean resumeBlocking(ManagedValue value, ExpressionResult result) {
+		var suspended = this.resume(value, result);
+
+		while (suspended && this.getPending() != null) {
+			try {
+				suspended = this.resume(this.realm.scheduler.await(this.getPending()), result);
+			} catch (CompletionException | CancellationException error) {
+				suspended = this.raise(AsyncNativeFunction.getFailure(error), result);
+			}
+		}
+
+		return suspended;
+	}
+
+	/** Continues the execution by raising the exception at the point where the coroutine was suspended, see {@link #resume}. */
+	public boolean raise(Diagnostic error, ExpressionResult result) {
+		if (!this.prepareResume(result)) return false;
+
+		if (!this.started) {
+			this.done = true;
+			result.setException(error);
+			return false;
+		}
+
+		this.interpreter.raise(error, result);
+		return this.execute(result);
+	}
+
+	private boolean start(ExpressionResult result) {
+		this.started = true;
+		if (this.fragment == null) return true;
+
+		this.fragment.compile(this.scope, result);
+		if (result.label != null) {
+			this.done = true;
+			return false;
+		}
+
+		// The evaluation ends by popping the value of the last instruction
+		if (this.fragment.instructions.isEmpty()) this.values.push(Primitive.VOID);
+		return true;
+	}
+
+	private boolean prepareResume(ExpressionResult result) {
+		if (this.done) {
+			result.setException(new Diagnostic("Cannot resume a finished generator", Position.INTRINSIC));
+			return false;
+		}
+
+		if (this.running) {
+			result.setException(new Diagnostic("Cannot resume a running generator", Position.INTRINSIC));
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean execute(ExpressionResult result) {
+		this.running = true;
+		var suspended = false;
+
+		try {
+			suspended = this.interpreter.run(result, this.timeSlice);
+		} finally {
+			this.running = false;
+			// If the execution was interrupted, the state of the interpreter is not valid
+			if (!suspended) this.done = true;
+		}
+
+		return suspended;
+	}
+}
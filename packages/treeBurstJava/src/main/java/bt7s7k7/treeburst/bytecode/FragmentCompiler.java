@@ -0,0 +1,567 @@
+package bt7s7k7.treeburst.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bt7s7k7.treeburst.support.ManagedValue;
+
+/**
+ * Translates the instructions of a fragment into a JVM class extending {@link CompiledFragment},
+ * defined as a hidden class. The generated method contains a separate call for each instruction,
+ * cast to the exact type of the instruction, so the JVM can inline each call site. Jumps with a
+ * known target are translated to JVM jumps. Other statuses are handled by {@link
+ * CompiledFragment#resume}, after which execution continues using a switch over the instruction
+ * index, which is also used to start execution at an arbitrary instruction.
+ *
+ * The class file is generated directly, using the format version 49, which does not require stack
+ * map frames.
+ *
+ * The compiled code makes no assumptions the instructions do not check themselves, so there is no
+ * deoptimization path. The only exception is a rewritten instruction, then the compiled form is
+ * discarded and execution continues in the {@link OpcodeProgram}, see {@link
+ * ProgramFragment#rewrite}. The fragment is compiled again once it becomes hot.
+ */
+final class FragmentCompiler {
+	/** Fragments with more instructions are not compiled, so jump offsets fit into 16 bits. */
+	public static final int MAX_INSTRUCTIONS = 2048;
+
+	private static final String CLASS_NAME = "bt7s7k7/treeburst/bytecode/CompiledFragment$Generated";
+	private static final String SUPER_NAME = "bt7s7k7/treeburst/bytecode/CompiledFragment";
+	private static final String INSTRUCTION_NAME = "bt7s7k7/treeburst/bytecode/BytecodeInstruction";
+	private static final String VALUE_STACK_NAME = "bt7s7k7/treeburst/bytecode/ValueStack";
+	private static final String RESULT_NAME = "bt7s7k7/treeburst/runtime/ExpressionResult";
+	private static final String MANAGED_VALUE_NAME = "bt7s7k7/treeburst/support/ManagedValue";
+
+	private static final String EXECUTE_DESCRIPTOR = "(Lbt7s7k7/treeburst/bytecode/ValueStack;Lbt7s7k7/treeburst/bytecode/ArgumentStack;Lbt7s7k7/treeburst/runtime/Scope;Lbt7s7k7/treeburst/runtime/ExpressionResult;)I";
+	private static final String EVALUATE_DESCRIPTOR = "(Lbt7s7k7/treeburst/bytecode/ProgramFragment;ILbt7s7k7/treeburst/bytecode/ValueStack;Lbt7s7k7/treeburst/bytecode/ArgumentStack;Lbt7s7k7/treeburst/runtime/Scope;Lbt7s7k7/treeburst/runtime/ExpressionResult;)V";
+	private static final String RESUME_DESCRIPTOR = "(IILbt7s7k7/treeburst/bytecode/ProgramFragment;Lbt7s7k7/treeburst/bytecode/ValueStack;Lbt7s7k7/treeburst/bytecode/ArgumentStack;Lbt7s7k7/treeburst/runtime/Scope;Lbt7s7k7/treeburst/runtime/ExpressionResult;Z)I";
+
+	// Local variables of the generated evaluate method
+	private static final int LOCAL_THIS = 0;
+	private static final int LOCAL_FRAGMENT = 1;
+	private static final int LOCAL_PC = 2;
+	private static final int LOCAL_VALUES = 3;
+	private static final int LOCAL_ARGUMENTS = 4;
+	private static final int LOCAL_SCOPE = 5;
+	private static final int LOCAL_RESULT = 6;
+	private static final int LOCAL_STATUS = 7;
+	private static final int LOCAL_CONSTANTS = 8;
+	private static final int LOCAL_SAFEPOINTS = 9;
+
+	private static final int ICONST_M1 = 0x02;
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int ILOAD = 0x15;
+	private static final int ALOAD = 0x19;
+	private static final int AALOAD = 0x32;
+	private static final int ISTORE = 0x36;
+	private static final int ASTORE = 0x3a;
+	private static final int POP = 0x57;
+	private static final int IFEQ = 0x99;
+	private static final int IFGE = 0x9c;
+	private static final int IF_ICMPEQ = 0x9f;
+	private static final int GOTO = 0xa7;
+	private static final int TABLESWITCH = 0xaa;
+	private static final int RETURN = 0xb1;
+	private static final int GETFIELD = 0xb4;
+	private static final int PUTFIELD = 0xb5;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKEINTERFACE = 0xb9;
+	private static final int CHECKCAST = 0xc0;
+
+	private final List<BytecodeInstruction> instructions;
+	private final List<Object> constants = new ArrayList<>();
+
+	private final ConstantPool pool = new ConstantPool();
+	private final Code code = new Code();
+	private int dispatch;
+
+	public FragmentCompiler(List<BytecodeInstruction> instructions) {
+		this.instructions = instructions;
+	}
+
+	public CompiledFragment compile() {
+		var size = this.instructions.size();
+		if (size == 0 || size > MAX_INSTRUCTIONS) return null;
+
+		for (var instruction : this.instructions) {
+			// Reflect requires the fragment and is only handled by the interpreter
+			if (instruction == BytecodeInstruction.Reflect.VALUE) return null;
+		}
+
+		byte[] bytes;
+		try {
+			bytes = this.generateClass();
+		} catch (IOException exception) {
+			throw new IllegalStateException(exception);
+		}
+
+		if (bytes == null) return null;
+
+		// Errors thrown by the JVM, such as VerifyError, mean the generated class is invalid, which
+		// is a bug in this compiler, so they are not caught
+		try {
+			var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			var constructor = lookup.lookupClass().getDeclaredConstructor(Object[].class);
+			return (CompiledFragment) constructor.newInstance((Object) this.constants.toArray());
+		} catch (ReflectiveOperationException exception) {
+			// Compilation is an optimization, so the fragment can continue to be interpreted
+			failedCompilations.incrementAndGet();
+			return null;
+		}
+	}
+
+	private static final AtomicInteger failedCompilations = new AtomicInteger();
+
+	/** Returns the number of fragments, that could not be compiled because their class could not be loaded. */
+	public static int getFailedCompilations() {
+		return failedCompilations.get();
+	}
+
+	private int addConstant(Object value) {
+		this.constants.add(value);
+		return this.constants.size() - 1;
+	}
+
+	/** Returns if the generated class can reference the type directly. */
+	private static boolean isAccessible(Class<?> type) {
+		if (type.getClassLoader() != FragmentCompiler.class.getClassLoader()) return false;
+		if (type.isAnonymousClass() || type.isLocalClass() || type.isHidden()) return false;
+
+		for (var current = type; current != null; current = current.getEnclosingClass()) {
+			var modifiers = current.getModifiers();
+			if (Modifier.isPublic(modifiers)) continue;
+			if (Modifier.isPrivate(modifiers)) return false;
+			if (current.getPackage() != FragmentCompiler.class.getPackage()) return false;
+		}
+
+		return true;
+	}
+
+	private static String internalName(Class<?> type) {
+		return type.getName().replace('.', '/');
+	}
+
+	private void pushInt(int value) {
+		var code = this.code;
+		if (value >= -1 && value <= 5) {
+			code.u1(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code.u1(BIPUSH);
+			code.u1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			code.u1(SIPUSH);
+			code.u2(value);
+		} else {
+			code.u1(LDC_W);
+			code.u2(this.pool.integer(value));
+		}
+	}
+
+	private void local(int opcode, int index) {
+		this.code.u1(opcode);
+		this.code.u1(index);
+	}
+
+	private void loadConstant(Object value, String type) {
+		this.local(ALOAD, LOCAL_CONSTANTS);
+		this.pushInt(this.addConstant(value));
+		this.code.u1(AALOAD);
+		this.code.u1(CHECKCAST);
+		this.code.u2(this.pool.classRef(type));
+	}
+
+	private void invoke(int opcode, String owner, String name, String descriptor) {
+		this.code.u1(opcode);
+		this.code.u2(this.pool.methodRef(owner, name, descriptor, opcode == INVOKEINTERFACE));
+
+		if (opcode == INVOKEINTERFACE) {
+			// Count of argument slots including the receiver, the descriptor only has references
+			var count = 1 + (int) descriptor.chars().filter(v -> v == ';').count();
+			this.code.u1(count);
+			this.code.u1(0);
+		}
+	}
+
+	private byte[] generateClass() throws IOException {
+		var size = this.instructions.size();
+		var code = this.code;
+		var pool = this.pool;
+
+		// Labels 0 to size - 1 are the starts of instructions, label size is the end of the code
+		code.reserveLabels(size + 1);
+		var end = size;
+		this.dispatch = code.newLabel();
+
+		this.local(ALOAD, LOCAL_THIS);
+		code.u1(GETFIELD);
+		code.u2(pool.fieldRef(SUPER_NAME, "constants", "[Ljava/lang/Object;"));
+		this.local(ASTORE, LOCAL_CONSTANTS);
+
+		this.local(ALOAD, LOCAL_RESULT);
+		this.invoke(INVOKEVIRTUAL, RESULT_NAME, "hasSafepointChecks", "()Z");
+		this.local(ISTORE, LOCAL_SAFEPOINTS);
+
+		code.mark(this.dispatch);
+		this.local(ILOAD, LOCAL_PC);
+		code.tableSwitch(end, size);
+
+		for (int i = 0; i < size; i++) {
+			code.mark(i);
+			this.generateInstruction(i, this.instructions.get(i));
+		}
+
+		code.mark(end);
+		this.local(ALOAD, LOCAL_RESULT);
+		this.local(ALOAD, LOCAL_VALUES);
+		this.invoke(INVOKEVIRTUAL, VALUE_STACK_NAME, "pop", "()L" + MANAGED_VALUE_NAME + ";");
+		code.u1(PUTFIELD);
+		code.u2(pool.fieldRef(RESULT_NAME, "value", "L" + MANAGED_VALUE_NAME + ";"));
+		code.u1(RETURN);
+
+		var bytecode = code.finish();
+		if (bytecode == null) return null;
+
+		// Resolve all constant pool entries before writing the pool
+		var thisClass = pool.classRef(CLASS_NAME);
+		var superClass = pool.classRef(SUPER_NAME);
+		var codeName = pool.utf8("Code");
+		var initName = pool.utf8("<init>");
+		var initDescriptor = pool.utf8("([Ljava/lang/Object;)V");
+		var superInit = pool.methodRef(SUPER_NAME, "<init>", "([Ljava/lang/Object;)V", false);
+		var evaluateName = pool.utf8("evaluate");
+		var evaluateDescriptor = pool.utf8(EVALUATE_DESCRIPTOR);
+
+		var buffer = new ByteArrayOutputStream();
+		var output = new DataOutputStream(buffer);
+
+		output.writeInt(0xCAFEBABE);
+		output.writeShort(0);
+		output.writeShort(49);
+		pool.write(output);
+
+		output.writeShort(Modifier.PUBLIC | Modifier.FINAL | 0x0020 /* ACC_SUPER */);
+		output.writeShort(thisClass);
+		output.writeShort(superClass);
+		output.writeShort(0); // Interfaces
+		output.writeShort(0); // Fields
+		output.writeShort(2); // Methods
+
+		// Constructor passing the constants to the superclass
+		output.writeShort(Modifier.PUBLIC);
+		output.writeShort(initName);
+		output.writeShort(initDescriptor);
+		output.writeShort(1);
+		output.writeShort(codeName);
+		output.writeInt(12 + 6);
+		output.writeShort(2); // Max stack
+		output.writeShort(2); // Max locals
+		output.writeInt(6);
+		output.writeByte(0x2a); // aload_0
+		output.writeByte(0x2b); // aload_1
+		output.writeByte(INVOKESPECIAL);
+		output.writeShort(superInit);
+		output.writeByte(RETURN);
+		output.writeShort(0); // Exception table
+		output.writeShort(0); // Attributes
+
+		output.writeShort(Modifier.PUBLIC);
+		output.writeShort(evaluateName);
+		output.writeShort(evaluateDescriptor);
+		output.writeShort(1);
+		output.writeShort(codeName);
+		output.writeInt(12 + bytecode.length);
+		output.writeShort(9); // Max stack
+		output.writeShort(LOCAL_SAFEPOINTS + 1); // Max locals
+		output.writeInt(bytecode.length);
+		output.write(bytecode);
+		output.writeShort(0); // Exception table
+		output.writeShort(0); // Attributes
+
+		output.writeShort(0); // Class attributes
+		output.flush();
+
+		return buffer.toByteArray();
+	}
+
+	private void generateInstruction(int index, BytecodeInstruction instruction) {
+		var code = this.code;
+
+		if (instruction instanceof ManagedValue value) {
+			this.local(ALOAD, LOCAL_VALUES);
+			this.loadConstant(value, MANAGED_VALUE_NAME);
+			this.invoke(INVOKEVIRTUAL, VALUE_STACK_NAME, "push", "(L" + MANAGED_VALUE_NAME + ";)V");
+			return;
+		}
+
+		if (instruction == BytecodeInstruction.Discard.VALUE) {
+			this.local(ALOAD, LOCAL_VALUES);
+			this.invoke(INVOKEVIRTUAL, VALUE_STACK_NAME, "pop", "()L" + MANAGED_VALUE_NAME + ";");
+			code.u1(POP);
+			return;
+		}
+
+		if (instruction == BytecodeInstruction.Duplicate.VALUE) {
+			this.local(ALOAD, LOCAL_VALUES);
+			this.local(ALOAD, LOCAL_VALUES);
+			this.invoke(INVOKEVIRTUAL, VALUE_STACK_NAME, "peek", "()L" + MANAGED_VALUE_NAME + ";");
+			this.invoke(INVOKEVIRTUAL, VALUE_STACK_NAME, "push", "(L" + MANAGED_VALUE_NAME + ";)V");
+			return;
+		}
+
+		if (instruction.getClass() == BytecodeInstruction.Jump.class && ((BytecodeInstruction.Jump) instruction).index != -1) {
+			var target = ((BytecodeInstruction.Jump) instruction).index;
+
+			if (target <= index) {
+				var skip = code.newLabel();
+				this.local(ILOAD, LOCAL_SAFEPOINTS);
+				code.branch(IFEQ, skip);
+				this.local(ALOAD, LOCAL_RESULT);
+				this.pushInt(index - target + 1);
+				this.invoke(INVOKEVIRTUAL, RESULT_NAME, "safepoint", "(I)V");
+				code.mark(skip);
+			}
+
+			code.branch(GOTO, target);
+			return;
+		}
+
+		// Call the instruction using its exact type, if possible, so the call site is monomorphic
+		var type = instruction.getClass();
+		if (isAccessible(type)) {
+			this.loadConstant(instruction, internalName(type));
+		} else {
+			this.loadConstant(instruction, INSTRUCTION_NAME);
+		}
+
+		this.local(ALOAD, LOCAL_VALUES);
+		this.local(ALOAD, LOCAL_ARGUMENTS);
+		this.local(ALOAD, LOCAL_SCOPE);
+		this.local(ALOAD, LOCAL_RESULT);
+
+		if (isAccessible(type)) {
+			this.invoke(INVOKEVIRTUAL, internalName(type), "executeInstruction", EXECUTE_DESCRIPTOR);
+		} else {
+			this.invoke(INVOKEINTERFACE, INSTRUCTION_NAME, "executeInstruction", EXECUTE_DESCRIPTOR);
+		}
+
+		this.local(ISTORE, LOCAL_STATUS);
+
+		this.local(ILOAD, LOCAL_STATUS);
+		code.u1(ICONST_M1);
+		code.branch(IF_ICMPEQ, index + 1);
+
+		this.local(ALOAD, LOCAL_THIS);
+		this.local(ILOAD, LOCAL_STATUS);
+		this.pushInt(index);
+		this.local(ALOAD, LOCAL_FRAGMENT);
+		this.local(ALOAD, LOCAL_VALUES);
+		this.local(ALOAD, LOCAL_ARGUMENTS);
+		this.local(ALOAD, LOCAL_SCOPE);
+		this.local(ALOAD, LOCAL_RESULT);
+		this.local(ILOAD, LOCAL_SAFEPOINTS);
+		this.invoke(INVOKEVIRTUAL, SUPER_NAME, "resume", RESUME_DESCRIPTOR);
+		this.local(ISTORE, LOCAL_PC);
+
+		this.local(ILOAD, LOCAL_PC);
+		code.branch(IFGE, this.dispatch);
+		code.u1(RETURN);
+	}
+
+	/** Constant pool of a generated class file, also used by {@link ScriptCompiler}. */
+	static final class ConstantPool {
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private final DataOutputStream output = new DataOutputStream(this.buffer);
+		private final HashMap<String, Integer> entries = new HashMap<>();
+		private int count = 1;
+
+		private int add(String key, int size, IOAction writer) {
+			var existing = this.entries.get(key);
+			if (existing != null) return existing;
+
+			try {
+				writer.write(this.output);
+			} catch (IOException exception) {
+				throw new IllegalStateException(exception);
+			}
+
+			var index = this.count;
+			this.count += size;
+			this.entries.put(key, index);
+			return index;
+		}
+
+		public int utf8(String value) {
+			return this.add("U" + value, 1, output -> {
+				output.writeByte(1);
+				output.writeUTF(value);
+			});
+		}
+
+		public int string(String value) {
+			var valueIndex = this.utf8(value);
+			return this.add("S" + value, 1, output -> {
+				output.writeByte(8);
+				output.writeShort(valueIndex);
+			});
+		}
+
+		public int integer(int value) {
+			return this.add("I" + value, 1, output -> {
+				output.writeByte(3);
+				output.writeInt(value);
+			});
+		}
+
+		public int classRef(String name) {
+			var nameIndex = this.utf8(name);
+			return this.add("C" + name, 1, output -> {
+				output.writeByte(7);
+				output.writeShort(nameIndex);
+			});
+		}
+
+		public int nameAndType(String name, String descriptor) {
+			var nameIndex = this.utf8(name);
+			var descriptorIndex = this.utf8(descriptor);
+			return this.add("N" + name + ":" + descriptor, 1, output -> {
+				output.writeByte(12);
+				output.writeShort(nameIndex);
+				output.writeShort(descriptorIndex);
+			});
+		}
+
+		public int fieldRef(String owner, String name, String descriptor) {
+			var ownerIndex = this.classRef(owner);
+			var nameAndType = this.nameAndType(name, descriptor);
+			return this.add("F" + owner + "." + name + ":" + descriptor, 1, output -> {
+				output.writeByte(9);
+				output.writeShort(ownerIndex);
+				output.writeShort(nameAndType);
+			});
+		}
+
+		public int methodRef(String owner, String name, String descriptor, boolean isInterface) {
+			var ownerIndex = this.classRef(owner);
+			var nameAndType = this.nameAndType(name, descriptor);
+			return this.add((isInterface ? "J" : "M") + owner + "." + name + ":" + descriptor, 1, output -> {
+				output.writeByte(isInterface ? 11 : 10);
+				output.writeShort(ownerIndex);
+				output.writeShort(nameAndType);
+			});
+		}
+
+		public void write(DataOutputStream output) throws IOException {
+			this.output.flush();
+			output.writeShort(this.count);
+			this.buffer.writeTo(output);
+		}
+
+		@FunctionalInterface
+		private interface IOAction {
+			void write(DataOutputStream output) throws IOException;
+		}
+	}
+
+	/** Buffer for the code of a method, with support for jumps to labels that are marked later. */
+	private static final class Code {
+		private byte[] bytes = new byte[1024];
+		private int length = 0;
+		private int[] labels = new int[0];
+		private int labelCount = 0;
+		// Triplets of the position of the branch instruction, the position of the offset and the label, negative for 4 byte offsets
+		private final ArrayList<int[]> fixups = new ArrayList<>();
+
+		public void u1(int value) {
+			if (this.length == this.bytes.length) this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+			this.bytes[this.length++] = (byte) value;
+		}
+
+		public void u2(int value) {
+			this.u1(value >> 8);
+			this.u1(value);
+		}
+
+		public void u4(int value) {
+			this.u2(value >> 16);
+			this.u2(value);
+		}
+
+		/** Creates labels with indices from 0 to the provided count. */
+		public void reserveLabels(int count) {
+			this.labels = new int[count];
+			this.labelCount = count;
+		}
+
+		public int newLabel() {
+			if (this.labelCount == this.labels.length) {
+				this.labels = Arrays.copyOf(this.labels, Math.max(4, this.labels.length * 2));
+			}
+
+			return this.labelCount++;
+		}
+
+		public void mark(int label) {
+			this.labels[label] = this.length;
+		}
+
+		public void branch(int opcode, int label) {
+			var position = this.length;
+			this.u1(opcode);
+			this.fixups.add(new int[] { position, this.length, label });
+			this.u2(0);
+		}
+
+		/** Jumps to the label with the index equal to the value on the stack, or to the default label. */
+		public void tableSwitch(int defaultLabel, int count) {
+			var position = this.length;
+			this.u1(TABLESWITCH);
+			while (this.length % 4 != 0) this.u1(0);
+
+			this.fixups.add(new int[] { position, this.length, -defaultLabel - 1 });
+			this.u4(0);
+			this.u4(0);
+			this.u4(count - 1);
+
+			for (int i = 0; i < count; i++) {
+				this.fixups.add(new int[] { position, this.length, -i - 1 });
+				this.u4(0);
+			}
+		}
+
+		/** Resolves jump offsets, returns {@code null} if the code is too large. */
+		public byte[] finish() {
+			if (this.length > Short.MAX_VALUE) return null;
+
+			for (var fixup : this.fixups) {
+				var wide = fixup[2] < 0;
+				var label = wide ? -fixup[2] - 1 : fixup[2];
+				var offset = this.labels[label] - fixup[0];
+				var position = fixup[1];
+
+				if (wide) {
+					this.bytes[position] = (byte) (offset >> 24);
+					this.bytes[position + 1] = (byte) (offset >> 16);
+					this.bytes[position + 2] = (byte) (offset >> 8);
+					this.bytes[position + 3] = (byte) offset;
+				} else {
+					this.bytes[position] = (byte) (offset >> 8);
+					this.bytes[position + 1] = (byte) offset;
+				}
+			}
+
+			return Arrays.copyOf(this.bytes, this.length);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package bt7s7k7.treeburst.bytecode;
+
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_BREAK;
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_NORMAL;
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_REWRITE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import bt7s7k7.treeburst.runtime.ExecutionLimitReachedException;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.NativeHandle;
+import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.support.ManagedValue;
+
+/**
+ * Dense form of the instructions of a {@link ProgramFragment}, executed by a single loop. Each
+ * instruction is lowered into an opcode and an operand stored in an {@code int[]}, objects used by
+ * the instruction are stored in a constant pool. Instructions keep their indices, so jump targets,
+ * labels and resume positions are the same as in the object form.
+ *
+ * Simple instructions are executed directly. Other known instructions are executed by calling
+ * {@link BytecodeInstruction#executeInstruction} on their exact type, so each call site in the loop
+ * only sees a single class. Unknown instructions, like those created by macros, are executed using
+ * {@link #OP_GENERIC}.
+ */
+public final class OpcodeProgram {
+	/** Operand is the index of an instruction in the constant pool. */
+	public static final int OP_GENERIC = 0;
+	/** Operand is the index of a value in the constant pool. */
+	public static final int OP_CONSTANT = 1;
+	public static final int OP_DISCARD = 2;
+	public static final int OP_DUPLICATE = 3;
+	public static final int OP_REFLECT = 4;
+	public static final int OP_YIELD = 5;
+	/** Operand is the index of the target instruction. */
+	public static final int OP_JUMP = 6;
+	/** Jump to a label outside of this program, operand is the index of the label in the constant pool. */
+	public static final int OP_BREAK = 7;
+
+	// The operand of the following opcodes is the index of the instruction in the constant pool
+	public static final int OP_CONDITIONAL = 8;
+	public static final int OP_RETURN = 9;
+	public static final int OP_LOAD = 10;
+	public static final int OP_STORE = 11;
+	public static final int OP_DECLARE = 12;
+	public static final int OP_LOAD_LOCAL = 13;
+	public static final int OP_STORE_LOCAL = 14;
+	public static final int OP_DECLARE_LOCAL = 15;
+	public static final int OP_GET = 16;
+	public static final int OP_SET = 17;
+	public static final int OP_PREPARE_INVOKE = 18;
+	public static final int OP_INVOKE = 19;
+	public static final int OP_NUMBER_OPERATOR = 20;
+	public static final int OP_SHORT_CIRCUIT = 21;
+	public static final int OP_LOAD_GET = 22;
+	public static final int OP_LOAD_PREPARE_INVOKE = 23;
+	public static final int OP_BOOLEAN_CONDITIONAL = 24;
+	public static final int OP_BOOLEAN_SHORT_CIRCUIT = 25;
+	public static final int OP_SHAPE_GET = 26;
+	public static final int OP_MONOMORPHIC_PREPARE_INVOKE = 27;
+	public static final int OP_PREPARE_NUMBER_OPERATOR = 28;
+
+	private final int[] code;
+	private final Object[] constants;
+	private final int length;
+	private final Map<String, Integer> labels;
+
+	public OpcodeProgram(List<BytecodeInstruction> instructions, Map<String, Integer> labels) {
+		this.length = instructions.size();
+		this.labels = labels;
+		this.code = new int[this.length * 2];
+
+		var constants = new ArrayList<Object>();
+
+		for (int i = 0; i < this.length; i++) {
+			var instruction = instructions.get(i);
+			var opcode = getOpcode(instruction);
+			var operand = 0;
+
+			if (opcode == OP_JUMP) {
+				operand = ((BytecodeInstruction.Jump) instruction).index;
+			} else if (opcode == OP_BREAK) {
+				operand = constants.size();
+				constants.add(((BytecodeInstruction.Jump) instruction).label);
+			} else if (opcode == OP_CONSTANT || opcode >= OP_CONDITIONAL || opcode == OP_GENERIC) {
+				operand = constants.size();
+				constants.add(instruction);
+			}
+
+			this.code[i * 2] = opcode;
+			this.code[i * 2 + 1] = operand;
+		}
+
+		this.constants = constants.toArray();
+	}
+
+	private static int getOpcode(BytecodeInstruction instruction) {
+		var type = instruction.getClass();
+
+		if (instruction instanceof ManagedValue) return OP_CONSTANT;
+		if (instruction == BytecodeInstruction.Discard.VALUE) return OP_DISCARD;
+		if (instruction == BytecodeInstruction.Duplicate.VALUE) return OP_DUPLICATE;
+		if (instruction == BytecodeInstruction.Reflect.VALUE) return OP_REFLECT;
+		if (instruction == BytecodeInstruction.Yield.VALUE) return OP_YIELD;
+		if (type == BytecodeInstruction.Jump.class) return ((BytecodeInstruction.Jump) instruction).index != -1 ? OP_JUMP : OP_BREAK;
+		if (type == BytecodeInstruction.Conditional.class) return OP_CONDITIONAL;
+		if (type == BytecodeInstruction.BooleanConditional.class) return OP_BOOLEAN_CONDITIONAL;
+		if (type == BytecodeInstruction.ShortCircuit.class) return OP_SHORT_CIRCUIT;
+		if (type == BytecodeInstruction.BooleanShortCircuit.class) return OP_BOOLEAN_SHORT_CIRCUIT;
+		if (type == BytecodeInstruction.Return.class) return OP_RETURN;
+		if (type == BytecodeInstruction.Load.class) return OP_LOAD;
+		if (type == BytecodeInstruction.Store.class) return OP_STORE;
+		if (type == BytecodeInstruction.Declare.class) return OP_DECLARE;
+		if (type == BytecodeInstruction.LoadLocal.class) return OP_LOAD_LOCAL;
+		if (type == BytecodeInstruction.StoreLocal.class) return OP_STORE_LOCAL;
+		if (type == BytecodeInstruction.DeclareLocal.class) return OP_DECLARE_LOCAL;
+		if (type == BytecodeInstruction.Get.class) return OP_GET;
+		if (type == BytecodeInstruction.ShapeGet.class) return OP_SHAPE_GET;
+		if (type == BytecodeInstruction.Set.class) return OP_SET;
+		if (type == BytecodeInstruction.PrepareInvoke.class) return OP_PREPARE_INVOKE;
+		if (type == BytecodeInstruction.MonomorphicPrepareInvoke.class) return OP_MONOMORPHIC_PREPARE_INVOKE;
+		if (type == BytecodeInstruction.Invoke.class) return OP_INVOKE;
+		if (type == BytecodeInstruction.PrepareNumberOperator.class) return OP_PREPARE_NUMBER_OPERATOR;
+		if (type == BytecodeInstruction.NumberOperator.class) return OP_NUMBER_OPERATOR;
+		if (type == BytecodeInstruction.LoadGet.class) return OP_LOAD_GET;
+		if (type == BytecodeInstruction.LoadPrepareInvoke.class) return OP_LOAD_PREPARE_INVOKE;
+		return OP_GENERIC;
+	}
+
+	/**
+	 * Replaces a {@link BytecodeInstruction.Rewritable} instruction, see {@link
+	 * ProgramFragment#rewrite(int)}. The replacement reuses the constant pool entry of the original.
+	 */
+	public void replace(int index, BytecodeInstruction instruction) {
+		this.constants[this.code[index * 2 + 1]] = instruction;
+		this.code[index * 2] = getOpcode(instruction);
+	}
+
+	public int size() {
+		return this.length;
+	}
+
+	public int getOpcode(int index) {
+		return this.code[index * 2];
+	}
+
+	/** Has the same behaviour as {@link ProgramFragment#evaluate(int, ValueStack, ArgumentStack, Scope, ExpressionResult)}. */
+	public void evaluate(ProgramFragment fragment, int pc, ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+		var code = this.code;
+		var constants = this.constants;
+		var countInstructions = result.executionLimit != Integer.MAX_VALUE && !result.meterAtSafepoints;
+		var safepoints = result.hasSafepointChecks();
+
+		while (pc < this.length) {
+			if (countInstructions) {
+				result.executionCounter++;
+				if (result.executionCounter > result.executionLimit) {
+					throw new ExecutionLimitReachedException("Script execution reached the limit of " + result.executionLimit + " expressions");
+				}
+			}
+
+			var operand = code[pc * 2 + 1];
+			int status;
+
+			switch (code[pc * 2]) {
+				case OP_CONSTANT -> {
+					values.push((ManagedValue) constants[operand]);
+					status = STATUS_NORMAL;
+				}
+				case OP_DISCARD -> {
+					values.pop();
+					status = STATUS_NORMAL;
+				}
+				case OP_DUPLICATE -> {
+					values.push(values.peek());
+					status = STATUS_NORMAL;
+				}
+				case OP_REFLECT -> {
+					values.push(new NativeHandle(scope.realm.TablePrototype, fragment));
+					status = STATUS_NORMAL;
+				}
+				case OP_YIELD -> {
+					// Only the loop of a coroutine can be suspended
+					BytecodeInstruction.Yield.reportInvalid(result);
+					status = STATUS_BREAK;
+				}
+				case OP_JUMP -> status = operand;
+				case OP_BREAK -> {
+					result.label = (String) constants[operand];
+					status = STATUS_BREAK;
+				}
+				case OP_CONDITIONAL -> status = ((BytecodeInstruction.Conditional) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_RETURN -> status = ((BytecodeInstruction.Return) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_LOAD -> status = ((BytecodeInstruction.Load) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_STORE -> status = ((BytecodeInstruction.Store) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_DECLARE -> status = ((BytecodeInstruction.Declare) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_LOAD_LOCAL -> status = ((BytecodeInstruction.LoadLocal) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_STORE_LOCAL -> status = ((BytecodeInstruction.StoreLocal) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_DECLARE_LOCAL -> status = ((BytecodeInstruction.DeclareLocal) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_GET -> status = ((BytecodeInstruction.Get) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_SET -> status = ((BytecodeInstruction.Set) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_PREPARE_INVOKE -> status = ((BytecodeInstruction.PrepareInvoke) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_INVOKE -> status = ((BytecodeInstruction.Invoke) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_PREPARE_NUMBER_OPERATOR -> status = ((BytecodeInstruction.PrepareNumberOperator) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_NUMBER_OPERATOR -> status = ((BytecodeInstruction.NumberOperator) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_SHORT_CIRCUIT -> status = ((BytecodeInstruction.ShortCircuit) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_LOAD_GET -> status = ((BytecodeInstruction.LoadGet) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_LOAD_PREPARE_INVOKE -> status = ((BytecodeInstruction.LoadPrepareInvoke) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_BOOLEAN_CONDITIONAL -> status = ((BytecodeInstruction.BooleanConditional) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_BOOLEAN_SHORT_CIRCUIT -> status = ((BytecodeInstruction.BooleanShortCircuit) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_SHAPE_GET -> status = ((BytecodeInstruction.ShapeGet) constants[operand]).executeInstruction(values, arguments, scope, result);
+				case OP_MONOMORPHIC_PREPARE_INVOKE -> status = ((BytecodeInstruction.MonomorphicPrepareInvoke) constants[operand]).executeInstruction(values, arguments, scope, result);
+				default -> status = ((BytecodeInstruction) constants[operand]).executeInstruction(values, arguments, scope, result);
+			}
+
+			if (status == STATUS_NORMAL) {
+				pc++;
+				continue;
+			}
+
+			if (status >= 0) {
+				if (status <= pc) {
+					if (safepoints) result.safepoint(fragment.getSafepointCost(pc, status));
+
+					// Continue in the compiled form, if the fragment became hot during this loop
+					if (!countInstructions && fragment.recordHotness(scope.realm)) {
+						fragment.compiled.evaluate(fragment, status, values, arguments, scope, result);
+						return;
+					}
+				}
+
+				pc = status;
+				continue;
+			}
+
+			if (status == STATUS_REWRITE) {
+				// Execute the replacement instead, it is not counted again
+				fragment.rewrite(pc);
+				if (countInstructions) result.executionCounter--;
+				continue;
+			}
+
+			if (status != STATUS_BREAK) throw new IllegalStateException("Status " + status + " is not valid");
+
+			var target = this.labels.get(result.label);
+			// If the label is not part of this fragment, move higher the execution stack
+			if (target == null) return;
+
+			result.label = null;
+			if (safepoints && target <= pc) result.safepoint(fragment.getSafepointCost(pc, target));
+			pc = (int) target;
+		}
+
+		result.value = values.pop();
+	}
+}
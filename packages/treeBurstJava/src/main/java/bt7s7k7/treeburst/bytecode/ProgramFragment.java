@@ -2,36 +2,109 @@ package bt7s7k7.treeburst.bytecode;
 
 import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_BREAK;
 import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_NORMAL;
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_REWRITE;
 import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_YIELD;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import bt7s7k7.treeburst.parsing.Expression;
 import bt7s7k7.treeburst.runtime.ExecutionLimitReachedException;
 import bt7s7k7.treeburst.runtime.ExpressionResult;
 import bt7s7k7.treeburst.runtime.NativeHandle;
+import bt7s7k7.treeburst.runtime.Realm;
 import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.runtime.ScopeLayout;
 import bt7s7k7.treeburst.support.Primitive;
 
+/**
+ * Compiled code of a script or function body. The fragment is compiled on first evaluation, once,
+ * even if it is shared between threads. After that the {@link #code} is immutable, so a fragment
+ * can be evaluated by multiple realms at the same time. The realm that compiled the fragment
+ * becomes its owner and executes it directly, while other realms execute their own copy with
+ * separate caches and type feedback, or compile the fragment again if the code depends on the
+ * realm, see {@link #getInstance}.
+ */
 public class ProgramFragment {
 	protected Expression expression;
+	/** Instructions executed by this instance, they are replaced by their quickened forms during execution. */
 	protected List<BytecodeInstruction> instructions;
+	/** Instructions as they were compiled, used to create copies of this fragment for other realms. */
+	protected volatile List<BytecodeInstruction> code;
+	/** Realm that executes this instance, other realms execute a copy. */
+	protected final AtomicReference<Realm> owner = new AtomicReference<>();
+	/** Set by the thread that publishes the result of {@link #compile}. */
+	private final AtomicBoolean publishing = new AtomicBoolean();
+	/** Key of the realm the {@link #code} was compiled by, see {@link Realm#getCompilationKey()}, or {@code 0} if it was not compiled by a realm. */
+	protected long compilationKey = 0;
+	/** Set if compiling the {@link #code} executed macros that may depend on the scope, see {@link BytecodeEmitter#scopeDependent}. */
+	protected boolean scopeDependent = false;
 	protected Map<String, Integer> labels;
+	protected ScopeLayout layout;
+	protected OpcodeProgram program;
+	protected int entryCost = 1;
+	protected int[] safepointCosts;
+	protected int hotness = 0;
+	protected CompiledFragment compiled = null;
+	protected boolean compilationFailed = false;
 
 	public ProgramFragment(Expression expression) {
 		this.expression = expression;
 	}
 
+	/**
+	 * Creates a fragment that is the body of a function. Scopes created for the execution of this
+	 * fragment should use the provided layout, so variable accesses can be resolved to slots.
+	 */
+	public ProgramFragment(Expression expression, ScopeLayout layout) {
+		this.expression = expression;
+		this.layout = layout;
+	}
+
 	public ProgramFragment(List<BytecodeInstruction> instructions, Map<String, Integer> labels) {
-		this.instructions = instructions;
 		this.labels = labels;
+		this.publish(instructions);
+	}
+
+	/**
+	 * Creates an already compiled fragment, used when loading fragments saved by {@link
+	 * BytecodeWriter}. The instructions were compiled by a realm with the provided {@link
+	 * Realm#getCompilationKey() compilation key}.
+	 */
+	public ProgramFragment(List<BytecodeInstruction> instructions, Map<String, Integer> labels, ScopeLayout layout, long compilationKey) {
+		this.labels = labels;
+		this.layout = layout;
+		this.compilationKey = compilationKey;
+		this.publish(instructions);
 	}
 
 	public ProgramFragment(BytecodeEmitter.BuildResult build) {
-		this.instructions = build.instructions();
 		this.labels = build.labels();
+		this.publish(build.instructions());
+	}
+
+	/** Creates a copy of a compiled fragment that is executed by the realm, see {@link #getInstance}. */
+	private ProgramFragment(ProgramFragment original, Realm realm) {
+		this.expression = original.expression;
+		this.labels = original.labels;
+		this.layout = original.layout;
+		this.compilationKey = original.compilationKey;
+
+		var instructions = new ArrayList<BytecodeInstruction>(original.code.size());
+		for (var instruction : original.code) {
+			instructions.add(instruction.copy());
+		}
+
+		this.owner.set(realm);
+		this.publish(instructions);
+	}
+
+	public ScopeLayout getLayout() {
+		return this.layout;
 	}
 
 	public Expression getExpression() {
@@ -41,7 +114,17 @@ public class ProgramFragment {
 	public void setExpression(Expression expression) {
 		this.expression = expression;
 		this.instructions = null;
+		this.code = null;
+		this.publishing.set(false);
+		this.compilationKey = 0;
+		this.scopeDependent = false;
 		this.labels = null;
+		this.program = null;
+		this.entryCost = 1;
+		this.safepointCosts = null;
+		this.hotness = 0;
+		this.compiled = null;
+		this.compilationFailed = false;
 	}
 
 	public int getLabel(String label) {
@@ -52,37 +135,238 @@ public class ProgramFragment {
 	}
 
 	public boolean isCompiled() {
-		return this.instructions != null;
+		return this.code != null;
+	}
+
+	/**
+	 * Sets the compiled instructions. The {@link #code} is written last, so a thread that sees it
+	 * also sees the labels and instructions.
+	 */
+	private void publish(List<BytecodeInstruction> instructions) {
+		var code = List.copyOf(instructions);
+		this.computeSafepointCosts(code);
+		this.instructions = code;
+		this.code = code;
+	}
+
+	/**
+	 * Returns the instance of this fragment executed by the realm. The realm that compiled the
+	 * fragment, or the first realm to ask for fragments that were not compiled by a realm, becomes
+	 * the owner of this fragment. Other realms get an instance stored in {@link
+	 * Realm#fragmentInstances}, so the state collected during execution is never shared between
+	 * realms. The instance is a copy of the code if the realm has the same {@link
+	 * Realm#getCompilationKey() compilation key} as the owner, otherwise the expression is
+	 * compiled again by the realm. The fragment must be compiled.
+	 */
+	public ProgramFragment getInstance(Realm realm) {
+		var owner = this.owner.get();
+		if (owner == realm) return this;
+		if (owner == null && this.owner.compareAndSet(null, realm)) return this;
+
+		if (!this.isCompiled()) throw new IllegalStateException("Called getInstance on a not yet compiled ProgramFragment");
+		return realm.fragmentInstances.computeIfAbsent(this, fragment -> fragment.createInstance(realm));
+	}
+
+	private ProgramFragment createInstance(Realm realm) {
+		var shared = !this.scopeDependent && (this.compilationKey == 0 || this.compilationKey == realm.getCompilationKey());
+		if (shared || this.expression == null) return new ProgramFragment(this, realm);
+
+		var instance = new ProgramFragment(this.expression, this.layout);
+		instance.owner.set(realm);
+		return instance;
+	}
+
+	/**
+	 * Returns the number of instructions charged at the entry into this fragment, when using {@link
+	 * ExpressionResult#meterAtSafepoints}. These are all instructions that are not part of a loop,
+	 * instructions in loops are charged on each backward jump, see {@link #getSafepointCost}.
+	 */
+	public int getEntryCost() {
+		return this.entryCost;
+	}
+
+	/**
+	 * Returns the number of instructions charged at a backward jump from the instruction at {@code
+	 * pc} to {@code target}, which is the length of the basic blocks forming the loop. The cost of
+	 * jumps is computed when the instructions are published, jumps to a label by an instruction
+	 * that is not a {@link BytecodeInstruction.Jump} are charged by the distance of the jump.
+	 */
+	public int getSafepointCost(int pc, int target) {
+		var cost = this.safepointCosts[pc];
+		if (cost != 0) return cost;
+		return pc - target + 1;
+	}
+
+	/** Computes the costs of safepoints from the basic blocks of the instructions. */
+	private void computeSafepointCosts(List<BytecodeInstruction> instructions) {
+		var size = instructions.size();
+		var costs = new int[size];
+		// Number of loops each instruction is part of, stored as differences between neighbours
+		var loops = new int[size + 1];
+
+		for (int i = 0; i < size; i++) {
+			if (!(instructions.get(i) instanceof BytecodeInstruction.Jump jump)) continue;
+			if (jump.index == -1 || jump.index > i) continue;
+
+			// Basic blocks of the loop are consecutive, so their total length is the length of the range
+			costs[i] = i - jump.index + 1;
+			loops[jump.index]++;
+			loops[i + 1]--;
+		}
+
+		var entryCost = 0;
+		var depth = 0;
+		for (int i = 0; i < size; i++) {
+			depth += loops[i];
+			if (depth == 0) entryCost++;
+		}
+
+		this.safepointCosts = costs;
+		this.entryCost = Math.max(entryCost, 1);
+	}
+
+	/** Returns the form of this fragment compiled to a JVM class or {@code null} if it was not compiled yet. */
+	public CompiledFragment getCompiled() {
+		return this.compiled;
+	}
+
+	/**
+	 * Records an entry into this fragment or a backward jump. Once this happens {@link
+	 * Realm#compilationThreshold} times, the fragment is compiled to a JVM class. Returns {@code
+	 * true} if the compiled form is available.
+	 */
+	protected boolean recordHotness(Realm realm) {
+		if (this.compiled != null) return true;
+		if (this.compilationFailed) return false;
+
+		var threshold = realm.compilationThreshold;
+		if (threshold < 0 || ++this.hotness < threshold) return false;
+
+		this.compiled = CompiledFragment.compile(this.instructions);
+		if (this.compiled == null) this.compilationFailed = true;
+		return this.compiled != null;
+	}
+
+	/** Returns the opcode form of the instructions, creating it if needed. */
+	protected OpcodeProgram getProgram() {
+		if (this.program == null) this.program = new OpcodeProgram(this.instructions, this.labels);
+		return this.program;
+	}
+
+	/**
+	 * Replaces the instruction at the index with its {@link BytecodeInstruction.Rewritable#getReplacement()
+	 * replacement}, if it has one. The compiled form is discarded, it is compiled again on the next
+	 * backward jump or entry, because the fragment is still hot.
+	 */
+	protected void rewrite(int index) {
+		if (!(this.instructions.get(index) instanceof BytecodeInstruction.Rewritable rewritable)) return;
+
+		var replacement = rewritable.getReplacement();
+		if (replacement == null) return;
+
+		if (!(this.instructions instanceof ArrayList)) this.instructions = new ArrayList<>(this.instructions);
+		this.instructions.set(index, replacement);
+
+		if (this.program != null) this.program.replace(index, replacement);
+		this.compiled = null;
 	}
 
+	/**
+	 * Compiles the expression of this fragment, if it was not compiled yet. Macros may execute any
+	 * code, so compilation does not hold a lock. Threads compiling the same fragment at the same
+	 * time compile it separately and only the code of the first one to finish is published, the
+	 * realm of that thread becomes the owner of the fragment. Other realms compile the fragment
+	 * again if their macros are different, see {@link #getInstance}.
+	 */
 	public void compile(Scope scope, ExpressionResult result) {
 		if (this.isCompiled()) return;
 
+		var key = scope.realm.getCompilationKey();
+		var expression = this.expression;
 		var emitter = new BytecodeEmitter(scope);
-		emitter.compile(this.expression, result);
+
+		if (scope.realm.optimizeBytecode) {
+			var folder = new ConstantFolder(scope);
+			expression = folder.visit(expression);
+			emitter.foldedExpressions = folder.originals;
+		}
+
+		emitter.declareLocals(expression);
+		emitter.compile(expression, result);
 		if (result.label != null) return;
 
 		var build = emitter.build();
-		this.instructions = build.instructions();
+
+		if (!this.publishing.compareAndSet(false, true)) {
+			// Another thread finished first, publishing its code does not execute any other code
+			while (!this.isCompiled()) Thread.onSpinWait();
+			return;
+		}
+
+		this.owner.compareAndSet(null, scope.realm);
+		this.compilationKey = key;
+		this.scopeDependent = emitter.scopeDependent;
 		this.labels = build.labels();
+		this.publish(build.instructions());
 	}
 
+	/**
+	 * Evaluates this fragment using the stacks of the current thread. Values of this evaluation are
+	 * pushed above the values of the caller and are removed when the evaluation finishes, so nested
+	 * invocations do not need to allocate their own stacks.
+	 */
 	public void evaluate(Scope scope, ExpressionResult result) {
-		this.evaluate(0, new ValueStack(), new ArgumentStack(), scope, result);
+		var values = ValueStack.forCurrentThread();
+		var arguments = ArgumentStack.forCurrentThread();
+		var valuesBase = values.size();
+		var argumentsBase = arguments.size();
+
+		try {
+			this.evaluate(0, values, arguments, scope, result);
+		} finally {
+			values.truncate(valuesBase);
+			arguments.truncate(argumentsBase);
+		}
 	}
 
 	public void evaluate(int pc, ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
 		this.compile(scope, result);
 		if (result.label != null) return;
 
+		var instance = this.getInstance(scope.realm);
+		if (instance != this) {
+			instance.evaluate(pc, values, arguments, scope, result);
+			return;
+		}
+
 		// If we are to not execute any instructions, we still need to set a return value
 		if (this.instructions.size() - pc <= 0) {
 			result.value = Primitive.VOID;
 			return;
 		}
 
+		var safepoints = result.hasSafepointChecks();
+		if (safepoints) result.safepoint(this.getEntryCost());
+
+		var countInstructions = result.executionLimit != Integer.MAX_VALUE && !result.meterAtSafepoints;
+
+		if (scope.realm.stacklessCalls) {
+			StacklessInterpreter.evaluate(this, pc, values, arguments, scope, result);
+			return;
+		}
+
+		if (scope.realm.useOpcodeEngine) {
+			if (!countInstructions && this.recordHotness(scope.realm)) {
+				this.compiled.evaluate(this, pc, values, arguments, scope, result);
+				return;
+			}
+
+			this.getProgram().evaluate(this, pc, values, arguments, scope, result);
+			return;
+		}
+
 		for (; pc < this.instructions.size(); pc++) {
-			if (result.executionLimit != Integer.MAX_VALUE) {
+			if (countInstructions) {
 				result.executionCounter++;
 				if (result.executionCounter > result.executionLimit) {
 					throw new ExecutionLimitReachedException("Script execution reached the limit of " + result.executionLimit + " expressions");
@@ -97,13 +381,26 @@ public class ProgramFragment {
 
 			var status = instruction.executeInstruction(values, arguments, scope, result);
 			if (status >= 0) {
+				if (safepoints && status <= pc) result.safepoint(this.getSafepointCost(pc, status));
 				pc = status - 1;
 				continue;
 			}
 
 			if (status == STATUS_NORMAL) continue;
 
-			if (status == STATUS_YIELD) return;
+			if (status == STATUS_REWRITE) {
+				// Execute the replacement instead, it is not counted again
+				this.rewrite(pc);
+				if (countInstructions) result.executionCounter--;
+				pc--;
+				continue;
+			}
+
+			if (status == STATUS_YIELD) {
+				// Only the loop of a coroutine can be suspended
+				BytecodeInstruction.Yield.reportInvalid(result);
+				status = STATUS_BREAK;
+			}
 
 			if (status != STATUS_BREAK) throw new IllegalStateException("Status " + status + " is not valid");
 
@@ -112,6 +409,7 @@ public class ProgramFragment {
 			if (target == null) return;
 
 			result.label = null;
+			if (safepoints && target <= pc) result.safepoint(this.getSafepointCost(pc, target));
 			pc = (int) target - 1;
 		}
 
@@ -0,0 +1,279 @@
+package bt7s7k7.treeburst.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import bt7s7k7.treeburst.parsing.ExpressionCodec;
+import bt7s7k7.treeburst.parsing.TreeBurstParser;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.runtime.ScopeLayout;
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.InputDocument;
+
+/**
+ * Ahead-of-time compiler of scripts into JVM class files. Scripts are compiled to bytecode by a
+ * realm with only the standard library, including the bodies of their functions, and the
+ * instructions are stored in the generated class in the format of {@link BytecodeWriter}, together
+ * with the expression tree encoded using {@link ExpressionCodec}. The static method {@value
+ * #FACTORY_NAME} of the class returns a {@link ProgramFragment} for a realm. If the realm has the
+ * same {@link Realm#getCompilationKey() compilation key} as the standard library, the fragment
+ * uses the stored instructions, so neither parsing nor bytecode emission happen at startup.
+ * Otherwise the fragment is created from the expression tree and is compiled by the realm.
+ *
+ * Can be executed as a program with the arguments {@code <source directory> <output directory>
+ * [package]}, which compiles all {@code .tb} files in the source directory. The {@code
+ * treeBurstJava} Gradle task does this for the scripts in {@code src/main/treeburst}.
+ */
+public final class ScriptCompiler {
+	public static final String FACTORY_NAME = "createFragment";
+	public static final String EXTENSION = ".tb";
+
+	/** Number of bytes stored in each string constant, so its modified UTF-8 form fits into 65535 bytes. */
+	private static final int CHUNK_SIZE = 16384;
+
+	private static final String SELF_NAME = "bt7s7k7/treeburst/bytecode/ScriptCompiler";
+	private static final String FACTORY_DESCRIPTOR = "(Lbt7s7k7/treeburst/runtime/Realm;)Lbt7s7k7/treeburst/bytecode/ProgramFragment;";
+	private static final String DECODE_DESCRIPTOR = "([Ljava/lang/String;Lbt7s7k7/treeburst/runtime/Realm;)Lbt7s7k7/treeburst/bytecode/ProgramFragment;";
+
+	private ScriptCompiler() {}
+
+	/**
+	 * Compiles a script into a class file with the provided binary name. Returns {@code null} if
+	 * the script contains syntax errors, which are added to {@code diagnostics}. Errors reported
+	 * by bytecode emission are reported again when the script is evaluated.
+	 */
+	public static byte[] compile(InputDocument document, String className, List<Diagnostic> diagnostics) {
+		var parser = new TreeBurstParser(document);
+		var root = parser.parse();
+
+		if (!parser.diagnostics.isEmpty()) {
+			diagnostics.addAll(parser.diagnostics);
+			return null;
+		}
+
+		var expression = ExpressionCodec.encode(document, root.getExpression());
+
+		var realm = new Realm();
+		precompile(root, realm.globalScope);
+		var bytecode = BytecodeWriter.encode(root, document, realm);
+
+		var data = ByteBuffer.allocate(4 + expression.length + bytecode.length);
+		data.putInt(expression.length).put(expression).put(bytecode);
+		return generateClass(className, data.array());
+	}
+
+	/**
+	 * Compiles the fragment and the bodies of the functions it declares. Function bodies are
+	 * compiled in a child scope of the global scope, which has the same layout as the scopes they
+	 * are executed in, unless one of the enclosing functions declares a variable that may be a macro.
+	 */
+	private static void precompile(ProgramFragment fragment, Scope globalScope) {
+		var scope = fragment.getLayout() == null ? globalScope : globalScope.makeChild(fragment.getLayout());
+		fragment.compile(scope, new ExpressionResult());
+		if (!fragment.isCompiled()) return;
+
+		for (var instruction : fragment.instructions) {
+			if (!(instruction instanceof BytecodeInstruction.DeclareFunction declareFunction)) continue;
+			if (declaresMacros(declareFunction.body.getLayout())) continue;
+			precompile(declareFunction.body, globalScope);
+		}
+	}
+
+	private static boolean declaresMacros(ScopeLayout layout) {
+		for (; layout != null; layout = layout.parent) {
+			for (int i = 0; i < layout.size(); i++) {
+				if (layout.getName(i).startsWith("@")) return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Used by the generated classes, decodes the data split into string constants. Returns a
+	 * fragment with the stored instructions if they can be used by the realm, otherwise a
+	 * fragment of the stored expression tree.
+	 */
+	public static ProgramFragment decode(String[] chunks, Realm realm) {
+		var buffer = new ByteArrayOutputStream();
+		for (var chunk : chunks) {
+			buffer.writeBytes(chunk.getBytes(StandardCharsets.ISO_8859_1));
+		}
+
+		var data = ByteBuffer.wrap(buffer.toByteArray());
+		var expression = new byte[data.getInt()];
+		data.get(expression);
+
+		var fragment = BytecodeLoader.decode(data.slice(), ExpressionCodec.decodeDocument(expression), realm);
+		if (fragment != null) return fragment;
+
+		return new ProgramFragment(ExpressionCodec.decode(expression));
+	}
+
+	/** Returns a new fragment for a class generated by this compiler, to be evaluated by the realm. */
+	public static ProgramFragment load(Class<?> type, Realm realm) {
+		try {
+			return (ProgramFragment) type.getMethod(FACTORY_NAME, Realm.class).invoke(null, realm);
+		} catch (ReflectiveOperationException | ClassCastException exception) {
+			throw new IllegalArgumentException("Class " + type.getName() + " is not a compiled script", exception);
+		}
+	}
+
+	/** Returns the binary class name for a script, based on its path relative to the source directory. */
+	public static String getClassName(Path relativePath, String packageName) {
+		var result = new StringBuilder();
+		if (packageName != null && !packageName.isEmpty()) result.append(packageName).append(".");
+
+		var count = relativePath.getNameCount();
+		for (int i = 0; i < count; i++) {
+			var segment = relativePath.getName(i).toString();
+			if (i == count - 1 && segment.endsWith(EXTENSION)) {
+				segment = segment.substring(0, segment.length() - EXTENSION.length());
+			}
+
+			if (i != 0) result.append(".");
+			for (int j = 0; j < segment.length(); j++) {
+				var c = segment.charAt(j);
+				if (j == 0 && !Character.isJavaIdentifierStart(c)) result.append("_");
+				result.append(Character.isJavaIdentifierPart(c) ? c : '_');
+			}
+		}
+
+		return result.toString();
+	}
+
+	private static byte[] generateClass(String className, byte[] data) {
+		var internalName = className.replace('.', '/');
+		var pool = new FragmentCompiler.ConstantPool();
+
+		var chunkCount = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (chunkCount > Short.MAX_VALUE) throw new IllegalArgumentException("Script " + className + " is too large");
+
+		try {
+			var code = new ByteArrayOutputStream();
+			var method = new DataOutputStream(code);
+
+			method.writeByte(0x11); // sipush
+			method.writeShort(chunkCount);
+			method.writeByte(0xbd); // anewarray
+			method.writeShort(pool.classRef("java/lang/String"));
+
+			for (int i = 0; i < chunkCount; i++) {
+				var start = i * CHUNK_SIZE;
+				var chunk = new String(data, start, Math.min(CHUNK_SIZE, data.length - start), StandardCharsets.ISO_8859_1);
+
+				method.writeByte(0x59); // dup
+				method.writeByte(0x11); // sipush
+				method.writeShort(i);
+				method.writeByte(0x13); // ldc_w
+				method.writeShort(pool.string(chunk));
+				method.writeByte(0x53); // aastore
+			}
+
+			method.writeByte(0x2a); // aload_0
+			method.writeByte(0xb8); // invokestatic
+			method.writeShort(pool.methodRef(SELF_NAME, "decode", DECODE_DESCRIPTOR, false));
+			method.writeByte(0xb0); // areturn
+			method.flush();
+
+			var bytecode = code.toByteArray();
+			if (bytecode.length > 65535) throw new IllegalArgumentException("Script " + className + " is too large");
+
+			// Resolve all constant pool entries before writing the pool
+			var thisClass = pool.classRef(internalName);
+			var superClass = pool.classRef("java/lang/Object");
+			var codeName = pool.utf8("Code");
+			var factoryName = pool.utf8(FACTORY_NAME);
+			var factoryDescriptor = pool.utf8(FACTORY_DESCRIPTOR);
+
+			var buffer = new ByteArrayOutputStream();
+			var output = new DataOutputStream(buffer);
+
+			output.writeInt(0xCAFEBABE);
+			output.writeShort(0);
+			output.writeShort(49);
+			pool.write(output);
+
+			output.writeShort(Modifier.PUBLIC | Modifier.FINAL | 0x0020 /* ACC_SUPER */);
+			output.writeShort(thisClass);
+			output.writeShort(superClass);
+			output.writeShort(0); // Interfaces
+			output.writeShort(0); // Fields
+			output.writeShort(1); // Methods
+
+			output.writeShort(Modifier.PUBLIC | Modifier.STATIC);
+			output.writeShort(factoryName);
+			output.writeShort(factoryDescriptor);
+			output.writeShort(1);
+			output.writeShort(codeName);
+			output.writeInt(12 + bytecode.length);
+			output.writeShort(4); // Max stack
+			output.writeShort(1); // Max locals
+			output.writeInt(bytecode.length);
+			output.write(bytecode);
+			output.writeShort(0); // Exception table
+			output.writeShort(0); // Attributes
+
+			output.writeShort(0); // Class attributes
+			output.flush();
+
+			return buffer.toByteArray();
+		} catch (IOException exception) {
+			throw new IllegalStateException(exception);
+		}
+	}
+
+	/**
+	 * Compiles all scripts in the source directory into class files in the output directory.
+	 * Returns all diagnostics of the scripts that failed to compile.
+	 */
+	public static List<Diagnostic> compileDirectory(Path source, Path output, String packageName) throws IOException {
+		var diagnostics = new ArrayList<Diagnostic>();
+
+		List<Path> files;
+		try (var stream = Files.walk(source)) {
+			files = stream.filter(v -> Files.isRegularFile(v) && v.toString().endsWith(EXTENSION)).sorted().toList();
+		}
+
+		for (var file : files) {
+			var relativePath = source.relativize(file);
+			var path = relativePath.toString().replace('\\', '/');
+			var document = new InputDocument(path, Files.readString(file));
+			var className = getClassName(relativePath, packageName);
+
+			var bytes = compile(document, className, diagnostics);
+			if (bytes == null) continue;
+
+			var target = output.resolve(className.replace('.', '/') + ".class");
+			Files.createDirectories(target.getParent());
+			Files.write(target, bytes);
+		}
+
+		return diagnostics;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: ScriptCompiler <source directory> <output directory> [package]");
+			System.exit(2);
+		}
+
+		var diagnostics = compileDirectory(Path.of(args[0]), Path.of(args[1]), args.length == 3 ? args[2] : null);
+
+		for (var diagnostic : diagnostics) {
+			System.err.println(diagnostic.format());
+		}
+
+		if (!diagnostics.isEmpty()) System.exit(1);
+	}
+}
@@ -0,0 +1,376 @@
+package bt7s7k7.treeburst.bytecode;
+
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_BREAK;
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_NORMAL;
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_REWRITE;
+import static bt7s7k7.treeburst.bytecode.BytecodeInstruction.STATUS_YIELD;
+import static bt7s7k7.treeburst.runtime.ExpressionResult.LABEL_EXCEPTION;
+import static bt7s7k7.treeburst.runtime.ExpressionResult.LABEL_RETURN;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import bt7s7k7.treeburst.runtime.AsyncNativeFunction;
+import bt7s7k7.treeburst.runtime.ExecutionLimitReachedException;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.NativeHandle;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.runtime.Scope;
+import bt7s7k7.treeburst.runtime.ScriptFunction;
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Parameter;
+import bt7s7k7.treeburst.support.Position;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Interpreter used when {@link Realm#stacklessCalls} is enabled. When an {@link
+ * BytecodeInstruction.Invoke} calls a {@link ScriptFunction}, the state of the caller is saved in a
+ * heap allocated frame and the body of the function is executed by the same loop, instead of
+ * nesting {@link ScriptFunction#invoke} and {@link ProgramFragment#evaluate}. When the body
+ * finishes, the frame of the caller is restored. The number of frames is limited by {@link
+ * Realm#frameLimit} instead of the size of the JVM stack.
+ *
+ * Functions invoked in other ways, like by native functions or operator overloads, are evaluated
+ * normally and start their own loop.
+ *
+ * Because the whole execution state is stored in the interpreter, it can be suspended by a {@link
+ * BytecodeInstruction.Yield} and resumed later, this is used by {@link Coroutine}. A suspendable
+ * interpreter is also suspended when invoking an {@link AsyncNativeFunction}, until the operation
+ * completes, and when its time slice runs out.
+ */
+public final class StacklessInterpreter {
+	/** State of a caller waiting for an invoked function to return. */
+	private static final class Frame {
+		public ProgramFragment fragment;
+		public int pc;
+		public Scope scope;
+		/** Size of the value stack before the invocation, the function and its arguments are above it. */
+		public int valuesBase;
+		/** Size of the argument stack before the invocation. */
+		public int argumentsBase;
+		public ScriptFunction function;
+		public Position position;
+	}
+
+	private final ValueStack values;
+	private final ArgumentStack arguments;
+	/** If {@code true}, a {@link BytecodeInstruction.Yield} suspends the execution, otherwise it raises an exception. */
+	private final boolean suspendable;
+
+	private ProgramFragment fragment;
+	private int pc;
+	private Scope scope;
+	private Frame[] frames = null;
+	private int depth = 0;
+
+	/** Operation of the {@link AsyncNativeFunction} that suspended the execution. */
+	private CompletableFuture<ManagedValue> pending = null;
+	private AsyncNativeFunction pendingFunction = null;
+	private Position pendingPosition = null;
+	/** If {@code true}, the exception in the result is raised by the instruction that suspended the execution. */
+	private boolean raising = false;
+	/** If {@code true}, the execution was suspended because the time slice ran out. */
+	private boolean preempted = false;
+
+	StacklessInterpreter(ProgramFragment fragment, int pc, ValueStack values, ArgumentStack arguments, Scope scope, boolean suspendable) {
+		this.fragment = fragment;
+		this.pc = pc;
+		this.values = values;
+		this.arguments = arguments;
+		this.scope = scope;
+		this.suspendable = suspendable;
+	}
+
+	/** Has the same behaviour as {@link ProgramFragment#evaluate(int, ValueStack, ArgumentStack, Scope, ExpressionResult)}. */
+	public static void evaluate(ProgramFragment fragment, int pc, ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
+		new StacklessInterpreter(fragment, pc, values, arguments, scope, false).run(result, 0);
+	}
+
+	/**
+	 * Executes instructions until the evaluation finishes. Returns {@code true} if it was instead
+	 * suspended by a {@link BytecodeInstruction.Yield}, in that case the yielded value is in {@code
+	 * result.value} and the next call continues after the yield. The value of the yield expression
+	 * must be pushed on the value stack before that, unless the execution was preempted.
+	 *
+	 * If the {@code timeSlice} is positive, the execution is preempted after executing that many
+	 * instructions and continues with the next instruction when resumed. Instructions executed by
+	 * nested evaluations, like functions invoked by native functions, are not counted.
+	 */
+	boolean run(ExpressionResult result, int timeSlice) {
+		this.pending = null;
+		this.preempted = false;
+
+		var values = this.values;
+		var arguments = this.arguments;
+		var pc = this.pc;
+		var scope = this.scope;
+		var frames = this.frames;
+		var depth = this.depth;
+
+		var realm = scope.realm;
+		var fragment = this.fragment.getInstance(realm);
+		var countInstructions = result.executionLimit != Integer.MAX_VALUE && !result.meterAtSafepoints;
+		var safepoints = result.hasSafepointChecks();
+		var instructions = fragment.instructions;
+
+		var slicing = timeSlice > 0;
+		var sliceRemaining = timeSlice;
+
+		var raising = this.raising;
+		if (raising) {
+			// Raise the exception in the same way as a failed Invoke
+			this.raising = false;
+			values.push(result.value);
+			pc--;
+		}
+
+		while (true) {
+			if (raising) {
+				raising = false;
+				pc = handleBreak(fragment, pc, result, safepoints);
+				if (pc >= 0) continue;
+				if (depth == 0) return false;
+			} else if (pc < instructions.size()) {
+				if (slicing && --sliceRemaining < 0) {
+					this.preempted = true;
+					result.value = Primitive.VOID;
+
+					this.fragment = fragment;
+					this.pc = pc;
+					this.scope = scope;
+					this.frames = frames;
+					this.depth = depth;
+					return true;
+				}
+
+				if (countInstructions) {
+					result.executionCounter++;
+					if (result.executionCounter > result.executionLimit) {
+						throw new ExecutionLimitReachedException("Script execution reached the limit of " + result.executionLimit + " expressions");
+					}
+				}
+
+				var instruction = instructions.get(pc);
+				if (instruction == BytecodeInstruction.Reflect.VALUE) {
+					values.push(new NativeHandle(realm.TablePrototype, fragment));
+					pc++;
+					continue;
+				}
+
+				int status;
+				if (instruction.getClass() == BytecodeInstruction.Invoke.class && values.peek(arguments.peek()) instanceof ScriptFunction function && function.getClass() == ScriptFunction.class) {
+					var argumentCount = arguments.pop();
+					var position = ((BytecodeInstruction.Invoke) instruction).position;
+					var valuesBase = values.size() - argumentCount - 1;
+					Scope functionScope = null;
+
+					if (depth >= realm.frameLimit) {
+						result.setException(new Diagnostic("Exceeded the limit of " + realm.frameLimit + " call frames", position));
+					} else {
+						functionScope = function.scope.makeChild(function.body.getLayout());
+						Parameter.destructure(function.getParameters(), true, values.peekArguments(argumentCount), functionScope, result);
+						if (result.label == null) function.body.compile(functionScope, result);
+
+						if (result.label != null && result.getExceptionIfPresent() != null) {
+							result.setException(new Diagnostic("While invoking " + function.toString(), position));
+						}
+					}
+
+					if (result.label == null) {
+						if (frames == null) {
+							frames = new Frame[16];
+						} else if (depth == frames.length) {
+							frames = Arrays.copyOf(frames, depth * 2);
+						}
+
+						var frame = frames[depth];
+						if (frame == null) {
+							frame = new Frame();
+							frames[depth] = frame;
+						}
+
+						frame.fragment = fragment;
+						frame.pc = pc + 1;
+						frame.scope = scope;
+						frame.valuesBase = valuesBase;
+						frame.argumentsBase = arguments.size();
+						frame.function = function;
+						frame.position = position;
+						depth++;
+
+						fragment = function.body.getInstance(realm);
+						instructions = fragment.instructions;
+						scope = functionScope;
+						pc = 0;
+
+						if (instructions.isEmpty()) {
+							// The function returns void, which is popped when the fragment ends
+							values.push(Primitive.VOID);
+						} else if (safepoints) {
+							result.safepoint(fragment.getEntryCost());
+						}
+
+						continue;
+					}
+
+					// The invocation failed, in the same way as in Invoke
+					values.truncate(valuesBase);
+					values.push(result.value);
+					status = STATUS_BREAK;
+				} else if (this.suspendable && instruction.getClass() == BytecodeInstruction.Invoke.class && values.peek(arguments.peek()) instanceof AsyncNativeFunction function) {
+					var argumentCount = arguments.pop();
+					var position = ((BytecodeInstruction.Invoke) instruction).position;
+					var valuesBase = values.size() - argumentCount - 1;
+
+					var operation = function.start(values.peekArguments(argumentCount), scope, result);
+					values.truncate(valuesBase);
+
+					if (operation != null) {
+						// The result of the operation is pushed when the execution is resumed
+						this.pending = operation;
+						this.pendingFunction = function;
+						this.pendingPosition = position;
+
+						this.fragment = fragment;
+						this.pc = pc + 1;
+						this.scope = scope;
+						this.frames = frames;
+						this.depth = depth;
+						return true;
+					}
+
+					if (result.getExceptionIfPresent() != null) {
+						result.setException(new Diagnostic("While invoking " + function.toString(), position));
+					}
+
+					values.push(result.value);
+					status = STATUS_BREAK;
+				} else {
+					status = instruction.executeInstruction(values, arguments, scope, result);
+				}
+
+				if (status >= 0) {
+					if (safepoints && status <= pc) result.safepoint(fragment.getSafepointCost(pc, status));
+					pc = status;
+					continue;
+				}
+
+				if (status == STATUS_NORMAL) {
+					pc++;
+					continue;
+				}
+
+				if (status == STATUS_REWRITE) {
+					// Execute the replacement instead, it is not counted again
+					fragment.rewrite(pc);
+					instructions = fragment.instructions;
+					if (countInstructions) result.executionCounter--;
+					continue;
+				}
+
+				if (status == STATUS_YIELD) {
+					if (this.suspendable) {
+						result.value = values.pop();
+
+						this.fragment = fragment;
+						this.pc = pc + 1;
+						this.scope = scope;
+						this.frames = frames;
+						this.depth = depth;
+						return true;
+					}
+
+					BytecodeInstruction.Yield.reportInvalid(result);
+					status = STATUS_BREAK;
+				}
+
+				if (status != STATUS_BREAK) throw new IllegalStateException("Status " + status + " is not valid");
+
+				pc = handleBreak(fragment, pc, result, safepoints);
+				if (pc >= 0) continue;
+				// If the label is not part of this fragment, move higher the execution stack
+				if (depth == 0) return false;
+			} else {
+				result.value = values.pop();
+				if (depth == 0) return false;
+			}
+
+			// The body of a function finished, return to its caller. If the function raised an
+			// exception, continue returning until a fragment that handles the label.
+			while (true) {
+				var frame = frames[--depth];
+
+				if (result.label != null) {
+					if (LABEL_RETURN.equals(result.label)) {
+						result.label = null;
+					} else if (!LABEL_EXCEPTION.equals(result.label)) {
+						var oldLabel = result.label;
+						result.label = null;
+						result.setException(new Diagnostic("Did not resolve label '" + oldLabel + "' during function execution", Position.INTRINSIC));
+					}
+				}
+
+				values.truncate(frame.valuesBase);
+				arguments.truncate(frame.argumentsBase);
+				values.push(result.value);
+
+				fragment = frame.fragment;
+				instructions = fragment.instructions;
+				scope = frame.scope;
+				pc = frame.pc;
+
+				var function = frame.function;
+				var position = frame.position;
+				frame.fragment = null;
+				frame.scope = null;
+				frame.function = null;
+
+				if (result.label == null) break;
+
+				if (result.getExceptionIfPresent() != null) {
+					result.setException(new Diagnostic("While invoking " + function.toString(), position));
+				}
+
+				pc = handleBreak(fragment, pc - 1, result, safepoints);
+				if (pc >= 0) break;
+				if (depth == 0) return false;
+			}
+		}
+	}
+
+	/** Returns the operation of the {@link AsyncNativeFunction} that suspended the execution or {@code null} if it was suspended by a yield. */
+	CompletableFuture<ManagedValue> getPending() {
+		return this.pending;
+	}
+
+	boolean isPreempted() {
+		return this.preempted;
+	}
+
+	/** Sets the exception, that is raised by the instruction that suspended the execution when it is resumed. */
+	void raise(Diagnostic error, ExpressionResult result) {
+		result.setException(error);
+		if (this.pending != null) {
+			result.setException(new Diagnostic("While invoking " + this.pendingFunction.toString(), this.pendingPosition));
+		}
+
+		this.pending = null;
+		this.pendingFunction = null;
+		this.pendingPosition = null;
+		this.raising = true;
+	}
+
+	/**
+	 * Handles a break from the instruction at the index. Returns the index of the target in the
+	 * fragment or {@code -1} if the label is not part of the fragment.
+	 */
+	private static int handleBreak(ProgramFragment fragment, int pc, ExpressionResult result, boolean safepoints) {
+		var target = fragment.labels.get(result.label);
+		if (target == null) return -1;
+
+		result.label = null;
+		if (safepoints && target <= pc) result.safepoint(fragment.getSafepointCost(pc, target));
+		return target;
+	}
+}
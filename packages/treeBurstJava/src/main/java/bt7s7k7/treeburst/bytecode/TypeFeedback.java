@@ -0,0 +1,59 @@
+package bt7s7k7.treeburst.bytecode;
+
+import bt7s7k7.treeburst.runtime.Realm;
+
+/**
+ * Profile of the values seen by a single instruction, used to decide when the instruction should
+ * be replaced with a form specialized for them, see {@link BytecodeInstruction.Rewritable}. Values
+ * are described by a kind, like a class, {@link bt7s7k7.treeburst.runtime.Shape} or prototype,
+ * compared by identity. Once a different kind or a value that cannot be specialized is seen, the
+ * profile is disabled.
+ *
+ * Specialized instructions use the profile to count the executions where their guard failed, after
+ * {@link #MAX_GUARD_FAILURES} of them they are replaced by the generic form again.
+ */
+public final class TypeFeedback {
+	public static final int MAX_GUARD_FAILURES = 16;
+
+	private Object kind = null;
+	private int count = 0;
+	private int guardFailures = 0;
+	private boolean disabled = false;
+
+	/**
+	 * Records an observation of a value of the provided kind, {@code null} if it cannot be
+	 * specialized. Returns {@code true} once the same kind was observed {@link
+	 * Realm#quickeningThreshold} times, after that the profile is disabled.
+	 */
+	public boolean record(Object kind, Realm realm) {
+		if (this.disabled) return false;
+
+		var threshold = realm.quickeningThreshold;
+		if (threshold < 0) return false;
+
+		if (kind == null || (this.count != 0 && kind != this.kind)) {
+			this.disable();
+			return false;
+		}
+
+		this.kind = kind;
+		if (++this.count < threshold) return false;
+
+		this.disable();
+		return true;
+	}
+
+	/** Records an execution where the guard of a specialized instruction failed. Returns {@code true} once the limit is reached. */
+	public boolean recordGuardFailure() {
+		return ++this.guardFailures == MAX_GUARD_FAILURES;
+	}
+
+	public boolean isDisabled() {
+		return this.disabled;
+	}
+
+	public void disable() {
+		this.disabled = true;
+		this.kind = null;
+	}
+}
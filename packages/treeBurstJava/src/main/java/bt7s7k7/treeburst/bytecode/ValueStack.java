@@ -1,32 +1,98 @@
 package bt7s7k7.treeburst.bytecode;
 
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
 
 import bt7s7k7.treeburst.support.ManagedValue;
-
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Operand stack of the bytecode engines. Numbers produced by arithmetic can be pushed unboxed using
+ * {@link #pushNumber(double)}, they are stored in a parallel {@code double[]} lane and marked by a
+ * tag element, which is never returned. They are only boxed when read as a {@link ManagedValue},
+ * so intermediate results consumed by {@link #popNumber()} are never allocated. A {@code null}
+ * element is a pushed {@code null}, it is not a number.
+ */
 public final class ValueStack {
+	/** Element of values stored in the number lane, compared by identity. */
+	private static final Primitive.Number UNBOXED = new Primitive.Number(Double.NaN);
+
 	private ManagedValue[] elements;
+	private double[] numbers;
 	private int length;
+	// Views returned by peekArguments and popArguments, indexed by their start
+	private Window[] windows = new Window[16];
 
 	public ValueStack() {
 		this.length = 0;
 		this.elements = new ManagedValue[16];
+		this.numbers = new double[16];
+	}
+
+	private static final ThreadLocal<ValueStack> THREAD_STACK = ThreadLocal.withInitial(ValueStack::new);
+
+	/**
+	 * Returns the stack shared by all fragments evaluated on the current thread without explicitly
+	 * provided stacks. Each evaluation uses the part of the stack above the values of its caller.
+	 */
+	public static ValueStack forCurrentThread() {
+		return THREAD_STACK.get();
 	}
 
 	public int size() {
 		return this.length;
 	}
 
+	private void grow(int capacity) {
+		this.elements = Arrays.copyOf(this.elements, capacity);
+		this.numbers = Arrays.copyOf(this.numbers, capacity);
+	}
+
 	public void push(ManagedValue value) {
 		if (this.length == this.elements.length) {
-			this.elements = Arrays.copyOf(this.elements, this.elements.length * 2);
+			this.grow(this.elements.length * 2);
 		}
 
 		this.elements[this.length++] = value;
 	}
 
+	/** Pushes a number without boxing it. */
+	public void pushNumber(double value) {
+		if (this.length == this.elements.length) {
+			this.grow(this.elements.length * 2);
+		}
+
+		this.elements[this.length] = UNBOXED;
+		this.numbers[this.length++] = value;
+	}
+
+	/** Returns if the value at the offset from the top of the stack is a number, either unboxed or boxed. */
+	public boolean isNumber(int offset) {
+		return this.elements[this.length - offset - 1] instanceof Primitive.Number;
+	}
+
+	/** Removes the topmost value, which must be a number, see {@link #isNumber(int)}. */
+	public double popNumber() {
+		var value = this.elements[--this.length];
+		this.elements[this.length] = null;
+		if (value == UNBOXED) return this.numbers[this.length];
+		return ((Primitive.Number) value).value;
+	}
+
+	/** Returns the value at the index, boxing it if it is an unboxed number. */
+	private ManagedValue get(int index) {
+		var value = this.elements[index];
+		if (value != UNBOXED) return value;
+
+		// Keep the boxed value, in case it is read again
+		value = Primitive.from(this.numbers[index]);
+		this.elements[index] = value;
+		return value;
+	}
+
 	public void pushAll(List<ManagedValue> values) {
 		if (values == null || values.isEmpty()) {
 			return;
@@ -41,7 +107,7 @@ public final class ValueStack {
 		}
 
 		if (this.elements.length != targetCapacity) {
-			this.elements = Arrays.copyOf(this.elements, targetCapacity);
+			this.grow(targetCapacity);
 		}
 
 		for (var value : values) {
@@ -52,29 +118,79 @@ public final class ValueStack {
 	public ManagedValue pop() {
 		ManagedValue value = this.elements[--this.length];
 		this.elements[this.length] = null;
+		if (value == UNBOXED) return Primitive.from(this.numbers[this.length]);
 		return value;
 	}
 
+	/** Removes values until the stack has the provided size. */
+	public void truncate(int size) {
+		if (size >= this.length) return;
+		Arrays.fill(this.elements, size, this.length, null);
+		this.length = size;
+	}
+
+	/**
+	 * Removes the topmost values and returns a view of them. The view is reused by later calls with
+	 * the same position on the stack, so it must not be used after pushing new values.
+	 */
 	public List<ManagedValue> popArguments(int length) {
 		if (length == 0) return Collections.emptyList();
 
-		var result = Arrays.asList(this.elements).subList(this.length - length, this.length);
 		this.length -= length;
-		return result;
+		return this.getWindow(this.length, length);
 	}
 
+	/**
+	 * Returns a view of the topmost values, which stay on the stack. The view is reused by later
+	 * calls with the same position on the stack, so it must not be used after the values are
+	 * removed. This allows invoked functions to receive their arguments without copying them.
+	 */
 	public List<ManagedValue> peekArguments(int length) {
 		if (length == 0) return Collections.emptyList();
 
-		var result = Arrays.asList(this.elements).subList(this.length - length, this.length);
-		return result;
+		return this.getWindow(this.length - length, length);
+	}
+
+	private Window getWindow(int start, int length) {
+		if (start >= this.windows.length) {
+			this.windows = Arrays.copyOf(this.windows, Math.max(start + 1, this.windows.length * 2));
+		}
+
+		var window = this.windows[start];
+		if (window == null) {
+			window = new Window(start);
+			this.windows[start] = window;
+		}
+
+		window.length = length;
+		return window;
 	}
 
 	public ManagedValue peek() {
-		return this.elements[this.length - 1];
+		return this.get(this.length - 1);
 	}
 
 	public ManagedValue peek(int offset) {
-		return this.elements[this.length - offset - 1];
+		return this.get(this.length - offset - 1);
+	}
+
+	private final class Window extends AbstractList<ManagedValue> implements RandomAccess {
+		private final int start;
+		private int length;
+
+		public Window(int start) {
+			this.start = start;
+		}
+
+		@Override
+		public ManagedValue get(int index) {
+			if (index < 0 || index >= this.length) throw new IndexOutOfBoundsException(index);
+			return ValueStack.this.get(this.start + index);
+		}
+
+		@Override
+		public int size() {
+			return this.length;
+		}
 	}
 }
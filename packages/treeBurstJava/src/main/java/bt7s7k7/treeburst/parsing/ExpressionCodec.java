@@ -0,0 +1,403 @@
+package bt7s7k7.treeburst.parsing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bt7s7k7.treeburst.bytecode.ProgramFragment;
+import bt7s7k7.treeburst.support.InputDocument;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Parameter;
+import bt7s7k7.treeburst.support.Position;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Compact binary encoding of a parsed expression tree, together with the document it was parsed
+ * from, so positions can still be used to format errors. Decoding is much cheaper than parsing the
+ * source again, which is used to skip the parser for scripts compiled ahead of time. The {@link
+ * Encoder} and {@link Decoder} can also be used to embed expressions in other formats.
+ */
+public final class ExpressionCodec {
+	public static final int VERSION = 1;
+
+	private static final int TAG_LITERAL = 0;
+	private static final int TAG_ARRAY = 1;
+	private static final int TAG_IDENTIFIER = 2;
+	private static final int TAG_VARIABLE_DECLARATION = 3;
+	private static final int TAG_ASSIGNMENT = 4;
+	private static final int TAG_MEMBER_ACCESS = 5;
+	private static final int TAG_GROUP = 6;
+	private static final int TAG_FUNCTION = 7;
+	private static final int TAG_LABEL = 8;
+	private static final int TAG_SPREAD = 9;
+	private static final int TAG_PLACEHOLDER = 10;
+	private static final int TAG_ADVANCED_ASSIGNMENT = 11;
+	private static final int TAG_INVOCATION = 12;
+	private static final int TAG_MAP = 13;
+
+	private static final int VALUE_VOID = 0;
+	private static final int VALUE_NULL = 1;
+	private static final int VALUE_NUMBER = 2;
+	private static final int VALUE_STRING = 3;
+	private static final int VALUE_BOOLEAN = 4;
+
+	private ExpressionCodec() {}
+
+	public static byte[] encode(InputDocument document, Expression expression) {
+		var buffer = new ByteArrayOutputStream();
+		try {
+			var output = new DataOutputStream(buffer);
+			var encoder = new Encoder(output);
+			output.writeInt(VERSION);
+			writeLongString(output, document.path);
+			writeLongString(output, document.content);
+			output.writeInt(document.lineOffset);
+			encoder.writeExpression(expression);
+			output.flush();
+		} catch (IOException exception) {
+			throw new IllegalStateException(exception);
+		}
+		return buffer.toByteArray();
+	}
+
+	public static Expression decode(byte[] data) {
+		try {
+			var input = Input.of(new DataInputStream(new ByteArrayInputStream(data)));
+			var document = readDocument(input);
+			return new Decoder(input, document).readExpression();
+		} catch (IOException exception) {
+			throw new IllegalArgumentException("Invalid expression encoding", exception);
+		}
+	}
+
+	/** Returns the document of an encoded expression, without decoding the expression. */
+	public static InputDocument decodeDocument(byte[] data) {
+		try {
+			return readDocument(Input.of(new DataInputStream(new ByteArrayInputStream(data))));
+		} catch (IOException exception) {
+			throw new IllegalArgumentException("Invalid expression encoding", exception);
+		}
+	}
+
+	private static InputDocument readDocument(Input input) throws IOException {
+		var version = input.readInt();
+		if (version != VERSION) throw new IllegalArgumentException("Unsupported expression encoding version " + version);
+
+		var path = readLongString(input);
+		var content = readLongString(input);
+		return new InputDocument(path, content, input.readInt());
+	}
+
+	private static void writeLongString(DataOutput output, String value) throws IOException {
+		var bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readLongString(Input input) throws IOException {
+		var bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Writes expressions, positions are written as offsets into the document they were parsed from. */
+	public static final class Encoder {
+		private final DataOutput output;
+		private final Map<String, Integer> strings = new HashMap<>();
+
+		public Encoder(DataOutput output) {
+			this.output = output;
+		}
+
+		/** Writes a string, strings that were already written are replaced by their index. */
+		public void writeString(String value) throws IOException {
+			var index = this.strings.get(value);
+			if (index != null) {
+				this.output.writeInt(index);
+				return;
+			}
+
+			this.output.writeInt(-1);
+			writeLongString(this.output, value);
+			this.strings.put(value, this.strings.size());
+		}
+
+		public void writePosition(Position position) throws IOException {
+			if (position == Position.INTRINSIC) {
+				this.output.writeInt(-1);
+				return;
+			}
+
+			this.output.writeInt(position.getIndex());
+			this.output.writeInt(position.getLength());
+		}
+
+		public void writeValue(ManagedValue value) throws IOException {
+			if (value == Primitive.VOID) {
+				this.output.writeByte(VALUE_VOID);
+			} else if (value == Primitive.NULL) {
+				this.output.writeByte(VALUE_NULL);
+			} else if (value instanceof Primitive.Number number) {
+				this.output.writeByte(VALUE_NUMBER);
+				this.output.writeDouble(number.value);
+			} else if (value instanceof Primitive.String string) {
+				this.output.writeByte(VALUE_STRING);
+				this.writeString(string.value);
+			} else if (value instanceof Primitive.Boolean booleanValue) {
+				this.output.writeByte(VALUE_BOOLEAN);
+				this.output.writeBoolean(booleanValue.value);
+			} else {
+				throw new IllegalArgumentException("Cannot encode literal value " + value);
+			}
+		}
+
+		public void writeParameters(List<Parameter> parameters) throws IOException {
+			this.output.writeInt(parameters.size());
+			for (var parameter : parameters) {
+				this.writePosition(parameter.position);
+				this.writeString(parameter.name);
+				this.output.writeBoolean(parameter.isDeclaration);
+				this.output.writeBoolean(parameter.isSpread);
+				this.output.writeBoolean(parameter.defaultValue != null);
+				if (parameter.defaultValue != null) this.writeExpression(parameter.defaultValue.getExpression());
+			}
+		}
+
+		public void writeList(List<Expression> expressions) throws IOException {
+			this.output.writeInt(expressions.size());
+			for (var expression : expressions) {
+				this.writeExpression(expression);
+			}
+		}
+
+		public void writeExpression(Expression expression) throws IOException {
+			switch (expression) {
+				case Expression.Literal literal -> {
+					this.output.writeByte(TAG_LITERAL);
+					this.writePosition(literal.position());
+					this.writeValue(literal.value());
+				}
+				case Expression.ArrayLiteral array -> {
+					this.output.writeByte(TAG_ARRAY);
+					this.writePosition(array.position());
+					this.writeList(array.elements());
+				}
+				case Expression.Identifier identifier -> {
+					this.output.writeByte(TAG_IDENTIFIER);
+					this.writePosition(identifier.position());
+					this.writeString(identifier.name());
+				}
+				case Expression.VariableDeclaration declaration -> {
+					this.output.writeByte(TAG_VARIABLE_DECLARATION);
+					this.writePosition(declaration.position());
+					this.writeExpression(declaration.declaration());
+				}
+				case Expression.Assignment assignment -> {
+					this.output.writeByte(TAG_ASSIGNMENT);
+					this.writePosition(assignment.position());
+					this.writeExpression(assignment.receiver());
+					this.writeExpression(assignment.value());
+				}
+				case Expression.MemberAccess memberAccess -> {
+					this.output.writeByte(TAG_MEMBER_ACCESS);
+					this.writePosition(memberAccess.position());
+					this.writeExpression(memberAccess.receiver());
+					this.writeString(memberAccess.member());
+				}
+				case Expression.Group group -> {
+					this.output.writeByte(TAG_GROUP);
+					this.writePosition(group.position());
+					this.writeList(group.children());
+				}
+				case Expression.FunctionDeclaration function -> {
+					this.output.writeByte(TAG_FUNCTION);
+					this.writePosition(function.position());
+					this.writeParameters(function.parameters());
+					this.writeExpression(function.body());
+				}
+				case Expression.Label label -> {
+					this.output.writeByte(TAG_LABEL);
+					this.writePosition(label.position());
+					this.writeString(label.name());
+					this.writeExpression(label.target());
+				}
+				case Expression.Spread spread -> {
+					this.output.writeByte(TAG_SPREAD);
+					this.writePosition(spread.position());
+					this.writeExpression(spread.target());
+				}
+				case Expression.Placeholder placeholder -> {
+					this.output.writeByte(TAG_PLACEHOLDER);
+					this.writePosition(placeholder.position());
+				}
+				case Expression.AdvancedAssignment assignment -> {
+					this.output.writeByte(TAG_ADVANCED_ASSIGNMENT);
+					this.writePosition(assignment.position());
+					this.writeString(assignment.operator());
+					this.writeExpression(assignment.receiver());
+					this.writeExpression(assignment.value());
+				}
+				case Expression.Invocation invocation -> {
+					this.output.writeByte(TAG_INVOCATION);
+					this.writePosition(invocation.position());
+					this.writeExpression(invocation.target());
+					this.writeList(invocation.args());
+				}
+				case Expression.MapLiteral map -> {
+					this.output.writeByte(TAG_MAP);
+					this.writePosition(map.position());
+					this.output.writeInt(map.entries.size());
+					for (var entry : map.entries) {
+						this.writeExpression(entry.getKey());
+						this.writeExpression(entry.getValue());
+					}
+				}
+				default -> throw new IllegalArgumentException("Cannot encode expression " + expression.getClass().getSimpleName());
+			}
+		}
+	}
+
+	/** Reads expressions written by an {@link Encoder}, positions are created for the provided document. */
+	/** Source of the values read by a {@link Decoder}. */
+	public interface Input {
+		byte readByte() throws IOException;
+
+		boolean readBoolean() throws IOException;
+
+		int readInt() throws IOException;
+
+		double readDouble() throws IOException;
+
+		void readFully(byte[] target) throws IOException;
+
+		static Input of(DataInput input) {
+			return new Input() {
+				@Override
+				public byte readByte() throws IOException {
+					return input.readByte();
+				}
+
+				@Override
+				public boolean readBoolean() throws IOException {
+					return input.readBoolean();
+				}
+
+				@Override
+				public int readInt() throws IOException {
+					return input.readInt();
+				}
+
+				@Override
+				public double readDouble() throws IOException {
+					return input.readDouble();
+				}
+
+				@Override
+				public void readFully(byte[] target) throws IOException {
+					input.readFully(target);
+				}
+			};
+		}
+	}
+
+	public static final class Decoder {
+		private final Input input;
+		private final InputDocument document;
+		private final List<String> strings = new ArrayList<>();
+
+		public Decoder(Input input, InputDocument document) {
+			this.input = input;
+			this.document = document;
+		}
+
+		public String readString() throws IOException {
+			var index = this.input.readInt();
+			if (index != -1) return this.strings.get(index);
+
+			var value = readLongString(this.input);
+			this.strings.add(value);
+			return value;
+		}
+
+		public Position readPosition() throws IOException {
+			var index = this.input.readInt();
+			if (index == -1) return Position.INTRINSIC;
+			return new Position(this.document, index, this.input.readInt());
+		}
+
+		public ManagedValue readValue() throws IOException {
+			var type = this.input.readByte();
+			return switch (type) {
+				case VALUE_VOID -> Primitive.VOID;
+				case VALUE_NULL -> Primitive.NULL;
+				case VALUE_NUMBER -> Primitive.from(this.input.readDouble());
+				case VALUE_STRING -> Primitive.from(this.readString());
+				case VALUE_BOOLEAN -> Primitive.from(this.input.readBoolean());
+				default -> throw new IllegalArgumentException("Invalid literal type " + type);
+			};
+		}
+
+		public List<Parameter> readParameters() throws IOException {
+			var count = this.input.readInt();
+			var parameters = new ArrayList<Parameter>(count);
+			for (int i = 0; i < count; i++) {
+				var position = this.readPosition();
+				var name = this.readString();
+				var isDeclaration = this.input.readBoolean();
+				var isSpread = this.input.readBoolean();
+				var defaultValue = this.input.readBoolean() ? new ProgramFragment(this.readExpression()) : null;
+				parameters.add(new Parameter(position, name, isDeclaration, isSpread, defaultValue));
+			}
+			return parameters;
+		}
+
+		public List<Expression> readList() throws IOException {
+			var size = this.input.readInt();
+			var result = new ArrayList<Expression>(size);
+			for (int i = 0; i < size; i++) {
+				result.add(this.readExpression());
+			}
+			return result;
+		}
+
+		public Expression readExpression() throws IOException {
+			var tag = this.input.readByte();
+			var position = this.readPosition();
+
+			return switch (tag) {
+				case TAG_LITERAL -> new Expression.Literal(position, this.readValue());
+				case TAG_ARRAY -> new Expression.ArrayLiteral(position, this.readList());
+				case TAG_IDENTIFIER -> new Expression.Identifier(position, this.readString());
+				case TAG_VARIABLE_DECLARATION -> new Expression.VariableDeclaration(position, this.readExpression());
+				case TAG_ASSIGNMENT -> new Expression.Assignment(position, this.readExpression(), this.readExpression());
+				case TAG_MEMBER_ACCESS -> new Expression.MemberAccess(position, this.readExpression(), this.readString());
+				case TAG_GROUP -> new Expression.Group(position, this.readList());
+				case TAG_FUNCTION -> new Expression.FunctionDeclaration(position, this.readParameters(), this.readExpression());
+				case TAG_LABEL -> new Expression.Label(position, this.readString(), this.readExpression());
+				case TAG_SPREAD -> new Expression.Spread(position, this.readExpression());
+				case TAG_PLACEHOLDER -> new Expression.Placeholder(position);
+				case TAG_ADVANCED_ASSIGNMENT -> new Expression.AdvancedAssignment(position, this.readString(), this.readExpression(), this.readExpression());
+				case TAG_INVOCATION -> new Expression.Invocation(position, this.readExpression(), this.readList());
+				case TAG_MAP -> {
+					var count = this.input.readInt();
+					var entries = new ArrayList<Map.Entry<Expression, Expression>>(count);
+					for (int i = 0; i < count; i++) {
+						entries.add(new AbstractMap.SimpleEntry<>(this.readExpression(), this.readExpression()));
+					}
+					yield new Expression.MapLiteral(position, entries);
+				}
+				default -> throw new IllegalArgumentException("Invalid expression tag " + tag);
+			};
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package bt7s7k7.treeburst.runtime;
+
+import static bt7s7k7.treeburst.support.ManagedValueUtils.ensureArgumentTypes;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Position;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Native function that starts an operation and returns a future of its result. When invoked by a
+ * script running in a {@link bt7s7k7.treeburst.bytecode.Coroutine}, like a task of the {@link
+ * Scheduler}, the coroutine is suspended until the future completes, so the thread can execute
+ * other scripts. Otherwise the invocation blocks until the future completes, see {@link
+ * Scheduler#await}.
+ */
+public class AsyncNativeFunction extends NativeFunction {
+	@FunctionalInterface
+	public interface AsyncHandler {
+		/**
+		 * Starts the operation. The list of arguments is only valid during this call. If the
+		 * operation cannot be started, the exception is set in {@code result} and {@code null}
+		 * is returned.
+		 */
+		CompletableFuture<ManagedValue> handle(List<ManagedValue> args, Scope scope, ExpressionResult result);
+	}
+
+	@FunctionalInterface
+	public interface BlockingHandler {
+		ManagedValue handle(List<ManagedValue> args) throws Exception;
+	}
+
+	private final AsyncHandler asyncHandler;
+
+	public AsyncNativeFunction(ManagedObject prototype, List<String> parameterNames, AsyncHandler handler) {
+		super(prototype, parameterNames, null);
+		this.asyncHandler = handler;
+	}
+
+	/** Starts the operation, see {@link AsyncHandler#handle}. */
+	public CompletableFuture<ManagedValue> start(List<ManagedValue> args, Scope scope, ExpressionResult result) {
+		return this.asyncHandler.handle(args, scope, result);
+	}
+
+	@Override
+	public void invoke(List<ManagedValue> args, Scope scope, ExpressionResult result) {
+		var future = this.start(args, scope, result);
+		if (future == null) return;
+
+		try {
+			result.value = scope.realm.scheduler.await(future);
+		} catch (CompletionException | CancellationException error) {
+			result.setException(getFailure(error));
+		}
+	}
+
+	/** Creates an exception for a failed operation. */
+	public static Diagnostic getFailure(Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+		if (error instanceof CancellationException) return new Diagnostic("Operation was cancelled", Position.INTRINSIC);
+		return new Diagnostic("Operation failed: " + error.getMessage(), Position.INTRINSIC);
+	}
+
+	public static AsyncNativeFunction async(Realm realm, List<String> parameters, List<Class<?>> types, AsyncHandler handler) {
+		var parametersWithoutOptional = getParametersWithoutOptional(parameters);
+		if (parameters.size() != types.size()) throw new IllegalArgumentException("The lists of argument names and types must be of the same length");
+
+		return new AsyncNativeFunction(realm.FunctionPrototype, parameters, (args, scope, result) -> {
+			args = ensureArgumentTypes(args, parametersWithoutOptional, parameters, types, scope, result);
+			if (result.label != null) return null;
+
+			if (args.size() > parameters.size()) {
+				result.setException(new Diagnostic("Too many arguments, expected " + parameters.size() + ", but got " + args.size(), Position.INTRINSIC));
+				return null;
+			}
+
+			return handler.handle(args, scope, result);
+		});
+	}
+
+	/**
+	 * Creates a function that executes the handler on a virtual thread of the {@link
+	 * Realm#scheduler}. The handler must not access the realm or the objects in it. Because of
+	 * this, all parameters must be {@link Primitive} types, which are immutable and can be read
+	 * from any thread.
+	 */
+	public static AsyncNativeFunction blocking(Realm realm, List<String> parameters, List<Class<?>> types, BlockingHandler handler) {
+		for (var type : types) {
+			if (!Primitive.class.isAssignableFrom(type)) throw new IllegalArgumentException("Parameters of blocking functions must be primitives, got " + type.getSimpleName());
+		}
+
+		return async(realm, parameters, types, (args, scope, result) -> {
+			var copy = List.copyOf(args);
+			return realm.scheduler.runBlocking(() -> handler.handle(copy));
+		});
+	}
+}
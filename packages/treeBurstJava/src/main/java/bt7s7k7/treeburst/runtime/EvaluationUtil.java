@@ -80,6 +80,14 @@ public class EvaluationUtil {
 	}
 
 	public static boolean setProperty(ManagedObject container, String name, ManagedValue value, Scope scope, ExpressionResult result) {
+		return setProperty(container, name, value, null, scope, result);
+	}
+
+	/**
+	 * Sets a property, the {@code setterCache} is used to look up the setter if provided. It must
+	 * be a cache for the {@code "set_" + name} property.
+	 */
+	public static boolean setProperty(ManagedObject container, String name, ManagedValue value, PropertyCache setterCache, Scope scope, ExpressionResult result) {
 		if (container instanceof ManagedTable table) {
 			var success = table.setOwnProperty(name, value);
 			if (success) {
@@ -89,7 +97,11 @@ public class EvaluationUtil {
 		}
 
 		if (container.hasSetters) {
-			if (getProperty(container, container, "set_" + name, scope, result)) {
+			var found = setterCache != null
+					? setterCache.find(container, scope, result)
+					: getProperty(container, container, "set_" + name, scope, result);
+
+			if (found) {
 				var setter = result.value;
 
 				if (setter instanceof ManagedFunction setterFunction) {
@@ -136,7 +148,7 @@ public class EvaluationUtil {
 			return;
 		}
 
-		if (!managedFunction.getParameterNames().isEmpty() && managedFunction.getParameterNames().get(0).equals("this")) {
+		if (managedFunction.hasThisArgument()) {
 			if (args instanceof ArrayList<ManagedValue> mutableArgs) {
 				mutableArgs.add(0, receiver);
 			} else {
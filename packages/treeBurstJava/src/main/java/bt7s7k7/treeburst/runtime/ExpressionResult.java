@@ -1,5 +1,7 @@
 package bt7s7k7.treeburst.runtime;
 
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
 import bt7s7k7.treeburst.support.Diagnostic;
@@ -14,6 +16,43 @@ public class ExpressionResult {
 	public int executionLimit = Integer.MAX_VALUE;
 	public int executionCounter = 0;
 
+	/**
+	 * If enabled, {@link #executionCounter} is not incremented for every instruction, but only at
+	 * safepoints, which are backward jumps and entries into a fragment. Each safepoint is charged
+	 * with the number of instructions executed since the last one, computed during compilation.
+	 */
+	public boolean meterAtSafepoints = false;
+	/** Value of {@link System#nanoTime()} after which execution is aborted at the next safepoint. */
+	public long executionDeadline = Long.MAX_VALUE;
+	/** Flag that can be set from another thread to abort execution at the next safepoint. */
+	public AtomicBoolean cancellation = null;
+
+	public void setTimeout(Duration timeout) {
+		this.executionDeadline = System.nanoTime() + timeout.toNanos();
+	}
+
+	public boolean hasSafepointChecks() {
+		return this.executionLimit != Integer.MAX_VALUE || this.executionDeadline != Long.MAX_VALUE || this.cancellation != null;
+	}
+
+	/** Charges the cost of the instructions executed since the last safepoint and checks if execution should be aborted. */
+	public void safepoint(int cost) {
+		if (this.meterAtSafepoints && this.executionLimit != Integer.MAX_VALUE) {
+			this.executionCounter += cost;
+			if (this.executionCounter > this.executionLimit) {
+				throw new ExecutionLimitReachedException("Script execution reached the limit of " + this.executionLimit + " expressions");
+			}
+		}
+
+		if (this.executionDeadline != Long.MAX_VALUE && System.nanoTime() - this.executionDeadline > 0) {
+			throw new ExecutionLimitReachedException("Script execution reached its deadline");
+		}
+
+		if (this.cancellation != null && this.cancellation.get()) {
+			throw new ExecutionLimitReachedException("Script execution was cancelled");
+		}
+	}
+
 	public void setException(Diagnostic exception) {
 		if (LABEL_EXCEPTION.equals(this.label)) {
 			exception = new Diagnostic(exception.message, exception.position, Stream.concat(exception.additionalErrors.stream(), Stream.of(this.terminate())).toList());
@@ -0,0 +1,69 @@
+package bt7s7k7.treeburst.runtime;
+
+import bt7s7k7.treeburst.support.ManagedValue;
+
+/**
+ * Table of a fork that starts with the properties of a frozen table of its template, see {@link
+ * Realm#fork()}. The table has the same shape as the base table and shares its storage until a
+ * property is declared, assigned or removed, so the base table is never modified and a fork that
+ * does not modify the standard library holds no copies of it. Constructors replace their {@code
+ * prototype} property when they are first accessed, like a {@link
+ * bt7s7k7.treeburst.standard.LazyTable}, so their storage is also not copied until they are used.
+ */
+final class LayeredTable extends ManagedTable {
+	/** Set when a property of this table is declared or assigned, see {@link Realm#isModified()}. */
+	boolean modified = false;
+	// Prototype of the fork assigned to the prototype property on the first access
+	private ManagedValue pendingPrototype = null;
+
+	public LayeredTable(ManagedObject prototype, ManagedTable base) {
+		super(prototype, base);
+		this.name = base.name;
+		this.hasGetters = base.hasGetters;
+		this.hasSetters |= base.hasSetters;
+	}
+
+	/** Sets the value of the prototype property, which must already exist in the base table. */
+	public void replacePrototype(ManagedTable prototype) {
+		if (super.getOwnProperty("prototype") == null) throw new IllegalStateException();
+		this.pendingPrototype = prototype;
+	}
+
+	private void applyPrototype() {
+		var prototype = this.pendingPrototype;
+		this.pendingPrototype = null;
+		super.setOwnProperty("prototype", prototype);
+		this.modified = false;
+	}
+
+	@Override
+	public ManagedValue getOwnProperty(String name) {
+		if (this.pendingPrototype != null) this.applyPrototype();
+		return super.getOwnProperty(name);
+	}
+
+	@Override
+	public Shape getShape() {
+		if (this.pendingPrototype != null) this.applyPrototype();
+		return super.getShape();
+	}
+
+	@Override
+	public boolean declareProperty(String name, ManagedValue value) {
+		if (this.pendingPrototype != null) this.applyPrototype();
+		return super.declareProperty(name, value);
+	}
+
+	@Override
+	public boolean setOwnProperty(String name, ManagedValue value) {
+		if (this.pendingPrototype != null) this.applyPrototype();
+		return super.setOwnProperty(name, value);
+	}
+
+	@Override
+	protected void invalidatePrototype() {
+		// Called for every declaration, assignment and removal of a property
+		this.modified = true;
+		super.invalidatePrototype();
+	}
+}
@@ -8,16 +8,38 @@ import java.util.List;
 import java.util.Spliterator;
 import java.util.stream.Stream;
 
+import bt7s7k7.treeburst.support.Diagnostic;
 import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Position;
 import bt7s7k7.treeburst.support.Primitive;
 import bt7s7k7.treeburst.support.ValueWithLength;
 
 public abstract class ManagedArray extends ManagedObject implements Iterable<ManagedValue>, ValueWithLength {
+	private boolean frozen = false;
 
 	public ManagedArray(ManagedObject prototype) {
 		super(prototype);
 	}
 
+	/**
+	 * Prevents any modification of the elements, used for arrays shared between realms, see {@link
+	 * Realm#snapshot()}. Views of a frozen array cannot be used to modify it.
+	 */
+	public void freeze() {
+		this.frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	/** Returns {@code true} if the array can be modified, otherwise reports an exception. */
+	public boolean ensureMutable(ExpressionResult result) {
+		if (!this.frozen) return true;
+		result.setException(new Diagnostic("Cannot modify frozen array", Position.INTRINSIC));
+		return false;
+	}
+
 	@Override
 	public abstract int getLength();
 
@@ -98,6 +120,7 @@ public abstract class ManagedArray extends ManagedObject implements Iterable<Man
 
 		@Override
 		public void clear() {
+			if (this.isFrozen()) throw new UnsupportedOperationException("Cannot modify frozen array");
 			if (this.elements == null) return;
 
 			if (this.immutable) {
@@ -117,6 +140,8 @@ public abstract class ManagedArray extends ManagedObject implements Iterable<Man
 
 		@Override
 		public List<ManagedValue> getElementsMutable() {
+			if (this.isFrozen()) throw new UnsupportedOperationException("Cannot modify frozen array");
+
 			if (this.elements == null) {
 				this.elements = new ArrayList<>();
 				return this.elements;
@@ -149,7 +174,7 @@ public abstract class ManagedArray extends ManagedObject implements Iterable<Man
 				return ManagedArray.empty(this.prototype);
 			}
 
-			if (this.immutable) {
+			if (this.immutable || this.isFrozen()) {
 				return ManagedArray.fromImmutableList(this.prototype, this.elements.subList(from, to));
 			}
 
@@ -11,6 +11,7 @@ public abstract class ManagedFunction extends ManagedObject { // @symbol: Functi
 
 	private List<Parameter> parameters;
 	private List<String> parameterNames;
+	private final boolean thisArgument;
 
 	public List<Parameter> getParameters() {
 		if (this.parameters == null) {
@@ -29,12 +30,7 @@ public abstract class ManagedFunction extends ManagedObject { // @symbol: Functi
 	}
 
 	public boolean hasThisArgument() {
-		if (this.parameterNames != null) {
-			return !this.parameterNames.isEmpty() && this.parameterNames.get(0).equals("this");
-		} else {
-			// At least one of these lists must be non-null, so no need to check if parameters is null
-			return !this.parameters.isEmpty() && this.parameters.get(0).name.equals("this");
-		}
+		return this.thisArgument;
 	}
 
 	public abstract void invoke(List<ManagedValue> args, Scope scope, ExpressionResult result);
@@ -57,5 +53,13 @@ public abstract class ManagedFunction extends ManagedObject { // @symbol: Functi
 		super(prototype);
 		this.parameters = parameters;
 		this.parameterNames = parameterNames;
+
+		// Parameters cannot change, so this is only checked once because it's needed on every invocation
+		if (parameterNames != null) {
+			this.thisArgument = !parameterNames.isEmpty() && parameterNames.get(0).equals("this");
+		} else {
+			// At least one of these lists must be non-null, so no need to check if parameters is null
+			this.thisArgument = !parameters.isEmpty() && parameters.get(0).name.equals("this");
+		}
 	}
 }
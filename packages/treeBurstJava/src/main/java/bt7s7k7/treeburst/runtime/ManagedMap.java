@@ -3,11 +3,14 @@ package bt7s7k7.treeburst.runtime;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import bt7s7k7.treeburst.support.Diagnostic;
 import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Position;
 import bt7s7k7.treeburst.support.Primitive;
 
 public class ManagedMap extends ManagedObject {
 	public final LinkedHashMap<ManagedValue, ManagedValue> entries;
+	private boolean frozen = false;
 
 	protected ManagedMap(ManagedObject prototype, LinkedHashMap<ManagedValue, ManagedValue> entries) {
 		super(prototype);
@@ -26,6 +29,26 @@ public class ManagedMap extends ManagedObject {
 		return new ManagedMap(prototype, entries);
 	}
 
+	/**
+	 * Prevents modification of the entries by the standard library, used for maps shared between
+	 * realms, see {@link Realm#snapshot()}. Native code must check {@link #ensureMutable} before
+	 * modifying the {@link #entries} of a map it did not create.
+	 */
+	public void freeze() {
+		this.frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	/** Returns {@code true} if the map can be modified, otherwise reports an exception. */
+	public boolean ensureMutable(ExpressionResult result) {
+		if (!this.frozen) return true;
+		result.setException(new Diagnostic("Cannot modify frozen map", Position.INTRINSIC));
+		return false;
+	}
+
 	@Override
 	public String getNameOrInheritedName() {
 		var result = super.getNameOrInheritedName();
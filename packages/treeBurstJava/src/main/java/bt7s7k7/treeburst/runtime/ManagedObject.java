@@ -50,5 +50,10 @@ public abstract class ManagedObject extends ManagedValue {
 	public ManagedObject(ManagedObject prototype) {
 		this.prototype = prototype;
 		this.hasSetters = prototype != null && prototype instanceof ManagedTable parentTable ? parentTable.hasSetters : false;
+
+		// Prototypes may be shared by realms on multiple threads, avoid writing to them repeatedly
+		if (prototype instanceof ManagedTable parentTable && !parentTable.isPrototype) {
+			parentTable.isPrototype = true;
+		}
 	}
 }
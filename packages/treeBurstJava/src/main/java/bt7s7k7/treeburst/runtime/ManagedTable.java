@@ -1,34 +1,184 @@
 package bt7s7k7.treeburst.runtime;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import bt7s7k7.treeburst.support.ManagedValue;
 
 public class ManagedTable extends ManagedObject {
+	private static final ManagedValue[] NO_VALUES = new ManagedValue[0];
+
 	public ManagedTable(ManagedObject prototype) {
-		this(prototype, new HashMap<>());
+		super(prototype);
+		this.shape = Shape.EMPTY;
+		this.values = NO_VALUES;
 	}
 
 	public ManagedTable(ManagedObject prototype, Map<String, ManagedValue> properties) {
 		super(prototype);
-		this.properties = properties;
+		this.dictionary = properties;
+	}
+
+	/**
+	 * Creates a table with the same properties as the frozen source table. The table uses the same
+	 * shape as the source, so property caches of the source also apply to it. The storage of the
+	 * source is shared until a property of this table is declared, assigned or removed.
+	 */
+	protected ManagedTable(ManagedObject prototype, ManagedTable source) {
+		super(prototype);
+		if (!source.frozen) throw new IllegalArgumentException("Only frozen tables can be shared");
+
+		// Initializes lazy tables
+		source.getShape();
+
+		this.shape = source.shape;
+		this.values = source.values;
+		this.dictionary = source.dictionary;
+		this.sharesStorage = true;
 	}
 
-	public final Map<String, ManagedValue> properties;
+	// Properties are stored in the values array with the layout described by the shape. If the
+	// table has too many properties, the shape is null and properties are stored in the dictionary.
+	private Shape shape = null;
+	private ManagedValue[] values = null;
+	private Map<String, ManagedValue> dictionary = null;
+	// Set if the values or the dictionary belong to a frozen table, they are copied before the first write
+	private boolean sharesStorage = false;
+
+	/**
+	 * Map view of the properties of this table, iterated in the same order as a {@link HashMap}.
+	 * Changes to the map are performed on the table, removing a property stops the table from
+	 * using shapes. Lazy tables are initialized when the map is used. Modifying the map of a frozen table throws {@link UnsupportedOperationException}.
+	 */
+	public final Map<String, ManagedValue> properties = new PropertyMap();
+
+	/** Returns the map view of the properties of this table, see {@link #properties}. */
+	public Map<String, ManagedValue> getProperties() {
+		return this.properties;
+	}
+
+	/** Set when this table becomes the prototype of another object, see {@link #getChainVersion}. */
+	protected boolean isPrototype = false;
+	// Incremented every time a property of this table is declared or modified, if it is a prototype
+	private int version = 0;
+
+	/**
+	 * Returns a number that changes every time a property of a table in the prototype chain
+	 * starting at the provided object is declared or modified. Prototypes of objects cannot be
+	 * changed, so the result only depends on the tables in the chain and modifications of unrelated
+	 * prototypes do not affect it. Used to invalidate {@link PropertyCache} entries.
+	 */
+	public static long getChainVersion(ManagedObject prototype) {
+		long version = 0;
+		for (var container = prototype; container != null; container = container.prototype) {
+			if (container instanceof ManagedTable table) version += table.version;
+		}
+
+		return version;
+	}
+
+	/**
+	 * Marks a table as a prototype. This is done automatically when an object inheriting from this
+	 * table is created, but must be done manually for tables used as prototypes of primitive values.
+	 */
+	public void markAsPrototype() {
+		this.isPrototype = true;
+	}
+
+	private boolean frozen = false;
+
+	/**
+	 * Prevents declaring and modifying properties of this table. Used for tables shared between
+	 * realms, see {@link Realm#snapshot()}.
+	 */
+	public void freeze() {
+		this.frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	protected void invalidatePrototype() {
+		if (this.isPrototype) this.version++;
+	}
+
+	/** Returns the shape of this table or {@code null} if it stores its properties in a dictionary. */
+	public Shape getShape() {
+		return this.shape;
+	}
+
+	/** Returns the value of a property using its index in the table's shape. */
+	public ManagedValue getPropertyAt(int index) {
+		return this.values[index];
+	}
+
+	private ManagedValue getStoredProperty(String name) {
+		if (this.shape == null) return this.dictionary.get(name);
+
+		var index = this.shape.indexOf(name);
+		if (index == -1) return null;
+		return this.values[index];
+	}
+
+	private void ensureOwnStorage() {
+		if (!this.sharesStorage) return;
+		this.sharesStorage = false;
+
+		if (this.shape != null) {
+			this.values = Arrays.copyOf(this.values, this.values.length);
+		} else {
+			this.dictionary = new HashMap<>(this.dictionary);
+		}
+	}
+
+	private void convertToDictionary() {
+		var dictionary = new HashMap<String, ManagedValue>();
+		for (int i = 0; i < this.shape.size(); i++) {
+			dictionary.put(this.shape.getName(i), this.values[i]);
+		}
+
+		this.dictionary = dictionary;
+		this.shape = null;
+		this.values = null;
+		this.sharesStorage = false;
+	}
 
 	@Override
 	public ManagedValue getOwnProperty(String name) {
-		var value = this.properties.get(name);
+		var value = this.getStoredProperty(name);
 		if (value != null) return value;
 		return super.getOwnProperty(name);
 	}
 
 	public boolean declareProperty(String name, ManagedValue value) {
-		if (this.properties.containsKey(name)) {
+		if (this.frozen || this.getStoredProperty(name) != null) {
 			return false;
 		}
-		this.properties.put(name, value);
+
+		this.ensureOwnStorage();
+
+		if (this.shape != null && this.shape.size() >= Shape.MAX_SIZE) {
+			this.convertToDictionary();
+		}
+
+		if (this.shape != null) {
+			var index = this.shape.size();
+			this.shape = this.shape.withProperty(name);
+
+			if (index >= this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.shape.getExpectedSize());
+			}
+
+			this.values[index] = value;
+		} else {
+			this.dictionary.put(name, value);
+		}
 
 		if (this.name != null && value instanceof ManagedObject managedObject && managedObject.name == null) {
 			managedObject.name = this.name + "." + name;
@@ -40,15 +190,129 @@ public class ManagedTable extends ManagedObject {
 			this.hasGetters = true;
 		}
 
+		this.invalidatePrototype();
 		return true;
 	}
 
 	public boolean setOwnProperty(String name, ManagedValue value) {
-		if (!this.properties.containsKey(name)) {
-			return false;
+		if (this.frozen || this.getStoredProperty(name) == null) return false;
+		this.ensureOwnStorage();
+
+		if (this.shape != null) {
+			this.values[this.shape.indexOf(name)] = value;
+		} else {
+			this.dictionary.put(name, value);
 		}
 
-		this.properties.put(name, value);
+		this.invalidatePrototype();
 		return true;
 	}
+
+	private class PropertyMap extends AbstractMap<String, ManagedValue> {
+		@Override
+		public ManagedValue get(Object key) {
+			if (!(key instanceof String name)) return null;
+			ManagedTable.this.getShape();
+			return ManagedTable.this.getStoredProperty(name);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return this.get(key) != null;
+		}
+
+		@Override
+		public int size() {
+			var table = ManagedTable.this;
+			table.getShape();
+			return table.shape != null ? table.shape.size() : table.dictionary.size();
+		}
+
+		@Override
+		public ManagedValue put(String key, ManagedValue value) {
+			var table = ManagedTable.this;
+			if (table.frozen) throw new UnsupportedOperationException("Cannot modify frozen table");
+			var previous = table.getStoredProperty(key);
+
+			if (previous != null) {
+				table.setOwnProperty(key, value);
+			} else {
+				table.declareProperty(key, value);
+			}
+
+			return previous;
+		}
+
+		@Override
+		public ManagedValue remove(Object key) {
+			if (!(key instanceof String name)) return null;
+
+			var table = ManagedTable.this;
+			table.getShape();
+			var previous = table.getStoredProperty(name);
+			if (previous == null) return null;
+			if (table.frozen) throw new UnsupportedOperationException("Cannot modify frozen table");
+
+			// Shapes cannot describe removed properties
+			if (table.shape != null) {
+				table.convertToDictionary();
+			} else {
+				table.ensureOwnStorage();
+			}
+
+			table.dictionary.remove(name);
+			table.invalidatePrototype();
+			return previous;
+		}
+
+		@Override
+		public void clear() {
+			var table = ManagedTable.this;
+			if (table.frozen) throw new UnsupportedOperationException("Cannot modify frozen table");
+
+			table.shape = Shape.EMPTY;
+			table.values = NO_VALUES;
+			table.dictionary = null;
+			table.sharesStorage = false;
+			table.invalidatePrototype();
+		}
+
+		@Override
+		public java.util.Set<Entry<String, ManagedValue>> entrySet() {
+			return new AbstractSet<>() {
+				@Override
+				public int size() {
+					return PropertyMap.this.size();
+				}
+
+				@Override
+				public Iterator<Entry<String, ManagedValue>> iterator() {
+					var table = ManagedTable.this;
+					table.getShape();
+					if (table.shape == null) {
+						// The entries must not be modified if the dictionary is shared
+						var dictionary = table.frozen || table.sharesStorage ? Collections.unmodifiableMap(table.dictionary) : table.dictionary;
+						return dictionary.entrySet().iterator();
+					}
+
+					var shape = table.shape;
+					var values = table.values;
+					var indices = shape.getIndices().iterator();
+
+					return new Iterator<>() {
+						@Override
+						public boolean hasNext() {
+							return indices.hasNext();
+						}
+
+						@Override
+						public Entry<String, ManagedValue> next() {
+							var entry = indices.next();
+							return new SimpleImmutableEntry<>(entry.getKey(), values[entry.getValue()]);
+						}
+					};
+				}
+			};
+		}
+	}
 }
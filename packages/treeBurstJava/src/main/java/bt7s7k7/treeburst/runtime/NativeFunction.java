@@ -27,7 +27,7 @@ public class NativeFunction extends ManagedFunction {
 		this.handler.handle(args, scope, result);
 	}
 
-	private static int getParametersWithoutOptional(List<String> parameters) {
+	static int getParametersWithoutOptional(List<String> parameters) {
 		var firstOptionalParameter = parameters.size();
 
 		for (int i = 0; i < parameters.size(); i++) {
@@ -0,0 +1,212 @@
+package bt7s7k7.treeburst.runtime;
+
+import static bt7s7k7.treeburst.runtime.EvaluationUtil.evaluateInvocation;
+import static bt7s7k7.treeburst.runtime.EvaluationUtil.findProperty;
+import static bt7s7k7.treeburst.runtime.EvaluationUtil.getProperty;
+import static bt7s7k7.treeburst.runtime.EvaluationUtil.getPrototype;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Position;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Inline cache for the lookup of a single property name, owned by the instruction performing the
+ * lookup. For up to {@link #MAX_ENTRIES} different receiver prototypes it remembers the property or
+ * getter found in the prototype chain, so repeated lookups only need to compare the prototype. For
+ * tables with a {@link Shape}, the shape is compared too and own properties are read by index. An
+ * entry for a property found in the prototype chain is discarded when a table in that chain is
+ * modified, see {@link ManagedTable#getChainVersion}. After more prototypes are seen, the cache is
+ * disabled and all lookups are performed normally.
+ */
+public final class PropertyCache {
+	public static final int MAX_ENTRIES = 4;
+
+	public final String name;
+	private final String getterName;
+
+	private final Shape[] shapes = new Shape[MAX_ENTRIES];
+	private final ManagedObject[] prototypes = new ManagedObject[MAX_ENTRIES];
+	private final int[] indices = new int[MAX_ENTRIES];
+	private final ManagedValue[] properties = new ManagedValue[MAX_ENTRIES];
+	private final boolean[] getters = new boolean[MAX_ENTRIES];
+	private final long[] versions = new long[MAX_ENTRIES];
+	private int size = 0;
+	private boolean megamorphic = false;
+
+	public PropertyCache(String name) {
+		this.name = name;
+		this.getterName = "get_" + name;
+	}
+
+	/**
+	 * Equivalent to {@link EvaluationUtil#findProperty} using the receiver as the container.
+	 */
+	public boolean find(ManagedValue receiver, Scope scope, ExpressionResult result) {
+		ManagedTable table = null;
+		Shape shape = null;
+		ManagedObject prototype;
+
+		if (receiver instanceof ManagedTable receiverTable && (shape = receiverTable.getShape()) != null) {
+			// The shape determines the own properties of the table, so they can be cached too
+			table = receiverTable;
+			prototype = table.prototype;
+		} else if (receiver instanceof ManagedObject object) {
+			var property = object.getOwnProperty(this.name);
+			if (property != null) {
+				result.value = property;
+				return true;
+			}
+
+			// The receiver may have an own getter, which is not handled by the cache
+			if (object.hasGetters) return getProperty(receiver, object, this.name, scope, result);
+
+			prototype = object.prototype;
+		} else {
+			if (receiver instanceof Primitive.String && this.name.equals("length")) return findProperty(receiver, receiver, this.name, scope, result);
+			prototype = getPrototype(receiver, scope);
+		}
+
+		if (this.megamorphic) {
+			if (table != null) return getProperty(receiver, table, this.name, scope, result);
+			if (prototype == null) return false;
+			return getProperty(receiver, prototype, this.name, scope, result);
+		}
+
+		for (int i = 0; i < this.size; i++) {
+			if (this.shapes[i] == shape && this.prototypes[i] == prototype) {
+				var index = this.indices[i];
+				if (index != -1) {
+					result.value = table.getPropertyAt(index);
+					return true;
+				}
+
+				if (ManagedTable.getChainVersion(prototype) == this.versions[i]) {
+					return this.use(receiver, prototype, this.properties[i], this.getters[i], scope, result);
+				}
+
+				// The prototype chain was modified, the entry is replaced by the lookup below
+				this.remove(i);
+				break;
+			}
+		}
+
+		if (table != null) {
+			var index = shape.indexOf(this.name);
+			if (index != -1) {
+				this.record(shape, prototype, index, null, false);
+				result.value = table.getPropertyAt(index);
+				return true;
+			}
+
+			if (table.hasGetters && shape.indexOf(this.getterName) != -1) {
+				return getProperty(receiver, table, this.name, scope, result);
+			}
+		}
+
+		if (prototype == null) return false;
+
+		var cacheable = true;
+		ManagedValue property = null;
+		var isGetter = false;
+
+		for (var container = prototype; container != null; container = container.prototype) {
+			// Objects other than tables may compute their properties, so they cannot be cached
+			if (!(container instanceof ManagedTable)) cacheable = false;
+
+			property = container.getOwnProperty(this.name);
+			if (property != null) break;
+
+			if (container.hasGetters) {
+				property = container.getOwnProperty(this.getterName);
+
+				if (property != null) {
+					if (!(property instanceof ManagedFunction)) {
+						result.setException(new Diagnostic("Getter for property '" + this.name + "' is not a function", Position.INTRINSIC));
+						return false;
+					}
+
+					isGetter = true;
+					break;
+				}
+			}
+		}
+
+		if (property == null) return false;
+		if (cacheable) this.record(shape, prototype, -1, property, isGetter);
+
+		return this.use(receiver, prototype, property, isGetter, scope, result);
+	}
+
+	/**
+	 * Returns the property found in the prototype chain starting at the prototype, if the result
+	 * stays valid until the {@link ManagedTable#getChainVersion} of the prototype changes. Returns
+	 * {@code null} if the property is not found or is provided by a getter or an object other than
+	 * a table.
+	 */
+	public static ManagedValue findStableProperty(ManagedObject prototype, String name) {
+		var getterName = "get_" + name;
+
+		for (var container = prototype; container != null; container = container.prototype) {
+			if (!(container instanceof ManagedTable)) return null;
+
+			var property = container.getOwnProperty(name);
+			if (property != null) return property;
+
+			if (container.hasGetters && container.getOwnProperty(getterName) != null) return null;
+		}
+
+		return null;
+	}
+
+	private void record(Shape shape, ManagedObject prototype, int index, ManagedValue property, boolean isGetter) {
+		if (this.size == MAX_ENTRIES) {
+			this.clear();
+			this.megamorphic = true;
+			return;
+		}
+
+		this.shapes[this.size] = shape;
+		this.prototypes[this.size] = prototype;
+		this.indices[this.size] = index;
+		this.properties[this.size] = property;
+		this.getters[this.size] = isGetter;
+		this.versions[this.size] = index == -1 ? ManagedTable.getChainVersion(prototype) : 0;
+		this.size++;
+	}
+
+	private void remove(int index) {
+		var last = this.size - 1;
+		this.shapes[index] = this.shapes[last];
+		this.prototypes[index] = this.prototypes[last];
+		this.indices[index] = this.indices[last];
+		this.properties[index] = this.properties[last];
+		this.getters[index] = this.getters[last];
+		this.versions[index] = this.versions[last];
+
+		this.shapes[last] = null;
+		this.prototypes[last] = null;
+		this.properties[last] = null;
+		this.size = last;
+	}
+
+	private boolean use(ManagedValue receiver, ManagedObject container, ManagedValue property, boolean isGetter, Scope scope, ExpressionResult result) {
+		if (!isGetter) {
+			result.value = property;
+			return true;
+		}
+
+		evaluateInvocation(receiver, container, property, Position.INTRINSIC, Collections.emptyList(), scope, result);
+		return result.label == null;
+	}
+
+	public void clear() {
+		Arrays.fill(this.shapes, 0, this.size, null);
+		Arrays.fill(this.prototypes, 0, this.size, null);
+		Arrays.fill(this.properties, 0, this.size, null);
+		this.size = 0;
+	}
+}
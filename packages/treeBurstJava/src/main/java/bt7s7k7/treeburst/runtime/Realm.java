@@ -12,20 +12,32 @@ import static bt7s7k7.treeburst.support.ManagedValueUtils.verifyArguments;
 
 import java.util.AbstractList;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
-import bt7s7k7.treeburst.bytecode.ArgumentStack;
 import bt7s7k7.treeburst.bytecode.BytecodeEmitter;
 import bt7s7k7.treeburst.bytecode.BytecodeInstruction;
+import bt7s7k7.treeburst.bytecode.BytecodeOptimizer;
+import bt7s7k7.treeburst.bytecode.CompiledFragment;
+import bt7s7k7.treeburst.bytecode.Coroutine;
+import bt7s7k7.treeburst.bytecode.ConstantFolder;
+import bt7s7k7.treeburst.bytecode.OpcodeProgram;
 import bt7s7k7.treeburst.bytecode.ProgramFragment;
-import bt7s7k7.treeburst.bytecode.ValueStack;
 import bt7s7k7.treeburst.parsing.Expression;
 import bt7s7k7.treeburst.parsing.OperatorConstants;
 import bt7s7k7.treeburst.standard.ArrayPrototype;
+import bt7s7k7.treeburst.standard.GeneratorPrototype;
 import bt7s7k7.treeburst.standard.MapPrototype;
 import bt7s7k7.treeburst.standard.TableApi;
 import bt7s7k7.treeburst.support.Diagnostic;
@@ -83,13 +95,38 @@ public class Realm {
 	}
 
 	private final static ArrayList<Map.Entry<String, NativeFunction.Handler>> NUMERIC_OPERATORS = new ArrayList<>();
+	private final static HashMap<String, NumberOperatorImpl> NUMERIC_OPERATOR_IMPLEMENTATIONS = new HashMap<>();
 
 	@FunctionalInterface
-	private interface NumberOperatorImpl {
+	public interface NumberOperatorImpl {
 		ManagedValue evaluate(double a, double b);
 	}
 
+	/**
+	 * Implementation of a number operator producing a number, which can be evaluated without boxing
+	 * the result, see {@link bt7s7k7.treeburst.bytecode.ValueStack#pushNumber(double)}.
+	 */
+	@FunctionalInterface
+	public interface NumberArithmeticImpl extends NumberOperatorImpl {
+		double evaluateNumber(double a, double b);
+
+		@Override
+		default ManagedValue evaluate(double a, double b) {
+			return Primitive.from(this.evaluateNumber(a, b));
+		}
+	}
+
+	private static NumberArithmeticImpl arithmetic(NumberArithmeticImpl operator) {
+		return operator;
+	}
+
+	/** Returns the implementation of a builtin number operator or {@code null} if there is no such operator. */
+	public static NumberOperatorImpl getNumberOperator(String name) {
+		return NUMERIC_OPERATOR_IMPLEMENTATIONS.get(name);
+	}
+
 	private static void makeNumberOperator(String name, NumberOperatorImpl operator) {
+		NUMERIC_OPERATOR_IMPLEMENTATIONS.put(name, operator);
 		NUMERIC_OPERATORS.add(new AbstractMap.SimpleEntry<>(name, (args, scope, result) -> { // @symbol: <template>numberOperator, @kind: function
 			var operands = prepareBinaryOperator(name, Primitive.Number.class, Primitive.Number.class, args, scope, result);
 			if (operands == null) return;
@@ -101,24 +138,24 @@ public class Realm {
 	}
 
 	static {
-		makeNumberOperator(OperatorConstants.OPERATOR_ADD, (a, b) -> Primitive.from(a + b)); // @summary: Adds two numbers together.
-		makeNumberOperator(OperatorConstants.OPERATOR_SUB, (a, b) -> Primitive.from(a - b)); // @summary: Subtracts the second number from the first one.
-		makeNumberOperator(OperatorConstants.OPERATOR_MUL, (a, b) -> Primitive.from(a * b)); // @summary: Multiplies two numbers together.
-		makeNumberOperator(OperatorConstants.OPERATOR_DIV, (a, b) -> Primitive.from(a / b)); // @summary: Divides the first number by the second one.
-		makeNumberOperator(OperatorConstants.OPERATOR_MOD, (a, b) -> Primitive.from(a % b)); // @summary: Returns the remainder of the first number when divided by the second.
-		makeNumberOperator(OperatorConstants.OPERATOR_POW, (a, b) -> Primitive.from(Math.pow(a, b))); // @summary: Puts the first number to the second's power.
+		makeNumberOperator(OperatorConstants.OPERATOR_ADD, arithmetic((a, b) -> a + b)); // @summary: Adds two numbers together.
+		makeNumberOperator(OperatorConstants.OPERATOR_SUB, arithmetic((a, b) -> a - b)); // @summary: Subtracts the second number from the first one.
+		makeNumberOperator(OperatorConstants.OPERATOR_MUL, arithmetic((a, b) -> a * b)); // @summary: Multiplies two numbers together.
+		makeNumberOperator(OperatorConstants.OPERATOR_DIV, arithmetic((a, b) -> a / b)); // @summary: Divides the first number by the second one.
+		makeNumberOperator(OperatorConstants.OPERATOR_MOD, arithmetic((a, b) -> a % b)); // @summary: Returns the remainder of the first number when divided by the second.
+		makeNumberOperator(OperatorConstants.OPERATOR_POW, arithmetic((a, b) -> Math.pow(a, b))); // @summary: Puts the first number to the second's power.
 
 		makeNumberOperator(OperatorConstants.OPERATOR_LT, (a, b) -> Primitive.from(a < b)); // @summary: Returns `true` if the first number is less than the second.
 		makeNumberOperator(OperatorConstants.OPERATOR_GT, (a, b) -> Primitive.from(a > b)); // @summary: Returns `true` if the first number is greater than the second.
 		makeNumberOperator(OperatorConstants.OPERATOR_GTE, (a, b) -> Primitive.from(a >= b)); // @summary: Returns `true` if the first number is greater or equal to the second.
 		makeNumberOperator(OperatorConstants.OPERATOR_LTE, (a, b) -> Primitive.from(a <= b)); // @summary: Returns `true` if the first number is less or equal to the second.
 
-		makeNumberOperator(OperatorConstants.OPERATOR_BIT_XOR, (a, b) -> Primitive.from((int) a ^ (int) b)); // @summary: Performs a bitwise XOR over the two numbers, calculated using 32-bit signed integers.
-		makeNumberOperator(OperatorConstants.OPERATOR_BIT_AND, (a, b) -> Primitive.from((int) a & (int) b)); // @summary: Performs a bitwise AND over the two numbers, calculated using 32-bit signed integers.
-		makeNumberOperator(OperatorConstants.OPERATOR_BIT_OR, (a, b) -> Primitive.from((int) a | (int) b)); // @summary: Performs a bitwise OR over the two numbers, calculated using 32-bit signed integers.
-		makeNumberOperator(OperatorConstants.OPERATOR_BIT_SHL, (a, b) -> Primitive.from((int) a << (int) b)); // @summary: Shifts the bits in the first number left by the value of the second number, calculated using 32-bit signed integers.
-		makeNumberOperator(OperatorConstants.OPERATOR_BIT_SHR, (a, b) -> Primitive.from((int) a >> (int) b)); // @summary: Shifts the bits in the first number right by the value of the second number, calculated using 32-bit signed integers.
-		makeNumberOperator(OperatorConstants.OPERATOR_BIT_SHR_UNSIGNED, (a, b) -> Primitive.from((int) a >>> (int) b)); // @summary: Shifts the bits in the first number right by the value of the second number, calculated using 32-bit unsigned integers.
+		makeNumberOperator(OperatorConstants.OPERATOR_BIT_XOR, arithmetic((a, b) -> (int) a ^ (int) b)); // @summary: Performs a bitwise XOR over the two numbers, calculated using 32-bit signed integers.
+		makeNumberOperator(OperatorConstants.OPERATOR_BIT_AND, arithmetic((a, b) -> (int) a & (int) b)); // @summary: Performs a bitwise AND over the two numbers, calculated using 32-bit signed integers.
+		makeNumberOperator(OperatorConstants.OPERATOR_BIT_OR, arithmetic((a, b) -> (int) a | (int) b)); // @summary: Performs a bitwise OR over the two numbers, calculated using 32-bit signed integers.
+		makeNumberOperator(OperatorConstants.OPERATOR_BIT_SHL, arithmetic((a, b) -> (int) a << (int) b)); // @summary: Shifts the bits in the first number left by the value of the second number, calculated using 32-bit signed integers.
+		makeNumberOperator(OperatorConstants.OPERATOR_BIT_SHR, arithmetic((a, b) -> (int) a >> (int) b)); // @summary: Shifts the bits in the first number right by the value of the second number, calculated using 32-bit signed integers.
+		makeNumberOperator(OperatorConstants.OPERATOR_BIT_SHR_UNSIGNED, arithmetic((a, b) -> (int) a >>> (int) b)); // @summary: Shifts the bits in the first number right by the value of the second number, calculated using 32-bit unsigned integers.
 	}
 
 	private class RangeList extends AbstractList<ManagedValue> implements RandomAccess {
@@ -146,30 +183,310 @@ public class Realm {
 		}
 	}
 
-	public final Scope globalScope = new Scope(null, this);
+	public final Scope globalScope;
+
+	/** Realm this realm was forked from, see {@link #fork()}. */
+	private final Realm template;
+	private volatile boolean frozen = false;
+	/** Set if functions of this snapshot capture variables outside the global scope, see {@link #isModified()}. */
+	private boolean sharedClosures = false;
+	/** Tables of the standard library created by the fork and the global variables holding them, see {@link #isModified()}. */
+	private final List<LayeredTable> layers = new ArrayList<>();
+	private final Map<String, ManagedValue> layeredGlobals = new HashMap<>();
+	/** Tables, arrays and maps of this snapshot, which are copied into a fork that accesses them, see {@link #snapshot()}. */
+	private Set<ManagedObject> copiedObjects = Collections.emptySet();
+	/** Names of the global variables holding {@link #copiedObjects}, used by {@link Scope#findVariable}. */
+	Set<String> copiedGlobals = Collections.emptySet();
+	/** Copies of the objects of the templates of this fork, see {@link #importValue}. */
+	private IdentityHashMap<ManagedObject, ManagedObject> imported = null;
+	/** Initial elements of imported arrays and entries of imported maps, see {@link #isModified()}. */
+	private final IdentityHashMap<ManagedObject, Object> importedContents = new IdentityHashMap<>();
+
+	/**
+	 * If enabled, fragments are executed using their {@link OpcodeProgram}
+	 * form instead of iterating the instruction objects. Both produce the same results.
+	 */
+	public boolean useOpcodeEngine = true;
+
+	/**
+	 * If enabled, compiled fragments are optimized using {@link ConstantFolder} and {@link
+	 * BytecodeOptimizer}. Disable to inspect the instructions as they were emitted.
+	 */
+	public boolean optimizeBytecode = true;
+
+	/**
+	 * Number of entries and backward jumps after which a fragment is compiled to a JVM class, see
+	 * {@link CompiledFragment}. Negative values disable compilation. Only used with {@link
+	 * #useOpcodeEngine}.
+	 */
+	public int compilationThreshold = 1000;
+
+	/**
+	 * Number of executions with the same observed type after which an instruction is replaced with
+	 * a form specialized for that type, see {@link bt7s7k7.treeburst.bytecode.TypeFeedback}.
+	 * Negative values disable specialization.
+	 */
+	public int quickeningThreshold = 50;
+
+	/**
+	 * If enabled, script functions invoked by script code are executed in the loop of the caller
+	 * using heap allocated frames, see {@link bt7s7k7.treeburst.bytecode.StacklessInterpreter}. This
+	 * allows deep recursion, but fragments are not executed using their {@link OpcodeProgram} or
+	 * compiled form.
+	 */
+	public boolean stacklessCalls = false;
+
+	/** Maximum number of frames of a single loop, when using {@link #stacklessCalls}. */
+	public int frameLimit = 1_000_000;
+
+	/**
+	 * Copies of fragments owned by other realms, executed by this realm, see {@link
+	 * ProgramFragment#getInstance}. Entries are removed when the original fragment is no longer used.
+	 */
+	public final Map<ProgramFragment, ProgramFragment> fragmentInstances = new WeakHashMap<>();
+
+	/** Executes scripts as tasks that can wait for {@link AsyncNativeFunction} operations. */
+	public final Scheduler scheduler = new Scheduler(this);
+
+	/** Estimated size of an object without its elements or characters, used for allocation accounting. */
+	public static final long OBJECT_SIZE = 32;
+	/** Estimated size of an element of an array. */
+	public static final long ELEMENT_SIZE = 8;
+	/** Estimated size of an entry of a map or a property of a table. */
+	public static final long ENTRY_SIZE = 48;
+	/** Estimated size of a character of a string. */
+	public static final long CHARACTER_SIZE = 2;
+
+	/**
+	 * Maximum number of bytes, that can be allocated by scripts, see {@link #allocate}. Sizes are
+	 * estimated and are not subtracted when objects become unreachable, so the limit works as a
+	 * quota, which can be restored by {@link #resetAllocatedBytes}.
+	 */
+	public long allocationLimit = Long.MAX_VALUE;
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	/**
+	 * Records an allocation of the provided number of bytes, before it is performed. If the {@link
+	 * #allocationLimit} would be exceeded, sets an exception and returns {@code false}, then the
+	 * allocation must not be performed.
+	 */
+	public boolean allocate(long bytes, ExpressionResult result) {
+		while (true) {
+			var allocated = this.allocatedBytes.get();
+
+			if (bytes > this.allocationLimit - allocated) {
+				result.setException(new Diagnostic("Exceeded the allocation limit of " + this.allocationLimit + " bytes", Position.INTRINSIC));
+				return false;
+			}
+
+			if (this.allocatedBytes.compareAndSet(allocated, allocated + bytes)) return true;
+		}
+	}
+
+	/** Records an allocation of a string with the provided length, see {@link #allocate}. */
+	public boolean allocateString(long length, ExpressionResult result) {
+		return this.allocate(OBJECT_SIZE + getSize(length, CHARACTER_SIZE), result);
+	}
+
+	/** Records an allocation of characters added to a string that is being built, see {@link #allocate}. */
+	public boolean allocateCharacters(long count, ExpressionResult result) {
+		return this.allocate(getSize(count, CHARACTER_SIZE), result);
+	}
+
+	/** Records an allocation of an array with the provided length, see {@link #allocate}. */
+	public boolean allocateArray(long length, ExpressionResult result) {
+		return this.allocate(OBJECT_SIZE + getSize(length, ELEMENT_SIZE), result);
+	}
+
+	/** Records an allocation of elements added to an existing array, see {@link #allocate}. */
+	public boolean allocateElements(long count, ExpressionResult result) {
+		return this.allocate(getSize(count, ELEMENT_SIZE), result);
+	}
+
+	/** Records an allocation of entries of a map or properties of a table, see {@link #allocate}. */
+	public boolean allocateEntries(long count, ExpressionResult result) {
+		return this.allocate(getSize(count, ENTRY_SIZE), result);
+	}
+
+	/** Returns the number of bytes allocated by scripts, this method may be called from any thread. */
+	public long getAllocatedBytes() {
+		return this.allocatedBytes.get();
+	}
+
+	public void resetAllocatedBytes() {
+		this.allocatedBytes.set(0);
+	}
+
+	private static long getSize(long count, long unit) {
+		if (count <= 0) return 0;
+		// Saturate instead of overflowing, the limit is exceeded anyway
+		if (count > (Long.MAX_VALUE - OBJECT_SIZE) / unit) return Long.MAX_VALUE - OBJECT_SIZE;
+		return count * unit;
+	}
 
-	public final ManagedTable TablePrototype = new ManagedTable(null);
-	public final ManagedTable Table = this.declareGlobal("Table", new TableApi(this.TablePrototype, this));
+	private final HashMap<String, ManagedValue> numberOperators;
 
-	public final ManagedTable FunctionPrototype = new ManagedTable(this.TablePrototype); /// @symbol:Function.prototype
-	public final ManagedTable Function = this.declareGlobal("Function", new ManagedTable(this.TablePrototype));
+	/**
+	 * Returns {@code true} if the number operator with the provided name was not overridden, so it
+	 * can be evaluated without invoking it.
+	 */
+	public boolean isBuiltinNumberOperator(String name) {
+		var operator = this.numberOperators.get(name);
+		return operator != null && PropertyCache.findStableProperty(this.NumberPrototype, name) == operator;
+	}
 
-	public final ManagedTable NumberPrototype = new ManagedTable(this.TablePrototype); /// @symbol:Number.prototype
-	public final ManagedTable Number = this.declareGlobal("Number", new ManagedTable(this.TablePrototype)); // @summary: Represents a real number.
+	private final Set<ManagedValue> builtinOperators;
 
-	public final ManagedTable StringPrototype = new ManagedTable(this.TablePrototype); /// @symbol:String.prototype
-	public final ManagedTable String = this.declareGlobal("String", new ManagedTable(this.TablePrototype)); // @summary: Represents a string of characters.
+	/**
+	 * Returns a number that changes every time a property of the number, string or boolean
+	 * prototype or their prototypes is declared or modified, see {@link ManagedTable#getChainVersion}.
+	 */
+	public long getPrimitiveOperatorVersion() {
+		return ManagedTable.getChainVersion(this.NumberPrototype) + ManagedTable.getChainVersion(this.StringPrototype) + ManagedTable.getChainVersion(this.BooleanPrototype);
+	}
 
-	public final ManagedTable BooleanPrototype = new ManagedTable(this.TablePrototype); /// @symbol:Boolean.prototype
-	public final ManagedTable Boolean = this.declareGlobal("Boolean", new ManagedTable(this.TablePrototype)); // @summary: Represents a truth value of either `true` or `false`.
+	/**
+	 * Returns the operator of a number, string or boolean value, if it is still the one defined by
+	 * the realm, see {@link ConstantFolder}.
+	 */
+	public ManagedValue getBuiltinOperator(ManagedValue receiver, String name) {
+		ManagedTable prototype;
+		if (receiver instanceof Primitive.Number) {
+			prototype = this.NumberPrototype;
+		} else if (receiver instanceof Primitive.String) {
+			prototype = this.StringPrototype;
+		} else if (receiver instanceof Primitive.Boolean) {
+			prototype = this.BooleanPrototype;
+		} else {
+			return null;
+		}
 
-	public final ManagedTable ArrayPrototype = new ArrayPrototype(this.TablePrototype, this);
-	public final ManagedTable Array = this.declareGlobal("Array", new ManagedTable(this.TablePrototype));
+		var operator = PropertyCache.findStableProperty(prototype, name);
+		if (operator == null || !this.builtinOperators.contains(operator)) return null;
+		return operator;
+	}
 
-	public final ManagedTable MapPrototype = new MapPrototype(this.TablePrototype, this);
-	public final ManagedTable Map = this.declareGlobal("Map", new ManagedTable(this.TablePrototype));
+	private final Set<ManagedValue> standardMacros;
+
+	/** Returns {@code true} if the function is a macro declared by the standard library. */
+	public boolean isStandardMacro(ManagedValue function) {
+		return this.standardMacros.contains(function);
+	}
+
+	/**
+	 * Returns a key of the state of this realm that affects the instructions compiled for a
+	 * fragment, which is {@link #optimizeBytecode} and the names of the macros declared as global
+	 * variables or in {@code Table.prototype}, together with whether they are the macros of the
+	 * standard library. Executing any other macro makes the instructions depend on the scope, see
+	 * {@link BytecodeEmitter#scopeDependent}. Realms with the same state have the same key, even in
+	 * different processes, so the key can be stored with compiled code, see {@link
+	 * bt7s7k7.treeburst.bytecode.BytecodeWriter}. The key is never {@code 0}. The key is cached
+	 * and only computed again after a macro is declared or assigned.
+	 */
+	public long getCompilationKey() {
+		if (this.compilationKey == 0 || this.compilationKeyOptimized != this.optimizeBytecode || !this.isCompilationKeyCurrent()) {
+			this.compilationKey = this.computeCompilationKey();
+		}
+
+		return this.compilationKey;
+	}
+
+	// State the cached compilation key was computed from, see isCompilationKeyCurrent()
+	private long compilationKey = 0;
+	private boolean compilationKeyOptimized;
+	private Variable[] compilationKeyVariables;
+	private ManagedValue[] compilationKeyValues;
+	private long compilationKeyTableVersion;
+	private Map<String, Boolean> compilationKeyTableMacros;
+
+	/** Called when a global variable starting with {@code @} is declared, so the compilation key is computed again. */
+	void invalidateCompilationKey() {
+		this.compilationKey = 0;
+	}
+
+	private boolean isCompilationKeyCurrent() {
+		for (int i = 0; i < this.compilationKeyVariables.length; i++) {
+			if (this.compilationKeyVariables[i].value != this.compilationKeyValues[i]) return false;
+		}
+
+		var version = ManagedTable.getChainVersion(this.TablePrototype);
+		if (version == this.compilationKeyTableVersion) return true;
+
+		// Modified properties of Table.prototype that are not macros do not change the key
+		if (!this.getTableMacros().equals(this.compilationKeyTableMacros)) return false;
+		this.compilationKeyTableVersion = version;
+		return true;
+	}
+
+	private Map<String, Boolean> getTableMacros() {
+		var macros = new TreeMap<String, Boolean>();
+
+		for (var name : this.TablePrototype.getProperties().keySet()) {
+			if (!name.startsWith("@")) continue;
+			macros.put("." + name, this.isStandardMacro(this.TablePrototype.getOwnProperty(name)));
+		}
+
+		return macros;
+	}
+
+	private long computeCompilationKey() {
+		var macros = new TreeMap<String, Boolean>();
+		var variables = new ArrayList<Variable>();
+
+		for (var scope = this.globalScope; scope != null; scope = scope.parent) {
+			if (scope.variables == null) continue;
+
+			for (var kv : scope.variables.entrySet()) {
+				if (!kv.getKey().startsWith("@") || macros.containsKey(kv.getKey())) continue;
+				macros.put(kv.getKey(), this.isStandardMacro(kv.getValue().value));
+				variables.add(kv.getValue());
+			}
+		}
+
+		this.compilationKeyOptimized = this.optimizeBytecode;
+		this.compilationKeyVariables = variables.toArray(Variable[]::new);
+		this.compilationKeyValues = variables.stream().map(variable -> variable.value).toArray(ManagedValue[]::new);
+		this.compilationKeyTableVersion = ManagedTable.getChainVersion(this.TablePrototype);
+		this.compilationKeyTableMacros = this.getTableMacros();
+		macros.putAll(this.compilationKeyTableMacros);
+
+		var description = new StringBuilder(this.optimizeBytecode ? "optimized" : "");
+		for (var kv : macros.entrySet()) {
+			description.append(";").append(kv.getKey()).append(kv.getValue() ? "" : "*");
+		}
+
+		// FNV-1a, which unlike hashCode() has 64 bits
+		var key = 0xcbf29ce484222325L;
+		for (int i = 0; i < description.length(); i++) {
+			key ^= description.charAt(i);
+			key *= 0x100000001b3L;
+		}
+
+		return key == 0 ? 1 : key;
+	}
+
+	public final ManagedTable TablePrototype;
+	public final ManagedTable Table;
+	public final ManagedTable FunctionPrototype;
+	public final ManagedTable Function;
+	public final ManagedTable NumberPrototype;
+	public final ManagedTable Number;
+	public final ManagedTable StringPrototype;
+	public final ManagedTable String;
+	public final ManagedTable BooleanPrototype;
+	public final ManagedTable Boolean;
+	public final ManagedTable ArrayPrototype;
+	public final ManagedTable Array;
+	public final ManagedTable MapPrototype;
+	public final ManagedTable Map;
+	public final ManagedTable GeneratorPrototype;
+	public final ManagedTable Generator;
 
 	public <T extends ManagedValue> T declareGlobal(String name, T value) {
+		if (this.frozen) {
+			throw new IllegalStateException("Cannot declare global \"" + name + "\" in a snapshot");
+		}
+
 		var variable = this.globalScope.declareVariable(name);
 		if (variable == null) {
 			throw new IllegalArgumentException("Duplicate declaration of global \"" + name + "\"");
@@ -211,27 +528,339 @@ public class Realm {
 		return output.value;
 	}
 
+	/**
+	 * Freezes this realm, so it can be used as a template of forks, see {@link #fork()}. This must
+	 * be done explicitly, after all globals needed by the forks are declared. All tables, arrays and
+	 * maps reachable from global variables are initialized and frozen, so they cannot be modified
+	 * by any realm. A fork receives its own copy of the objects reachable from a global variable
+	 * when it first accesses the variable, so scripts can modify them the same as in a realm that
+	 * is not a fork. Objects that were frozen before the snapshot and objects captured by functions
+	 * are shared by all forks instead, so tables the host froze explicitly stay immutable and are
+	 * not copied. Global variables are copied into a fork when it assigns them. Scripts should not
+	 * be evaluated in a frozen realm directly. Returns this realm.
+	 */
+	public synchronized Realm snapshot() {
+		if (this.frozen) return this;
+
+		var visited = Collections.newSetFromMap(new IdentityHashMap<ManagedValue, Boolean>());
+		var pending = new ArrayDeque<ManagedValue>();
+		var shared = new ArrayDeque<ManagedValue>();
+
+		if (this.globalScope.variables != null) {
+			for (var variable : this.globalScope.variables.values()) {
+				pending.add(variable.value);
+			}
+		}
+
+		while (!pending.isEmpty()) {
+			if (!(pending.pop() instanceof ManagedObject object) || !visited.add(object)) continue;
+			if (object.prototype != null) pending.add(object.prototype);
+
+			if (object instanceof ManagedTable table) {
+				// Lazy tables are initialized when their shape is requested, this must be done
+				// before freezing, since the initialization declares properties
+				table.getShape();
+				if (table.isFrozen()) shared.add(table);
+				pending.addAll(table.getProperties().values());
+				table.freeze();
+			} else if (object instanceof ManagedArray array) {
+				if (array.isFrozen()) shared.add(array);
+				pending.addAll(array.getElementsReadOnly());
+				array.freeze();
+			} else if (object instanceof ManagedMap map) {
+				if (map.isFrozen()) shared.add(map);
+				pending.addAll(map.entries.keySet());
+				pending.addAll(map.entries.values());
+				map.freeze();
+			} else if (object instanceof ScriptFunction function && function.scope != this.globalScope) {
+				// Captured variables can be assigned by every fork, the objects they hold are still frozen
+				this.sharedClosures = true;
+
+				for (var scope = function.scope; scope != null && scope != this.globalScope; scope = scope.parent) {
+					if (scope.variables != null) {
+						for (var variable : scope.variables.values()) {
+							pending.add(variable.value);
+							shared.add(variable.value);
+						}
+					}
+
+					for (var variable : scope.slots) {
+						if (variable == null) continue;
+						pending.add(variable.value);
+						shared.add(variable.value);
+					}
+				}
+			}
+		}
+
+		// Objects reachable from shared objects are shared too, the standard library is replaced by the tables of the fork
+		var sharedObjects = Collections.newSetFromMap(new IdentityHashMap<ManagedValue, Boolean>());
+		for (var realm = this; realm != null; realm = realm.template) {
+			sharedObjects.addAll(realm.getStandardTables());
+		}
+
+		while (!shared.isEmpty()) {
+			if (!(shared.pop() instanceof ManagedObject object) || !sharedObjects.add(object)) continue;
+			if (object.prototype != null) shared.add(object.prototype);
+
+			if (object instanceof ManagedTable table) {
+				shared.addAll(table.getProperties().values());
+			} else if (object instanceof ManagedArray array) {
+				shared.addAll(array.getElementsReadOnly());
+			} else if (object instanceof ManagedMap map) {
+				shared.addAll(map.entries.keySet());
+				shared.addAll(map.entries.values());
+			}
+		}
+
+		var copiedObjects = Collections.newSetFromMap(new IdentityHashMap<ManagedObject, Boolean>());
+		for (var value : visited) {
+			if (value instanceof ManagedObject object && !sharedObjects.contains(object) && isCopyable(object)) copiedObjects.add(object);
+		}
+
+		var copiedGlobals = new HashSet<String>();
+		if (this.globalScope.variables != null) {
+			for (var kv : this.globalScope.variables.entrySet()) {
+				if (kv.getValue().value instanceof ManagedObject object && copiedObjects.contains(object)) copiedGlobals.add(kv.getKey());
+			}
+		}
+
+		this.copiedObjects = copiedObjects;
+		this.copiedGlobals = copiedGlobals;
+		this.globalScope.freeze();
+		this.frozen = true;
+		return this;
+	}
+
+	/** Tables and arrays of scripts can be copied, native tables like prototypes of native handles are shared. */
+	private static boolean isCopyable(ManagedObject object) {
+		return object.getClass() == ManagedTable.class || object instanceof LayeredTable || object instanceof ManagedArray.ListBackedArray || object.getClass() == ManagedMap.class;
+	}
+
+	private List<ManagedTable> getStandardTables() {
+		return List.of(this.TablePrototype, this.Table, this.FunctionPrototype, this.Function, this.NumberPrototype, this.Number, this.StringPrototype, this.String,
+				this.BooleanPrototype, this.Boolean, this.ArrayPrototype, this.Array, this.MapPrototype, this.Map, this.GeneratorPrototype, this.Generator);
+	}
+
+	/**
+	 * Returns the value of a global variable of a template, as seen by this fork. Tables, arrays and
+	 * maps of the templates are copied when they are first accessed, including the objects they
+	 * reference, so the fork can modify them. The copies of tables share the storage of the
+	 * originals until they are modified, see {@link LayeredTable}, and arrays are copied on write.
+	 */
+	ManagedValue importValue(ManagedValue value) {
+		if (!(value instanceof ManagedObject object)) return value;
+
+		if (this.imported == null) {
+			this.imported = new IdentityHashMap<>();
+			var tables = this.getStandardTables();
+
+			for (var realm = this.template; realm != null; realm = realm.template) {
+				var templateTables = realm.getStandardTables();
+				for (int i = 0; i < tables.size(); i++) {
+					this.imported.put(templateTables.get(i), tables.get(i));
+				}
+			}
+		}
+
+		var existing = this.imported.get(object);
+		if (existing != null) return existing;
+
+		var copied = false;
+		for (var realm = this.template; realm != null && !copied; realm = realm.template) {
+			copied = realm.copiedObjects.contains(object);
+		}
+		if (!copied) return value;
+
+		var prototype = object.prototype == null ? null : (ManagedObject) this.importValue(object.prototype);
+
+		if (object instanceof ManagedTable table) {
+			var copy = this.layer(prototype, table);
+			this.imported.put(table, copy);
+
+			for (var kv : table.getProperties().entrySet()) {
+				var property = this.importValue(kv.getValue());
+				if (property != kv.getValue()) copy.setOwnProperty(kv.getKey(), property);
+			}
+
+			copy.modified = false;
+			return copy;
+		}
+
+		if (object instanceof ManagedArray.ListBackedArray array) {
+			var elements = array.getElementsReadOnly();
+			var copy = new ManagedArray.ListBackedArray(prototype, elements, true);
+			this.imported.put(array, copy);
+
+			for (int i = 0; i < elements.size(); i++) {
+				var element = this.importValue(elements.get(i));
+				if (element == elements.get(i)) continue;
+				if (copy.elements == elements) copy.elements = new ArrayList<>(elements);
+				copy.elements.set(i, element);
+			}
+
+			this.importedContents.put(copy, copy.elements);
+			return copy;
+		}
+
+		var map = (ManagedMap) object;
+		var copy = ManagedMap.empty(prototype);
+		this.imported.put(map, copy);
+
+		for (var kv : map.entries.entrySet()) {
+			copy.entries.put(this.importValue(kv.getKey()), this.importValue(kv.getValue()));
+		}
+
+		this.importedContents.put(copy, new HashMap<>(copy.entries));
+		return copy;
+	}
+
+	/** Records a global variable of this fork holding a copy of a global of a template, see {@link #importValue}. */
+	ManagedValue importGlobal(String name, ManagedValue value) {
+		var copy = this.importValue(value);
+		this.layeredGlobals.put(name, copy);
+		return copy;
+	}
+
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	/**
+	 * Creates a realm that shares the standard library, native functions and global variables of
+	 * this realm, instead of creating them again. This realm must be frozen first, see {@link
+	 * #snapshot()}. Global variables declared or assigned by the fork and the copies of tables,
+	 * arrays and maps of this realm it received are only visible in the fork, which also has its
+	 * own {@link #scheduler} and allocation quota. The configuration is copied from this realm.
+	 *
+	 * The fork has its own {@code Table}, {@code Array} and other tables of the standard library
+	 * and their prototypes, which inherit all properties from the tables of this realm. So scripts
+	 * can override methods of the standard library without affecting other realms. An override of
+	 * {@code Table.prototype} is only inherited by tables created in the fork, not by the other
+	 * prototypes of the standard library.
+	 */
+	public Realm fork() {
+		if (!this.frozen) {
+			throw new IllegalStateException("Realm must be frozen by snapshot() before it is forked");
+		}
+
+		return new Realm(this);
+	}
+
+	private static class SharedStandardLibrary {
+		public static final Realm INSTANCE = new Realm().snapshot();
+	}
+
+	/**
+	 * Returns a frozen realm containing only the standard library, which is created once per
+	 * process and can be used from any thread. A realm created by {@code Realm.shared().fork()}
+	 * shares its native functions and tables, so it only allocates its own global scope and the
+	 * tables holding its overrides, see {@link #fork()}.
+	 */
+	public static Realm shared() {
+		return SharedStandardLibrary.INSTANCE;
+	}
+
+	/** Returns the realm this realm was forked from or {@code null}. */
+	public Realm getTemplate() {
+		return this.template;
+	}
+
+	/**
+	 * Returns {@code true} if this fork may have been modified by scripts, so it is not the same
+	 * as a new fork of its template. This is the case if it declares or assigns global variables,
+	 * properties of the tables of the standard library or the copies of tables, arrays and maps of
+	 * the template, which are the only containers owned by the fork. Objects shared with the
+	 * template are frozen by {@link #snapshot()}, so scripts cannot store objects in them. Native handles and functions declared by the host are
+	 * shared by all forks, so any state they keep is visible to new forks too, and is not
+	 * considered. Realms that are not forks are always considered modified, as are forks of a
+	 * template containing functions that capture variables outside of the global scope, since
+	 * assignments to them cannot be observed.
+	 */
+	public boolean isModified() {
+		if (this.template == null || this.template.sharedClosures) return true;
+
+		for (var layer : this.layers) {
+			if (layer.modified) return true;
+		}
+
+		for (var kv : this.importedContents.entrySet()) {
+			if (kv.getKey() instanceof ManagedArray.ListBackedArray array) {
+				if (array.elements != kv.getValue()) return true;
+			} else if (!((ManagedMap) kv.getKey()).entries.equals(kv.getValue())) {
+				return true;
+			}
+		}
+
+		var variables = this.globalScope.variables;
+		if (variables.size() != this.layeredGlobals.size()) return true;
+
+		for (var kv : this.layeredGlobals.entrySet()) {
+			var variable = variables.get(kv.getKey());
+			if (variable == null || variable.value != kv.getValue()) return true;
+		}
+
+		return false;
+	}
+
 	public Realm() {
 		super();
 
+		this.template = null;
+		this.globalScope = new Scope(null, this);
+		this.numberOperators = new HashMap<>();
+		this.builtinOperators = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		this.TablePrototype = new ManagedTable(null);
+		this.Table = this.declareGlobal("Table", new TableApi(this.TablePrototype, this));
+
+		this.FunctionPrototype = new ManagedTable(this.TablePrototype); /// @symbol:Function.prototype
+		this.Function = this.declareGlobal("Function", new ManagedTable(this.TablePrototype));
+
+		this.NumberPrototype = new ManagedTable(this.TablePrototype); /// @symbol:Number.prototype
+		this.Number = this.declareGlobal("Number", new ManagedTable(this.TablePrototype)); // @summary: Represents a real number.
+
+		this.StringPrototype = new ManagedTable(this.TablePrototype); /// @symbol:String.prototype
+		this.String = this.declareGlobal("String", new ManagedTable(this.TablePrototype)); // @summary: Represents a string of characters.
+
+		this.BooleanPrototype = new ManagedTable(this.TablePrototype); /// @symbol:Boolean.prototype
+		this.Boolean = this.declareGlobal("Boolean", new ManagedTable(this.TablePrototype)); // @summary: Represents a truth value of either `true` or `false`.
+
+		this.ArrayPrototype = new ArrayPrototype(this.TablePrototype, this);
+		this.Array = this.declareGlobal("Array", new ManagedTable(this.TablePrototype));
+
+		this.MapPrototype = new MapPrototype(this.TablePrototype, this);
+		this.Map = this.declareGlobal("Map", new ManagedTable(this.TablePrototype));
+
+		this.GeneratorPrototype = new GeneratorPrototype(this.TablePrototype, this);
+		this.Generator = this.declareGlobal("Generator", new ManagedTable(this.TablePrototype));
+
 		this.declareGlobal("true", Primitive.TRUE); // @type: Boolean, @summary: Constant value of `true`
 		this.declareGlobal("false", Primitive.FALSE); // @type: Boolean, @summary: Constant value of `false`
 		this.declareGlobal("null", Primitive.NULL); // @summary: Object representing an empty value
 		this.declareGlobal("void", Primitive.VOID); // @summary: Object representing a missing or non-existent value.
 
+		// Primitive values do not reference their prototypes, so they are not marked automatically
+		this.NumberPrototype.markAsPrototype();
+		this.StringPrototype.markAsPrototype();
+		this.BooleanPrototype.markAsPrototype();
+
 		if (!this.Function.declareProperty("prototype", this.FunctionPrototype)) throw new IllegalStateException();
 		if (!this.Number.declareProperty("prototype", this.NumberPrototype)) throw new IllegalStateException();
 		if (!this.String.declareProperty("prototype", this.StringPrototype)) throw new IllegalStateException();
 		if (!this.Boolean.declareProperty("prototype", this.BooleanPrototype)) throw new IllegalStateException();
 		if (!this.Array.declareProperty("prototype", this.ArrayPrototype)) throw new IllegalStateException();
 		if (!this.Map.declareProperty("prototype", this.MapPrototype)) throw new IllegalStateException();
+		if (!this.Generator.declareProperty("prototype", this.GeneratorPrototype)) throw new IllegalStateException();
 
 		for (var kv : OPERATOR_FALLBACKS) {
 			this.TablePrototype.declareProperty(kv.getKey(), NativeFunction.simple(this, BINARY_OPERATOR_PARAMETERS, kv.getValue()));
 		}
 
 		for (var kv : NUMERIC_OPERATORS) {
-			this.NumberPrototype.declareProperty(kv.getKey(), NativeFunction.simple(this, BINARY_OPERATOR_PARAMETERS, kv.getValue()));
+			var operator = NativeFunction.simple(this, BINARY_OPERATOR_PARAMETERS, kv.getValue());
+			this.NumberPrototype.declareProperty(kv.getKey(), operator);
+			this.numberOperators.put(kv.getKey(), operator);
 		}
 
 		this.NumberPrototype.declareProperty(OperatorConstants.OPERATOR_NEG, NativeFunction.simple(this, List.of("this"), List.of(Primitive.Number.class), (args, scope, result) -> {
@@ -297,6 +926,7 @@ public class Realm {
 			var left = operands.left().getStringValue();
 			var right = operands.right().getStringValue();
 
+			if (!scope.realm.allocateString((long) left.length() + right.length(), result)) return;
 			result.value = Primitive.from(left + right);
 		}));
 
@@ -318,6 +948,7 @@ public class Realm {
 
 			var left = operands.left().getStringValue();
 			var right = (int) operands.right().getNumberValue();
+			if (!scope.realm.allocateString((long) left.length() * right, result)) return;
 			var output = new StringBuilder(left.length() * right);
 
 			for (int i = 0; i < right; i++) {
@@ -341,6 +972,7 @@ public class Realm {
 				return;
 			}
 
+			if (!scope.realm.allocateString((long) (length - self.length()) * fill.length() + self.length(), result)) return;
 			var builder = new StringBuilder(length);
 			var fillCount = length - self.length();
 
@@ -367,6 +999,7 @@ public class Realm {
 				return;
 			}
 
+			if (!scope.realm.allocateString((long) (length - self.length()) * fill.length() + self.length(), result)) return;
 			var builder = new StringBuilder(length);
 			builder.append(self);
 
@@ -436,6 +1069,7 @@ public class Realm {
 			to = self.normalizeLimit(to, result);
 			if (result.label != null) return;
 
+			if (!scope.realm.allocateString(to - from, result)) return;
 			result.value = Primitive.from(self.value.substring(from, to));
 		}));
 
@@ -514,20 +1148,6 @@ public class Realm {
 			result.value = Primitive.VOID;
 		}));
 
-		var COALESCE_INSTRUCTION = new BytecodeInstruction() {
-			@Override
-			public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
-				var value = values.peek();
-				values.push(value == Primitive.NULL || value == Primitive.VOID ? Primitive.TRUE : Primitive.FALSE);
-				return STATUS_NORMAL;
-			}
-
-			@Override
-			public java.lang.String toString() {
-				return "Coalesce";
-			}
-		};
-
 		this.TablePrototype.declareProperty(OperatorConstants.OPERATOR_COALESCE, NativeFunction.simple(this, List.of("this", "other", "@"), List.of(Expression.class, Expression.class, BytecodeEmitter.class), (args, scope, result) -> {
 			// @summary: If this object is not {@link null} or {@link void}, it is returned, otherwise the `other` expression is evaluated and the result retuned.
 			var a = args.get(0).getNativeValue(Expression.class);
@@ -541,7 +1161,7 @@ public class Realm {
 
 			var label = emitter.getNextLabel() + "_not_null_or_void";
 
-			emitter.emit(COALESCE_INSTRUCTION);
+			emitter.emit(BytecodeInstruction.Coalesce.VALUE);
 			emitter.emit(new BytecodeInstruction.Conditional(label, false, position));
 			emitter.emit(BytecodeInstruction.Discard.VALUE);
 			emitter.compile(b, result);
@@ -551,20 +1171,6 @@ public class Realm {
 			result.value = Primitive.VOID;
 		}));
 
-		var ELSE_INSTRUCTION = new BytecodeInstruction() {
-			@Override
-			public int executeInstruction(ValueStack values, ArgumentStack arguments, Scope scope, ExpressionResult result) {
-				var value = values.peek();
-				values.push(value == Primitive.VOID ? Primitive.TRUE : Primitive.FALSE);
-				return STATUS_NORMAL;
-			}
-
-			@Override
-			public java.lang.String toString() {
-				return "Else";
-			}
-		};
-
 		this.TablePrototype.declareProperty(OperatorConstants.OPERATOR_ELSE, NativeFunction.simple(this, List.of("this", "other", "@"), List.of(Expression.class, Expression.class, BytecodeEmitter.class), (args, scope, result) -> {
 			// @summary: If this object is not {@link void}, it is returned, otherwise the `other` expression is evaluated and the result retuned.
 			var a = args.get(0).getNativeValue(Expression.class);
@@ -578,7 +1184,7 @@ public class Realm {
 
 			var label = emitter.getNextLabel() + "_not_void";
 
-			emitter.emit(ELSE_INSTRUCTION);
+			emitter.emit(BytecodeInstruction.Else.VALUE);
 			emitter.emit(new BytecodeInstruction.Conditional(label, false, position));
 			emitter.emit(BytecodeInstruction.Discard.VALUE);
 			emitter.compile(b, result);
@@ -616,7 +1222,7 @@ public class Realm {
 			if (self instanceof ManagedTable table && depth > 0) {
 				var dump = ManagedValueUtils.dumpCollection(
 						table.getNameOrInheritedName(), false, "(", ")",
-						table.properties.entrySet(), null, java.util.Map.Entry::getKey, java.util.Map.Entry::getValue, (int) depth - 1, scope, result);
+						table.getProperties().entrySet(), null, java.util.Map.Entry::getKey, java.util.Map.Entry::getValue, (int) depth - 1, scope, result);
 				if (dump == null) return;
 
 				result.value = Primitive.from(dump);
@@ -666,7 +1272,7 @@ public class Realm {
 					return;
 				}
 
-				result.value = ManagedArray.fromImmutableList(this.ArrayPrototype, new RangeList(length));
+				result.value = ManagedArray.fromImmutableList(scope.realm.ArrayPrototype, new RangeList(length));
 				return;
 			}
 
@@ -680,7 +1286,7 @@ public class Realm {
 				return;
 			}
 
-			result.value = ManagedArray.fromImmutableList(this.ArrayPrototype, new RangeList(min, max));
+			result.value = ManagedArray.fromImmutableList(scope.realm.ArrayPrototype, new RangeList(min, max));
 		}));
 
 		this.declareGlobal("@if", new NativeFunction(this.FunctionPrototype, Collections.emptyList(), (args, scope, result) -> {
@@ -774,6 +1380,31 @@ public class Realm {
 			result.label = LABEL_RETURN;
 		}));
 
+		this.declareGlobal("generator", NativeFunction.simple(this, List.of("function"), List.of(ManagedFunction.class), (args, scope, result) -> {
+			// @summary[[Returns a function, that when invoked, returns a {@link Generator} for an
+			// invocation of the `function` with the provided arguments. The `function` is not
+			// executed until the generator is resumed.]]
+			var function = args.get(0).cast(ManagedFunction.class);
+
+			result.value = new NativeFunction(scope.realm.FunctionPrototype, function.getParameterNames(), (generatorArgs, generatorScope, generatorResult) -> {
+				generatorResult.value = new NativeHandle(generatorScope.realm.GeneratorPrototype, new Coroutine(function, generatorArgs, generatorScope.realm));
+			});
+		}));
+
+		this.declareGlobal("@yield", NativeFunction.simple(this, List.of("value", "@"), List.of(Expression.class, BytecodeEmitter.class), (args, scope, result) -> {
+			// @summary[[Suspends the current {@link Generator} and yields the value. Returns the
+			// value provided when the generator is resumed. Can only be used in the function of
+			// the generator or in script functions invoked by it.]]
+			var value = args.get(0).getNativeValue(Expression.class);
+			var emitter = args.getLast().getNativeValue(BytecodeEmitter.class);
+
+			emitter.compile(value, result);
+			if (result.label != null) return;
+			emitter.emit(BytecodeInstruction.Yield.VALUE);
+
+			result.value = Primitive.VOID;
+		}));
+
 		this.declareGlobal("goto", NativeFunction.simple(this, List.of("label"), List.of(Primitive.String.class), (args, scope, result) -> {
 			// @summary[[Switches execution to a label with the specified name. This label must be
 			// in a block that is at the same level as this invocation or in a parent block that is
@@ -789,6 +1420,9 @@ public class Realm {
 			var emitter = args.getLast().getNativeValue(BytecodeEmitter.class);
 			var position = emitter.nextPosition;
 
+			// The constant depends on the values of variables during compilation
+			emitter.scopeDependent = true;
+
 			new ProgramFragment(provider).evaluate(scope, result);
 			if (result.label != null) {
 				result.setException(new Diagnostic("While computing constant", position));
@@ -798,5 +1432,73 @@ public class Realm {
 			emitter.emit(result.value);
 			result.value = Primitive.VOID;
 		}));
+
+		for (var prototype : List.of(this.NumberPrototype, this.StringPrototype, this.BooleanPrototype)) {
+			for (var kv : prototype.getProperties().entrySet()) {
+				if (kv.getKey().startsWith("k_")) this.builtinOperators.add(kv.getValue());
+			}
+		}
+
+		this.standardMacros = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		for (var kv : this.globalScope.variables.entrySet()) {
+			if (kv.getKey().startsWith("@")) this.standardMacros.add(kv.getValue().value);
+		}
+
+		for (var kv : this.TablePrototype.getProperties().entrySet()) {
+			if (kv.getKey().startsWith("@")) this.standardMacros.add(kv.getValue());
+		}
+	}
+
+	private LayeredTable layer(ManagedObject prototype, ManagedTable base) {
+		var table = new LayeredTable(prototype, base);
+		this.layers.add(table);
+		return table;
+	}
+
+	private ManagedTable layerGlobal(String name, ManagedTable base, ManagedTable prototype) {
+		var table = this.declareGlobal(name, this.layer(this.TablePrototype, base));
+		table.replacePrototype(prototype);
+		this.layeredGlobals.put(name, table);
+		return table;
+	}
+
+	private Realm(Realm template) {
+		super();
+
+		this.template = template;
+		this.globalScope = new Scope(template.globalScope, this);
+		this.numberOperators = template.numberOperators;
+		this.builtinOperators = template.builtinOperators;
+		this.standardMacros = template.standardMacros;
+
+		this.useOpcodeEngine = template.useOpcodeEngine;
+		this.optimizeBytecode = template.optimizeBytecode;
+		this.compilationThreshold = template.compilationThreshold;
+		this.quickeningThreshold = template.quickeningThreshold;
+		this.stacklessCalls = template.stacklessCalls;
+		this.frameLimit = template.frameLimit;
+		this.allocationLimit = template.allocationLimit;
+
+		this.TablePrototype = this.layer(null, template.TablePrototype);
+		this.Table = this.layerGlobal("Table", template.Table, this.TablePrototype);
+		this.FunctionPrototype = this.layer(this.TablePrototype, template.FunctionPrototype);
+		this.Function = this.layerGlobal("Function", template.Function, this.FunctionPrototype);
+		this.NumberPrototype = this.layer(this.TablePrototype, template.NumberPrototype);
+		this.Number = this.layerGlobal("Number", template.Number, this.NumberPrototype);
+		this.StringPrototype = this.layer(this.TablePrototype, template.StringPrototype);
+		this.String = this.layerGlobal("String", template.String, this.StringPrototype);
+		this.BooleanPrototype = this.layer(this.TablePrototype, template.BooleanPrototype);
+		this.Boolean = this.layerGlobal("Boolean", template.Boolean, this.BooleanPrototype);
+		this.ArrayPrototype = this.layer(this.TablePrototype, template.ArrayPrototype);
+		this.Array = this.layerGlobal("Array", template.Array, this.ArrayPrototype);
+		this.MapPrototype = this.layer(this.TablePrototype, template.MapPrototype);
+		this.Map = this.layerGlobal("Map", template.Map, this.MapPrototype);
+		this.GeneratorPrototype = this.layer(this.TablePrototype, template.GeneratorPrototype);
+		this.Generator = this.layerGlobal("Generator", template.Generator, this.GeneratorPrototype);
+
+		this.NumberPrototype.markAsPrototype();
+		this.StringPrototype.markAsPrototype();
+		this.BooleanPrototype.markAsPrototype();
 	}
 }
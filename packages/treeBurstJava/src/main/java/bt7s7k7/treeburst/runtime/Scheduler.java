@@ -0,0 +1,212 @@
+package bt7s7k7.treeburst.runtime;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bt7s7k7.treeburst.bytecode.Coroutine;
+import bt7s7k7.treeburst.bytecode.ProgramFragment;
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Event loop of a {@link Realm}, which executes scripts as tasks. Each task is a {@link Coroutine},
+ * that is suspended when it invokes an {@link AsyncNativeFunction} and resumed by the loop once the
+ * operation completes, so one thread can keep many scripts in flight. A task that yields is moved
+ * to the end of the queue and resumed with {@code void}. If the {@link #timeSlice} is set, tasks are
+ * also preempted after executing that many instructions and moved to the end of the queue, so long
+ * running scripts cannot prevent other tasks from executing.
+ *
+ * Tasks can be spawned from any thread, but they are only executed by the thread calling {@link
+ * #run} or {@link #runPending}. As an {@link Executor}, the scheduler executes actions on the same
+ * thread, so operations completed by other threads can access the realm, see {@link #execute}.
+ */
+public final class Scheduler implements Executor {
+	private static final Runnable WAKE = () -> {};
+
+	private final Realm realm;
+	private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+	/** Actions submitted by {@link #execute}, they are also executed while the thread of the realm waits in {@link #await}. */
+	private final LinkedBlockingQueue<Runnable> actions = new LinkedBlockingQueue<>();
+	/** Number of tasks that are not finished. */
+	private final AtomicInteger active = new AtomicInteger();
+	private ExecutorService blockingExecutor = null;
+
+	/** Time slice of tasks spawned from functions and fragments, see {@link Coroutine#timeSlice}. */
+	public int timeSlice = 0;
+
+	private record Task(Coroutine coroutine, ExpressionResult result, CompletableFuture<ExpressionResult> completion) {}
+
+	public Scheduler(Realm realm) {
+		this.realm = realm;
+	}
+
+	/**
+	 * Starts a task invoking the function with the arguments. The returned future is completed
+	 * with the result of the invocation, after the task finishes. The {@code result} may be used
+	 * to configure execution limits.
+	 */
+	public CompletableFuture<ExpressionResult> spawn(ManagedFunction function, List<ManagedValue> arguments, ExpressionResult result) {
+		var coroutine = new Coroutine(function, arguments, this.realm);
+		coroutine.timeSlice = this.timeSlice;
+		return this.spawn(coroutine, result);
+	}
+
+	public CompletableFuture<ExpressionResult> spawn(ManagedFunction function, List<ManagedValue> arguments) {
+		return this.spawn(function, arguments, new ExpressionResult());
+	}
+
+	/** Starts a task evaluating the fragment in the scope, see {@link #spawn(ManagedFunction, List, ExpressionResult)}. */
+	public CompletableFuture<ExpressionResult> spawn(ProgramFragment fragment, Scope scope, ExpressionResult result) {
+		var coroutine = new Coroutine(fragment, scope);
+		coroutine.timeSlice = this.timeSlice;
+		return this.spawn(coroutine, result);
+	}
+
+	/** Starts a task resuming the coroutine, which must not be started yet. */
+	public CompletableFuture<ExpressionResult> spawn(Coroutine coroutine, ExpressionResult result) {
+		var task = new Task(coroutine, result, new CompletableFuture<>());
+		this.active.incrementAndGet();
+		this.queue.add(() -> this.step(task, Primitive.VOID, null));
+		return task.completion;
+	}
+
+	/** Runs the callable on a virtual thread, it must not access the realm. */
+	public CompletableFuture<ManagedValue> runBlocking(Callable<ManagedValue> callable) {
+		ExecutorService executor;
+		synchronized (this) {
+			if (this.blockingExecutor == null) this.blockingExecutor = Executors.newVirtualThreadPerTaskExecutor();
+			executor = this.blockingExecutor;
+		}
+
+		var future = new CompletableFuture<ManagedValue>();
+		executor.execute(() -> {
+			try {
+				future.complete(callable.call());
+			} catch (Throwable error) {
+				future.completeExceptionally(error);
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Executes the action on the thread of the realm, before the next task is resumed by {@link
+	 * #run} or {@link #runPending}, or while the thread waits for an operation in {@link #await}.
+	 * Can be called from any thread.
+	 */
+	@Override
+	public void execute(Runnable action) {
+		this.actions.add(action);
+		this.queue.add(this::runActions);
+	}
+
+	/**
+	 * Waits until the future is completed on the thread of the realm and returns its result in
+	 * the same way as {@link CompletableFuture#join()}. Actions submitted by {@link #execute} are
+	 * executed while waiting, so operations completed through the scheduler finish even if the
+	 * thread is not running tasks.
+	 */
+	public <T> T await(CompletableFuture<T> future) {
+		if (!future.isDone()) {
+			future.whenComplete((value, error) -> this.actions.add(WAKE));
+
+			try {
+				while (!future.isDone()) {
+					this.actions.take().run();
+				}
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		return future.join();
+	}
+
+	private void runActions() {
+		Runnable action;
+		while ((action = this.actions.poll()) != null) {
+			action.run();
+		}
+	}
+
+	/** Returns the number of tasks that are not finished. */
+	public int getActiveTasks() {
+		return this.active.get();
+	}
+
+	/** Executes tasks on the current thread, until all of them are finished. */
+	public void run() throws InterruptedException {
+		while (this.active.get() > 0) {
+			this.queue.take().run();
+		}
+	}
+
+	/**
+	 * Executes tasks that are ready, without waiting for operations to complete. Only the tasks
+	 * queued before the call are executed, tasks that yield or become ready during the call are
+	 * executed by the next call, so this returns even if a task never finishes. Returns {@code
+	 * true} if there are unfinished tasks.
+	 */
+	public boolean runPending() {
+		for (int count = this.queue.size(); count > 0; count--) {
+			var next = this.queue.poll();
+			if (next == null) break;
+			next.run();
+		}
+
+		return this.active.get() > 0;
+	}
+
+	/** Stops the virtual threads executing blocking operations. */
+	public void shutdown() {
+		synchronized (this) {
+			if (this.blockingExecutor == null) return;
+			this.blockingExecutor.shutdownNow();
+			this.blockingExecutor = null;
+		}
+	}
+
+	private void step(Task task, ManagedValue value, Diagnostic error) {
+		boolean suspended;
+		try {
+			if (error == null) {
+				suspended = task.coroutine.resume(value, task.result);
+			} else {
+				suspended = task.coroutine.raise(error, task.result);
+			}
+		} catch (RuntimeException exception) {
+			// The execution was interrupted, for example by an execution limit
+			this.active.decrementAndGet();
+			task.completion.completeExceptionally(exception);
+			return;
+		}
+
+		if (!suspended) {
+			this.active.decrementAndGet();
+			task.completion.complete(task.result);
+			return;
+		}
+
+		var pending = task.coroutine.getPending();
+		if (pending == null) {
+			this.queue.add(() -> this.step(task, Primitive.VOID, null));
+			return;
+		}
+
+		pending.whenComplete((result, failure) -> {
+			if (failure == null) {
+				this.queue.add(() -> this.step(task, result, null));
+			} else {
+				this.queue.add(() -> this.step(task, null, AsyncNativeFunction.getFailure(failure)));
+			}
+		});
+	}
+}
@@ -1,46 +1,169 @@
 package bt7s7k7.treeburst.runtime;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Scope {
-	public final Map<String, Variable> variables = new HashMap<>();
+	private static final Variable[] NO_SLOTS = new Variable[0];
+
+	protected Map<String, Variable> variables = null;
+	protected Variable[] slots;
 	public final Scope parent;
 	public final Realm realm;
+	public final ScopeLayout layout;
+	private boolean frozen = false;
 
 	public Scope(Scope parent, Realm realm) {
+		this(parent, realm, null);
+	}
+
+	public Scope(Scope parent, Realm realm, ScopeLayout layout) {
 		this.parent = parent;
 		this.realm = realm;
+		this.layout = layout;
+		this.slots = layout == null || layout.size() == 0 ? NO_SLOTS : new Variable[layout.size()];
 	}
 
+	public Variable getSlot(int index) {
+		if (index >= this.slots.length) return null;
+		return this.slots[index];
+	}
+
+	/**
+	 * Returns the variable in the slot of a frame {@code depth} levels above this scope. If the
+	 * frame does not have the expected layout or the variable was not declared yet, {@code null} is
+	 * returned and the caller should fall back to {@link #findVariable}. The same happens if a scope
+	 * below the frame has variables declared by name, e.g. by a macro or a native function, since
+	 * one of them may shadow the slot.
+	 */
+	public Variable getSlot(int depth, int index, ScopeLayout layout) {
+		var scope = this;
+		for (int i = 0; i < depth; i++) {
+			if (scope.variables != null) return null;
+			scope = scope.parent;
+			if (scope == null) return null;
+		}
+
+		if (scope.layout != layout) return null;
+		return scope.getSlot(index);
+	}
+
+	private Variable declareSlot(int index) {
+		if (index >= this.slots.length) {
+			this.slots = Arrays.copyOf(this.slots, this.layout.size());
+		}
+
+		var variable = new Variable();
+		this.slots[index] = variable;
+		return variable;
+	}
+
+	public Variable findLocalVariable(String name) {
+		if (this.layout != null) {
+			var index = this.layout.indexOf(name);
+			if (index != -1) {
+				var variable = this.getSlot(index);
+				if (variable != null) return variable;
+			}
+		}
+
+		if (this.variables == null) return null;
+		return this.variables.get(name);
+	}
+
+	/**
+	 * Finds a variable. If the variable is declared by a template and holds a table, array or map,
+	 * the fork receives a copy of it, see {@link Realm#snapshot()}.
+	 */
 	public Variable findVariable(String name) {
-		var variable = this.variables.get(name);
-		if (variable != null) {
+		for (var scope = this; scope != null; scope = scope.parent) {
+			var variable = scope.findLocalVariable(name);
+			if (variable == null) continue;
+
+			if (scope.frozen && scope.realm != this.realm && scope.realm.copiedGlobals.contains(name)) {
+				return this.findMutableVariable(name);
+			}
+
 			return variable;
 		}
 
-		if (this.parent != null) {
-			return this.parent.findVariable(name);
+		return null;
+	}
+
+	/**
+	 * Finds a variable that is going to be assigned. If the variable is declared in a frozen scope,
+	 * it is copied into the nearest scope below it that is not frozen, so only that scope observes
+	 * the assignment, see {@link Realm#fork()}.
+	 */
+	public Variable findMutableVariable(String name) {
+		Scope mutable = null;
+
+		for (var scope = this; scope != null; scope = scope.parent) {
+			var variable = scope.findLocalVariable(name);
+
+			if (variable == null) {
+				if (!scope.frozen) mutable = scope;
+				continue;
+			}
+
+			if (!scope.frozen || mutable == null) return variable;
+
+			var copy = mutable.declareVariable(name);
+			copy.value = scope.realm.copiedGlobals.contains(name) ? mutable.realm.importGlobal(name, variable.value) : variable.value;
+			return copy;
 		}
 
 		return null;
 	}
 
+	/** Prevents assignments to variables of this scope from its child scopes, see {@link #findMutableVariable}. */
+	public void freeze() {
+		this.frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
 	public Variable declareVariable(String name) {
-		if (this.variables.containsKey(name)) {
+		if (this.findLocalVariable(name) != null) {
 			return null;
 		}
 
+		if (this.layout != null) {
+			var index = this.layout.indexOf(name);
+			if (index != -1) return this.declareSlot(index);
+		}
+
+		if (this.variables == null) this.variables = new HashMap<>();
+
 		var variable = new Variable();
 		this.variables.put(name, variable);
+		if (this == this.realm.globalScope && name.startsWith("@")) this.realm.invalidateCompilationKey();
 		return variable;
 	}
 
+	public Variable declareSlotVariable(int index) {
+		if (this.getSlot(index) != null) return null;
+
+		var name = this.layout.getName(index);
+		if (this.variables != null && this.variables.containsKey(name)) return null;
+
+		return this.declareSlot(index);
+	}
+
 	public Variable getOrDeclareLocal(String name) {
-		return this.variables.computeIfAbsent(name, __ -> new Variable());
+		var variable = this.findLocalVariable(name);
+		if (variable != null) return variable;
+		return this.declareVariable(name);
 	}
 
 	public Scope makeChild() {
 		return new Scope(this, this.realm);
 	}
+
+	public Scope makeChild(ScopeLayout layout) {
+		return new Scope(this, this.realm, layout);
+	}
 }
@@ -0,0 +1,60 @@
+package bt7s7k7.treeburst.runtime;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compile-time description of the variables of a function frame. Each name declared in the frame
+ * is assigned a slot index, which allows instructions to access the variable by indexing {@link
+ * Scope} slots instead of searching the scope chain by name. Layouts are append-only, names
+ * declared by code compiled later are added to the end. Layouts are shared by all realms executing
+ * a fragment and may be extended by one thread while others read them, so declarations are
+ * synchronized and names are published before their indices.
+ */
+public class ScopeLayout {
+	private static final String[] NO_NAMES = new String[0];
+
+	public final ScopeLayout parent;
+
+	private final ConcurrentHashMap<String, Integer> indices = new ConcurrentHashMap<>();
+	private volatile String[] names = NO_NAMES;
+
+	public ScopeLayout(ScopeLayout parent) {
+		this.parent = parent;
+	}
+
+	public ScopeLayout(ScopeLayout parent, List<String> names) {
+		this(parent);
+
+		for (var name : names) {
+			this.declare(name);
+		}
+	}
+
+	public int indexOf(String name) {
+		var index = this.indices.get(name);
+		if (index == null) return -1;
+		return index.intValue();
+	}
+
+	public synchronized int declare(String name) {
+		var index = this.indices.get(name);
+		if (index != null) return index.intValue();
+
+		var newIndex = this.names.length;
+		var names = Arrays.copyOf(this.names, newIndex + 1);
+		names[newIndex] = name;
+		this.names = names;
+		this.indices.put(name, newIndex);
+		return newIndex;
+	}
+
+	public String getName(int index) {
+		return this.names[index];
+	}
+
+	public int size() {
+		return this.names.length;
+	}
+}
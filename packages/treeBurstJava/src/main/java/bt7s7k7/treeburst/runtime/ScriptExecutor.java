@@ -0,0 +1,184 @@
+package bt7s7k7.treeburst.runtime;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bt7s7k7.treeburst.bytecode.ProgramFragment;
+import bt7s7k7.treeburst.parsing.TreeBurstParser;
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.InputDocument;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Position;
+
+/**
+ * Executes scripts on virtual threads, each in a realm taken from a pool of forks of a template
+ * realm, see {@link Realm#fork()}. Each script is evaluated in its own child scope of the global
+ * scope, so variables it declares are not visible to later scripts. After the script finishes, the
+ * realm is returned to the pool, unless it was {@link Realm#isModified() modified} or its
+ * execution was aborted, then a new fork is created instead. Realms in the pool keep the copies of
+ * shared fragments they executed, see {@link ProgramFragment#getInstance}, so scripts submitted
+ * repeatedly reuse their type feedback.
+ *
+ * Globals and native functions needed by scripts must be declared in the template, which must then
+ * be frozen before creating the executor, see {@link Realm#snapshot()}.
+ */
+public final class ScriptExecutor implements AutoCloseable {
+	/** Result of a script, the {@code value} is {@code null} if the script failed, then {@code diagnostics} describe why. */
+	public record Result(ManagedValue value, List<Diagnostic> diagnostics) {
+		public boolean isSuccess() {
+			return this.diagnostics.isEmpty();
+		}
+	}
+
+	private final Realm template;
+	private final ArrayBlockingQueue<Realm> pool;
+	private final Semaphore permits;
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private final AtomicInteger createdRealms = new AtomicInteger();
+
+	/** Maximum number of instructions executed by a script, used when the limit is not provided on submission. */
+	public int executionLimit = Integer.MAX_VALUE;
+	/** Maximum duration of a script from its submission, used when the timeout is not provided on submission. */
+	public Duration timeout = null;
+
+	/**
+	 * Creates an executor running at most {@code parallelism} scripts at the same time, in forks of
+	 * the template. Scripts submitted above this limit wait for a running script to finish.
+	 */
+	public ScriptExecutor(Realm template, int parallelism) {
+		if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be positive");
+
+		this.template = template;
+		this.pool = new ArrayBlockingQueue<>(parallelism);
+		this.permits = new Semaphore(parallelism);
+
+		for (int i = 0; i < parallelism; i++) {
+			this.pool.add(this.createRealm());
+		}
+	}
+
+	/** Creates an executor using forks of the standard library, see {@link Realm#shared()}. */
+	public ScriptExecutor(int parallelism) {
+		this(Realm.shared(), parallelism);
+	}
+
+	/** Returns the number of realms created by this executor, including the initial pool. */
+	public int getCreatedRealms() {
+		return this.createdRealms.get();
+	}
+
+	/** Parses and executes the script, see {@link #submit(ProgramFragment, int, Duration)}. */
+	public CompletableFuture<Result> submit(InputDocument document, int executionLimit, Duration timeout) {
+		var deadline = getDeadline(timeout);
+		return this.start(cancellation -> {
+			var parser = new TreeBurstParser(document);
+			var fragment = parser.parse();
+			if (!parser.diagnostics.isEmpty()) return new Result(null, List.copyOf(parser.diagnostics));
+			return this.execute(fragment, executionLimit, deadline, cancellation);
+		});
+	}
+
+	public CompletableFuture<Result> submit(InputDocument document) {
+		return this.submit(document, this.executionLimit, this.timeout);
+	}
+
+	/**
+	 * Executes the fragment in a realm from the pool. The fragment can be submitted multiple times
+	 * and executed by multiple realms at the same time. The script is aborted once it executes
+	 * {@code executionLimit} instructions, or the {@code timeout} since the submission passes,
+	 * or the returned future is cancelled. Instructions are counted at safepoints, see {@link
+	 * ExpressionResult#meterAtSafepoints}, so hot fragments can still be compiled.
+	 */
+	public CompletableFuture<Result> submit(ProgramFragment fragment, int executionLimit, Duration timeout) {
+		var deadline = getDeadline(timeout);
+		return this.start(cancellation -> this.execute(fragment, executionLimit, deadline, cancellation));
+	}
+
+	public CompletableFuture<Result> submit(ProgramFragment fragment) {
+		return this.submit(fragment, this.executionLimit, this.timeout);
+	}
+
+	/** Stops accepting scripts and waits until the submitted scripts finish. */
+	@Override
+	public void close() {
+		this.executor.close();
+		this.pool.clear();
+	}
+
+	private static long getDeadline(Duration timeout) {
+		if (timeout == null) return Long.MAX_VALUE;
+		return System.nanoTime() + timeout.toNanos();
+	}
+
+	private Realm createRealm() {
+		this.createdRealms.incrementAndGet();
+		return this.template.fork();
+	}
+
+	@FunctionalInterface
+	private interface Task {
+		Result run(AtomicBoolean cancellation) throws InterruptedException;
+	}
+
+	private CompletableFuture<Result> start(Task task) {
+		var future = new CompletableFuture<Result>();
+		var cancellation = new AtomicBoolean();
+		future.whenComplete((result, error) -> {
+			if (future.isCancelled()) cancellation.set(true);
+		});
+
+		this.executor.execute(() -> {
+			try {
+				future.complete(task.run(cancellation));
+			} catch (Throwable error) {
+				future.completeExceptionally(error);
+			}
+		});
+
+		return future;
+	}
+
+	private Result execute(ProgramFragment fragment, int executionLimit, long deadline, AtomicBoolean cancellation) throws InterruptedException {
+		this.permits.acquire();
+
+		try {
+			var realm = this.pool.poll();
+			if (realm == null) realm = this.createRealm();
+
+			var result = new ExpressionResult();
+			result.executionLimit = executionLimit;
+			result.meterAtSafepoints = true;
+			result.executionDeadline = deadline;
+			result.cancellation = cancellation;
+
+			var aborted = false;
+			try {
+				fragment.evaluate(realm.globalScope.makeChild(), result);
+			} catch (ExecutionLimitReachedException exception) {
+				// The realm may be left in an inconsistent state, so it is not reused
+				aborted = true;
+				result.setException(new Diagnostic(exception.getMessage(), Position.INTRINSIC));
+			}
+
+			if (!aborted && realm.scheduler.getActiveTasks() == 0 && !realm.isModified()) {
+				realm.resetAllocatedBytes();
+				this.pool.offer(realm);
+			} else {
+				this.pool.offer(this.createRealm());
+			}
+
+			var error = result.terminate();
+			if (error != null) return new Result(null, List.of(error));
+			return new Result(result.value, List.of());
+		} finally {
+			this.permits.release();
+		}
+	}
+}
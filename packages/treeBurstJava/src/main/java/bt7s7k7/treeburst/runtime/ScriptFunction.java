@@ -18,7 +18,7 @@ public class ScriptFunction extends ManagedFunction {
 
 	@Override
 	public void invoke(List<ManagedValue> args, Scope scope, ExpressionResult result) {
-		Scope functionScope = this.scope.makeChild();
+		Scope functionScope = this.scope.makeChild(this.body.getLayout());
 
 		Parameter.destructure(this.getParameters(), true, args, functionScope, result);
 		if (result.label != null) return;
@@ -0,0 +1,100 @@
+package bt7s7k7.treeburst.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes the property layout of a {@link ManagedTable}. Tables that declared the same properties
+ * in the same order share a shape, so each table only needs to store an array of property values.
+ * Shapes are immutable, declaring a property transitions the table to a child shape, which is
+ * reused by all tables performing the same transition.
+ */
+public final class Shape {
+	/** Shape of a table without any properties. */
+	public static final Shape EMPTY = new Shape(null, new String[0]);
+
+	/**
+	 * Tables with more properties than this stop using shapes and store their properties in a
+	 * {@link HashMap}. This prevents tables used as dictionaries from creating many shapes.
+	 */
+	public static final int MAX_SIZE = 32;
+
+	public final Shape parent;
+
+	private final String[] names;
+	// Built by inserting the names in declaration order, so it has the same iteration order as a
+	// HashMap containing the properties of a table with this shape
+	private final HashMap<String, Integer> indices = new HashMap<>();
+	private HashMap<String, WeakReference<Shape>> transitions = null;
+	// Size of the largest shape transitioned to from this shape, the tables with this shape are
+	// likely to grow to it
+	private volatile int expectedSize;
+
+	private Shape(Shape parent, String[] names) {
+		this.parent = parent;
+		this.names = names;
+		this.expectedSize = names.length;
+
+		for (int i = 0; i < names.length; i++) {
+			this.indices.put(names[i], i);
+		}
+	}
+
+	public int indexOf(String name) {
+		var index = this.indices.get(name);
+		if (index == null) return -1;
+		return index.intValue();
+	}
+
+	public String getName(int index) {
+		return this.names[index];
+	}
+
+	public int size() {
+		return this.names.length;
+	}
+
+	/**
+	 * Returns the number of values a table with this shape should allocate space for, so it does
+	 * not need to grow its storage when declaring the properties other tables with this shape
+	 * declared after it.
+	 */
+	public int getExpectedSize() {
+		return this.expectedSize;
+	}
+
+	/** Returns the names of the properties and their indices, in the iteration order of a {@link HashMap}. */
+	public Set<Map.Entry<String, Integer>> getIndices() {
+		return Collections.unmodifiableMap(this.indices).entrySet();
+	}
+
+	/** Returns the shape of a table with this shape after declaring a property with the provided name. */
+	public synchronized Shape withProperty(String name) {
+		if (this.transitions == null) {
+			this.transitions = new HashMap<>();
+		} else {
+			var existing = this.transitions.get(name);
+			if (existing != null) {
+				var shape = existing.get();
+				if (shape != null) return shape;
+			}
+		}
+
+		var names = new String[this.names.length + 1];
+		System.arraycopy(this.names, 0, names, 0, this.names.length);
+		names[this.names.length] = name;
+
+		var shape = new Shape(this, names);
+		// Weak references allow shapes that are no longer used by any table to be collected
+		this.transitions.put(name, new WeakReference<>(shape));
+
+		for (var ancestor = this; ancestor != null && ancestor.expectedSize < names.length; ancestor = ancestor.parent) {
+			ancestor.expectedSize = names.length;
+		}
+
+		return shape;
+	}
+}
@@ -133,6 +133,7 @@ public class ArrayPrototype extends LazyTable {
 			if (value == null) {
 				result.value = self.get(index);
 			} else {
+				if (!self.ensureMutable(result)) return;
 				self.set(index, value);
 				result.value = value;
 			}
@@ -185,6 +186,8 @@ public class ArrayPrototype extends LazyTable {
 
 				result.value = self.get(index);
 			} else {
+				if (!self.ensureMutable(result)) return;
+
 				if (index >= self.getLength()) {
 					self.getElementsMutable().addAll(Collections.nCopies(index + 1 - self.getLength(), Primitive.NULL));
 				}
@@ -206,9 +209,13 @@ public class ArrayPrototype extends LazyTable {
 				return;
 			}
 
+			if (!self.ensureMutable(result)) return;
+
 			if (length < self.getLength()) {
 				self.getElementsMutable().subList(length, self.getLength()).clear();
 			} else if (length > self.getLength()) {
+				if (!scope.realm.allocateElements(length - self.getLength(), result)) return;
+
 				if (self instanceof ManagedArray.ListBackedArray listBacked && listBacked.getLength() == 0) {
 					listBacked.immutable = true;
 					listBacked.elements = Collections.nCopies(length - self.getLength(), Primitive.NULL);
@@ -223,12 +230,14 @@ public class ArrayPrototype extends LazyTable {
 		this.declareProperty("clone", NativeFunction.simple(this.realm, List.of("this"), List.of(ManagedArray.class), (args, scope, result) -> {
 			// @summary: Creates a copy of the array.
 			var self = args.get(0).getArrayValue();
+			if (!scope.realm.allocateArray(self.getLength(), result)) return;
 			result.value = self.makeCopy();
 		}));
 
 		this.declareProperty("clear", NativeFunction.simple(this.realm, List.of("this"), List.of(ManagedArray.class), (args, scope, result) -> {
 			// @summary: Removes all elements in the array.
 			var self = args.get(0).getArrayValue();
+			if (!self.ensureMutable(result)) return;
 			self.clear();
 			result.value = Primitive.VOID;
 		}));
@@ -255,6 +264,7 @@ public class ArrayPrototype extends LazyTable {
 			to = self.normalizeLimit(to, result);
 			if (result.label != null) return;
 
+			if (!scope.realm.allocateArray(to - from, result)) return;
 			result.value = self.makeView(from, to).makeCopy();
 		}));
 
@@ -302,6 +312,8 @@ public class ArrayPrototype extends LazyTable {
 			var delete = (int) args.get(2).getNumberValue();
 			var insert = args.size() == 3 ? null : args.get(3).getArrayValue();
 
+			if (!self.ensureMutable(result)) return;
+
 			index = self.normalizeLimit(index, result);
 			if (result.label != null) return;
 
@@ -310,6 +322,8 @@ public class ArrayPrototype extends LazyTable {
 				return;
 			}
 
+			if (insert != null && !scope.realm.allocateElements(insert.getLength() - delete, result)) return;
+
 			var range = self.getElementsMutable().subList(index, index + delete);
 			range.clear();
 			if (insert != null) {
@@ -324,6 +338,7 @@ public class ArrayPrototype extends LazyTable {
 			var self = args.get(0).getArrayValue();
 			var elements = args.get(1);
 			evaluateInvocation(self, self, "splice", Position.INTRINSIC, List.of(Primitive.from(self.getLength()), Primitive.ZERO, elements), scope, result);
+			if (result.label != null) return;
 			result.value = self;
 		}));
 
@@ -332,6 +347,7 @@ public class ArrayPrototype extends LazyTable {
 			var self = args.get(0).getArrayValue();
 			var elements = args.get(1);
 			evaluateInvocation(self, self, "splice", Position.INTRINSIC, List.of(Primitive.ZERO, Primitive.ZERO, elements), scope, result);
+			if (result.label != null) return;
 			result.value = self;
 		}));
 
@@ -372,6 +388,7 @@ public class ArrayPrototype extends LazyTable {
 
 			var elementsToAdd = ManagedArray.withElements(this, args.subList(1, args.size()));
 			evaluateInvocation(self, self, "splice", Position.INTRINSIC, List.of(Primitive.from(self.getLength()), Primitive.ZERO, elementsToAdd), scope, result);
+			if (result.label != null) return;
 			result.value = args.getLast();
 		}));
 
@@ -390,6 +407,7 @@ public class ArrayPrototype extends LazyTable {
 
 			var elementsToAdd = ManagedArray.withElements(this, args.subList(1, args.size()));
 			evaluateInvocation(self, self, "splice", Position.INTRINSIC, List.of(Primitive.ZERO, Primitive.ZERO, elementsToAdd), scope, result);
+			if (result.label != null) return;
 			result.value = args.getLast();
 		}));
 
@@ -420,7 +438,8 @@ public class ArrayPrototype extends LazyTable {
 			var self = args.get(0).getArrayValue();
 			var function = args.get(1).getFunctionValue();
 
-			var output = ManagedArray.withCapacity(this.realm.ArrayPrototype, self.getLength());
+			if (!scope.realm.allocateArray(self.getLength(), result)) return;
+			var output = ManagedArray.withCapacity(scope.realm.ArrayPrototype, self.getLength());
 			var outputElements = output.getElementsMutable();
 
 			for (int i = 0; i < self.getLength(); i++) {
@@ -462,7 +481,8 @@ public class ArrayPrototype extends LazyTable {
 			var self = args.get(0).getArrayValue();
 			var function = args.get(1).getFunctionValue();
 
-			var output = ManagedArray.empty(this.realm.ArrayPrototype);
+			if (!scope.realm.allocateArray(0, result)) return;
+			var output = ManagedArray.empty(scope.realm.ArrayPrototype);
 			var outputElements = output.getElementsMutable();
 
 			for (int i = 0; i < self.getLength(); i++) {
@@ -475,6 +495,7 @@ public class ArrayPrototype extends LazyTable {
 				if (result.label != null) return;
 
 				if (resultElement.value) {
+					if (!scope.realm.allocateElements(1, result)) return;
 					outputElements.add(element);
 				}
 			}
@@ -504,6 +525,10 @@ public class ArrayPrototype extends LazyTable {
 			if (parameters.size() > 1) indexName = parameters.get(1).name;
 			if (parameters.size() > 2) arrayName = parameters.get(2).name;
 
+			if (elementName != null) emitter.declareLocal(elementName);
+			if (indexName != null) emitter.declareLocal(indexName);
+			if (arrayName != null) emitter.declareLocal(arrayName);
+
 			var fragment = new ProgramFragment(functionDeclaration.body());
 			fragment.compile(scope, result);
 			if (result.label != null) return;
@@ -521,18 +546,23 @@ public class ArrayPrototype extends LazyTable {
 			var self = args.get(0).getArrayValue();
 			var separator = args.get(1).getStringValue();
 
+			// The string is charged while it is built, so a large result fails before it is created
+			if (!scope.realm.allocateString(0, result)) return;
 			var builder = new StringBuilder();
 
 			var first = true;
 			for (var element : self) {
+				var string = ensureString(element, scope, result);
+				if (result.label != null) return;
+
+				if (!scope.realm.allocateCharacters((first ? 0 : separator.length()) + (long) string.value.length(), result)) return;
+
 				if (first) {
 					first = false;
 				} else {
 					builder.append(separator);
 				}
 
-				var string = ensureString(element, scope, result);
-				if (result.label != null) return;
 				builder.append(string.value);
 			}
 
@@ -546,6 +576,7 @@ public class ArrayPrototype extends LazyTable {
 
 			var left = operands.left().getArrayValue();
 			var right = operands.right().getArrayValue();
+			if (!scope.realm.allocateArray((long) left.getLength() + right.getLength(), result)) return;
 			var output = new ArrayList<ManagedValue>(left.getLength() + right.getLength());
 
 			output.addAll(left.getElementsReadOnly());
@@ -562,6 +593,7 @@ public class ArrayPrototype extends LazyTable {
 			var left = operands.left().getArrayValue();
 			var elements = left.getElementsReadOnly();
 			var right = (int) operands.right().getNumberValue();
+			if (!scope.realm.allocateArray((long) left.getLength() * right, result)) return;
 			var output = new ArrayList<ManagedValue>(left.getLength() * right);
 
 			for (int i = 0; i < right; i++) {
@@ -0,0 +1,529 @@
+package bt7s7k7.treeburst.standard;
+
+import static bt7s7k7.treeburst.runtime.EvaluationUtil.getValueName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import bt7s7k7.treeburst.runtime.AsyncNativeFunction;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.ManagedArray;
+import bt7s7k7.treeburst.runtime.ManagedMap;
+import bt7s7k7.treeburst.runtime.ManagedObject;
+import bt7s7k7.treeburst.runtime.ManagedTable;
+import bt7s7k7.treeburst.runtime.NativeFunction;
+import bt7s7k7.treeburst.runtime.NativeHandle;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.support.Diagnostic;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Position;
+import bt7s7k7.treeburst.support.Primitive;
+
+/**
+ * Bounded queue of messages, which can be used by realms running on different threads to exchange
+ * values. Primitives, channels and frozen tables, which only reference other frozen objects, see
+ * {@link Realm#snapshot()}, are immutable or thread-safe, so they are passed by reference. Arrays,
+ * maps and tables inheriting directly from {@code Table.prototype} are copied by the sending realm,
+ * including cycles, and converted into objects of the receiving realm. Other values, like
+ * functions, cannot be sent.
+ *
+ * Sending to a full channel or receiving from an empty one waits until a message is received or
+ * sent. Scripts running in a {@link bt7s7k7.treeburst.bytecode.Coroutine}, like tasks of the {@link
+ * bt7s7k7.treeburst.runtime.Scheduler}, are suspended while waiting, otherwise the thread is
+ * blocked. Once a channel is closed, sending fails and receiving returns {@code void} after the
+ * remaining messages are received.
+ */
+public final class Channel {
+	public static final NativeHandleWrapper<Channel> WRAPPER = new NativeHandleWrapper<>("Channel", Channel.class, ctx -> ctx
+			.addMethod("send", realm -> AsyncNativeFunction.async(realm, List.of("this", "value"), List.of(Channel.class, ManagedValue.class), (args, scope, result) -> {
+				// @summary[[Sends the value to the channel. If the channel is full, waits until a
+				// message is received. Sending to a closed channel fails.]]
+				var self = args.get(0).getNativeValue(Channel.class);
+				var sent = self.send(args.get(1), scope.realm, result);
+				if (sent == null) return null;
+				return sent.thenApply(ignored -> Primitive.VOID);
+			}))
+			.addMethod("receive", realm -> AsyncNativeFunction.async(realm, List.of("this"), List.of(Channel.class), (args, scope, result) -> {
+				// @summary[[Receives the next message from the channel. If the channel is empty,
+				// waits until a message is sent. Returns `void` if the channel is closed and empty.]]
+				var self = args.get(0).getNativeValue(Channel.class);
+				return self.receive(scope.realm);
+			}))
+			.addMethod("trySend", List.of("value"), List.of(ManagedValue.class), (self, args, scope, result) -> {
+				// @summary: Sends the value if the channel is not full and returns `true` if it was sent.
+				var sent = self.trySend(args.get(0), scope.realm, result);
+				if (result.label != null) return;
+				result.value = Primitive.from(sent);
+			})
+			.addMethod("tryReceive", List.of(), List.of(), (self, args, scope, result) -> {
+				// @summary: Receives the next message if there is one, otherwise returns `void`.
+				var value = self.tryReceive(scope.realm);
+				result.value = value == null ? Primitive.VOID : value;
+			})
+			.addMethod("close", List.of(), List.of(), (self, args, scope, result) -> {
+				// @summary: Closes the channel, so no more messages can be sent.
+				self.close();
+				result.value = Primitive.VOID;
+			})
+			.addGetter("closed", self -> Primitive.from(self.isClosed()))
+			.addGetter("length", self -> Primitive.from(self.size()))
+			.addGetter("capacity", self -> Primitive.from(self.capacity))
+			.addDumpMethod((self, depth, scope, result) -> "<Channel " + self.size() + "/" + self.capacity + ">"));
+
+	/**
+	 * Declares the global {@code Channel} with the function {@code Channel.new(capacity)} in the
+	 * realm. When using forks, this should be done in the template, so the forks are not modified.
+	 */
+	public static void install(Realm realm) {
+		var table = new ManagedTable(realm.TablePrototype);
+		table.declareProperty("prototype", WRAPPER.buildPrototype(realm));
+
+		table.declareProperty("new", NativeFunction.simple(realm, List.of("this", "capacity"), List.of(ManagedValue.class, Primitive.Number.class), (args, scope, result) -> {
+			// @summary: Creates a channel, which can hold at most `capacity` messages.
+			var capacityValue = args.get(1).getNumberValue();
+			if (capacityValue != Math.floor(capacityValue)) {
+				result.setException(new Diagnostic("Capacity must be an integer", Position.INTRINSIC));
+				return;
+			}
+
+			if (capacityValue <= 0 || capacityValue > MAX_CAPACITY) {
+				result.setException(new Diagnostic("Capacity must be between 1 and " + MAX_CAPACITY, Position.INTRINSIC));
+				return;
+			}
+
+			var capacity = (int) capacityValue;
+
+			if (!scope.realm.allocate(Realm.OBJECT_SIZE + capacity * Realm.ELEMENT_SIZE, result)) return;
+			result.value = WRAPPER.getHandle(new Channel(capacity), scope.realm);
+		}));
+
+		realm.declareGlobal(WRAPPER.name, table);
+	}
+
+	/**
+	 * Bounded multi-producer multi-consumer queue, which does not use locks. Each slot has a
+	 * sequence number, which tells if the slot is ready to be written or read at a position, so
+	 * producers and consumers only compete for the position using compare-and-set.
+	 */
+	private static final class RingBuffer {
+		private final AtomicReferenceArray<Object> elements;
+		private final AtomicLongArray sequences;
+		private final AtomicLong head = new AtomicLong();
+		private final AtomicLong tail = new AtomicLong();
+		private final int capacity;
+
+		public RingBuffer(int capacity) {
+			this.capacity = capacity;
+			this.elements = new AtomicReferenceArray<>(capacity);
+			this.sequences = new AtomicLongArray(capacity);
+
+			for (int i = 0; i < capacity; i++) {
+				this.sequences.set(i, i);
+			}
+		}
+
+		public boolean offer(Object element) {
+			var position = this.tail.get();
+
+			while (true) {
+				var index = (int) (position % this.capacity);
+				var difference = this.sequences.get(index) - position;
+
+				if (difference == 0) {
+					if (this.tail.compareAndSet(position, position + 1)) {
+						this.elements.set(index, element);
+						this.sequences.set(index, position + 1);
+						return true;
+					}
+
+					position = this.tail.get();
+				} else if (difference < 0) {
+					// The slot was not read yet since the last round
+					return false;
+				} else {
+					position = this.tail.get();
+				}
+			}
+		}
+
+		public Object poll() {
+			var position = this.head.get();
+
+			while (true) {
+				var index = (int) (position % this.capacity);
+				var difference = this.sequences.get(index) - (position + 1);
+
+				if (difference == 0) {
+					if (this.head.compareAndSet(position, position + 1)) {
+						var element = this.elements.get(index);
+						this.elements.set(index, null);
+						this.sequences.set(index, position + this.capacity);
+						return element;
+					}
+
+					position = this.head.get();
+				} else if (difference < 0) {
+					// The slot was not written yet
+					return null;
+				} else {
+					position = this.head.get();
+				}
+			}
+		}
+
+		public int size() {
+			var size = this.tail.get() - this.head.get();
+			return (int) Math.max(0, Math.min(size, this.capacity));
+		}
+	}
+
+	/** Copy of a table made by the sending realm, see {@link Channel}. */
+	private static final class TableCopy {
+		/** Set if the table inherits from {@code Table.prototype}, otherwise it has no prototype. */
+		public final boolean inherits;
+		public final List<String> names = new ArrayList<>();
+		public final List<Object> values = new ArrayList<>();
+
+		public TableCopy(boolean inherits) {
+			this.inherits = inherits;
+		}
+	}
+
+	private static final class ArrayCopy {
+		public final List<Object> elements = new ArrayList<>();
+	}
+
+	private static final class MapCopy {
+		public final List<Object> keys = new ArrayList<>();
+		public final List<Object> values = new ArrayList<>();
+	}
+
+	/**
+	 * Prototypes of the receiving realm, which are resolved when the message is requested. The
+	 * prototype of channels is not declared in the realm if it is missing, so receiving does not
+	 * modify the realm, see {@link Realm#isModified()}.
+	 */
+	private record Target(ManagedObject tablePrototype, ManagedObject arrayPrototype, ManagedObject mapPrototype, ManagedObject channelPrototype) {
+		public static Target of(Realm realm) {
+			var channelPrototype = WRAPPER.findPrototype(realm);
+			if (channelPrototype == null) channelPrototype = WRAPPER.buildPrototype(realm);
+			return new Target(realm.TablePrototype, realm.ArrayPrototype, realm.MapPrototype, channelPrototype);
+		}
+	}
+
+	/**
+	 * Executes operations retried after waiting, so waking waiters does not recurse and does not
+	 * depend on threads of the host, which may be blocked.
+	 */
+	private static final Executor RETRY_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+	/** Largest capacity of a channel, the buffers are allocated for the full capacity when the channel is created. */
+	public static final int MAX_CAPACITY = 1 << 20;
+
+	public final int capacity;
+	private final RingBuffer buffer;
+	/** Operations waiting for a message to be received or sent, each is completed when it should try again. */
+	private final ConcurrentLinkedQueue<CompletableFuture<Void>> waitingSenders = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<CompletableFuture<Void>> waitingReceivers = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed = false;
+
+	public Channel(int capacity) {
+		if (capacity <= 0 || capacity > MAX_CAPACITY) throw new IllegalArgumentException("Capacity must be between 1 and " + MAX_CAPACITY);
+		this.capacity = capacity;
+		this.buffer = new RingBuffer(capacity);
+	}
+
+	public int size() {
+		return this.buffer.size();
+	}
+
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/** Closes the channel, operations waiting for it are completed. Messages sent at the same time may be lost. */
+	public void close() {
+		this.closed = true;
+		wakeAll(this.waitingSenders);
+		wakeAll(this.waitingReceivers);
+	}
+
+	/**
+	 * Sends the value, which is copied by the realm, see {@link Channel}. Must be called on the
+	 * thread of the realm. Returns a future completed once the message is in the channel. If the
+	 * value cannot be sent, the exception is set in {@code result} and {@code null} is returned.
+	 */
+	public CompletableFuture<Void> send(ManagedValue value, Realm realm, ExpressionResult result) {
+		var message = exportValue(value, realm, new IdentityHashMap<>(), result);
+		if (message == null) return null;
+		return this.enqueue(message);
+	}
+
+	/** Sends the value if the channel is not full, see {@link #send}. Returns {@code false} if it was not sent. */
+	public boolean trySend(ManagedValue value, Realm realm, ExpressionResult result) {
+		if (this.closed) {
+			result.setException(new Diagnostic("Channel is closed", Position.INTRINSIC));
+			return false;
+		}
+
+		if (this.buffer.size() >= this.capacity) return false;
+
+		var message = exportValue(value, realm, new IdentityHashMap<>(), result);
+		if (message == null || !this.buffer.offer(message)) return false;
+
+		wakeOne(this.waitingReceivers);
+		return true;
+	}
+
+	/**
+	 * Receives the next message as a value of the realm. Must be called on the thread of the realm.
+	 * The message is converted and the returned future is completed on the thread of the realm by
+	 * its {@link Realm#scheduler}, so the thread must be running its tasks or wait for the future
+	 * using {@link bt7s7k7.treeburst.runtime.Scheduler#await}. The value is {@code void} if the
+	 * channel is closed and empty.
+	 */
+	public CompletableFuture<ManagedValue> receive(Realm realm) {
+		var target = Target.of(realm);
+		return this.dequeue().thenApplyAsync(message -> message == null ? Primitive.VOID : importValue(message, target, new IdentityHashMap<>()), realm.scheduler);
+	}
+
+	/** Receives the next message if there is one, see {@link #receive}. Returns {@code null} if the channel is empty. */
+	public ManagedValue tryReceive(Realm realm) {
+		var message = this.buffer.poll();
+		if (message == null) return null;
+
+		wakeOne(this.waitingSenders);
+		return importValue(message, Target.of(realm), new IdentityHashMap<>());
+	}
+
+	private CompletableFuture<Void> enqueue(Object message) {
+		if (this.closed) return CompletableFuture.failedFuture(new IllegalStateException("Channel is closed"));
+
+		if (this.buffer.offer(message)) {
+			wakeOne(this.waitingReceivers);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		var waiter = new CompletableFuture<Void>();
+		this.waitingSenders.add(waiter);
+
+		// A message may have been received before the waiter was added, so try again
+		if (this.closed || this.buffer.offer(message)) {
+			// If the waiter was already completed, pass the completion to another sender
+			if (!this.waitingSenders.remove(waiter)) wakeOne(this.waitingSenders);
+			if (this.closed) return CompletableFuture.failedFuture(new IllegalStateException("Channel is closed"));
+
+			wakeOne(this.waitingReceivers);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		return waiter.thenComposeAsync(ignored -> this.enqueue(message), RETRY_EXECUTOR);
+	}
+
+	private CompletableFuture<Object> dequeue() {
+		var message = this.buffer.poll();
+		if (message != null) {
+			wakeOne(this.waitingSenders);
+			return CompletableFuture.completedFuture(message);
+		}
+
+		if (this.closed) return CompletableFuture.completedFuture(null);
+
+		var waiter = new CompletableFuture<Void>();
+		this.waitingReceivers.add(waiter);
+
+		// A message may have been sent before the waiter was added, so try again
+		message = this.buffer.poll();
+		if (message != null || this.closed) {
+			if (!this.waitingReceivers.remove(waiter)) wakeOne(this.waitingReceivers);
+			if (message == null) return CompletableFuture.completedFuture(null);
+
+			wakeOne(this.waitingSenders);
+			return CompletableFuture.completedFuture(message);
+		}
+
+		return waiter.thenComposeAsync(ignored -> this.dequeue(), RETRY_EXECUTOR);
+	}
+
+	private static void wakeOne(ConcurrentLinkedQueue<CompletableFuture<Void>> waiters) {
+		var waiter = waiters.poll();
+		if (waiter != null) waiter.complete(null);
+	}
+
+	private static void wakeAll(ConcurrentLinkedQueue<CompletableFuture<Void>> waiters) {
+		CompletableFuture<Void> waiter;
+		while ((waiter = waiters.poll()) != null) {
+			waiter.complete(null);
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the value and all objects reachable from it are frozen, so it can be
+	 * used by multiple threads, see {@link Realm#snapshot()}. Native functions do not have any state
+	 * visible to scripts and channels are thread-safe.
+	 */
+	private static boolean isDeeplyImmutable(ManagedValue value, Set<ManagedValue> visited) {
+		if (value instanceof Primitive) return true;
+		if (value instanceof NativeHandle handle) return handle.value instanceof Channel;
+		if (!visited.add(value)) return true;
+
+		var object = (ManagedObject) value;
+		if (object.prototype != null && !isDeeplyImmutable(object.prototype, visited)) return false;
+
+		if (object instanceof ManagedTable table) {
+			if (!table.isFrozen()) return false;
+
+			for (var property : table.getProperties().values()) {
+				if (!isDeeplyImmutable(property, visited)) return false;
+			}
+
+			return true;
+		}
+
+		if (object instanceof ManagedArray array) {
+			if (!array.isFrozen()) return false;
+
+			for (var element : array) {
+				if (!isDeeplyImmutable(element, visited)) return false;
+			}
+
+			return true;
+		}
+
+		if (object instanceof ManagedMap map) {
+			if (!map.isFrozen()) return false;
+
+			for (var kv : map.entries.entrySet()) {
+				if (!isDeeplyImmutable(kv.getKey(), visited) || !isDeeplyImmutable(kv.getValue(), visited)) return false;
+			}
+
+			return true;
+		}
+
+		return object instanceof NativeFunction;
+	}
+
+	/** Returns {@code true} if the prototype is {@code Table.prototype} of the realm or one of its templates. */
+	private static boolean isTablePrototype(ManagedObject prototype, Realm realm) {
+		for (var current = realm; current != null; current = current.getTemplate()) {
+			if (prototype == current.TablePrototype) return true;
+		}
+
+		return false;
+	}
+
+	private static Object exportValue(ManagedValue value, Realm realm, IdentityHashMap<ManagedValue, Object> copies, ExpressionResult result) {
+		if (value instanceof Primitive) return value;
+		if (value instanceof NativeHandle handle && handle.value instanceof Channel channel) return channel;
+		if (value instanceof ManagedTable table && table.isFrozen() && isDeeplyImmutable(table, Collections.newSetFromMap(new IdentityHashMap<>()))) return value;
+
+		var existing = copies.get(value);
+		if (existing != null) return existing;
+
+		if (value instanceof ManagedArray array) {
+			var elements = array.getElementsReadOnly();
+			if (!realm.allocate(Realm.OBJECT_SIZE + elements.size() * Realm.ELEMENT_SIZE, result)) return null;
+
+			var copy = new ArrayCopy();
+			copies.put(value, copy);
+
+			for (var element : elements) {
+				var elementCopy = exportValue(element, realm, copies, result);
+				if (elementCopy == null) return null;
+				copy.elements.add(elementCopy);
+			}
+
+			return copy;
+		}
+
+		if (value instanceof ManagedMap map) {
+			if (!realm.allocate(Realm.OBJECT_SIZE + map.entries.size() * Realm.ENTRY_SIZE, result)) return null;
+
+			var copy = new MapCopy();
+			copies.put(value, copy);
+
+			for (var kv : map.entries.entrySet()) {
+				var key = exportValue(kv.getKey(), realm, copies, result);
+				if (key == null) return null;
+				var entryValue = exportValue(kv.getValue(), realm, copies, result);
+				if (entryValue == null) return null;
+
+				copy.keys.add(key);
+				copy.values.add(entryValue);
+			}
+
+			return copy;
+		}
+
+		if (value instanceof ManagedTable table && table.getClass() == ManagedTable.class && (table.prototype == null || isTablePrototype(table.prototype, realm))) {
+			if (!realm.allocate(Realm.OBJECT_SIZE + table.getProperties().size() * Realm.ENTRY_SIZE, result)) return null;
+
+			var copy = new TableCopy(table.prototype != null);
+			copies.put(value, copy);
+
+			for (var kv : table.getProperties().entrySet()) {
+				var propertyValue = exportValue(kv.getValue(), realm, copies, result);
+				if (propertyValue == null) return null;
+
+				copy.names.add(kv.getKey());
+				copy.values.add(propertyValue);
+			}
+
+			return copy;
+		}
+
+		result.setException(new Diagnostic("Cannot send \"" + getValueName(value) + "\" through a channel", Position.INTRINSIC));
+		return null;
+	}
+
+	private static ManagedValue importValue(Object message, Target target, IdentityHashMap<Object, ManagedValue> imported) {
+		if (message instanceof ManagedValue value) return value;
+		if (message instanceof Channel channel) return new NativeHandle(target.channelPrototype, channel);
+
+		var existing = imported.get(message);
+		if (existing != null) return existing;
+
+		if (message instanceof ArrayCopy copy) {
+			var elements = new ArrayList<ManagedValue>(copy.elements.size());
+			var array = ManagedArray.fromMutableList(target.arrayPrototype, elements);
+			imported.put(message, array);
+
+			for (var element : copy.elements) {
+				elements.add(importValue(element, target, imported));
+			}
+
+			return array;
+		}
+
+		if (message instanceof MapCopy copy) {
+			var map = ManagedMap.empty(target.mapPrototype);
+			imported.put(message, map);
+
+			for (int i = 0; i < copy.keys.size(); i++) {
+				map.entries.put(importValue(copy.keys.get(i), target, imported), importValue(copy.values.get(i), target, imported));
+			}
+
+			return map;
+		}
+
+		var copy = (TableCopy) message;
+		var table = new ManagedTable(copy.inherits ? target.tablePrototype : null);
+		imported.put(message, table);
+
+		for (int i = 0; i < copy.names.size(); i++) {
+			table.declareProperty(copy.names.get(i), importValue(copy.values.get(i), target, imported));
+		}
+
+		return table;
+	}
+}
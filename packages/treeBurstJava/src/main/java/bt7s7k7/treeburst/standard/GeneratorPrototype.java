@@ -0,0 +1,39 @@
+package bt7s7k7.treeburst.standard;
+
+import java.util.List;
+
+import bt7s7k7.treeburst.bytecode.Coroutine;
+import bt7s7k7.treeburst.runtime.ManagedObject;
+import bt7s7k7.treeburst.runtime.NativeFunction;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Primitive;
+
+public class GeneratorPrototype extends LazyTable {
+	// @summary[[Represents a suspended invocation of a function, created by a function returned
+	// from {@link generator}. The execution is continued by `resume` until the next `@yield`.]]
+
+	public GeneratorPrototype(ManagedObject prototype, Realm realm) {
+		super(prototype, realm);
+	}
+
+	@Override
+	protected void initialize() {
+		this.declareProperty("resume", NativeFunction.simple(this.realm, List.of("this", "value?"), List.of(Coroutine.class, ManagedValue.class), (args, scope, result) -> {
+			// @summary[[Continues the execution of the function until the next `@yield` and returns
+			// the yielded value. The `value` is returned by the `@yield` that suspended the
+			// generator. When the function finishes, its return value is returned instead and the
+			// generator becomes `done`.]]
+			var self = args.get(0).getNativeValue(Coroutine.class);
+			var value = args.size() > 1 ? args.get(1) : Primitive.VOID;
+
+			self.resumeBlocking(value, result);
+		}));
+
+		this.declareProperty("get_done", NativeFunction.simple(this.realm, List.of("this"), List.of(Coroutine.class), (args, scope, result) -> {
+			// @summary: Returns `true` if the function of the generator has finished.
+			var self = args.get(0).getNativeValue(Coroutine.class);
+			result.value = Primitive.from(self.isDone());
+		}));
+	}
+}
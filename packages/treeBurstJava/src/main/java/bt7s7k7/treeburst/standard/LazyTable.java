@@ -3,6 +3,7 @@ package bt7s7k7.treeburst.standard;
 import bt7s7k7.treeburst.runtime.ManagedObject;
 import bt7s7k7.treeburst.runtime.ManagedTable;
 import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.runtime.Shape;
 import bt7s7k7.treeburst.support.ManagedValue;
 
 public abstract class LazyTable extends ManagedTable {
@@ -26,6 +27,16 @@ public abstract class LazyTable extends ManagedTable {
 		return super.getOwnProperty(name);
 	}
 
+	@Override
+	public Shape getShape() {
+		if (!this.initialized) {
+			this.initialized = true;
+			this.initialize();
+		}
+
+		return super.getShape();
+	}
+
 	@Override
 	public boolean declareProperty(String name, ManagedValue value) {
 		if (!this.initialized) {
@@ -54,9 +54,12 @@ public class MapPrototype extends LazyTable {
 					return;
 				}
 
+				if (!self.ensureMutable(result)) return;
+
 				if (value == Primitive.VOID) {
 					self.entries.remove(index);
 				} else {
+					if (!self.entries.containsKey(index) && !scope.realm.allocateEntries(1, result)) return;
 					self.entries.put(index, value);
 				}
 
@@ -67,12 +70,14 @@ public class MapPrototype extends LazyTable {
 		this.declareProperty("clone", NativeFunction.simple(this.realm, List.of("this"), List.of(ManagedMap.class), (args, scope, result) -> {
 			// @summary: Creates a copy of the map.
 			var self = args.get(0).getMapValue();
+			if (!scope.realm.allocate(Realm.OBJECT_SIZE, result) || !scope.realm.allocateEntries(self.entries.size(), result)) return;
 			result.value = ManagedMap.withEntries(self.prototype, self.entries);
 		}));
 
 		this.declareProperty("clear", NativeFunction.simple(this.realm, List.of("this"), List.of(ManagedMap.class), (args, scope, result) -> {
 			// @summary: Removes all entries in the map.
 			var self = args.get(0).getMapValue();
+			if (!self.ensureMutable(result)) return;
 			self.entries.clear();
 			result.value = Primitive.VOID;
 		}));
@@ -80,23 +85,27 @@ public class MapPrototype extends LazyTable {
 		this.declareProperty("keys", NativeFunction.simple(this.realm, List.of("this"), List.of(ManagedMap.class), (args, scope, result) -> {
 			// @summary: Returns an {@link Array}, containing keys of all the entries in the map.
 			var self = args.get(0).getMapValue();
-			result.value = ManagedArray.withElements(this.realm.ArrayPrototype, self.entries.keySet());
+			if (!scope.realm.allocateArray(self.entries.size(), result)) return;
+			result.value = ManagedArray.withElements(scope.realm.ArrayPrototype, self.entries.keySet());
 		}));
 
 		this.declareProperty("values", NativeFunction.simple(this.realm, List.of("this"), List.of(ManagedMap.class), (args, scope, result) -> {
 			// @summary: Returns an {@link Array}, containing values of all the entries in the map.
 			var self = args.get(0).getMapValue();
-			result.value = ManagedArray.withElements(this.realm.ArrayPrototype, self.entries.values());
+			if (!scope.realm.allocateArray(self.entries.size(), result)) return;
+			result.value = ManagedArray.withElements(scope.realm.ArrayPrototype, self.entries.values());
 		}));
 
 		this.declareProperty("entries", NativeFunction.simple(this.realm, List.of("this"), List.of(ManagedMap.class), (args, scope, result) -> {
 			// @summary: Returns an {@link Array}, containing all the entries in the map.
 			var self = args.get(0).getMapValue();
-			var entries = ManagedArray.withCapacity(this.realm.ArrayPrototype, self.entries.size());
+			// Each entry is an array of two elements
+			if (!scope.realm.allocateArray(self.entries.size(), result) || !scope.realm.allocate(self.entries.size() * (Realm.OBJECT_SIZE + 2 * Realm.ELEMENT_SIZE), result)) return;
+			var entries = ManagedArray.withCapacity(scope.realm.ArrayPrototype, self.entries.size());
 			var entriesElements = entries.getElementsMutable();
 
 			for (var kv : self.entries.entrySet()) {
-				entriesElements.add(ManagedArray.fromImmutableList(this.realm.ArrayPrototype, List.of(kv.getKey(), kv.getValue())));
+				entriesElements.add(ManagedArray.fromImmutableList(scope.realm.ArrayPrototype, List.of(kv.getKey(), kv.getValue())));
 			}
 
 			result.value = entries;
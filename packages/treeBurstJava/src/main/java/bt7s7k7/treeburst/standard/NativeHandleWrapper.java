@@ -23,7 +23,6 @@ import bt7s7k7.treeburst.runtime.NativeFunction;
 import bt7s7k7.treeburst.runtime.NativeHandle;
 import bt7s7k7.treeburst.runtime.Realm;
 import bt7s7k7.treeburst.runtime.Scope;
-import bt7s7k7.treeburst.runtime.Variable;
 import bt7s7k7.treeburst.support.ManagedValue;
 import bt7s7k7.treeburst.support.ManagedValueUtils;
 import bt7s7k7.treeburst.support.Position;
@@ -90,7 +89,7 @@ public class NativeHandleWrapper<T> {
 					Stream.concat(Stream.of(NativeHandleWrapper.this.type), types == null ? Collections.nCopies(parameters.size(), ManagedValue.class).stream() : types.stream()).toList(),
 					(args, scope, result) -> {
 						var self = args.get(0).getNativeValue(NativeHandleWrapper.this.type);
-						impl.run(self, args.subList(1, args.size()), this.realm.globalScope, result);
+						impl.run(self, args.subList(1, args.size()), scope.realm.globalScope, result);
 					}));
 
 			return this;
@@ -245,27 +244,29 @@ public class NativeHandleWrapper<T> {
 		return new Prototype(realm.TablePrototype, realm);
 	}
 
-	public ManagedTable ensurePrototype(Realm realm) {
+	/**
+	 * Returns the prototype stored in the global variable named after this wrapper by {@link
+	 * #ensurePrototype}, or {@code null} if there is none. The realm is not modified.
+	 */
+	public ManagedTable findPrototype(Realm realm) {
 		if (this.name == null) throw new NullPointerException("Cannot cache prototype without a name");
 
-		// We need to check if a prototype was already created and if so, we need to make sure it
-		// valid. We don't actually check if the prototype has correct values, since this is way too
+		// We don't actually check if the prototype has correct values, since this is way too
 		// expensive.
-		Variable classVariable = null;
-
-		do {
-			classVariable = realm.globalScope.findVariable(this.name);
-			// Variable not defined, need to define
-			if (classVariable == null) break;
-			// Variable defined, but not correct, need to overwrite
-			if (!(classVariable.value instanceof ManagedTable classTable)) break;
-			var prototypeValue = classTable.getOwnProperty("prototype");
-			// Variable does not have a prototype, need to overwrite
-			if (prototypeValue != null && prototypeValue instanceof ManagedTable prototype) return prototype;
-		} while (false);
+		var classVariable = realm.globalScope.findVariable(this.name);
+		if (classVariable == null || !(classVariable.value instanceof ManagedTable classTable)) return null;
+		if (classTable.getOwnProperty("prototype") instanceof ManagedTable prototype) return prototype;
+		return null;
+	}
+
+	public ManagedTable ensurePrototype(Realm realm) {
+		var existing = this.findPrototype(realm);
+		if (existing != null) return existing;
 
 		var prototype = this.buildPrototype(realm);
 
+		// Variables of frozen scopes are copied into the realm, see Realm#fork()
+		var classVariable = realm.globalScope.findMutableVariable(this.name);
 		if (classVariable == null) {
 			// Variable is not declared
 			classVariable = realm.globalScope.declareVariable(this.name);
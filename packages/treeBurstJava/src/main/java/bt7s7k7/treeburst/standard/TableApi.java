@@ -44,6 +44,7 @@ public class TableApi extends LazyTable {
 				return;
 			}
 
+			if (!scope.realm.allocate(Realm.OBJECT_SIZE, result)) return;
 			var table = new ManagedTable(prototype_1);
 
 			if (args.size() == 2) {
@@ -90,6 +91,7 @@ public class TableApi extends LazyTable {
 				}
 			}
 
+			if (!scope.realm.allocateEntries(table.getProperties().size(), result)) return;
 			result.value = table;
 		}));
 
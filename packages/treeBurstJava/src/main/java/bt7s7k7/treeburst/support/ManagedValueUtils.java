@@ -279,7 +279,7 @@ public class ManagedValueUtils {
 		} else if (expression instanceof Expression.Identifier identifier) {
 			if (identifier.name().equals("_")) return null;
 
-			var variable = scope.findVariable(identifier.name());
+			var variable = scope.findMutableVariable(identifier.name());
 
 			if (variable == null) {
 				result.setException(new Diagnostic("Cannot find variable \"" + identifier.name() + "\"", identifier.position()));
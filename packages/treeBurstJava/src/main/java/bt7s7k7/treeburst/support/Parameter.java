@@ -86,7 +86,7 @@ public class Parameter {
 				}
 
 				if (variable == null) {
-					variable = scope.findVariable(parameter.name);
+					variable = scope.findMutableVariable(parameter.name);
 				}
 
 				if (variable == null) {
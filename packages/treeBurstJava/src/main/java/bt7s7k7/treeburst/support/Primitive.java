@@ -119,6 +119,12 @@ public abstract class Primitive extends ManagedValue {
 
 	public static Number from(double value) {
 		if (value == 0) return ZERO;
+
+		if (value >= SMALL_INTEGER_MIN && value <= SMALL_INTEGER_MAX) {
+			var index = (int) value;
+			if (index == value) return SMALL_INTEGERS[index - SMALL_INTEGER_MIN];
+		}
+
 		return new Number(value);
 	}
 
@@ -134,5 +140,16 @@ public abstract class Primitive extends ManagedValue {
 	public static final Primitive.Boolean FALSE = new Boolean(false);
 	public static final Primitive.Boolean TRUE = new Boolean(true);
 	public static final Primitive.Number ZERO = new Number(0);
+
+	// Integers returned by from(double) without allocation, so loop counters and indices do not create garbage
+	private static final int SMALL_INTEGER_MIN = -128;
+	private static final int SMALL_INTEGER_MAX = 1023;
+	private static final Primitive.Number[] SMALL_INTEGERS = new Primitive.Number[SMALL_INTEGER_MAX - SMALL_INTEGER_MIN + 1];
+
+	static {
+		for (int i = SMALL_INTEGER_MIN; i <= SMALL_INTEGER_MAX; i++) {
+			SMALL_INTEGERS[i - SMALL_INTEGER_MIN] = i == 0 ? ZERO : new Number(i);
+		}
+	}
 	public static final Primitive.String EMPTY_STRING = new String("");
 }
@@ -62,7 +62,7 @@ class AutomaticTest {
 			return (this.errors.size() > 0) != this.expectFail;
 		}
 
-		public void evaluate() {
+		public void evaluate(boolean shared) {
 			var parser = new TreeBurstParser(this.document);
 			var root = parser.parse();
 
@@ -72,7 +72,7 @@ class AutomaticTest {
 				return;
 			}
 
-			var realm = new Realm();
+			var realm = shared ? Realm.shared().fork() : new Realm();
 			var globalScope = realm.globalScope;
 
 			var counter = new Object() {
@@ -178,13 +178,22 @@ class AutomaticTest {
 
 	@TestFactory
 	public Stream<DynamicNode> runCommonTests() {
+		return this.runCommonTests(false);
+	}
+
+	@TestFactory
+	public Stream<DynamicNode> runCommonTestsOnSharedLibrary() {
+		return this.runCommonTests(true);
+	}
+
+	private Stream<DynamicNode> runCommonTests(boolean shared) {
 		try {
 			var testFilePath = Path.of("../../test/standard.tb").toAbsolutePath().normalize();
 			var testFile = Files.readString(testFilePath);
 			var tests = Test.parseTests(testFilePath, testFile);
 
 			return tests.stream().map(test -> DynamicTest.dynamicTest(test.name, () -> {
-				test.evaluate();
+				test.evaluate(shared);
 				if (test.isFailed()) {
 					fail(String.join("\n", test.errors.stream().map(Diagnostic::format).toList()));
 				}
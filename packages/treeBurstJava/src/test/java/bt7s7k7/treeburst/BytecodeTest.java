@@ -1,16 +1,49 @@
 package bt7s7k7.treeburst;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import bt7s7k7.treeburst.bytecode.ArgumentStack;
+import bt7s7k7.treeburst.bytecode.BytecodeEmitter;
+import bt7s7k7.treeburst.bytecode.BytecodeInstruction;
+import bt7s7k7.treeburst.bytecode.BytecodeLoader;
+import bt7s7k7.treeburst.bytecode.BytecodeWriter;
+import bt7s7k7.treeburst.bytecode.CompiledFragment;
+import bt7s7k7.treeburst.bytecode.Coroutine;
 import bt7s7k7.treeburst.bytecode.ProgramFragment;
+import bt7s7k7.treeburst.bytecode.ScriptCompiler;
+import bt7s7k7.treeburst.bytecode.ValueStack;
 import bt7s7k7.treeburst.parsing.TreeBurstParser;
+import bt7s7k7.treeburst.runtime.AsyncNativeFunction;
+import bt7s7k7.treeburst.runtime.ExecutionLimitReachedException;
 import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.ManagedArray;
+import bt7s7k7.treeburst.runtime.ManagedFunction;
+import bt7s7k7.treeburst.runtime.ManagedTable;
+import bt7s7k7.treeburst.runtime.NativeFunction;
+import bt7s7k7.treeburst.runtime.PropertyCache;
 import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.runtime.ScriptFunction;
+import bt7s7k7.treeburst.support.Diagnostic;
 import bt7s7k7.treeburst.support.InputDocument;
 import bt7s7k7.treeburst.support.ManagedValue;
+import bt7s7k7.treeburst.support.Primitive;
 
 class BytecodeTest {
 	public static class CodeResult {
@@ -23,12 +56,29 @@ class BytecodeTest {
 		}
 
 		public static CodeResult get(String code) {
+			return get(code, true);
+		}
+
+		public static CodeResult get(String code, boolean useOpcodeEngine) {
+			return get(code, useOpcodeEngine, true);
+		}
+
+		public static CodeResult get(String code, boolean useOpcodeEngine, boolean optimizeBytecode) {
+			return get(code, realm -> {
+				realm.useOpcodeEngine = useOpcodeEngine;
+				realm.optimizeBytecode = optimizeBytecode;
+			});
+		}
+
+		public static CodeResult get(String code, Consumer<Realm> configure) {
 			var document = new InputDocument("anon", code);
 			var parser = new TreeBurstParser(document);
 			var root = parser.parse();
 			assertEquals(0, parser.diagnostics.size());
 
-			var scope = new Realm().globalScope;
+			var realm = new Realm();
+			configure.accept(realm);
+			var scope = realm.globalScope;
 
 			var result = new ExpressionResult();
 			root.evaluate(scope, result);
@@ -40,6 +90,13 @@ class BytecodeTest {
 
 			return new CodeResult(result.value, root);
 		}
+
+		/** Parses the code and evaluates it in the global scope of the realm, the result is not checked. */
+		public static ExpressionResult evaluate(Realm realm, String code) {
+			var result = new ExpressionResult();
+			new TreeBurstParser(new InputDocument("anon", code)).parse().evaluate(realm.globalScope, result);
+			return result;
+		}
 	}
 
 	@Test
@@ -85,4 +142,692 @@ class BytecodeTest {
 				i""");
 		assertEquals("[number 3.0]", result.value.toString());
 	}
+
+	@Test
+	public void localSlotTest() {
+		var result = CodeResult.get("""
+				$outer = \\(a) {
+				    $b = a + 1
+				    $inner = \\b + a
+				    inner()
+				    inner
+				}
+
+				outer(1)""");
+
+		var body = ((ScriptFunction) result.value).body.toString();
+		assertTrue(body.contains("LoadLocal b [1:1]"), body);
+		assertTrue(body.contains("LoadLocal a [1:0]"), body);
+	}
+
+	@Test
+	public void localSlotDynamicDeclarationTest() {
+		// A variable declared by name in an intermediate frame shadows the slot of the outer frame
+		var result = CodeResult.get("""
+				$outer = \\{
+				    $x = 1
+				    $middle = \\{
+				        inject("x", 2)
+				        $inner = \\x
+				        inner()
+				    }
+				    middle()
+				}
+
+				outer()""", realm -> {
+			realm.declareGlobal("inject", NativeFunction.simple(realm, List.of("name", "value"), List.of(Primitive.String.class, ManagedValue.class), (args, scope, injectResult) -> {
+				scope.declareVariable(args.get(0).getStringValue()).value = args.get(1);
+			}));
+		});
+
+		assertEquals(Primitive.from(2), result.value);
+	}
+
+	@Test
+	public void propertyCacheTest() {
+		var realm = new Realm();
+		var scope = realm.globalScope;
+		var prototype = new ManagedTable(realm.TablePrototype);
+		prototype.declareProperty("value", Primitive.from(1));
+		var other = new ManagedTable(realm.TablePrototype);
+		var receiver = new ManagedTable(prototype);
+		new ManagedTable(other);
+
+		var cache = new PropertyCache("value");
+		var result = new ExpressionResult();
+		assertTrue(cache.find(receiver, scope, result));
+		assertEquals(Primitive.from(1), result.value);
+
+		// Modifying an unrelated prototype does not change the version of the chain
+		var version = ManagedTable.getChainVersion(prototype);
+		other.declareProperty("value", Primitive.from(2));
+		assertEquals(version, ManagedTable.getChainVersion(prototype));
+
+		// Modifying a table in the chain invalidates the entry
+		prototype.setOwnProperty("value", Primitive.from(3));
+		assertTrue(cache.find(receiver, scope, result));
+		assertEquals(Primitive.from(3), result.value);
+
+		realm.TablePrototype.declareProperty("inherited", Primitive.from(4));
+		assertTrue(version != ManagedTable.getChainVersion(prototype));
+	}
+
+	@Test
+	public void numberOperatorTest() {
+		var result = CodeResult.get("1 + 2 * 3", true, false);
+		assertEquals("[number 7.0]", result.value.toString());
+
+		var code = result.fragment.toString();
+		assertTrue(code.contains("NumberOperator k_add"), code);
+		assertTrue(code.contains("NumberOperator k_mul"), code);
+
+		// The operator is looked up on the left operand before the right operand is evaluated
+		var ordered = CodeResult.get("""
+				$late = \\{
+				    Number.prototype.k_add = \\(this, other) "late"
+				    2
+				}
+				$value = 1 + late()
+				[value, 1 + 2].join(",")""", true, false);
+		assertEquals("[string \"3,late\"]", ordered.value.toString());
+	}
+
+	@Test
+	public void engineTest() {
+		var code = """
+				$fib = \\(n) n < 2 ? n : fib(n - 1) + fib(n - 2)
+				$values = []
+				$i = 0
+
+				@while(i < 10, (
+				    values.push(fib(i))
+				    i = i + 1
+				))
+
+				values.join(",")""";
+
+		var opcodeResult = CodeResult.get(code, true);
+		var objectResult = CodeResult.get(code, false);
+
+		assertEquals("[string \"0,1,1,2,3,5,8,13,21,34\"]", opcodeResult.value.toString());
+		assertEquals(opcodeResult.value.toString(), objectResult.value.toString());
+	}
+
+	@Test
+	public void optimizerTest() {
+		var code = """
+				$a = true
+				$b = a && 5
+				$t = Table.new()
+				$t.x = b
+				t.x""";
+
+		var optimized = CodeResult.get(code, true, true);
+		var plain = CodeResult.get(code, true, false);
+
+		assertEquals("[number 5.0]", optimized.value.toString());
+		assertEquals(plain.value.toString(), optimized.value.toString());
+
+		var optimizedCode = optimized.fragment.toString();
+		assertTrue(optimizedCode.contains("ShortCircuit[false]"), optimizedCode);
+		assertTrue(optimizedCode.contains("Declare b + Discard"), optimizedCode);
+		assertTrue(optimizedCode.contains("+ anon:5:3 - Get x"), optimizedCode);
+		assertTrue(optimizedCode.contains("+ anon:3:12 - PrepareInvoke"), optimizedCode);
+
+		var plainCode = plain.fragment.toString();
+		assertTrue(!plainCode.contains("ShortCircuit") && !plainCode.contains("+ Discard"), plainCode);
+	}
+
+	@Test
+	public void jumpResolutionTest() {
+		var realm = new Realm();
+		realm.optimizeBytecode = false;
+
+		// Emitted jumps are replaced by resolved copies, so instructions shared between fragments are not modified
+		var jump = new BytecodeInstruction.Jump("end");
+		var emitter = new BytecodeEmitter(realm.globalScope);
+		emitter.emit(jump);
+		emitter.emit(BytecodeInstruction.Discard.VALUE);
+		emitter.label("end");
+
+		var resolved = (BytecodeInstruction.Jump) emitter.build().instructions().get(0);
+		assertEquals(2, resolved.index);
+		assertEquals(-1, jump.index);
+	}
+
+	@Test
+	public void constantFoldingTest() {
+		var result = CodeResult.get("[60 * 60 * 1000, \"prefix\" + \"suffix\", -1].join(\",\")");
+		assertEquals("[string \"3600000,prefixsuffix,-1\"]", result.value.toString());
+
+		var code = result.fragment.toString();
+		assertTrue(code.contains("[number 3600000.0]"), code);
+		assertTrue(code.contains("[string \"prefixsuffix\"]"), code);
+		assertTrue(!code.contains("NumberOperator") && !code.contains("k_neg") && !code.contains("k_add"), code);
+	}
+
+	@Test
+	public void constantFoldingOverrideTest() {
+		// Operators overridden by code executed after the compilation are respected
+		var code = """
+				$f = \\1 + 2
+				$before = f()
+				Number.prototype.k_add = \\(this, other) "overridden"
+				$after = 1 + 2
+				after + f()""";
+
+		var optimized = CodeResult.get(code, true, true);
+		var plain = CodeResult.get(code, true, false);
+		assertEquals("[string \"overriddenoverridden\"]", plain.value.toString());
+		assertEquals(plain.value.toString(), optimized.value.toString());
+
+		// Only operators without side effects are evaluated, so dead code does not allocate
+		var result = CodeResult.get("""
+				@if(false, ("x" * 1000000000))
+				("a" + "b") * 2""", realm -> realm.allocationLimit = 1000);
+		assertEquals("[string \"abab\"]", result.value.toString());
+
+		var folded = result.fragment.toString();
+		assertTrue(folded.contains("FoldedConstant [string \"ab\"]"), folded);
+		assertTrue(!folded.contains("xxx"), folded);
+	}
+
+	private static ExpressionResult runConfigured(String code, Consumer<ExpressionResult> configure) {
+		var parser = new TreeBurstParser(new InputDocument("anon", code));
+		var root = parser.parse();
+		assertEquals(0, parser.diagnostics.size());
+
+		var realm = new Realm();
+		var result = new ExpressionResult();
+		configure.accept(result);
+		root.evaluate(realm.globalScope, result);
+		return result;
+	}
+
+	@Test
+	public void safepointMeteringTest() {
+		var loop = "@while(true, 0)";
+
+		var exception = assertThrows(ExecutionLimitReachedException.class, () -> runConfigured(loop, result -> {
+			result.executionLimit = 1000;
+			result.meterAtSafepoints = true;
+		}));
+		assertTrue(exception.getMessage().contains("limit of 1000"), exception.getMessage());
+
+		exception = assertThrows(ExecutionLimitReachedException.class, () -> runConfigured(loop, result -> {
+			result.setTimeout(Duration.ofMillis(10));
+		}));
+		assertTrue(exception.getMessage().contains("deadline"), exception.getMessage());
+
+		var cancellation = new AtomicBoolean(true);
+		exception = assertThrows(ExecutionLimitReachedException.class, () -> runConfigured(loop, result -> {
+			result.cancellation = cancellation;
+		}));
+		assertTrue(exception.getMessage().contains("cancelled"), exception.getMessage());
+
+		var code = """
+				$i = 0
+				@while(i < 10, (i = i + 1))
+				i""";
+
+		var counted = runConfigured(code, result -> result.executionLimit = 10000);
+		var metered = runConfigured(code, result -> {
+			result.executionLimit = 10000;
+			result.meterAtSafepoints = true;
+		});
+
+		assertEquals("[number 10.0]", metered.value.toString());
+		// Safepoints charge whole loop ranges, so the count only approximates the executed instructions
+		assertTrue(metered.executionCounter >= counted.executionCounter / 2 && metered.executionCounter <= counted.executionCounter * 2, metered.executionCounter + " vs " + counted.executionCounter);
+
+		// Each iteration is charged the precomputed cost of the loop, other instructions are charged at the entry
+		var fragment = new TreeBurstParser(new InputDocument("anon", code)).parse();
+		var result = new ExpressionResult();
+		result.executionLimit = 10000;
+		result.meterAtSafepoints = true;
+		fragment.evaluate(new Realm().globalScope, result);
+
+		var loopCost = (result.executionCounter - fragment.getEntryCost()) / 10;
+		assertTrue(loopCost > 0, "Loop cost " + loopCost);
+		assertEquals(fragment.getEntryCost() + loopCost * 10, result.executionCounter);
+	}
+
+	@Test
+	public void sharedStackTest() {
+		var result = CodeResult.get("""
+				$sum = \\(a, b = a * 2) a + b
+				$nested = \\(n) n > 0 ? sum(n, nested(n - 1)) : sum(1)
+				nested(10)""");
+		assertEquals("[number 58.0]", result.value.toString());
+		assertEquals(0, ValueStack.forCurrentThread().size());
+		assertEquals(0, ArgumentStack.forCurrentThread().size());
+
+		var error = runConfigured("$f = \\(n) n > 0 ? [f(n - 1)] : null.x\nf(5)", __ -> {});
+		assertEquals(ExpressionResult.LABEL_EXCEPTION, error.label);
+		assertEquals(0, ValueStack.forCurrentThread().size());
+		assertEquals(0, ArgumentStack.forCurrentThread().size());
+	}
+
+	@Test
+	public void valueStackTest() {
+		var stack = new ValueStack();
+		stack.pushNumber(1);
+		stack.push(null);
+		stack.push(Primitive.from(2));
+
+		// A pushed null is not read from the number lane
+		assertTrue(stack.isNumber(0) && !stack.isNumber(1) && stack.isNumber(2));
+		assertEquals(2, stack.popNumber());
+		assertEquals(null, stack.pop());
+		assertEquals(Primitive.from(1), stack.peek());
+		assertEquals(1, stack.popNumber());
+		assertEquals(0, stack.size());
+	}
+
+	@Test
+	public void compilationTest() {
+		var code = """
+				$fib = \\(n) n < 2 ? n : fib(n - 1) + fib(n - 2)
+				$values = []
+				$i = 0
+
+				@while(i < 10, (
+				    values.push(fib(i) && fib(i))
+				    i = i + 1
+				))
+
+				$j = 0
+				start:
+				    @if(j > 10, goto("end"))
+				    j = j + 1
+				    goto("start")
+				end:
+
+				values.push(j)
+				values.join(",")""";
+
+		var compiled = CodeResult.get(code, realm -> realm.compilationThreshold = 1);
+		var interpreted = CodeResult.get(code, realm -> realm.compilationThreshold = -1);
+
+		assertEquals("[string \"0,1,1,2,3,5,8,13,21,34,11\"]", compiled.value.toString());
+		assertEquals(interpreted.value.toString(), compiled.value.toString());
+		assertTrue(compiled.fragment.getCompiled() != null);
+		assertTrue(interpreted.fragment.getCompiled() == null);
+		assertEquals(0, CompiledFragment.getFailedCompilations());
+	}
+
+	@Test
+	public void quickeningTest() {
+		var template = """
+				$Point = Table.new()
+				$Point.prototype = Table.new()
+				$Point.new = Table.new
+				$Point.prototype.sum = \\(this) this.x + this.y
+
+				$total = 0
+				$point = null
+				$i = 0
+
+				@while(i < 200, (
+				    point = Point.new()
+				    $point.x = i
+				    $point.y = 1
+				    @if(i >= LIMIT, $point.z = 0)
+				    total = total + point.sum() + point.x
+				    i = i + 1
+				))
+
+				total""";
+
+		for (var limit : List.of("200", "100")) {
+			var code = template.replace("LIMIT", limit);
+			var expected = CodeResult.get(code, realm -> realm.quickeningThreshold = -1);
+			assertEquals("[number 40000.0]", expected.value.toString());
+
+			for (var useOpcodeEngine : List.of(false, true)) {
+				for (var compilationThreshold : List.of(-1, 1)) {
+					var quickened = CodeResult.get(code, realm -> {
+						realm.useOpcodeEngine = useOpcodeEngine;
+						realm.compilationThreshold = compilationThreshold;
+						realm.quickeningThreshold = 5;
+					});
+
+					assertEquals(expected.value.toString(), quickened.value.toString());
+
+					var instructions = quickened.fragment.toString();
+					assertTrue(instructions.contains("BooleanConditional"), instructions);
+
+					if (limit.equals("200")) {
+						assertTrue(instructions.contains("ShapeGet x"), instructions);
+						assertTrue(instructions.contains("MonomorphicPrepareInvoke"), instructions);
+					} else {
+						// After the shape of the receivers changed, the instructions return to the generic form
+						assertTrue(!instructions.contains("ShapeGet x"), instructions);
+						assertTrue(!instructions.contains("MonomorphicPrepareInvoke"), instructions);
+					}
+				}
+			}
+		}
+
+		var unquickened = CodeResult.get(template.replace("LIMIT", "200"), realm -> realm.quickeningThreshold = -1);
+		assertTrue(!unquickened.fragment.toString().contains("ShapeGet"));
+	}
+
+	@Test
+	public void stacklessCallsTest() {
+		var code = """
+				$depth = \\(n) n < 1 ? 0 : 1 + depth(n - 1)
+				$fib = \\(n) n < 2 ? n : fib(n - 1) + fib(n - 2)
+				$find = \\(n) @if(n < 1, return("found"), find(n - 1))
+				$parts = [depth(200000), fib(15), find(10)]
+				parts.join(",")""";
+
+		var result = CodeResult.get(code, realm -> realm.stacklessCalls = true);
+		assertEquals("[string \"200000,610,found\"]", result.value.toString());
+
+		var parser = new TreeBurstParser(new InputDocument("anon", "$depth = \\(n) n < 1 ? 0 : 1 + depth(n - 1)\ndepth(1000)"));
+		var root = parser.parse();
+		var realm = new Realm();
+		realm.stacklessCalls = true;
+		realm.frameLimit = 100;
+
+		var limited = new ExpressionResult();
+		root.evaluate(realm.globalScope, limited);
+		var error = limited.terminate().format();
+		assertTrue(error.contains("Exceeded the limit of 100 call frames"), error);
+		assertEquals(0, ValueStack.forCurrentThread().size());
+	}
+
+	@Test
+	public void coroutineTest() throws Exception {
+		var code = """
+				\\(id) {
+					$sum = 0
+					$i = 0
+					@while(i < 3, (
+						sum = sum + @yield(id * 10 + i)
+						i = i + 1
+					))
+					sum
+				}""";
+
+		var realms = new ArrayList<Realm>();
+		var function = (ManagedFunction) CodeResult.get(code, realms::add).value;
+		var realm = realms.get(0);
+
+		var coroutines = new ArrayList<Coroutine>();
+		for (int id = 0; id < 1000; id++) {
+			coroutines.add(new Coroutine(function, List.of(Primitive.from(id)), realm));
+		}
+
+		// Coroutines are interleaved and each step is executed on a different thread
+		for (int step = 0; step < 4; step++) {
+			var current = step;
+			var finished = step == 3;
+			var thread = new Thread(() -> {
+				for (int id = 0; id < coroutines.size(); id++) {
+					var coroutine = coroutines.get(id);
+					var result = new ExpressionResult();
+					var suspended = coroutine.resume(Primitive.from(id), result);
+
+					assertEquals(!finished, suspended);
+					assertEquals(finished, coroutine.isDone());
+					// Each resume adds the id to the sum, which is returned at the end
+					assertEquals(Primitive.from(finished ? id * 3 : id * 10 + current), result.value);
+				}
+			});
+
+			var failure = new AtomicReference<Throwable>();
+			thread.setUncaughtExceptionHandler((__, error) -> failure.set(error));
+			thread.start();
+			thread.join();
+			if (failure.get() != null) throw new AssertionError(failure.get());
+		}
+
+		var result = new ExpressionResult();
+		assertTrue(!coroutines.get(0).resume(Primitive.VOID, result));
+		assertTrue(result.terminate().format().contains("Cannot resume a finished generator"));
+	}
+
+	@Test
+	public void schedulerTest() throws Exception {
+		var code = """
+				$generated = generator(\\() @yield(fetch(1)))().resume()
+				$task = \\(n) fetch(n) + fetch(n + 1)
+				$failing = \\() fail()
+				$parts = [generated, task, failing]
+				parts""";
+
+		var realms = new ArrayList<Realm>();
+		var result = CodeResult.get(code, realm -> {
+			realms.add(realm);
+
+			realm.declareGlobal("fetch", AsyncNativeFunction.blocking(realm, List.of("value"), List.of(Primitive.Number.class), args -> {
+				Thread.sleep(100);
+				return Primitive.from(args.get(0).getNumberValue() * 2);
+			}));
+
+			realm.declareGlobal("fail", AsyncNativeFunction.async(realm, Collections.emptyList(), Collections.emptyList(), (args, scope, failResult) -> {
+				return CompletableFuture.failedFuture(new IllegalStateException("Service unavailable"));
+			}));
+
+			// Tables and arrays cannot be passed to another thread
+			assertThrows(IllegalArgumentException.class, () -> AsyncNativeFunction.blocking(realm, List.of("value"), List.of(ManagedValue.class), args -> args.get(0)));
+		});
+
+		var realm = realms.get(0);
+		var values = ((ManagedArray) result.value).getElementsReadOnly();
+		// Generators executed outside of the scheduler wait for the operation
+		assertEquals(Primitive.from(2), values.get(0));
+
+		var tasks = new ArrayList<CompletableFuture<ExpressionResult>>();
+		for (int i = 0; i < 200; i++) {
+			tasks.add(realm.scheduler.spawn((ManagedFunction) values.get(1), List.of(Primitive.from(i))));
+		}
+
+		var failing = realm.scheduler.spawn((ManagedFunction) values.get(2), Collections.emptyList());
+
+		// Executed one after another, the operations would take 40 seconds
+		var start = System.nanoTime();
+		realm.scheduler.run();
+		assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(10)) < 0);
+		assertEquals(0, realm.scheduler.getActiveTasks());
+
+		for (int i = 0; i < tasks.size(); i++) {
+			var taskResult = tasks.get(i).get();
+			assertEquals(null, taskResult.label);
+			assertEquals(Primitive.from(i * 2 + (i + 1) * 2), taskResult.value);
+		}
+
+		var error = failing.get().terminate().format();
+		assertTrue(error.contains("While invoking") && error.contains("Operation failed: Service unavailable"), error);
+
+		realm.scheduler.shutdown();
+	}
+
+	@Test
+	public void timeSlicingTest() throws Exception {
+		var code = """
+				$sum = 0
+				$i = 0
+				@while(i < 10000, (
+					i = i + 1
+					sum = sum + i
+				))
+				sum""";
+
+		var realm = new Realm();
+		var coroutine = new Coroutine(new TreeBurstParser(new InputDocument("anon", code)).parse(), realm.globalScope);
+		coroutine.timeSlice = 1000;
+
+		var result = new ExpressionResult();
+		var slices = 1;
+		while (coroutine.resume(Primitive.VOID, result)) {
+			assertTrue(coroutine.isPreempted());
+			slices++;
+		}
+
+		assertEquals(null, result.label);
+		assertEquals(Primitive.from(50005000), result.value);
+		assertTrue(slices > 10, "Executed in " + slices + " slices");
+
+		// A long task does not prevent a short one from finishing
+		var order = new ArrayList<String>();
+		realm.declareGlobal("finish", NativeFunction.simple(realm, List.of("name"), List.of(Primitive.String.class), (args, scope, finishResult) -> {
+			order.add(args.get(0).getStringValue());
+		}));
+
+		realm.scheduler.timeSlice = 100;
+		var parser = new TreeBurstParser(new InputDocument("anon", "$n = 0\n@while(n < 10000, n = n + 1)\nfinish(\"long\")"));
+		var longTask = realm.scheduler.spawn(parser.parse(), realm.globalScope.makeChild(), new ExpressionResult());
+		var shortTask = realm.scheduler.spawn(new TreeBurstParser(new InputDocument("anon", "finish(\"short\")")).parse(), realm.globalScope.makeChild(), new ExpressionResult());
+		realm.scheduler.run();
+
+		assertEquals(null, longTask.get().label);
+		assertEquals(null, shortTask.get().label);
+		assertEquals(List.of("short", "long"), order);
+	}
+
+	@Test
+	public void runPendingTest() {
+		var realm = new Realm();
+		realm.scheduler.timeSlice = 100;
+
+		// The task is preempted and queued again forever, each call only resumes it once
+		var task = realm.scheduler.spawn(new TreeBurstParser(new InputDocument("anon", "@while(true, 0)")).parse(), realm.globalScope.makeChild(), new ExpressionResult());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(realm.scheduler.runPending());
+		}
+
+		assertTrue(!task.isDone());
+		assertEquals(1, realm.scheduler.getActiveTasks());
+	}
+
+	@Test
+	public void aheadOfTimeCompilationTest() throws Exception {
+		var code = """
+				$fib = \\(n, $memo = []) n < 2 ? n : fib(n - 1) + fib(n - 2)
+				$parts = [...[1, 2], Table.new({ a: "x", [5]: 5 }).a, $"t${fib(10)}"]
+				parts.join(",")""";
+
+		var diagnostics = new ArrayList<Diagnostic>();
+		var bytes = ScriptCompiler.compile(new InputDocument("script.tb", code), "treeburst.scripts.Script", diagnostics);
+		assertTrue(diagnostics.isEmpty(), diagnostics.isEmpty() ? "" : diagnostics.get(0).format());
+
+		var loader = new ClassLoader(this.getClass().getClassLoader()) {
+			public Class<?> define(String name, byte[] data) {
+				return this.defineClass(name, data, 0, data.length);
+			}
+		};
+
+		// The instructions emitted at build time are used by realms with the standard library
+		var realm = Realm.shared().fork();
+		var type = loader.define("treeburst.scripts.Script", bytes);
+		var fragment = ScriptCompiler.load(type, realm);
+		assertTrue(fragment.isCompiled() && fragment.getExpression() == null);
+
+		var result = new ExpressionResult();
+		fragment.evaluate(realm.globalScope.makeChild(), result);
+		var terminated = result.terminate();
+		if (terminated != null) fail(terminated.format());
+		assertEquals(CodeResult.get(code).value.toString(), result.value.toString());
+		assertEquals("[string \"1,2,x,t55\"]", result.value.toString());
+
+		// Realms with other macros compile the stored expression tree
+		var macroRealm = new Realm();
+		macroRealm.declareGlobal("@extra", NativeFunction.simple(macroRealm, List.of(), (args, scope, macroResult) -> {}));
+		fragment = ScriptCompiler.load(type, macroRealm);
+		assertTrue(!fragment.isCompiled() && fragment.getExpression() != null);
+		result = new ExpressionResult();
+		fragment.evaluate(macroRealm.globalScope, result);
+		assertEquals("[string \"1,2,x,t55\"]", result.value.toString());
+
+		// The same script is compiled from src/test/treeburst by the treeBurstJavaTest Gradle task
+		fragment = ScriptCompiler.load(Class.forName("treeburst.scripts.aot.Sample"), realm);
+		assertTrue(fragment.isCompiled());
+		result = new ExpressionResult();
+		fragment.evaluate(realm.globalScope.makeChild(), result);
+		assertEquals("[string \"1,2,x,t55\"]", result.value.toString());
+
+		var failing = ScriptCompiler.compile(new InputDocument("failing.tb", "$x = 1\nx.y.z"), "treeburst.scripts.Failing", diagnostics);
+		fragment = ScriptCompiler.load(loader.define("treeburst.scripts.Failing", failing), new Realm());
+		result = new ExpressionResult();
+		fragment.evaluate(new Realm().globalScope, result);
+		var error = result.terminate().format();
+		assertTrue(error.contains("failing.tb:2:") && error.contains("x.y.z"), error);
+
+		assertTrue(ScriptCompiler.compile(new InputDocument("invalid.tb", "1 +"), "Invalid", diagnostics) == null);
+		assertTrue(!diagnostics.isEmpty());
+	}
+
+	@Test
+	public void bytecodeFileTest(@TempDir Path directory) throws Exception {
+		var source = new InputDocument("cached.tb", """
+				$fib = \\(n) n < 2 ? n : fib(n - 1) + fib(n - 2)
+				$values = []
+				$i = 0
+				@while(i < 10, (
+				    values.push(fib(i) ?? 0)
+				    i = i + 1
+				))
+				values.join(",")""");
+		var file = directory.resolve("cached" + BytecodeWriter.EXTENSION);
+		var diagnostics = new ArrayList<Diagnostic>();
+
+		var realm = new Realm();
+		var compiled = BytecodeLoader.loadOrCompile(source, file, realm.globalScope, diagnostics);
+		assertTrue(diagnostics.isEmpty() && compiled.getExpression() != null && Files.exists(file));
+
+		var result = new ExpressionResult();
+		compiled.evaluate(realm.globalScope, result);
+		assertEquals("[string \"0,1,1,2,3,5,8,13,21,34\"]", result.value.toString());
+
+		// Save again after execution, so the function body is saved in its compiled form
+		BytecodeWriter.write(compiled, source, realm, file);
+
+		realm = new Realm();
+		var loaded = BytecodeLoader.loadOrCompile(source, file, realm.globalScope, diagnostics);
+		assertTrue(loaded.isCompiled() && loaded.getExpression() == null);
+		assertEquals(compiled.toString(), loaded.toString());
+
+		result = new ExpressionResult();
+		loaded.evaluate(realm.globalScope, result);
+		var fib = (ScriptFunction) realm.globalScope.findVariable("fib").value;
+		assertTrue(fib.body.isCompiled() && fib.body.toString().contains("LoadLocal n"), fib.body.toString());
+		assertEquals("[string \"0,1,1,2,3,5,8,13,21,34\"]", result.value.toString());
+
+		var modified = new InputDocument("cached.tb", source.content + " ");
+		assertEquals(null, BytecodeLoader.load(file, modified, new Realm()));
+
+		var plainRealm = new Realm();
+		plainRealm.optimizeBytecode = false;
+		assertEquals(null, BytecodeLoader.load(file, source, plainRealm));
+
+		// Macros are part of the compilation key, since they change the emitted instructions
+		var macroRealm = new Realm();
+		macroRealm.declareGlobal("@extra", NativeFunction.simple(macroRealm, List.of(), (args, scope, macroResult) -> {}));
+		assertEquals(null, BytecodeLoader.load(file, source, macroRealm));
+
+		// Constants computed during compilation depend on the scope, so they are not saved
+		var constant = new InputDocument("constant.tb", "@constexpr(base)");
+		var constantFile = directory.resolve("constant" + BytecodeWriter.EXTENSION);
+		var constantRealm = new Realm();
+		constantRealm.declareGlobal("base", Primitive.from(1));
+		BytecodeLoader.loadOrCompile(constant, constantFile, constantRealm.globalScope, diagnostics);
+
+		constantRealm = new Realm();
+		constantRealm.declareGlobal("base", Primitive.from(2));
+		var constantFragment = BytecodeLoader.load(constantFile, constant, constantRealm);
+		assertTrue(!constantFragment.isCompiled());
+		result = new ExpressionResult();
+		constantFragment.evaluate(constantRealm.globalScope, result);
+		assertEquals(Primitive.from(2), result.value);
+
+		var data = Files.readAllBytes(file);
+		data[data.length - 1] ^= 1;
+		Files.write(file, data);
+		assertEquals(null, BytecodeLoader.load(file, source, new Realm()));
+		assertTrue(BytecodeLoader.loadOrCompile(source, file, new Realm().globalScope, diagnostics).getExpression() != null);
+		assertTrue(BytecodeLoader.load(file, source, new Realm()) != null);
+	}
 }
@@ -0,0 +1,150 @@
+package bt7s7k7.treeburst;
+
+import static bt7s7k7.treeburst.BytecodeTest.CodeResult.evaluate;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import bt7s7k7.treeburst.parsing.TreeBurstParser;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.ManagedArray;
+import bt7s7k7.treeburst.runtime.ManagedTable;
+import bt7s7k7.treeburst.runtime.NativeFunction;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.standard.Channel;
+import bt7s7k7.treeburst.support.InputDocument;
+import bt7s7k7.treeburst.support.Primitive;
+
+class ChannelTest {
+	@Test
+	public void channelTest() throws Exception {
+		var template = new Realm();
+		Channel.install(template);
+		var config = template.declareGlobal("config", new ManagedTable(template.TablePrototype));
+		config.declareProperty("factor", Primitive.from(2));
+		// Tables frozen by the host are shared by all forks instead of copied
+		config.freeze();
+		template.snapshot();
+
+		var input = new Channel(4);
+		var output = new Channel(4);
+
+		var producer = """
+				$n = input.receive()
+				@while(n != void, (
+					output.send(Table.new({ value: n * config.factor, tags: [n], config: config }))
+					n = input.receive()
+				))
+				output.close()""";
+
+		// Copies can be modified by the receiver, the frozen table is passed by reference
+		var consumer = """
+				$sum = 0
+				$message = output.receive()
+				@while(message != void, (
+					message.tags.push(0)
+					sum = sum + message.value + message.tags.length - 2
+					@if(message.config != config, (sum = -1000000))
+					message = output.receive()
+				))
+				sum""";
+
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			Function<String, CompletableFuture<ExpressionResult>> stage = code -> CompletableFuture.supplyAsync(() -> {
+				var realm = template.fork();
+				realm.declareGlobal("input", Channel.WRAPPER.getHandle(input, realm));
+				realm.declareGlobal("output", Channel.WRAPPER.getHandle(output, realm));
+
+				var task = realm.scheduler.spawn(new TreeBurstParser(new InputDocument("stage.tb", code)).parse(), realm.globalScope, new ExpressionResult());
+				try {
+					realm.scheduler.run();
+				} catch (InterruptedException exception) {
+					throw new RuntimeException(exception);
+				}
+
+				return task.join();
+			}, executor);
+
+			var producerTask = stage.apply(producer);
+			var consumerTask = stage.apply(consumer);
+
+			var host = template.fork();
+			for (int i = 0; i < 1000; i++) {
+				input.send(Primitive.from(i), host, new ExpressionResult()).join();
+			}
+			input.close();
+
+			var produced = producerTask.get();
+			if (produced.label != null) fail(produced.terminate().format());
+
+			var consumed = consumerTask.get();
+			if (consumed.label != null) fail(consumed.terminate().format());
+			assertEquals(999000, consumed.value.getNumberValue());
+		}
+
+		var realm = template.fork();
+		var channel = new Channel(1);
+		var result = new ExpressionResult();
+
+		var array = ManagedArray.withCapacity(realm.ArrayPrototype, 1);
+		array.getElementsMutable().add(array);
+		assertTrue(channel.trySend(array, realm, result));
+		assertTrue(!channel.trySend(Primitive.from(1), realm, result));
+		assertEquals(null, result.label);
+
+		var received = (ManagedArray) channel.tryReceive(realm);
+		assertTrue(received != array);
+		assertSame(received, received.get(0));
+		assertEquals(null, channel.tryReceive(realm));
+
+		var function = NativeFunction.simple(realm, List.of(), (args, scope, functionResult) -> {});
+		assertTrue(!channel.trySend(function, realm, result));
+		var error = result.terminate().format();
+		assertTrue(error.contains("Cannot send"), error);
+
+		// Frozen tables are copied if they reference mutable objects
+		var holder = new ManagedTable(realm.TablePrototype);
+		holder.declareProperty("items", ManagedArray.withCapacity(realm.ArrayPrototype, 0));
+		holder.freeze();
+		assertTrue(channel.trySend(holder, realm, new ExpressionResult()));
+		var copied = (ManagedTable) channel.tryReceive(realm);
+		assertTrue(copied != holder && copied.getOwnProperty("items") != holder.getOwnProperty("items"));
+
+		channel.close();
+		var closed = assertThrows(CompletionException.class, () -> channel.send(Primitive.from(1), realm, new ExpressionResult()).join());
+		assertTrue(closed.getCause().getMessage().contains("closed"));
+		assertSame(Primitive.VOID, realm.scheduler.await(channel.receive(realm)));
+
+		// Messages sent by other threads are converted on the thread of the receiving realm
+		var later = new Channel(1);
+		var pending = later.receive(realm);
+		var sender = template.fork();
+		CompletableFuture.runAsync(() -> later.send(ManagedArray.withCapacity(sender.ArrayPrototype, 0), sender, new ExpressionResult()));
+		assertSame(realm.ArrayPrototype, ((ManagedArray) realm.scheduler.await(pending)).prototype);
+
+		// Receiving channels does not declare the Channel global in realms without it
+		var plain = Realm.shared().fork();
+		var nested = new Channel(1);
+		assertTrue(later.trySend(Channel.WRAPPER.getHandle(nested, realm), realm, new ExpressionResult()));
+		assertSame(nested, later.tryReceive(plain).getNativeValue(Channel.class));
+		assertTrue(!plain.isModified());
+
+		// Capacities are validated before the buffers are allocated
+		Channel.install(plain);
+		for (var code : List.of("Channel.new(1000000000000)", "Channel.new(2.5)", "Channel.new(0)")) {
+			var failure = evaluate(plain, code).terminate();
+			assertTrue(failure != null && failure.format().contains("Capacity must be"), code);
+		}
+		assertThrows(IllegalArgumentException.class, () -> new Channel(Channel.MAX_CAPACITY + 1));
+	}
+}
@@ -0,0 +1,323 @@
+package bt7s7k7.treeburst;
+
+import static bt7s7k7.treeburst.BytecodeTest.CodeResult.evaluate;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import bt7s7k7.treeburst.bytecode.BytecodeEmitter;
+import bt7s7k7.treeburst.parsing.TreeBurstParser;
+import bt7s7k7.treeburst.runtime.ExpressionResult;
+import bt7s7k7.treeburst.runtime.ManagedArray;
+import bt7s7k7.treeburst.runtime.ManagedMap;
+import bt7s7k7.treeburst.runtime.ManagedTable;
+import bt7s7k7.treeburst.runtime.NativeFunction;
+import bt7s7k7.treeburst.runtime.Realm;
+import bt7s7k7.treeburst.runtime.ScriptFunction;
+import bt7s7k7.treeburst.support.InputDocument;
+import bt7s7k7.treeburst.support.Primitive;
+
+class RealmTest {
+	@Test
+	public void allocationLimitTest() {
+		var realm = new Realm();
+		realm.allocationLimit = 1_000_000;
+
+		var small = evaluate(realm, "[1, 2, 3].map(\\(v) v * 2).join(\",\") + \"x\" * 10");
+		assertEquals(null, small.label);
+		assertEquals("[string \"2,4,6xxxxxxxxxx\"]", small.value.toString());
+		var used = realm.getAllocatedBytes();
+		assertTrue(used > 0 && used < 1000, "Allocated " + used + " bytes");
+
+		for (var code : List.of("\"x\" * 1000000000", "$list = []\n@while(true, list.push(1))", "$map = {}\n$i = 0\n@while(true, map[i = i + 1] = i)", "[0] * 1000000000", "([\"x\" * 100000] * 50000).join(\"\")", "$zeros = [0] * 60000\nzeros.filter(\\(v) true)\nzeros.filter(\\(v) true)")) {
+			realm.resetAllocatedBytes();
+			var error = evaluate(realm, code).terminate();
+			assertTrue(error != null && error.format().contains("Exceeded the allocation limit of 1000000 bytes"), code);
+			assertTrue(realm.getAllocatedBytes() <= realm.allocationLimit);
+		}
+	}
+
+
+	@Test
+	public void forkTest() {
+		var template = new Realm();
+		var config = template.declareGlobal("config", new ManagedTable(template.TablePrototype));
+		config.declareProperty("name", Primitive.from("template"));
+		template.declareGlobal("counter", Primitive.from(0));
+		var items = template.declareGlobal("items", ManagedArray.withCapacity(template.ArrayPrototype, 1));
+		items.getElementsMutable().add(Primitive.from(1));
+		template.declareGlobal("entries", ManagedMap.empty(template.MapPrototype));
+		var shared = template.declareGlobal("shared", new ManagedTable(template.TablePrototype));
+		shared.declareProperty("name", Primitive.from("shared"));
+		shared.freeze();
+
+		assertThrows(IllegalStateException.class, () -> template.fork());
+		template.snapshot();
+
+		var first = template.fork();
+		var second = template.fork();
+		assertTrue(template.isFrozen());
+		assertSame(template.ArrayPrototype.getOwnProperty("push"), first.ArrayPrototype.getOwnProperty("push"));
+		assertTrue(first.ArrayPrototype.getShape() != null);
+		assertSame(template.ArrayPrototype.getShape(), first.ArrayPrototype.getShape());
+
+		var assigned = evaluate(first, "counter = counter + 5\n$local = config.name\ncounter");
+		assertEquals(null, assigned.label);
+		assertEquals(5, assigned.value.getNumberValue());
+		assertEquals(0, evaluate(second, "counter").value.getNumberValue());
+		assertEquals(0, template.globalScope.findVariable("counter").value.getNumberValue());
+		assertEquals(null, second.globalScope.findLocalVariable("local"));
+
+		// Tables, arrays and maps of the template are copied into the fork that accesses them
+		var modified = evaluate(first, "config.name = \"fork\"\n$config.other = 1\nitems.push(2)\nitems[0] = 3\nentries[1] = 2\n[config.name, items.length, items[0], entries[1], Table.getPrototype(config) == Table.prototype].join(\",\")");
+		assertEquals(null, modified.label);
+		assertEquals("fork,2,3,2,true", modified.value.getStringValue());
+		assertEquals("template,1,1", evaluate(second, "[config.name, items.length, items[0]].join(\",\")").value.getStringValue());
+		assertEquals(1, items.getLength());
+		assertEquals(Primitive.from("template"), config.getOwnProperty("name"));
+
+		// Objects frozen by the host are shared
+		var failure = evaluate(second, "shared.name = \"fork\"").terminate();
+		assertTrue(failure != null && failure.format().contains("Cannot modify frozen table"));
+
+		// Forks that only read the copies can be recycled
+		var third = template.fork();
+		assertEquals(null, evaluate(third, "[config.name, items[0], entries.length].join(\",\")").label);
+		assertTrue(!third.isModified());
+		assertEquals(null, evaluate(third, "items.push(2)").label);
+		assertTrue(third.isModified());
+
+		// Variables captured by functions of the template cannot be tracked, so their forks are not recycled
+		var closures = new Realm();
+		assertEquals(null, evaluate(closures, "$next = (\\() ($n = 0\n\\() n = n + 1))()").label);
+		var counting = closures.snapshot().fork();
+		assertEquals(1, evaluate(counting, "next()").value.getNumberValue());
+		assertTrue(counting.isModified());
+		assertEquals(2, evaluate(second, "$copy = items.clone()\ncopy.push(2)\ncopy.length").value.getNumberValue());
+
+		// Allocations of shared native functions are charged to the fork that invoked them
+		first.allocationLimit = 1000;
+		var error = evaluate(first, "\"x\" * 1000").terminate();
+		assertTrue(error != null && error.format().contains("Exceeded the allocation limit of 1000 bytes"));
+		assertEquals(0, template.getAllocatedBytes());
+		assertEquals(null, evaluate(second, "[1, 2, 3].map(\\(v) v * 2).join(\",\") + \"x\" * 1000").label);
+
+		assertThrows(IllegalStateException.class, () -> template.declareGlobal("late", Primitive.NULL));
+	}
+
+
+	@Test
+	public void sharedStandardLibraryTest() throws Exception {
+		var overriding = Realm.shared().fork();
+		var other = Realm.shared().fork();
+
+		var overridden = evaluate(overriding, "Array.prototype.push = \\(this, value) \"overridden\"\nNumber.prototype.k_add = \\(this, other) \"added\"\n$Table.prototype.describe = \\(this) \"table\"\n$one = 1\n$parts = [[].push(1), one + 2, [].describe()]\nparts.join(\",\")");
+		assertEquals(null, overridden.label);
+		assertEquals("overridden,added,table", overridden.value.getStringValue());
+
+		var original = evaluate(other, "$list = []\nlist.push(1)\n[list.length, 1 + 2, Table.getPrototype([]) == Array.prototype].join(\",\")");
+		assertEquals(null, original.label);
+		assertEquals("1,3,true", original.value.getStringValue());
+
+		// Constructors of a fork refer to its own prototypes, the storage of the template is not modified
+		var idle = Realm.shared().fork();
+		assertSame(idle.ArrayPrototype, idle.Array.getProperties().get("prototype"));
+		assertSame(Realm.shared().ArrayPrototype, Realm.shared().Array.getOwnProperty("prototype"));
+		assertFalse(idle.isModified());
+
+		// Forks of the shared library can be used on multiple threads at the same time
+		var tasks = new ArrayList<CompletableFuture<ExpressionResult>>();
+		for (int i = 0; i < 16; i++) {
+			tasks.add(CompletableFuture.supplyAsync(() -> evaluate(Realm.shared().fork(), "$sum = 0\nrange(0, 10000).map(\\(v) v * 2).foreach(\\(v) sum = sum + v)\nsum")));
+		}
+
+		for (var task : tasks) {
+			var result = task.get();
+			assertEquals(null, result.label);
+			assertEquals(99990000, result.value.getNumberValue());
+		}
+	}
+
+
+	@Test
+	public void sharedFragmentTest() throws Exception {
+		var fragment = new TreeBurstParser(new InputDocument("shared.tb", """
+				$total = 0
+				$add = \\(a, b) a + b
+				$items = range(0, 200).map(\\(v) Table.new({ value: v }))
+				items.foreach(\\(item) total = add(total, item.value))
+				total""")).parse();
+
+		// The same fragment is evaluated by many realms on multiple threads, each realm collects
+		// its own type feedback, so realms overriding the operator do not affect the others
+		var tasks = new ArrayList<CompletableFuture<List<Double>>>();
+		for (int i = 0; i < 8; i++) {
+			var overriding = i % 2 == 1;
+
+			tasks.add(CompletableFuture.supplyAsync(() -> {
+				var realm = Realm.shared().fork();
+				realm.quickeningThreshold = 2;
+				realm.compilationThreshold = 3;
+
+				if (overriding) {
+					var result = new ExpressionResult();
+					new TreeBurstParser(new InputDocument("override.tb", "Number.prototype.k_add = \\(this, other) 1")).parse().evaluate(realm.globalScope, result);
+					if (result.label != null) fail(result.terminate().format());
+				}
+
+				var results = new ArrayList<Double>();
+				for (int j = 0; j < 20; j++) {
+					var result = new ExpressionResult();
+					fragment.evaluate(realm.globalScope.makeChild(), result);
+					if (result.label != null) fail(result.terminate().format());
+					results.add(result.value.getNumberValue());
+				}
+
+				return results;
+			}));
+		}
+
+		for (int i = 0; i < tasks.size(); i++) {
+			var expected = i % 2 == 1 ? 1.0 : 19900.0;
+			assertEquals(Collections.nCopies(20, expected), tasks.get(i).get());
+		}
+
+		var realm = Realm.shared().fork();
+		var instance = fragment.getInstance(realm);
+		assertTrue(instance != fragment);
+		assertSame(instance, fragment.getInstance(realm));
+	}
+
+	@Test
+	public void concurrentCompilationTest() throws Exception {
+		var declarations = new StringBuilder();
+		var names = new ArrayList<String>();
+		for (int i = 0; i < 200; i++) {
+			names.add("v" + i);
+			declarations.append("    $v").append(i).append(" = n + ").append(i).append("\n");
+		}
+
+		var code = "$f = \\(n) {\n" + declarations + "    [" + String.join(", ", names) + "].join(\",\")\n}\nf";
+		var expected = String.join(",", names.stream().map(name -> String.valueOf(1 + Integer.parseInt(name.substring(1)))).toList());
+		var threads = 8;
+		var executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			for (int round = 0; round < 20; round++) {
+				var fragment = new TreeBurstParser(new InputDocument("locals.tb", code)).parse();
+
+				// All threads compile the body of the function at the same time and declare its
+				// locals in the layout shared by the instances of the fragment
+				var barrier = new CyclicBarrier(threads);
+				var tasks = new ArrayList<Future<ScriptFunction>>();
+				for (int i = 0; i < threads; i++) {
+					tasks.add(executor.submit(() -> {
+						var realm = Realm.shared().fork();
+						var result = new ExpressionResult();
+						fragment.evaluate(realm.globalScope.makeChild(), result);
+						if (result.label != null) fail(result.terminate().format());
+
+						var function = (ScriptFunction) result.value;
+						barrier.await();
+
+						var call = new ExpressionResult();
+						function.invoke(List.of(Primitive.from(1)), realm.globalScope, call);
+						if (call.label != null) fail(call.terminate().format());
+						assertEquals(expected, call.value.getStringValue());
+						return function;
+					}));
+				}
+
+				var layout = tasks.get(0).get().body.getLayout();
+				for (var task : tasks) {
+					assertSame(layout, task.get().body.getLayout());
+				}
+
+				assertEquals(names.size() + 1, layout.size());
+				for (var name : names) {
+					assertEquals(name, layout.getName(layout.indexOf(name)));
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void sharedFragmentMacroTest() {
+		var fragment = new TreeBurstParser(new InputDocument("macro.tb", "[@answer(), @constexpr(base)]")).parse();
+
+		// Macros declared by the host and constants depend on the realm, so each realm compiles
+		// the fragment again instead of executing the code of the first one
+		for (var answer : List.of(42, 43)) {
+			var realm = Realm.shared().fork();
+			realm.declareGlobal("base", Primitive.from(answer * 10));
+			realm.declareGlobal("@answer", NativeFunction.simple(realm, List.of("@"), List.of(BytecodeEmitter.class), (args, scope, result) -> {
+				args.get(0).getNativeValue(BytecodeEmitter.class).emit(Primitive.from(answer));
+				result.value = Primitive.VOID;
+			}));
+
+			var result = new ExpressionResult();
+			fragment.evaluate(realm.globalScope.makeChild(), result);
+			if (result.label != null) fail(result.terminate().format());
+			assertEquals(List.of(Primitive.from(answer), Primitive.from(answer * 10)), ((ManagedArray) result.value).getElementsReadOnly());
+		}
+
+		// Code using only macros of the standard library is copied to realms with the same macros
+		var shared = new TreeBurstParser(new InputDocument("shared.tb", "@if(true, 1, 2)")).parse();
+		var first = Realm.shared().fork();
+		shared.evaluate(first.globalScope, new ExpressionResult());
+
+		var second = Realm.shared().fork();
+		assertEquals(first.getCompilationKey(), second.getCompilationKey());
+		assertTrue(shared.getInstance(second).isCompiled());
+
+		var redefining = Realm.shared().fork();
+		redefining.declareGlobal("@if", NativeFunction.simple(redefining, List.of(), (args, scope, result) -> {}));
+		assertTrue(redefining.getCompilationKey() != first.getCompilationKey());
+		assertTrue(!shared.getInstance(redefining).isCompiled());
+	}
+
+	@Test
+	public void compilationKeyTest() {
+		var realm = new Realm();
+		var key = realm.getCompilationKey();
+
+		// Globals and properties of Table.prototype that are not macros do not change the key
+		realm.declareGlobal("value", Primitive.from(1));
+		realm.TablePrototype.declareProperty("describe", Primitive.from(2));
+		assertEquals(key, realm.getCompilationKey());
+
+		var macro = realm.globalScope.findVariable("@if");
+		var standard = macro.value;
+		macro.value = NativeFunction.simple(realm, List.of(), (args, scope, result) -> {});
+		assertTrue(realm.getCompilationKey() != key);
+		macro.value = standard;
+		assertEquals(key, realm.getCompilationKey());
+
+		realm.declareGlobal("@custom", standard);
+		var declared = realm.getCompilationKey();
+		assertTrue(declared != key);
+
+		realm.TablePrototype.declareProperty("@custom", standard);
+		assertTrue(realm.getCompilationKey() != declared);
+
+		realm.optimizeBytecode = false;
+		var plain = realm.getCompilationKey();
+		realm.optimizeBytecode = true;
+		assertTrue(plain != realm.getCompilationKey());
+	}
+}
@@ -0,0 +1,71 @@
+package bt7s7k7.treeburst;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+import bt7s7k7.treeburst.parsing.TreeBurstParser;
+import bt7s7k7.treeburst.runtime.ScriptExecutor;
+import bt7s7k7.treeburst.support.InputDocument;
+
+class ScriptExecutorTest {
+	@Test
+	public void scriptExecutorTest() throws Exception {
+		try (var executor = new ScriptExecutor(4)) {
+			var fragment = new TreeBurstParser(new InputDocument("sum.tb", "$sum = 0\nrange(0, 1000).foreach(\\(v) sum = sum + v)\nsum")).parse();
+
+			var tasks = new ArrayList<CompletableFuture<ScriptExecutor.Result>>();
+			for (int i = 0; i < 64; i++) {
+				tasks.add(executor.submit(fragment));
+			}
+
+			for (var task : tasks) {
+				var result = task.get();
+				assertTrue(result.isSuccess(), result.isSuccess() ? "" : result.diagnostics().get(0).format());
+				assertEquals(499500, result.value().getNumberValue());
+			}
+
+			// Scripts only declared their own variables, so all realms were recycled
+			assertEquals(4, executor.getCreatedRealms());
+
+			var overriding = executor.submit(new InputDocument("override.tb", "Array.prototype.push = \\(this, value) \"overridden\"\n$list = []\nlist.push(1)")).get();
+			assertEquals("overridden", overriding.value().getStringValue());
+			assertEquals(5, executor.getCreatedRealms());
+
+			for (int i = 0; i < 8; i++) {
+				var original = executor.submit(new InputDocument("push.tb", "$list = []\nlist.push(1)\nlist.length")).get();
+				assertEquals(1, original.value().getNumberValue());
+			}
+
+			var invalid = executor.submit(new InputDocument("invalid.tb", "1 +")).get();
+			assertEquals(null, invalid.value());
+			assertTrue(!invalid.isSuccess());
+
+			var failing = executor.submit(new InputDocument("failing.tb", "$x = 1\nx.y.z")).get();
+			var error = failing.diagnostics().get(0).format();
+			assertTrue(error.contains("failing.tb:2:"), error);
+
+			var loop = new InputDocument("loop.tb", "@while(true, 0)");
+
+			var limited = executor.submit(loop, 1000, null).get();
+			error = limited.diagnostics().get(0).format();
+			assertTrue(error.contains("limit of 1000"), error);
+
+			var timed = executor.submit(loop, Integer.MAX_VALUE, Duration.ofMillis(10)).get();
+			error = timed.diagnostics().get(0).format();
+			assertTrue(error.contains("deadline"), error);
+
+			// Closing the executor waits for the cancelled script, so it must be aborted
+			var cancelled = executor.submit(loop);
+			cancelled.cancel(false);
+			assertThrows(CancellationException.class, () -> cancelled.join());
+		}
+	}
+}
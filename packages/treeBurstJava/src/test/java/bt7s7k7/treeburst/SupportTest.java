@@ -1,10 +1,20 @@
 package bt7s7k7.treeburst;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 import org.junit.jupiter.api.Test;
 
+import bt7s7k7.treeburst.bytecode.ValueStack;
+import bt7s7k7.treeburst.runtime.ManagedTable;
+import bt7s7k7.treeburst.runtime.Shape;
 import bt7s7k7.treeburst.support.Primitive;
 
 class SupportTest {
@@ -16,4 +26,106 @@ class SupportTest {
 		assertFalse(Primitive.from("value").equals(Primitive.NULL));
 		assertFalse(Primitive.from(0.58).equals(Primitive.VOID));
 	}
+
+	@Test
+	public void smallIntegerCache() {
+		assertSame(Primitive.from(5), Primitive.from(5.0));
+		assertSame(Primitive.from(-128), Primitive.from(-128));
+		assertSame(Primitive.ZERO, Primitive.from(-0.0));
+		assertFalse(Primitive.from(2.5) == Primitive.from(2.5));
+		assertFalse(Primitive.from(100000) == Primitive.from(100000));
+		assertEquals(1023.0, Primitive.from(1023).value);
+		assertTrue(Double.isNaN(Primitive.from(Double.NaN).value));
+	}
+
+	@Test
+	public void valueStackNumbers() {
+		var stack = new ValueStack();
+		var value = Primitive.from("value");
+		stack.push(value);
+
+		for (int i = 0; i < 40; i++) {
+			stack.pushNumber(i + 0.5);
+		}
+
+		assertTrue(stack.isNumber(0));
+		assertFalse(stack.isNumber(40));
+		assertEquals(39.5, stack.popNumber());
+
+		// Unboxed numbers are boxed when read, the boxed value is kept
+		var boxed = stack.peek();
+		assertEquals(38.5, boxed.getNumberValue());
+		assertSame(boxed, stack.peek());
+		assertTrue(stack.isNumber(0));
+		assertEquals(38.5, stack.popNumber());
+
+		var window = stack.popArguments(38);
+		assertEquals(0.5, window.get(0).getNumberValue());
+		assertEquals(37.5, window.get(37).getNumberValue());
+
+		stack.pushNumber(1);
+		assertSame(Primitive.from(1), stack.pop());
+		assertSame(value, stack.pop());
+		assertEquals(0, stack.size());
+	}
+
+	@Test
+	public void tableShapes() {
+		var a = new ManagedTable(null);
+		var b = new ManagedTable(null);
+		var reference = new HashMap<String, Object>();
+
+		for (var name : new String[] { "x", "width", "y", "height" }) {
+			a.declareProperty(name, Primitive.from(1));
+			b.declareProperty(name, Primitive.from(2));
+			reference.put(name, null);
+		}
+
+		assertSame(a.getShape(), b.getShape());
+		assertEquals(Primitive.from(2), b.getOwnProperty("width"));
+		assertEquals(new ArrayList<>(reference.keySet()), new ArrayList<>(a.getProperties().keySet()));
+
+		assertTrue(a.setOwnProperty("y", Primitive.from(5)));
+		assertFalse(a.setOwnProperty("z", Primitive.from(5)));
+		assertEquals(Primitive.from(5), a.getProperties().get("y"));
+
+		for (int i = 0; i < Shape.MAX_SIZE; i++) {
+			a.declareProperty("property" + i, Primitive.from(i));
+		}
+
+		assertNull(a.getShape());
+		assertEquals(Shape.MAX_SIZE + 4, a.getProperties().size());
+		assertEquals(Primitive.from(5), a.getOwnProperty("y"));
+	}
+
+	@Test
+	public void tablePropertyMap() {
+		var a = new ManagedTable(null);
+		a.declareProperty("mapX", Primitive.from(1));
+		a.declareProperty("mapY", Primitive.from(2));
+
+		// Tables with the same shape allocate space for the properties declared by the first one
+		var b = new ManagedTable(null);
+		b.declareProperty("mapX", Primitive.from(3));
+		assertEquals(2, b.getShape().getExpectedSize());
+
+		var properties = a.getProperties();
+		assertSame(a.properties, properties);
+		assertEquals(Primitive.from(1), properties.remove("mapX"));
+		assertNull(properties.remove("mapX"));
+		assertNull(a.getOwnProperty("mapX"));
+		assertNull(a.getShape());
+		assertEquals(1, properties.size());
+
+		properties.clear();
+		assertTrue(properties.isEmpty());
+		assertSame(Shape.EMPTY, a.getShape());
+		assertTrue(a.declareProperty("mapX", Primitive.from(4)));
+		assertEquals(Primitive.from(4), properties.get("mapX"));
+
+		a.freeze();
+		assertThrows(UnsupportedOperationException.class, () -> properties.remove("mapX"));
+		assertThrows(UnsupportedOperationException.class, () -> properties.put("mapX", Primitive.from(5)));
+		assertThrows(UnsupportedOperationException.class, () -> properties.put("mapZ", Primitive.from(5)));
+	}
 }